@@ -3,27 +3,32 @@ package com.brandon.chatandroid.client.agent;
 import android.content.Context;
 import android.content.Intent;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 
-import chat.ontology.ChatOntology;
 import chat.ontology.Joined;
 import chat.ontology.Left;
 import jade.content.ContentManager;
 import jade.content.Predicate;
+import jade.content.abs.AbsPredicate;
 import jade.content.lang.Codec;
 import jade.content.lang.sl.SLCodec;
 import jade.content.onto.Ontology;
 import jade.core.AID;
 import jade.core.Agent;
-import jade.core.behaviours.CyclicBehaviour;
 import jade.core.behaviours.OneShotBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.domain.DFSubscriber;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.util.Logger;
-import jade.util.leap.Iterator;
-import jade.util.leap.Set;
-import jade.util.leap.SortedSetImpl;
 
 public class ChatClientAgent extends Agent implements ChatClientInterface {
     private static final long serialVersionUID = 1594371294421614291L;
@@ -32,13 +37,117 @@ public class ChatClientAgent extends Agent implements ChatClientInterface {
 
     private static final String CHAT_ID = "__chat__";
     private static final String CHAT_MANAGER_NAME = "manager";
-
-    private Set participants = new SortedSetImpl();
-    private Codec codec = new SLCodec();
-    private Ontology ontology = ChatOntology.getInstance();
+    // Paramètre d'une notification contenant la liste complète des participants
+    private static final String SNAPSHOT = "chat-snapshot";
+    private static final String HEARTBEAT_ID = "__heartbeat__";
+    // Paramètre du SUBSCRIBE annonçant l'intervalle de nos battements de coeur
+    private static final String HEARTBEAT = "chat-heartbeat";
+    // Intervalle en ms des battements de coeur envoyés au manager, qui retire l'agent du
+    // salon s'il n'en reçoit plus (par exemple si le téléphone a perdu la connexion sans
+    // que le back-end ne s'en aperçoive)
+    private static final long HEARTBEAT_INTERVAL = 10000;
+    // Paramètres des messages du chat général numérotés par le manager
+    private static final String SEQ = "chat-seq";
+    private static final String STREAM = "chat-stream";
+    // Paramètre du SUBSCRIBE annonçant que l'on gère les numéros de séquence
+    private static final String SEQUENCED = "chat-sequenced";
+    // Conversation des messages privés confiés au manager pour un participant absent
+    private static final String MAILBOX_ID = "__mailbox__";
+    // Paramètre du SUBSCRIBE annonçant que l'on accepte les messages privés en attente par lot
+    private static final String MAILBOX = "chat-mailbox";
+    // Paramètres des notifications de présence (démarrage du manager et version de la liste
+    // des participants) rappelés dans le SUBSCRIBE pour reprendre la session
+    private static final String SESSION = "chat-session";
+    private static final String ROSTER_VERSION = "chat-roster-version";
+    // Délai en ms avant de redemander des messages manquants, nombre de demandes avant de
+    // les considérer comme perdus et nombre de messages conservés en attente d'un trou
+    static final long NACK_TIMEOUT = 2000;
+    static final int MAX_NACKS = 3;
+    static final int MAX_PENDING = 1000;
+    // Nombre de lignes pouvant attendre l'affichage par l'activité de chat
+    static final int CHANNEL_CAPACITY = 500;
+    // Nombre de messages traités à la suite avant de rendre la main aux autres behaviours
+    private static final int DISPATCH_BURST = 50;
+    // Débit d'envoi autorisé par destination (le chat général ou le destinataire d'un
+    // message privé) et pour l'ensemble des envois, en messages par seconde et en rafale.
+    // Les limites du chat général correspondent à celles appliquées par défaut par le manager.
+    private static final int SEND_RATE = 5;
+    private static final int SEND_BURST = 20;
+    private static final int TOTAL_SEND_RATE = 10;
+    private static final int TOTAL_SEND_BURST = 40;
+
+    // Etat conservé d'un agent à l'autre (voir ChatSession)
+    private ChatSession session;
+    private ParticipantRegistry participants;
+    private Codec codec;
+    // Ontologie du chat complétée des prédicats Whispered et Throttled
+    private Ontology ontology = WhisperOntology.getInstance();
     private ACLMessage spokenMsg;
+    private ParticipantsManager participantsManager;
+    // Manager auquel l'agent est inscrit, choisi par hachage cohérent du pseudo
+    private AID manager;
+    private ShardRing ring = new ShardRing();
 
     private Context context;
+    private ChatEventChannel channel;
+    // Limitation du débit d'envoi, par destination (CHAT_ID ou AID du destinataire)
+    private RateLimiter<Object> sendLimiter = new RateLimiter<Object>(SEND_RATE, SEND_BURST, TOTAL_SEND_RATE, TOTAL_SEND_BURST);
+    // Instant (System.currentTimeMillis()) avant lequel le manager refusera nos messages
+    private volatile long chatRefusedUntil;
+    // Vrai si le manager accepte les messages compressés (voir TextCompressor)
+    private boolean managerAcceptsCompression;
+    // Participants ayant annoncé accepter les messages privés compressés
+    private Set<AID> compressionPeers = new HashSet<AID>();
+    // Remise dans l'ordre des messages du chat général et détection des messages manquants,
+    // fréquents lorsque le téléphone perd le réseau
+    private ChatSequencer sequencer;
+
+    // Codec préparé par prewarm(), repris par le prochain agent démarré
+    private static AtomicReference<Codec> prewarmedCodec = new AtomicReference<Codec>();
+
+    /**
+     * Prépare dans un thread de fond ce que setup() ferait sinon au démarrage de l'agent :
+     * chargement des classes de l'agent, construction de l'ontologie et d'un codec SL dont
+     * l'analyseur a déjà servi. Appelé pendant l'affichage de l'écran de connexion, le
+     * travail est fait avant ou pendant le démarrage du conteneur.
+     */
+    public static void prewarm() {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    // Les littéraux de classe chargent les behaviours sans les initialiser
+                    Class<?>[] behaviours = {ParticipantsManager.class, ChatListener.class, WisperListener.class,
+                            MailboxListener.class, ManagerLocator.class, HeartbeatSender.class, GapChecker.class,
+                            ChatSpeaker.class, WisperSpeaker.class};
+                    ContentManager cm = new ContentManager();
+                    Codec codec = new SLCodec();
+                    cm.registerLanguage(codec);
+                    cm.registerOntology(WhisperOntology.getInstance());
+                    cm.setValidationMode(false);
+                    // Un aller-retour d'une notification initialise l'encodeur et l'analyseur SL
+                    List<AID> who = new ArrayList<AID>();
+                    who.add(new AID("prewarm@chat", AID.ISGUID));
+                    Joined joined = new Joined();
+                    joined.setWho(who);
+                    ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+                    msg.setLanguage(codec.getName());
+                    msg.setOntology(WhisperOntology.getInstance().getName());
+                    cm.fillContent(msg, joined);
+                    cm.extractContent(msg);
+                    prewarmedCodec.compareAndSet(null, codec);
+                    Logger.getJADELogger(ChatClientAgent.class.getName()).log(Level.INFO, "Prewarmed "
+                            + behaviours.length + " behaviours and the SL codec in "
+                            + (System.nanoTime() - start) / 1000000 + " ms");
+                } catch (Exception e) {
+                    // Le préchauffage n'est qu'une optimisation : setup() fera le travail
+                    e.printStackTrace();
+                }
+            }
+        }, "chat-prewarm");
+        t.setDaemon(true);
+        t.start();
+    }
 
     protected void setup() {
         Object[] args = getArguments();
@@ -46,31 +155,60 @@ public class ChatClientAgent extends Agent implements ChatClientInterface {
             if (args[0] instanceof Context) {
                 context = (Context) args[0];
             }
+            // Session d'un agent précédent, recréé après un changement de réseau
+            if (args.length > 1 && args[1] instanceof ChatSession) {
+                session = (ChatSession) args[1];
+            }
+        }
+        if (session == null) {
+            session = new ChatSession();
         }
+        participants = session.participants;
+        channel = session.channel;
+        sequencer = session.sequencer;
 
         // Répértorie le language et l'ontology
+        codec = prewarmedCodec.getAndSet(null);
+        if (codec == null) {
+            codec = new SLCodec();
+        }
         ContentManager cm = getContentManager();
         cm.registerLanguage(codec);
         cm.registerOntology(ontology);
         cm.setValidationMode(false);
 
-        // Ajoute les behaviours initiaux
-        addBehaviour(new ParticipantsManager(this));
-        addBehaviour(new ChatListener(this));
-        addBehaviour(new WisperListener(this));
+        // Ajoute les behaviours initiaux. Les messages reçus sont confiés, selon leur
+        // conversation, au traitement correspondant par un unique behaviour.
+        participantsManager = new ParticipantsManager();
+        MessageDispatcher dispatcher = new MessageDispatcher(this, DISPATCH_BURST);
+        dispatcher.register("C-" + getLocalName(), participantsManager);
+        dispatcher.register(CHAT_ID, new ChatListener());
+        dispatcher.register(getLocalName(), new WisperListener());
+        dispatcher.register(MAILBOX_ID, new MailboxListener());
+        addBehaviour(dispatcher);
+        // L'inscription est faite dès que le ManagerLocator a choisi le manager
+        addBehaviour(new ManagerLocator(this));
+        addBehaviour(new HeartbeatSender(this, HEARTBEAT_INTERVAL));
+        addBehaviour(new GapChecker(this, NACK_TIMEOUT / 4));
 
         // Initialise le message utiliser pour parler dans le chat
         spokenMsg = new ACLMessage(ACLMessage.INFORM);
+        // Le message n'est adressé qu'au ChatManager qui le relaie à tous les participants ;
+        // le destinataire est fixé lors de l'inscription.
         spokenMsg.setConversationId(CHAT_ID);
 
         // Active l'interface de l'agent
         registerO2AInterface(ChatClientInterface.class, this);
 
-        // Navigation vers l'activité de chat
-        Intent broadcast = new Intent();
-        broadcast.setAction("SHOW_CHAT");
-        logger.log(Level.INFO, "Sending broadcast " + broadcast.getAction());
-        context.sendBroadcast(broadcast);
+        // Navigation vers l'activité de chat, déjà ouverte si l'agent reprend la session
+        if (!session.started) {
+            session.started = true;
+            Intent broadcast = new Intent();
+            broadcast.setAction("SHOW_CHAT");
+            logger.log(Level.INFO, "Sending broadcast " + broadcast.getAction());
+            context.sendBroadcast(broadcast);
+        }
+        StartupTimings.mark(StartupTimings.AGENT_SETUP);
     }
 
     protected void takeDown() {
@@ -84,149 +222,435 @@ public class ChatClientAgent extends Agent implements ChatClientInterface {
         context.sendBroadcast(broadcast);
     }
 
-    // Notifie que quelqu'un a envoyé un message dans le chat
+    // Notifie que quelqu'un a envoyé un message dans le chat.
+    // Les lignes passent par le canal interne plutôt que par un broadcast système.
     private void notifySpoken(String speaker, String sentence) {
-        Intent broadcast = new Intent();
-        broadcast.setAction("REFRESH_CHAT");
-        broadcast.putExtra("sentence", speaker + ": " + sentence + "\n");
-        logger.log(Level.INFO, "Sending broadcast " + broadcast.getAction());
-        context.sendBroadcast(broadcast);
+        channel.offer(speaker + ": " + sentence);
     }
 
     // Notifie que quelqu'un à envoyé un message privé
     private void notifyWisper(String speaker, String sentence) {
-        Intent broadcast = new Intent();
-        broadcast.setAction("REFRESH_CHAT");
-        broadcast.putExtra("sentence", "[WISPER]" + speaker + ": " + sentence + "\n");
-        logger.log(Level.INFO, "Sending broadcast " + broadcast.getAction());
-        context.sendBroadcast(broadcast);
+        channel.offer("[WISPER]" + speaker + ": " + sentence);
     }
 
     /**
-     * Cyclic behavior permettant de s'enregistrer comme participant au chat
+     * Traitement permettant de s'enregistrer comme participant au chat
      * et permet de garder la liste des partcicipants à jour en traitant les informations
      * reçues de l'agent ChatManager (sur le "serveur")
      */
-    class ParticipantsManager extends CyclicBehaviour {
+    class ParticipantsManager implements MessageDispatcher.Handler {
         private static final long serialVersionUID = -4845730529175649756L;
-        private MessageTemplate template;
-
-        ParticipantsManager(Agent a) {
-            super(a);
+        // Nombre d'inscriptions envoyées, rappelé dans les battements de coeur
+        private int subscriptionCount;
+
+        /**
+         * Inscription comme participant au chat auprès d'un ChatManager (sur le "serveur").
+         * L'éventuelle inscription auprès de l'ancien manager est annulée.
+         */
+        void switchManager(AID newManager) {
+            if (manager != null) {
+                ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+                cancel.setLanguage(codec.getName());
+                cancel.setOntology(ontology.getName());
+                cancel.setConversationId("C-" + getLocalName());
+                cancel.addReceiver(manager);
+                send(cancel);
+                // Le nouveau manager envoie la liste complète des participants
+                participants.clear();
+                session.id = null;
+                session.rosterVersion = -1;
+            }
+            manager = newManager;
+            managerAcceptsCompression = false;
+            spokenMsg.clearAllReceiver();
+            spokenMsg.addReceiver(manager);
+            subscribe();
         }
 
-        public void onStart() {
-            // Inscription comme participant au chat auprès du ChatManager (sur le "serveur")
+        // Inscription comme participant au chat auprès du ChatManager (sur le "serveur")
+        private void subscribe() {
             // Création du message de subscribe
             ACLMessage subscription = new ACLMessage(ACLMessage.SUBSCRIBE);
             subscription.setLanguage(codec.getName());
             subscription.setOntology(ontology.getName());
-            String conversationId = "C-" + myAgent.getLocalName();
-            subscription.setConversationId(conversationId);
-            subscription.addReceiver(new AID(CHAT_MANAGER_NAME, AID.ISLOCALNAME)); // Destinataire = manager
-            myAgent.send(subscription);
+            subscription.setConversationId("C-" + getLocalName());
+            subscription.addReceiver(manager);
+            subscription.addUserDefinedParameter(HEARTBEAT, String.valueOf(HEARTBEAT_INTERVAL));
+            subscription.addUserDefinedParameter(TextCompressor.ACCEPT, TextCompressor.SCHEME);
+            subscription.addUserDefinedParameter(SEQUENCED, "true");
+            subscription.addUserDefinedParameter(MAILBOX, "true");
+            if (session.id != null) {
+                // Reprise de session : le manager n'envoie que les changements de la liste
+                // et les messages du chat général manqués
+                subscription.addUserDefinedParameter(SESSION, session.id);
+                subscription.addUserDefinedParameter(ROSTER_VERSION, String.valueOf(session.rosterVersion));
+                if (sequencer.getStream() != null) {
+                    subscription.addUserDefinedParameter(SEQ, String.valueOf(sequencer.getLast()));
+                    subscription.addUserDefinedParameter(STREAM, sequencer.getStream());
+                }
+            }
+            subscriptionCount++;
+            send(subscription);
+            StartupTimings.mark(StartupTimings.SUBSCRIBED);
+        }
 
-            // Initialise le modèle de message utilisé pour recevoir les notifications du ChatManager
-            template = MessageTemplate.MatchConversationId(conversationId);
+        /**
+         * Nouvelle inscription, le manager nous ayant désinscrit (nous ne suivions plus ou
+         * notre bail a expiré) ou le réseau ayant changé : il renverra les changements depuis
+         * la dernière version reçue, ou la liste complète s'il ne la connait plus. La liste
+         * affichée est conservée jusque là.
+         */
+        void resubscribe() {
+            if (manager != null) {
+                subscribe();
+            }
         }
 
-        public void action() {
+        public void handle(ACLMessage msg) {
             // Recoit les messages du ChatManager notifiant des changements des participants
             // (départs et arrivées)
-            ACLMessage msg = myAgent.receive(template);
-            if (msg != null) {
-                if (msg.getPerformative() == ACLMessage.INFORM) {
-                    try {
-                        Predicate p = (Predicate) myAgent.getContentManager().extractContent(msg);
-                        if (p instanceof Joined) {
-                            Joined joined = (Joined) p;
-                            List<AID> aid = (List<AID>) joined.getWho();
-                            for (AID a : aid) {
+            if (!msg.getSender().equals(manager)) {
+                // Notification tardive d'un manager auquel on n'est plus inscrit
+                return;
+            }
+            if (msg.getPerformative() == ACLMessage.INFORM) {
+                StartupTimings.mark(StartupTimings.ROSTER_RECEIVED);
+                try {
+                    Predicate p = (Predicate) getContentManager().extractContent(msg);
+                    if (msg.getUserDefinedParameter(SNAPSHOT) != null) {
+                        // La liste reçue remplace celle que l'on connaissait
+                        participants.clear();
+                        managerAcceptsCompression = TextCompressor.accepts(msg);
+                    }
+                    if (p instanceof Joined) {
+                        Joined joined = (Joined) p;
+                        List<AID> aid = (List<AID>) joined.getWho();
+                        for (AID a : aid) {
+                            // Les nouveaux arrivants reçoivent la liste complète, qui nous inclut
+                            if (!a.equals(getAID())) {
                                 participants.add(a);
                             }
-                            notifyParticipantsChanged();
                         }
-                        if (p instanceof Left) {
-                            Left left = (Left) p;
-                            List<AID> aid = (List<AID>) left.getWho();
-                            for (AID a : aid)
-                                participants.remove(a);
-                            notifyParticipantsChanged();
+                        notifyParticipantsChanged();
+                    }
+                    if (p instanceof Left) {
+                        Left left = (Left) p;
+                        List<AID> aid = (List<AID>) left.getWho();
+                        for (AID a : aid) {
+                            participants.remove(a);
+                            sendLimiter.forget(a);
+                            compressionPeers.remove(a);
                         }
-                    } catch (Exception e) {
-                        Logger.println(e.toString());
-                        e.printStackTrace();
+                        notifyParticipantsChanged();
                     }
-                } else {
-                    handleUnexpected(msg);
+                    String version = msg.getUserDefinedParameter(ROSTER_VERSION);
+                    if (version != null) {
+                        session.id = msg.getUserDefinedParameter(SESSION);
+                        session.rosterVersion = Long.parseLong(version);
+                    }
+                } catch (Exception e) {
+                    Logger.println(e.toString());
+                    e.printStackTrace();
                 }
+            } else if (msg.getPerformative() == ACLMessage.FAILURE) {
+                // Le manager nous a désinscrit car nous ne suivions plus (par exemple sur
+                // une mauvaise connexion) : on repart d'une nouvelle inscription
+                resubscribe();
             } else {
-                block();
+                handleUnexpected(msg);
             }
         }
     }
 
     /**
-     * Cyclic behavior permettant d'écouter et recevoir les messages envoyés
-     * sur la conversation générale.
+     * Behaviour suivant, via le DF, les ChatManagerAgent disponibles. Le manager de l'agent
+     * est choisi par hachage cohérent du pseudo, comme par le client de bureau, et change
+     * lorsqu'un manager est ajouté ou retiré. Sans manager enregistré, on utilise le
+     * manager historique "manager".
      */
-    class ChatListener extends CyclicBehaviour {
-        private static final long serialVersionUID = 741233963737842521L;
+    class ManagerLocator extends DFSubscriber {
+        private static final long serialVersionUID = 6893311207540183176L;
+        private boolean initialized = false;
 
-        // Initialisation du modèle de message à recevoir
-        private MessageTemplate template = MessageTemplate.MatchConversationId(CHAT_ID);
+        ManagerLocator(Agent a) {
+            super(a, createTemplate());
+        }
 
-        ChatListener(Agent a) {
-            super(a);
+        public void onRegister(DFAgentDescription dfd) {
+            ring.add(dfd.getName());
+            if (initialized) {
+                updateManager();
+            }
         }
 
-        public void action() {
-            // Récéption du message
-            ACLMessage msg = myAgent.receive(template);
-            if (msg != null) {
-                if (msg.getPerformative() == ACLMessage.INFORM) {
-                    // Notifie que quelqu'un à envoyé un message sur le chat
-                    notifySpoken(msg.getSender().getLocalName(), msg.getContent());
-                } else {
-                    handleUnexpected(msg);
+        public void onDeregister(DFAgentDescription dfd) {
+            ring.remove(dfd.getName());
+            if (initialized) {
+                updateManager();
+            }
+        }
+
+        public void afterFirstNotification(DFAgentDescription[] dfds) {
+            initialized = true;
+            updateManager();
+        }
+
+        private void updateManager() {
+            AID target = getManagerOf(myAgent.getLocalName());
+            if (!target.equals(manager)) {
+                participantsManager.switchManager(target);
+            }
+        }
+    }
+
+    private static DFAgentDescription createTemplate() {
+        DFAgentDescription template = new DFAgentDescription();
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(ShardRing.SERVICE_TYPE);
+        template.addServices(sd);
+        return template;
+    }
+
+    /**
+     * Manager auquel s'inscrit le participant de ce pseudo, choisi comme le fait le
+     * ManagerLocator de ce participant.
+     */
+    private AID getManagerOf(String name) {
+        AID target = ring.getShard(name);
+        return target != null ? target : new AID(CHAT_MANAGER_NAME, AID.ISLOCALNAME);
+    }
+
+    /**
+     * Ticker behaviour envoyant un battement de coeur au manager. Si le manager répond que
+     * nous ne sommes plus inscrits (bail expiré), on se réinscrit ; les réponses aux
+     * battements envoyés avant la dernière inscription sont ignorées. Le battement rappelle
+     * le dernier message numéroté reçu : le manager répond avec son dernier numéro si nous
+     * avons manqué les derniers messages.
+     */
+    class HeartbeatSender extends TickerBehaviour {
+        private static final long serialVersionUID = 5301967263471182453L;
+        private MessageTemplate template = MessageTemplate.MatchConversationId(HEARTBEAT_ID);
+
+        HeartbeatSender(Agent a, long period) {
+            super(a, period);
+        }
+
+        protected void onTick() {
+            boolean resubscribed = false;
+            ACLMessage reply = myAgent.receive(template);
+            while (reply != null) {
+                if (!resubscribed && reply.getPerformative() == ACLMessage.FAILURE && reply.getSender().equals(manager)
+                        && String.valueOf(participantsManager.subscriptionCount).equals(reply.getInReplyTo())) {
+                    participantsManager.resubscribe();
+                    resubscribed = true;
+                } else if (reply.getPerformative() == ACLMessage.INFORM && reply.getUserDefinedParameter(SEQ) != null) {
+                    // Nous avons manqué les derniers messages du chat général
+                    try {
+                        sequencer.hint(reply.getUserDefinedParameter(STREAM), Long.parseLong(reply.getUserDefinedParameter(SEQ)));
+                        requestMissing();
+                    } catch (NumberFormatException e) {
+                        handleUnexpected(reply);
+                    }
                 }
-            } else {
-                block();
+                reply = myAgent.receive(template);
             }
+            // Le manager peut traiter un battement avant l'inscription qui le précède : on
+            // attend le prochain tour pour ne pas recevoir un FAILURE injustifié
+            if (manager != null && !resubscribed) {
+                ACLMessage heartbeat = new ACLMessage(ACLMessage.INFORM);
+                heartbeat.setConversationId(HEARTBEAT_ID);
+                heartbeat.addReceiver(manager);
+                heartbeat.setReplyWith(String.valueOf(participantsManager.subscriptionCount));
+                if (sequencer.getStream() != null) {
+                    heartbeat.addUserDefinedParameter(SEQ, String.valueOf(sequencer.getLast()));
+                    heartbeat.addUserDefinedParameter(STREAM, sequencer.getStream());
+                }
+                myAgent.send(heartbeat);
+            }
+        }
+    }
+
+    private void deliver(List<ACLMessage> msgs) {
+        for (int i = 0; i < msgs.size(); ++i) {
+            deliver(msgs.get(i));
+        }
+    }
+
+    // Affiche un message du chat général ; nos propres messages, renvoyés par le manager
+    // pour compléter la suite numérotée, ont déjà été affichés à l'envoi
+    private void deliver(ACLMessage msg) {
+        if (msg.getSender().equals(getAID())) {
+            return;
+        }
+        // Notifie que quelqu'un à envoyé un message sur le chat
+        try {
+            notifySpoken(msg.getSender().getLocalName(), TextCompressor.getText(msg));
+        } catch (IOException e) {
+            handleUnexpected(msg);
         }
     }
 
     /**
-     * Cyclic Behaviour permettant d'écouter et de recevoir les messages privés qui sont envoyés
-     * à l'agent possèdant ce comportement.
+     * Redemande au manager les messages du chat général manquants, si nécessaire.
      */
-    class WisperListener extends CyclicBehaviour {
-        private static final long serialVersionUID = 741233963737842521L;
-        private String conversationId;
-        private MessageTemplate wisperTemplate;
+    private void requestMissing() {
+        long[] missing = sequencer.getMissing(System.currentTimeMillis());
+        if (missing != null && manager != null) {
+            ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+            request.setConversationId(CHAT_ID);
+            request.setContent(missing[0] + " " + missing[1]);
+            request.addUserDefinedParameter(STREAM, sequencer.getStream());
+            request.addReceiver(manager);
+            send(request);
+        }
+    }
 
-        WisperListener(Agent a) {
-            super(a);
+    /**
+     * Ticker behaviour redemandant les messages du chat général toujours manquants et
+     * abandonnant ceux redemandés sans succès, afin d'afficher les messages suivants.
+     */
+    class GapChecker extends TickerBehaviour {
+        private static final long serialVersionUID = -7310526418872014575L;
 
-            // Initialisation du modèle de messasge à recevoir
-            this.conversationId = a.getLocalName();
-            this.wisperTemplate = MessageTemplate.MatchConversationId(conversationId);
+        GapChecker(Agent a, long period) {
+            super(a, period);
         }
 
-        public void action() {
+        protected void onTick() {
+            deliver(sequencer.expire(System.currentTimeMillis()));
+            requestMissing();
+        }
+    }
+
+    /**
+     * Traitement des messages envoyés sur la conversation générale.
+     */
+    class ChatListener implements MessageDispatcher.Handler {
+        private static final long serialVersionUID = 741233963737842521L;
+
+        public void handle(ACLMessage msg) {
             // Récéption du message
-            ACLMessage msg = myAgent.receive(wisperTemplate);
-            if (msg != null) {
-                if (msg.getPerformative() == ACLMessage.INFORM) {
-                    // On notifie l'interface qu'un message privé à été reçu
-                    notifyWisper(msg.getSender().getLocalName(), msg.getContent().substring(msg.getContent().split("/")[1].split(" ")[0].length() +2));
+            if (msg.getPerformative() == ACLMessage.INFORM) {
+                String seq = msg.getUserDefinedParameter(SEQ);
+                String stream = msg.getUserDefinedParameter(STREAM);
+                if (seq != null && stream != null) {
+                    // Message numéroté : remis dans l'ordre, les doublons sont ignorés
+                    try {
+                        deliver(sequencer.received(stream, Long.parseLong(seq), msg));
+                    } catch (NumberFormatException e) {
+                        handleUnexpected(msg);
+                    }
+                    requestMissing();
                 } else {
+                    deliver(msg);
+                }
+            } else if (msg.getPerformative() == ACLMessage.FAILURE && msg.getUserDefinedParameter(STREAM) != null) {
+                // Les messages redemandés ne sont plus disponibles avant le numéro indiqué
+                try {
+                    deliver(sequencer.unavailable(msg.getUserDefinedParameter(STREAM), Long.parseLong(msg.getContent().trim())));
+                } catch (NumberFormatException e) {
+                    handleUnexpected(msg);
+                }
+            } else if (msg.getPerformative() == ACLMessage.REFUSE) {
+                // Message refusé par le manager faute de débit : on attend le délai indiqué
+                try {
+                    AbsPredicate t = (AbsPredicate) getContentManager().extractAbsContent(msg);
+                    long retryAfter = t.getLong(WhisperOntology.THROTTLED_RETRY_AFTER);
+                    chatRefusedUntil = System.currentTimeMillis() + retryAfter;
+                    logger.log(Level.WARNING, "Chat message refused (" + t.getString(WhisperOntology.THROTTLED_SCOPE)
+                            + " rate limit), retry after " + retryAfter + " ms");
+                } catch (Exception e) {
+                    handleUnexpected(msg);
+                }
+            } else {
+                handleUnexpected(msg);
+            }
+        }
+    }
+
+    /**
+     * Traitement recevant, en un seul lot à l'inscription, les messages privés reçus par
+     * le manager pendant notre absence, ainsi que les refus des messages confiés au manager
+     * pour un participant absent.
+     */
+    class MailboxListener implements MessageDispatcher.Handler, HistoryBatch.Handler {
+        private static final long serialVersionUID = 6058214773902146389L;
+
+        public void handle(ACLMessage msg) {
+            if (msg.getPerformative() == ACLMessage.INFORM && msg.hasByteSequenceContent()) {
+                HistoryBatch.parse(msg.getByteSequenceContent(), this);
+            } else if (msg.getPerformative() == ACLMessage.FAILURE) {
+                logger.log(Level.WARNING, "Private message to " + msg.getContent()
+                        + " not kept by the manager: mailbox full or unknown participant");
+            } else if (msg.getPerformative() == ACLMessage.REFUSE) {
+                // Dépôt refusé faute de débit, comme un message du chat général
+                try {
+                    AbsPredicate t = (AbsPredicate) getContentManager().extractAbsContent(msg);
+                    logger.log(Level.WARNING, "Private message not kept by the manager ("
+                            + t.getString(WhisperOntology.THROTTLED_SCOPE) + " rate limit), retry after "
+                            + t.getLong(WhisperOntology.THROTTLED_RETRY_AFTER) + " ms");
+                } catch (Exception e) {
                     handleUnexpected(msg);
                 }
             } else {
-                block();
+                handleUnexpected(msg);
             }
         }
+
+        public void onMessage(long offset, long time, String sender, String text) {
+            notifyWisper(new AID(sender, AID.ISGUID).getLocalName(), text);
+        }
+    }
+
+    /**
+     * Traitement des messages privés qui sont envoyés à l'agent, sur la conversation
+     * portant son pseudo.
+     */
+    class WisperListener implements MessageDispatcher.Handler {
+        private static final long serialVersionUID = -2917446080339567210L;
+
+        public void handle(ACLMessage msg) {
+            if (msg.getPerformative() == ACLMessage.INFORM) {
+                if (TextCompressor.accepts(msg)) {
+                    compressionPeers.add(msg.getSender());
+                }
+                // On notifie l'interface qu'un message privé à été reçu
+                String text = getWisperText(msg);
+                if (text != null) {
+                    notifyWisper(msg.getSender().getLocalName(), text);
+                }
+            } else {
+                handleUnexpected(msg);
+            }
+        }
+    }
+
+    /**
+     * Extrait le texte d'un message privé. Les anciens clients envoient la ligne
+     * "/pseudo texte" brute, sans langage ; un texte compressé est envoyé sans langage.
+     */
+    private String getWisperText(ACLMessage msg) {
+        if (TextCompressor.isCompressed(msg)) {
+            try {
+                return TextCompressor.decompress(msg.getByteSequenceContent());
+            } catch (IOException e) {
+                handleUnexpected(msg);
+                return null;
+            }
+        }
+        if (msg.getLanguage() == null) {
+            String content = msg.getContent();
+            int space = content != null ? content.indexOf(' ') : -1;
+            return space >= 0 ? content.substring(space + 1) : "";
+        }
+        try {
+            AbsPredicate w = (AbsPredicate) getContentManager().extractAbsContent(msg);
+            String what = w.getString(WhisperOntology.WHISPERED_WHAT);
+            return what != null ? what : "";
+        } catch (Exception e) {
+            handleUnexpected(msg);
+            return null;
+        }
     }
 
     /**
@@ -243,13 +667,13 @@ public class ChatClientAgent extends Agent implements ChatClientInterface {
         }
 
         public void action() {
-            // Met a jour la liste des agents qui doivent recevoir le message
-            spokenMsg.clearAllReceiver();
-            Iterator it = participants.iterator();
-            while (it.hasNext()) {
-                spokenMsg.addReceiver((AID) it.next());
+            // Un seul destinataire (le ChatManager) quel que soit le nombre de participants
+            if (managerAcceptsCompression) {
+                TextCompressor.setText(spokenMsg, sentence);
+            } else {
+                spokenMsg.setContent(sentence);
+                spokenMsg.removeUserDefinedParameter(TextCompressor.ENCODING);
             }
-            spokenMsg.setContent(sentence);
             // Notifie l'interface graphique qu'un message est envoyé sur le chat
             notifySpoken(myAgent.getLocalName(), sentence);
             // Envoie le message aux agents destinataires.
@@ -266,12 +690,15 @@ public class ChatClientAgent extends Agent implements ChatClientInterface {
         private String sentence;
         private String convId;
         private AID receiver;
+        private String to;
 
-        private WisperSpeaker(Agent thisAgent, AID receiver, String sentence, String conversationId) {
+        // Le message est envoyé au participant to, ou à son manager (receiver) s'il est absent
+        private WisperSpeaker(Agent thisAgent, AID receiver, String to, String sentence, String conversationId) {
             super(thisAgent);
             this.sentence = sentence;
             this.convId = conversationId;
             this.receiver = receiver;
+            this.to = to;
         }
 
         public void action() {
@@ -279,9 +706,26 @@ public class ChatClientAgent extends Agent implements ChatClientInterface {
             ACLMessage wisper = new ACLMessage(ACLMessage.INFORM);
             wisper.setConversationId(convId);
             wisper.addReceiver(receiver);
-            wisper.setContent(sentence);
+            wisper.setOntology(ontology.getName());
+            wisper.addUserDefinedParameter(TextCompressor.ACCEPT, TextCompressor.SCHEME);
+            byte[] bytes = compressionPeers.contains(receiver) ? TextCompressor.compress(sentence) : null;
+            if (bytes != null) {
+                wisper.setByteSequenceContent(bytes);
+                wisper.addUserDefinedParameter(TextCompressor.ENCODING, TextCompressor.SCHEME);
+            } else {
+                wisper.setLanguage(codec.getName());
+                AbsPredicate w = new AbsPredicate(WhisperOntology.WHISPERED);
+                w.set(WhisperOntology.WHISPERED_TO, to);
+                w.set(WhisperOntology.WHISPERED_WHAT, sentence);
+                try {
+                    getContentManager().fillContent(wisper, w);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
             // On notifie l'interface graphique qu'un message privé à été envoyé
-            notifyWisper(myAgent.getLocalName(), sentence.substring(sentence.split("/")[1].split(" ")[0].length()+2));
+            notifyWisper(myAgent.getLocalName(), sentence);
             // On envoie le message
             send(wisper);
         }
@@ -292,55 +736,81 @@ public class ChatClientAgent extends Agent implements ChatClientInterface {
      */
 
     /**
-     * Envoi de message sur le chat général
+     * Envoi de message sur le chat général. Renvoie false si le message n'est pas envoyé
+     * car le débit autorisé est dépassé.
      */
-    public void handleSpoken(String s) {
+    public boolean handleSpoken(String s) {
+        if (System.currentTimeMillis() < chatRefusedUntil || !acquireSend(CHAT_ID)) {
+            return false;
+        }
         // Ajout d'un ChatSpeaker Behaviour pour envoyer le message s
         addBehaviour(new ChatSpeaker(this, s));
+        return true;
     }
 
     /**
-     * Envoi d'un message privé à un des agents connectés.
+     * Envoi d'un message privé à un participant. s est le texte du message, name le pseudo
+     * du destinataire. Si le destinataire n'est pas connecté (par exemple pendant la
+     * reconnexion de son téléphone), le message est confié à son manager qui le lui
+     * remettra à sa prochaine inscription. Renvoie false si le message n'est pas envoyé car le débit
+     * autorisé est dépassé.
      */
-    public void handleWisper(String s, String name){
-        // On parcours l'ensemble des agents connectés
-        Iterator it = participants.iterator();
-        while (it.hasNext()) {
-            AID id = (AID) it.next();
-            // Si on trouve l'agent spécifié par le message, on ajoute un WisperSpeaker Behaviour
-            // pour lui envoyer le message privé
-            if(id.getLocalName().equals(name)){
-                addBehaviour(new WisperSpeaker(this,id, s, id.getLocalName()));
+    public boolean handleWisper(String s, String name){
+        // Si on trouve l'agent spécifié par le message, on ajoute un WisperSpeaker Behaviour
+        // pour lui envoyer le message privé
+        AID id = participants.get(name);
+        if (id == null) {
+            // Tous les dépôts partagent une limite, les pseudos absents étant en nombre illimité
+            if (!acquireSend(MAILBOX_ID)) {
+                return false;
             }
+            addBehaviour(new WisperSpeaker(this, getManagerOf(name), name, s, MAILBOX_ID));
+            return true;
+        }
+        if (!acquireSend(id)) {
+            return false;
         }
+        addBehaviour(new WisperSpeaker(this,id, id.getLocalName(), s, id.getLocalName()));
+        return true;
+    }
+
+    /**
+     * Le téléphone a changé de réseau : le front-end se reconnecte à son back-end et l'agent
+     * se réinscrit sans attendre son prochain battement de coeur, en reprenant sa session.
+     */
+    public void handleNetworkChange() {
+        addBehaviour(new OneShotBehaviour(this) {
+            private static final long serialVersionUID = -3412880930553071923L;
+
+            public void action() {
+                participantsManager.resubscribe();
+            }
+        });
+    }
+
+    private boolean acquireSend(Object destination) {
+        return sendLimiter.tryAcquire(destination, System.nanoTime()) == RateLimiter.ALLOWED;
+    }
+
+    /**
+     * Canal par lequel l'activité de chat reçoit les messages à afficher
+     */
+    public ChatEventChannel getEventChannel() {
+        return channel;
     }
 
     /**
      * Récupère la liste des pseudo des participants connectés au chat
      */
     public String[] getParticipantLocalNames() {
-        String[] pp = new String[participants.size()];
-        Iterator it = participants.iterator();
-        int i = 0;
-        while (it.hasNext()) {
-            AID id = (AID) it.next();
-            pp[i++] = id.getLocalName();
-        }
-        return pp;
+        return participants.getLocalNames();
     }
 
     /**
      * Récupère la liste des pseudo@adresseIp des participants connectés au chat
      */
     public String[] getParticipantNames() {
-        String[] pp = new String[participants.size()];
-        Iterator it = participants.iterator();
-        int i = 0;
-        while (it.hasNext()) {
-            AID id = (AID) it.next();
-            pp[i++] = id.getName();
-        }
-        return pp;
+        return participants.getNames();
     }
 
     /**
@@ -5,8 +5,12 @@ package com.brandon.chatandroid.client.agent;
  */
 
 public interface ChatClientInterface {
-	public void handleSpoken(String s);
-	public void handleWisper(String s, String name);
+	// Renvoient false si le message n'est pas envoyé (débit dépassé, destinataire inconnu)
+	public boolean handleSpoken(String s);
+	public boolean handleWisper(String s, String name);
 	public String[] getParticipantLocalNames();
 	public String[] getParticipantNames();
+	public ChatEventChannel getEventChannel();
+	// Réinscription auprès du manager après un changement de réseau
+	public void handleNetworkChange();
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+package com.brandon.chatandroid.client.agent;
+
+import java.util.List;
+
+/**
+ * Canal interne au processus entre l'agent et l'activité de chat. L'agent y dépose les
+ * lignes à afficher sans jamais attendre l'interface ; l'activité les récupère par lots.
+ * La file est bornée : si l'activité ne la vide pas (par exemple en arrière-plan), les
+ * lignes les plus anciennes sont perdues.
+ */
+public class ChatEventChannel {
+
+    /**
+     * Prévenu, depuis le thread de l'agent, lorsque des lignes arrivent dans une file vide.
+     */
+    public interface Listener {
+        void onLinesAvailable();
+    }
+
+    private final String[] lines;
+    private int first;
+    private int size;
+    private Listener listener;
+    // Vrai si le listener a été prévenu et que la file n'a pas encore été vidée
+    private boolean signalled;
+
+    public ChatEventChannel(int capacity) {
+        lines = new String[capacity];
+    }
+
+    public void setListener(Listener l) {
+        boolean notify;
+        synchronized (this) {
+            listener = l;
+            signalled = l != null && size > 0;
+            notify = signalled;
+        }
+        if (notify) {
+            l.onLinesAvailable();
+        }
+    }
+
+    void offer(String line) {
+        Listener l = null;
+        synchronized (this) {
+            if (size == lines.length) {
+                // File pleine : la ligne la plus ancienne est perdue
+                first = (first + 1) % lines.length;
+                size--;
+            }
+            lines[(first + size) % lines.length] = line;
+            size++;
+            if (!signalled && listener != null) {
+                signalled = true;
+                l = listener;
+            }
+        }
+        if (l != null) {
+            l.onLinesAvailable();
+        }
+    }
+
+    /**
+     * Ajoute à la liste donnée toutes les lignes en attente, dans l'ordre d'arrivée.
+     */
+    public synchronized void drainTo(List<String> out) {
+        for (int i = 0; i < size; ++i) {
+            int index = (first + i) % lines.length;
+            out.add(lines[index]);
+            lines[index] = null;
+        }
+        first = 0;
+        size = 0;
+        signalled = false;
+    }
+}
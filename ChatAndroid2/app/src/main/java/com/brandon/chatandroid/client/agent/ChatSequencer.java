@@ -0,0 +1,181 @@
+package com.brandon.chatandroid.client.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Remise dans l'ordre des messages du chat général numérotés par le manager.
+ *
+ * Les messages arrivés après un trou sont conservés jusqu'à ce que les messages manquants
+ * soient retransmis ; les doublons (retransmissions) sont ignorés. getMissing() donne
+ * l'intervalle à redemander au manager, au plus une fois par nackTimeout ms. Après
+ * maxNacks demandes restées sans effet, ou si trop de messages sont en attente, les
+ * messages manquants sont considérés comme perdus.
+ *
+ * Les numéros ne sont comparables qu'au sein d'un même flux (un démarrage d'un manager) :
+ * un message d'un autre flux fait repartir la numérotation de ce message.
+ * La classe n'est pas synchronisée : elle est utilisée par le thread de l'agent.
+ */
+class ChatSequencer {
+    private final int maxPending;
+    private final long nackTimeout;
+    private final int maxNacks;
+
+    private String stream;
+    // Prochain numéro à remettre
+    private long expected;
+    // Messages reçus après un trou, indexés par numéro
+    private TreeMap<Long, ACLMessage> pending = new TreeMap<Long, ACLMessage>();
+    // Dernier numéro envoyé par le manager, indiqué en réponse à un battement de coeur
+    private long hint;
+    // Dernière demande de retransmission
+    private long nackTo;
+    private long nackTime;
+    private int nacks;
+
+    private long lost;
+    private long duplicates;
+
+    ChatSequencer(int maxPending, long nackTimeout, int maxNacks) {
+        this.maxPending = maxPending;
+        this.nackTimeout = nackTimeout;
+        this.maxNacks = maxNacks;
+    }
+
+    /**
+     * Traite un message reçu et renvoie, dans l'ordre, les messages pouvant être remis.
+     */
+    List<ACLMessage> received(String s, long seq, ACLMessage msg) {
+        if (!s.equals(stream)) {
+            // Nouveau flux (premier message, autre manager ou redémarrage du manager)
+            stream = s;
+            expected = seq;
+            pending.clear();
+            hint = 0;
+            nacks = 0;
+            nackTo = 0;
+        }
+        if (seq < expected || pending.containsKey(seq)) {
+            duplicates++;
+            return Collections.emptyList();
+        }
+        pending.put(seq, msg);
+        List<ACLMessage> ready = new ArrayList<ACLMessage>(1);
+        if (pending.size() > maxPending) {
+            // Trop de messages en attente : les messages manquants les plus anciens sont perdus
+            skipTo(pending.firstKey(), ready);
+        }
+        drain(ready);
+        return ready;
+    }
+
+    /**
+     * Le manager n'a plus les messages antérieurs à first : ils sont perdus. Renvoie les
+     * messages pouvant être remis.
+     */
+    List<ACLMessage> unavailable(String s, long first) {
+        List<ACLMessage> ready = new ArrayList<ACLMessage>();
+        if (s.equals(stream) && first > expected) {
+            skipTo(first, ready);
+            drain(ready);
+        }
+        return ready;
+    }
+
+    /**
+     * Le manager a indiqué son dernier numéro envoyé : s'il est au-delà de ce qui a été
+     * reçu, les derniers messages ont été perdus.
+     */
+    void hint(String s, long last) {
+        if (s.equals(stream) && last > hint) {
+            hint = last;
+        }
+    }
+
+    /**
+     * Renvoie l'intervalle {premier, dernier} des messages à redemander maintenant, ou null.
+     */
+    long[] getMissing(long now) {
+        long to = pending.isEmpty() ? hint : pending.firstKey() - 1;
+        if (stream == null || to < expected) {
+            return null;
+        }
+        if (nacks > 0 && to <= nackTo && now - nackTime < nackTimeout) {
+            // Demande en cours
+            return null;
+        }
+        if (nacks >= maxNacks) {
+            return null;
+        }
+        nackTo = to;
+        nackTime = now;
+        nacks++;
+        return new long[] {expected, to};
+    }
+
+    /**
+     * Abandonne les messages manquants redemandés maxNacks fois sans succès et renvoie les
+     * messages pouvant alors être remis.
+     */
+    List<ACLMessage> expire(long now) {
+        if (nacks < maxNacks || now - nackTime < nackTimeout) {
+            return Collections.emptyList();
+        }
+        List<ACLMessage> ready = new ArrayList<ACLMessage>();
+        skipTo(Math.max(nackTo + 1, expected), ready);
+        drain(ready);
+        if (hint < expected) {
+            hint = 0;
+        }
+        return ready;
+    }
+
+    String getStream() {
+        return stream;
+    }
+
+    /**
+     * Numéro du dernier message remis.
+     */
+    long getLast() {
+        return expected - 1;
+    }
+
+    long getLost() {
+        return lost;
+    }
+
+    long getDuplicates() {
+        return duplicates;
+    }
+
+    // Remet les messages en attente jusqu'à first exclu, les autres étant perdus
+    private void skipTo(long first, List<ACLMessage> ready) {
+        while (expected < first) {
+            ACLMessage msg = pending.remove(expected);
+            if (msg != null) {
+                ready.add(msg);
+            }
+            else {
+                lost++;
+            }
+            expected++;
+        }
+        nacks = 0;
+    }
+
+    // Remet les messages en attente qui suivent le dernier remis
+    private void drain(List<ACLMessage> ready) {
+        while (!pending.isEmpty() && pending.firstKey() == expected) {
+            ready.add(pending.remove(pending.firstKey()));
+            expected++;
+        }
+        if (expected > nackTo) {
+            nacks = 0;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.brandon.chatandroid.client.agent;
+
+/**
+ * Etat du chat conservé lorsque l'agent est recréé après un changement de réseau : les
+ * lignes en attente d'affichage, la liste des participants, la numérotation du chat
+ * général et la session auprès du manager. Le nouvel agent reprend ainsi la session (le
+ * manager ne lui envoie que les changements de la liste et les messages manqués) au lieu
+ * de repartir d'une liste vide.
+ *
+ * La session est créée par l'activité principale et passée en second argument de l'agent.
+ * Le canal et la liste des participants sont aussi lus par les activités ; le reste n'est
+ * utilisé que par l'agent en cours.
+ */
+public class ChatSession {
+    final ChatEventChannel channel = new ChatEventChannel(ChatClientAgent.CHANNEL_CAPACITY);
+    final ParticipantRegistry participants = new ParticipantRegistry();
+    final ChatSequencer sequencer = new ChatSequencer(ChatClientAgent.MAX_PENDING,
+            ChatClientAgent.NACK_TIMEOUT, ChatClientAgent.MAX_NACKS);
+    // Démarrage du manager et dernière version reçue de la liste des participants
+    volatile String id;
+    volatile long rosterVersion = -1;
+    // Vrai une fois l'activité de chat ouverte par un premier agent
+    volatile boolean started;
+}
@@ -0,0 +1,65 @@
+package com.brandon.chatandroid.client.agent;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Copie de chat.history.HistoryBatch, que ne contient pas chatOntology.jar.
+ *
+ * Format des lots de messages de l'historique envoyés par le ChatManagerAgent.
+ *
+ * Un lot commence par l'offset du premier message (8 octets) et le nombre de messages
+ * (4 octets), suivis des enregistrements tels qu'ils sont stockés dans le journal :
+ * longueur totale (4 octets), date (8 octets), longueur du nom de l'expéditeur (2 octets),
+ * nom de l'expéditeur puis texte, tous deux en UTF-8.
+ *
+ * Le même format, avec un offset nul, est utilisé pour remettre les messages privés reçus
+ * par le manager pendant l'absence d'un participant.
+ */
+public class HistoryBatch {
+
+    public static final int BATCH_HEADER_SIZE = 12;
+    public static final int RECORD_HEADER_SIZE = 14;
+
+    /**
+     * Reçoit les messages d'un lot, dans l'ordre.
+     */
+    public interface Handler {
+        void onMessage(long offset, long time, String sender, String text);
+    }
+
+    private HistoryBatch() {
+    }
+
+    public static void parse(byte[] batch, Handler handler) {
+        long offset = getLong(batch, 0);
+        int count = getInt(batch, 8);
+        int pos = BATCH_HEADER_SIZE;
+        for (int i = 0; i < count && pos + RECORD_HEADER_SIZE <= batch.length; ++i) {
+            int length = getInt(batch, pos);
+            long time = getLong(batch, pos + 4);
+            int senderLength = ((batch[pos + 12] & 0xFF) << 8) | (batch[pos + 13] & 0xFF);
+            int start = pos + RECORD_HEADER_SIZE;
+            String sender = utf8(batch, start, senderLength);
+            String text = utf8(batch, start + senderLength, length - RECORD_HEADER_SIZE - senderLength);
+            handler.onMessage(offset + i, time, sender, text);
+            pos += length;
+        }
+    }
+
+    public static int getInt(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16) | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+
+    public static long getLong(byte[] b, int pos) {
+        return ((long) getInt(b, pos) << 32) | (getInt(b, pos + 4) & 0xFFFFFFFFL);
+    }
+
+    private static String utf8(byte[] b, int pos, int length) {
+        try {
+            return new String(b, pos, length, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
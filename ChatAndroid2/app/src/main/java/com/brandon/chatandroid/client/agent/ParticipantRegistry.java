@@ -0,0 +1,79 @@
+package com.brandon.chatandroid.client.agent;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import jade.core.AID;
+
+/**
+ * Liste des participants du chat indexée par pseudo. Les tableaux de noms, triés, ne sont
+ * reconstruits qu'à la première lecture suivant un changement de la liste : les lectures
+ * répétées (rafraîchissement de l'interface) ne coûtent rien tant que le salon ne change pas.
+ * Les tableaux renvoyés sont partagés et ne doivent pas être modifiés.
+ */
+class ParticipantRegistry {
+    private static final String[] EMPTY = new String[0];
+
+    private final Map<String, AID> byLocalName = new HashMap<String, AID>();
+    private String[] localNames = EMPTY;
+    private String[] names = EMPTY;
+    private boolean dirty;
+
+    synchronized void add(AID id) {
+        if (!id.equals(byLocalName.put(id.getLocalName(), id))) {
+            dirty = true;
+        }
+    }
+
+    synchronized void remove(AID id) {
+        // Le pseudo a pu être repris entre-temps par un autre AID
+        if (id.equals(byLocalName.get(id.getLocalName()))) {
+            byLocalName.remove(id.getLocalName());
+            dirty = true;
+        }
+    }
+
+    synchronized void clear() {
+        if (!byLocalName.isEmpty()) {
+            byLocalName.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Renvoie le participant portant ce pseudo, ou null.
+     */
+    synchronized AID get(String localName) {
+        return byLocalName.get(localName);
+    }
+
+    synchronized int size() {
+        return byLocalName.size();
+    }
+
+    synchronized String[] getLocalNames() {
+        rebuild();
+        return localNames;
+    }
+
+    synchronized String[] getNames() {
+        rebuild();
+        return names;
+    }
+
+    private void rebuild() {
+        if (!dirty) {
+            return;
+        }
+        AID[] ids = byLocalName.values().toArray(new AID[byLocalName.size()]);
+        Arrays.sort(ids);
+        localNames = new String[ids.length];
+        names = new String[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            localNames[i] = ids[i].getLocalName();
+            names[i] = ids[i].getName();
+        }
+        dirty = false;
+    }
+}
@@ -0,0 +1,66 @@
+package com.brandon.chatandroid.client.agent;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import jade.core.AID;
+
+/**
+ * Anneau de hachage cohérent répartissant les pseudos entre les ChatManagerAgent.
+ * Chaque manager occupe plusieurs positions (noeuds virtuels) sur l'anneau afin que
+ * l'ajout ou le retrait d'un manager ne déplace qu'une faible partie des utilisateurs.
+ */
+public class ShardRing {
+
+	/** Type de service sous lequel les ChatManagerAgent s'enregistrent auprès du DF. */
+	public static final String SERVICE_TYPE = "chat-manager";
+
+	private static final int VIRTUAL_NODES = 64;
+
+	private TreeMap<Integer, AID> ring = new TreeMap<Integer, AID>();
+
+	public void add(AID shard) {
+		for (int i = 0; i < VIRTUAL_NODES; ++i) {
+			ring.put(hash(shard.getName() + "#" + i), shard);
+		}
+	}
+
+	public void remove(AID shard) {
+		for (int i = 0; i < VIRTUAL_NODES; ++i) {
+			Integer key = hash(shard.getName() + "#" + i);
+			if (shard.equals(ring.get(key))) {
+				ring.remove(key);
+			}
+		}
+	}
+
+	public boolean isEmpty() {
+		return ring.isEmpty();
+	}
+
+	/**
+	 * Renvoie le manager responsable d'un pseudo, ou null si l'anneau est vide.
+	 */
+	public AID getShard(String nickname) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+		SortedMap<Integer, AID> tail = ring.tailMap(hash(nickname));
+		return tail.isEmpty() ? ring.get(ring.firstKey()) : tail.get(tail.firstKey());
+	}
+
+	// FNV-1a suivi du mélange final de MurmurHash3 pour bien répartir les positions
+	static int hash(String s) {
+		int h = 0x811c9dc5;
+		for (int i = 0; i < s.length(); ++i) {
+			h ^= s.charAt(i);
+			h *= 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
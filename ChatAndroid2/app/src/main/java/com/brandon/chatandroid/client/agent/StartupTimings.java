@@ -0,0 +1,65 @@
+package com.brandon.chatandroid.client.agent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import jade.util.Logger;
+
+/**
+ * Durées des phases du démarrage du chat, de l'appui sur le bouton de connexion (ou de la
+ * reprise après un changement de réseau) à la réception de la liste des participants, à
+ * partir de laquelle le chat est utilisable. Chaque phase est journalisée à sa première
+ * occurrence avec le temps écoulé depuis le début du démarrage et depuis la phase
+ * précédente ; les phases marquées hors démarrage sont ignorées.
+ */
+public final class StartupTimings {
+    public static final String SERVICE_BOUND = "service_bound";
+    public static final String CONTAINER_STARTED = "container_started";
+    public static final String AGENT_SETUP = "agent_setup";
+    public static final String AGENT_STARTED = "agent_started";
+    public static final String SUBSCRIBED = "subscribed";
+    public static final String CHAT_SHOWN = "chat_shown";
+    public static final String ROSTER_RECEIVED = "roster_received";
+
+    private static Logger logger = Logger.getJADELogger(StartupTimings.class.getName());
+
+    private static boolean running;
+    private static long start;
+    private static long last;
+    // Temps écoulé en ms depuis le début du démarrage, par phase
+    private static Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+    private StartupTimings() {
+    }
+
+    /**
+     * Début d'un démarrage ; les phases du démarrage précédent sont oubliées.
+     */
+    public static synchronized void start(String reason) {
+        running = true;
+        start = System.nanoTime();
+        last = start;
+        phases.clear();
+        logger.log(Level.INFO, "Startup (" + reason + ")");
+    }
+
+    public static synchronized void mark(String phase) {
+        if (!running || phases.containsKey(phase)) {
+            return;
+        }
+        long now = System.nanoTime();
+        long elapsed = (now - start) / 1000000;
+        phases.put(phase, elapsed);
+        logger.log(Level.INFO, "Startup phase " + phase + " at " + elapsed + " ms (+"
+                + (now - last) / 1000000 + " ms)");
+        last = now;
+    }
+
+    /**
+     * Renvoie les phases du dernier démarrage, dans leur ordre d'occurrence.
+     */
+    public static synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<String, Long>(phases);
+    }
+}
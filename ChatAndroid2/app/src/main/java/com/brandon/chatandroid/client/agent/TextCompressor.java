@@ -0,0 +1,186 @@
+package com.brandon.chatandroid.client.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Copie de chat.compression.TextCompressor, que ne contient pas chatOntology.jar.
+ *
+ * Compression des textes longs du chat (journaux collés, longs messages), qui coûtent cher
+ * sur les liens facturés au volume, par exemple vers les téléphones.
+ *
+ * Les textes d'au moins THRESHOLD octets sont compressés par Deflate avec un dictionnaire
+ * partagé, qui permet de compresser efficacement des textes de quelques centaines d'octets.
+ * Un texte compressé est envoyé en contenu binaire avec le paramètre ENCODING donnant le
+ * schéma utilisé. Un agent annonce les schémas qu'il sait décompresser par le paramètre
+ * ACCEPT (liste séparée par des virgules) : un client dans son SUBSCRIBE et ses messages
+ * privés, le manager dans la liste complète des participants envoyée à un nouvel inscrit.
+ *
+ * Le dictionnaire fait partie du schéma : toute modification impose de changer SCHEME.
+ */
+public final class TextCompressor {
+    public static final String ACCEPT = "chat-accept-compression";
+    public static final String ENCODING = "chat-compression";
+    public static final String SCHEME = "deflate-dict1";
+    // Taille en octets (UTF-8) à partir de laquelle un texte est compressé
+    public static final int THRESHOLD = 256;
+    // Taille maximale d'un texte décompressé, pour se protéger des messages malveillants
+    private static final int MAX_TEXT_BYTES = 1024 * 1024;
+
+    // Dictionnaire partagé : fragments fréquents des journaux et traces collés dans le chat
+    // et mots courants en français et en anglais. Deflate trouvant plus facilement les
+    // fragments de la fin du dictionnaire, les plus fréquents sont placés en dernier.
+    private static final byte[] DICTIONARY = utf8(
+            "SEVERE: WARNING: Caused by: java.lang.NullPointerException java.lang.IllegalStateException "
+            + "java.lang.IllegalArgumentException java.io.IOException java.util.concurrent. "
+            + "org.apache. org.springframework. com.google. android.os. android.app. jade.core. "
+            + "Exception in thread \"main\" ... more\n\tat java.lang.Thread.run(Thread.java:\n"
+            + "\tat java.lang.reflect.Method.invoke(Method.java:\n\tat sun.reflect. "
+            + "HTTP/1.1 200 OK Content-Type: application/json; charset=utf-8 GET POST "
+            + "https://www. http://localhost:8080/ .html .json .xml .java .txt .log "
+            + "{\"id\": \"name\": \"type\": \"value\": \"status\": \"error\": null, true, false, "
+            + "Failed to Unable to Connection refused timeout exceeded not found "
+            + "DEBUG TRACE INFO WARN ERROR FATAL 2024-01-01 00:00:00,000 [main] "
+            + "the and that this with from have you for are was not but what all "
+            + "would there their will when which about can your just like some know "
+            + "think because could people should really something thanks please "
+            + "aujourd'hui pourquoi quelque chose beaucoup maintenant toujours encore "
+            + "parce que est-ce que il y a c'est je ne sais pas qu'est-ce que "
+            + "les des une que qui dans pour pas sur est avec sont mais plus tout nous "
+            + "vous ils elle cette comme fait être avoir bien aussi merci bonjour salut "
+            + "\n\tat chat.\n\tat jade.\n\tat java.\n\tat ");
+
+    private TextCompressor() {
+    }
+
+    /**
+     * Indique si l'agent ayant envoyé ce message a annoncé savoir décompresser SCHEME.
+     */
+    public static boolean accepts(ACLMessage msg) {
+        String accepted = msg.getUserDefinedParameter(ACCEPT);
+        return accepted != null && ("," + accepted.replace(" ", "") + ",").indexOf("," + SCHEME + ",") >= 0;
+    }
+
+    /**
+     * Indique si le contenu de ce message est compressé par SCHEME.
+     */
+    public static boolean isCompressed(ACLMessage msg) {
+        return SCHEME.equals(msg.getUserDefinedParameter(ENCODING)) && msg.hasByteSequenceContent();
+    }
+
+    /**
+     * Place le texte dans le message, compressé si cela réduit sa taille. Renvoie vrai si
+     * le texte a été compressé.
+     */
+    public static boolean setText(ACLMessage msg, String text) {
+        byte[] compressed = compress(text);
+        if (compressed != null) {
+            msg.setByteSequenceContent(compressed);
+            msg.addUserDefinedParameter(ENCODING, SCHEME);
+            return true;
+        }
+        msg.setContent(text);
+        msg.removeUserDefinedParameter(ENCODING);
+        return false;
+    }
+
+    /**
+     * Renvoie le texte du message, décompressé si nécessaire.
+     */
+    public static String getText(ACLMessage msg) throws IOException {
+        if (isCompressed(msg)) {
+            return decompress(msg.getByteSequenceContent());
+        }
+        return msg.getContent();
+    }
+
+    /**
+     * Compresse un texte. Renvoie null si le texte est trop court pour être compressé ou
+     * si la compression ne réduit pas sa taille.
+     */
+    public static byte[] compress(String text) {
+        if (text == null || text.length() < THRESHOLD / 3) {
+            // Au plus 3 octets UTF-8 par caractère : inutile d'encoder le texte
+            return null;
+        }
+        byte[] input = utf8(text);
+        if (input.length < THRESHOLD) {
+            return null;
+        }
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2);
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.size() < input.length ? out.toByteArray() : null;
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Décompresse un texte compressé par compress().
+     */
+    public static String decompress(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    }
+                    else if (inflater.needsInput()) {
+                        throw new IOException("Truncated compressed text");
+                    }
+                }
+                out.write(buffer, 0, n);
+                if (out.size() > MAX_TEXT_BYTES) {
+                    throw new IOException("Compressed text too large");
+                }
+            }
+            return out.toString("UTF-8");
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Invalid compressed text: " + e.getMessage());
+        }
+        catch (IllegalArgumentException e) {
+            // Dictionnaire différent de celui utilisé pour compresser
+            throw new IOException("Invalid compressed text: " + e.getMessage());
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Taille en octets du texte encodé en UTF-8.
+     */
+    public static int sizeOf(String text) {
+        return utf8(text).length;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+}
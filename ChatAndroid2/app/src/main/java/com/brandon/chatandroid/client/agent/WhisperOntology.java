@@ -0,0 +1,52 @@
+package com.brandon.chatandroid.client.agent;
+
+import chat.ontology.ChatOntology;
+import chat.ontology.ChatVocabulary;
+import jade.content.onto.BasicOntology;
+import jade.content.onto.CFReflectiveIntrospector;
+import jade.content.onto.Ontology;
+import jade.content.onto.OntologyException;
+import jade.content.schema.PredicateSchema;
+import jade.content.schema.PrimitiveSchema;
+
+/**
+ * Ontologie du chat complétée des prédicats des messages privés et des refus faute de
+ * débit, que ne contient pas la version de chatOntology.jar embarquée dans l'application. Elle porte le même nom que
+ * l'ontologie du chat et s'appuie sur celle-ci pour les autres prédicats.
+ */
+public class WhisperOntology extends Ontology {
+    private static final long serialVersionUID = -6322589613203378409L;
+
+    // Mêmes valeurs que ChatVocabulary.WHISPERED* dans les sources de l'ontologie
+    public static final String WHISPERED = "whispered";
+    public static final String WHISPERED_TO = "to";
+    public static final String WHISPERED_WHAT = "what";
+    // Mêmes valeurs que ChatVocabulary.THROTTLED*
+    public static final String THROTTLED = "throttled";
+    public static final String THROTTLED_SCOPE = "scope";
+    public static final String THROTTLED_RETRY_AFTER = "retry-after";
+
+    private static Ontology theInstance = new WhisperOntology();
+
+    public static Ontology getInstance() {
+        return theInstance;
+    }
+
+    private WhisperOntology() {
+        super(ChatVocabulary.ONTOLOGY_NAME, ChatOntology.getInstance(), new CFReflectiveIntrospector());
+
+        try {
+            PredicateSchema ps = new PredicateSchema(WHISPERED);
+            ps.add(WHISPERED_TO, (PrimitiveSchema) getSchema(BasicOntology.STRING));
+            ps.add(WHISPERED_WHAT, (PrimitiveSchema) getSchema(BasicOntology.STRING));
+            add(ps);
+
+            ps = new PredicateSchema(THROTTLED);
+            ps.add(THROTTLED_SCOPE, (PrimitiveSchema) getSchema(BasicOntology.STRING));
+            ps.add(THROTTLED_RETRY_AFTER, (PrimitiveSchema) getSchema(BasicOntology.INTEGER));
+            add(ps);
+        } catch (OntologyException oe) {
+            oe.printStackTrace();
+        }
+    }
+}
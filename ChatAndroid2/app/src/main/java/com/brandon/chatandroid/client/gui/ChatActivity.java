@@ -8,19 +8,25 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ScrollView;
-import android.widget.TextView;
+import android.widget.ListView;
 
 import com.brandon.chatandroid.R;
 import com.brandon.chatandroid.client.agent.ChatClientInterface;
+import com.brandon.chatandroid.client.agent.ChatEventChannel;
+import com.brandon.chatandroid.client.agent.StartupTimings;
 
+import java.util.ArrayList;
 import java.util.logging.Level;
 
 import jade.core.MicroRuntime;
@@ -37,11 +43,19 @@ public class ChatActivity extends Activity {
     private Logger logger = Logger.getJADELogger(this.getClass().getName());
 
     static final int PARTICIPANTS_REQUEST = 0;
+    // Nombre de lignes conservées dans la liste des messages
+    static final int MAX_LINES = 500;
     private BroadCastListener broadCastListener;
 
     private String nickname;
     private ChatClientInterface chatClientInterface;
 
+    private ArrayList<String> lines = new ArrayList<String>();
+    private ArrayAdapter<String> linesAdapter;
+    private ChatEventChannel channel;
+    private Handler handler = new Handler(Looper.getMainLooper());
+    private boolean frameScheduled;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -61,20 +75,76 @@ public class ChatActivity extends Activity {
 
         broadCastListener = new BroadCastListener();
 
-        IntentFilter refreshChatFilter = new IntentFilter();
-        refreshChatFilter.addAction("REFRESH_CHAT");
-        registerReceiver(broadCastListener, refreshChatFilter);
-
         IntentFilter clearChatFilter = new IntentFilter();
         clearChatFilter.addAction("CLEAR_CHAT");
         registerReceiver(broadCastListener, clearChatFilter);
 
         setContentView(R.layout.chat);
 
+        // La liste ne crée de vues que pour les lignes visibles et défile d'elle même
+        // lorsque l'utilisateur est en bas de la conversation
+        linesAdapter = new ArrayAdapter<String>(this, R.layout.chat_line, lines);
+        ListView chatList = (ListView) findViewById(R.id.chatList);
+        chatList.setAdapter(linesAdapter);
+        if (chatClientInterface != null) {
+            channel = chatClientInterface.getEventChannel();
+        }
+
         Button button = (Button) findViewById(R.id.button_send);
         button.setOnClickListener(buttonSendListener);
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        StartupTimings.mark(StartupTimings.CHAT_SHOWN);
+        if (channel != null) {
+            // Les lignes arrivées pendant la pause sont affichées dès l'enregistrement
+            channel.setListener(channelListener);
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (channel != null) {
+            channel.setListener(null);
+        }
+    }
+
+    // Appelé depuis le thread de l'agent : on demande un affichage à la prochaine image
+    private ChatEventChannel.Listener channelListener = new ChatEventChannel.Listener() {
+        public void onLinesAvailable() {
+            handler.post(scheduleFrame);
+        }
+    };
+
+    private Runnable scheduleFrame = new Runnable() {
+        public void run() {
+            if (!frameScheduled) {
+                frameScheduled = true;
+                Choreographer.getInstance().postFrameCallback(drainLines);
+            }
+        }
+    };
+
+    // Ajoute en une fois toutes les lignes en attente et ne conserve que les MAX_LINES dernières
+    private Choreographer.FrameCallback drainLines = new Choreographer.FrameCallback() {
+        public void doFrame(long frameTimeNanos) {
+            frameScheduled = false;
+            channel.drainTo(lines);
+            trimLines();
+            linesAdapter.notifyDataSetChanged();
+        }
+    };
+
+    // Ne conserve que les MAX_LINES dernières lignes
+    private void trimLines() {
+        if (lines.size() > MAX_LINES) {
+            lines.subList(0, lines.size() - MAX_LINES).clear();
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
@@ -91,18 +161,30 @@ public class ChatActivity extends Activity {
             String message = messageField.getText().toString();
             if (message != null && !message.equals("")) {
                 try {
+                    // L'agent peut avoir été recréé depuis l'ouverture de l'activité (reprise
+                    // de session après un changement de réseau)
+                    chatClientInterface = MicroRuntime.getAgent(nickname).getO2AInterface(ChatClientInterface.class);
                     // On check si le message commence par /pseudoReceveur
                     // Si c'est le cas, on envoi un message privé au receveur s'il existe
-                    // Sinon, on envoi un message sur le chat général
-                    if (message.charAt(0) == "/".charAt(0)) {
-                        chatClientInterface.handleWisper(message, message.split("/")[1].split(" ")[0]);
-                        messageField.setText("");
+                    // Sinon, on envoi un message sur le chat général.
+                    // La ligne est analysée ici une seule fois : le texte peut contenir des '/'
+                    boolean sent;
+                    if (message.charAt(0) == '/' && message.length() > 1) {
+                        int space = message.indexOf(' ', 1);
+                        String to = space < 0 ? message.substring(1) : message.substring(1, space);
+                        String text = space < 0 ? "" : message.substring(space + 1);
+                        sent = chatClientInterface.handleWisper(text, to);
                     } else {
-                        chatClientInterface.handleSpoken(message);
+                        sent = chatClientInterface.handleSpoken(message);
+                    }
+                    // Un message non envoyé (débit dépassé) reste dans le champ de saisie
+                    if (sent) {
                         messageField.setText("");
                     }
                 } catch (O2AException e) {
                     showAlertDialog(e.getMessage(), false);
+                } catch (ControllerException e) {
+                    showAlertDialog(getString(R.string.msg_controller_exc), false);
                 }
             }
 
@@ -132,8 +214,8 @@ public class ChatActivity extends Activity {
 			logger.info("Sending broadcast " + broadcast.getAction());
 			sendBroadcast(broadcast);
 			*/
-                final TextView chatField = (TextView) findViewById(R.id.chatTextView);
-                chatField.setText("");
+                lines.clear();
+                linesAdapter.notifyDataSetChanged();
                 return true;
             default:
                 return super.onOptionsItemSelected(item);
@@ -155,37 +237,29 @@ public class ChatActivity extends Activity {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             logger.log(Level.INFO, "Received intent " + action);
-            if (action.equalsIgnoreCase("REFRESH_CHAT")) {
-                final TextView chatField = (TextView) findViewById(R.id.chatTextView);
-                chatField.append(intent.getExtras().getString("sentence"));
-                scrollDown();
-            }
             if (action.equalsIgnoreCase("CLEAR_CHAT")) {
-                final TextView chatField = (TextView) findViewById(R.id.chatTextView);
-                chatField.setText("");
+                lines.clear();
+                linesAdapter.notifyDataSetChanged();
             }
         }
     }
 
-    private void scrollDown() {
-        final ScrollView scroller = (ScrollView) findViewById(R.id.scroller);
-        final TextView chatField = (TextView) findViewById(R.id.chatTextView);
-        scroller.smoothScrollTo(0, chatField.getBottom());
-    }
-
     @Override
     public void onSaveInstanceState(Bundle savedInstanceState) {
-        final TextView chatField = (TextView) findViewById(R.id.chatTextView);
-        savedInstanceState.putString("chatField", chatField.getText()
-                .toString());
+        savedInstanceState.putStringArrayList("chatLines", lines);
         super.onSaveInstanceState(savedInstanceState);
     }
 
     @Override
     public void onRestoreInstanceState(Bundle savedInstanceState) {
         super.onRestoreInstanceState(savedInstanceState);
-        final TextView chatField = (TextView) findViewById(R.id.chatTextView);
-        chatField.setText(savedInstanceState.getString("chatField"));
+        ArrayList<String> saved = savedInstanceState.getStringArrayList("chatLines");
+        if (saved != null) {
+            // Les lignes arrivées entre-temps sont ajoutées après les lignes restaurées
+            lines.addAll(0, saved);
+            trimLines();
+            linesAdapter.notifyDataSetChanged();
+        }
     }
 
     private void showAlertDialog(String message, final boolean fatal) {
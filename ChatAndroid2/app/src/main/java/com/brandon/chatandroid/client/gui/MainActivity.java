@@ -10,6 +10,8 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -27,6 +29,9 @@ import java.util.logging.Level;
 
 import com.brandon.chatandroid.R;
 import com.brandon.chatandroid.client.agent.ChatClientAgent;
+import com.brandon.chatandroid.client.agent.ChatClientInterface;
+import com.brandon.chatandroid.client.agent.ChatSession;
+import com.brandon.chatandroid.client.agent.StartupTimings;
 import jade.android.AndroidHelper;
 import jade.android.MicroRuntimeService;
 import jade.android.MicroRuntimeServiceBinder;
@@ -47,6 +52,8 @@ public class MainActivity extends Activity {
 
 	private MicroRuntimeServiceBinder microRuntimeServiceBinder;
 	private ServiceConnection serviceConnection;
+	// Démarrage demandé avant la liaison au service, lancé dès qu'elle est établie
+	private Runnable pendingStart;
 
 	static final int CHAT_REQUEST = 0;
 	static final int SETTINGS_REQUEST = 1;
@@ -57,6 +64,11 @@ public class MainActivity extends Activity {
 	private String nickname;
 	private EditText ipAdress;
 	private EditText port;
+	// Session du chat en cours (null sinon), reprise par un nouvel agent si le conteneur
+	// ne survit pas à un changement de réseau, et plateforme à laquelle elle est connectée
+	private ChatSession session;
+	private String chatHost;
+	private String chatPort;
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -72,6 +84,10 @@ public class MainActivity extends Activity {
 		showChatFilter.addAction("SHOW_CHAT");
 		registerReceiver(intentBroadcastReceiver, showChatFilter);
 
+		IntentFilter connectivityFilter = new IntentFilter();
+		connectivityFilter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+		registerReceiver(intentBroadcastReceiver, connectivityFilter);
+
 		messageHandler = new MessageHandler();
 
 		setContentView(R.layout.main);
@@ -84,6 +100,11 @@ public class MainActivity extends Activity {
 
 		ipAdress = findViewById(R.id.ipEditText);
 		port = findViewById(R.id.portEditText);
+
+		// Préchauffage pendant que l'utilisateur saisit son pseudo : liaison au service
+		// JADE, chargement des classes de l'agent, de l'ontologie et du codec
+		bindRuntimeService();
+		ChatClientAgent.prewarm();
 	}
 
 	@Override
@@ -123,6 +144,10 @@ public class MainActivity extends Activity {
 					String portString = port.getText().toString();
 
 					infoTextView.setText(getString(R.string.msg_connecting_to) + " " + host + ":" + portString + "...");
+					StartupTimings.start("connect");
+					session = new ChatSession();
+					chatHost = host;
+					chatPort = portString;
 					startChat(nickname, host, portString, agentStartupCallback);
 				} catch (Exception ex) {
 					logger.log(Level.SEVERE, "Unexpected exception creating chat agent!");
@@ -161,6 +186,7 @@ public class MainActivity extends Activity {
 			if (resultCode == RESULT_CANCELED) {
 				// The chat activity was closed.
 				infoTextView.setText("");
+				session = null;
 				logger.log(Level.INFO, "Stopping Jade...");
 				microRuntimeServiceBinder
 						.stopAgentContainer(new RuntimeCallback<Void>() {
@@ -187,6 +213,7 @@ public class MainActivity extends Activity {
 
 		@Override
 		public void onFailure(Throwable throwable) {
+			session = null;
 			logger.log(Level.INFO, "Nickname already in use!");
 			messageHandler.postError(getString(R.string.msg_nickname_in_use));
 		}
@@ -222,9 +249,50 @@ public class MainActivity extends Activity {
 				MainActivity.this
 						.startActivityForResult(showChat, CHAT_REQUEST);
 			}
+			if (action.equals(ConnectivityManager.CONNECTIVITY_ACTION)) {
+				onConnectivityChanged();
+			}
 		}
 	}
 
+	/**
+	 * Reprise du chat après un changement de réseau, sans repasser par l'écran d'accueil :
+	 * si le conteneur est toujours là, son front-end se reconnecte et l'agent se réinscrit
+	 * aussitôt ; sinon le conteneur et l'agent sont recréés avec la même session. Dans les
+	 * deux cas, le manager n'envoie que les changements de la liste des participants et les
+	 * messages manqués.
+	 */
+	private void onConnectivityChanged() {
+		ConnectivityManager connectivity = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+		NetworkInfo network = connectivity.getActiveNetworkInfo();
+		if (session == null || network == null || !network.isConnected()) {
+			return;
+		}
+		logger.log(Level.INFO, "Network changed, resuming the chat session...");
+		StartupTimings.start("network change");
+		if (MicroRuntime.isRunning()) {
+			try {
+				MicroRuntime.getAgent(nickname).getO2AInterface(ChatClientInterface.class).handleNetworkChange();
+				return;
+			} catch (ControllerException e) {
+				// L'agent n'a pas survécu à la perte de connexion
+			}
+		}
+		startChat(nickname, chatHost, chatPort, resumeCallback);
+	}
+
+	private RuntimeCallback<AgentController> resumeCallback = new RuntimeCallback<AgentController>() {
+		@Override
+		public void onSuccess(AgentController agent) {
+			logger.log(Level.INFO, "Chat session resumed");
+		}
+
+		@Override
+		public void onFailure(Throwable throwable) {
+			logger.log(Level.SEVERE, "Failed to resume the chat session...");
+		}
+	};
+
 	private class MessageHandler extends Handler {
 		@Override
 		public void handleMessage(Message msg) {
@@ -266,29 +334,48 @@ public class MainActivity extends Activity {
 		profile.setProperty(Profile.LOCAL_PORT, "2000");
 
 		if (microRuntimeServiceBinder == null) {
-			serviceConnection = new ServiceConnection() {
-				public void onServiceConnected(ComponentName className,
-                                               IBinder service) {
-					microRuntimeServiceBinder = (MicroRuntimeServiceBinder) service;
-					logger.log(Level.INFO, "Gateway successfully bound to MicroRuntimeService");
+			// La liaison lancée par onCreate() n'est pas encore établie
+			pendingStart = new Runnable() {
+				public void run() {
 					startContainer(nickname, profile, agentStartupCallback);
-				};
-
-				public void onServiceDisconnected(ComponentName className) {
-					microRuntimeServiceBinder = null;
-					logger.log(Level.INFO, "Gateway unbound from MicroRuntimeService");
 				}
 			};
-			logger.log(Level.INFO, "Binding Gateway to MicroRuntimeService...");
-			bindService(new Intent(getApplicationContext(),
-					MicroRuntimeService.class), serviceConnection,
-					Context.BIND_AUTO_CREATE);
+			if (serviceConnection == null) {
+				bindRuntimeService();
+			}
 		} else {
 			logger.log(Level.INFO, "MicroRumtimeGateway already binded to service");
+			StartupTimings.mark(StartupTimings.SERVICE_BOUND);
 			startContainer(nickname, profile, agentStartupCallback);
 		}
 	}
 
+	private void bindRuntimeService() {
+		serviceConnection = new ServiceConnection() {
+			public void onServiceConnected(ComponentName className,
+                                           IBinder service) {
+				microRuntimeServiceBinder = (MicroRuntimeServiceBinder) service;
+				logger.log(Level.INFO, "Gateway successfully bound to MicroRuntimeService");
+				if (pendingStart != null) {
+					StartupTimings.mark(StartupTimings.SERVICE_BOUND);
+					Runnable start = pendingStart;
+					pendingStart = null;
+					start.run();
+				}
+			};
+
+			public void onServiceDisconnected(ComponentName className) {
+				microRuntimeServiceBinder = null;
+				serviceConnection = null;
+				logger.log(Level.INFO, "Gateway unbound from MicroRuntimeService");
+			}
+		};
+		logger.log(Level.INFO, "Binding Gateway to MicroRuntimeService...");
+		bindService(new Intent(getApplicationContext(),
+				MicroRuntimeService.class), serviceConnection,
+				Context.BIND_AUTO_CREATE);
+	}
+
 	private void startContainer(final String nickname, Properties profile,
                                 final RuntimeCallback<AgentController> agentStartupCallback) {
 		if (!MicroRuntime.isRunning()) {
@@ -297,6 +384,7 @@ public class MainActivity extends Activity {
 						@Override
 						public void onSuccess(Void thisIsNull) {
 							logger.log(Level.INFO, "Successfully start of the container...");
+							StartupTimings.mark(StartupTimings.CONTAINER_STARTED);
 							startAgent(nickname, agentStartupCallback);
 						}
 
@@ -306,16 +394,18 @@ public class MainActivity extends Activity {
 						}
 					});
 		} else {
+			StartupTimings.mark(StartupTimings.CONTAINER_STARTED);
 			startAgent(nickname, agentStartupCallback);
 		}
 	}
 
 	private void startAgent(final String nickname, final RuntimeCallback<AgentController> agentStartupCallback) {
-		microRuntimeServiceBinder.startAgent(nickname, ChatClientAgent.class.getName(), new Object[] { getApplicationContext() }, new RuntimeCallback<Void>() {
+		microRuntimeServiceBinder.startAgent(nickname, ChatClientAgent.class.getName(), new Object[] { getApplicationContext(), session }, new RuntimeCallback<Void>() {
 					@Override
 					public void onSuccess(Void thisIsNull) {
 						logger.log(Level.INFO, "Successfully start of the "
 								+ ChatClientAgent.class.getName() + "...");
+						StartupTimings.mark(StartupTimings.AGENT_STARTED);
 						try {
 							agentStartupCallback.onSuccess(MicroRuntime
 									.getAgent(nickname));
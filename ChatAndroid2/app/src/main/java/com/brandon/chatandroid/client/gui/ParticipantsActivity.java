@@ -30,6 +30,8 @@ public class ParticipantsActivity extends ListActivity {
 
 	private String nickname;
 	private ChatClientInterface chatClientInterface;
+	// Noms actuellement affichés
+	private String[] shownNames;
 
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -57,8 +59,8 @@ public class ParticipantsActivity extends ListActivity {
 
 		setContentView(R.layout.participants);
 
-		setListAdapter(new ArrayAdapter<String>(this, R.layout.participant,
-				chatClientInterface.getParticipantLocalNames()));
+		shownNames = chatClientInterface.getParticipantLocalNames();
+		setListAdapter(new ArrayAdapter<String>(this, R.layout.participant, shownNames));
 
 		ListView listView = getListView();
 		listView.setTextFilterEnabled(true);
@@ -88,9 +90,13 @@ public class ParticipantsActivity extends ListActivity {
 			String action = intent.getAction();
 			logger.log(Level.INFO, "Received intent " + action);
 			if (action.equalsIgnoreCase("REFRESH_PARTICIPANTS")) {
-				setListAdapter(new ArrayAdapter<String>(
-						ParticipantsActivity.this, R.layout.participant,
-						chatClientInterface.getParticipantLocalNames()));
+				// L'agent renvoie le même tableau tant que la liste n'a pas changé
+				String[] names = chatClientInterface.getParticipantLocalNames();
+				if (names != shownNames) {
+					shownNames = names;
+					setListAdapter(new ArrayAdapter<String>(
+							ParticipantsActivity.this, R.layout.participant, names));
+				}
 			}
 		}
 	}
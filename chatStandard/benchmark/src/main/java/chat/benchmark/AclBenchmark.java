@@ -0,0 +1,67 @@
+package chat.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Construction des messages ACL par le ChatManagerAgent : copie d'une notification et
+ * remplissage des destinataires lors de la diffusion.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AclBenchmark {
+
+	@Param({"1", "10", "100", "1000", "10000"})
+	public int rosterSize;
+
+	private List<AID> roster;
+	private ACLMessage notification;
+	private ACLMessage relay;
+
+	@Setup
+	public void setup() {
+		roster = Rosters.create(rosterSize);
+		notification = new ACLMessage(ACLMessage.INFORM);
+		notification.setConversationId("C-user0");
+		notification.setContent("((joined (sequence (agent-identifier :name user0@192.168.1.10:1099/JADE))))");
+		notification.addReceiver(roster.get(0));
+		relay = new ACLMessage(ACLMessage.INFORM);
+		relay.setConversationId("__chat__");
+		relay.setContent("hello everybody");
+	}
+
+	/** Copie de la notification destinée aux anciens participants dans register(). */
+	@Benchmark
+	public Object cloneNotification() {
+		return notification.clone();
+	}
+
+	/** Remplissage des destinataires d'un message diffusé à tout le salon. */
+	@Benchmark
+	public ACLMessage fillReceivers() {
+		relay.clearAllReceiver();
+		for (int i = 0; i < roster.size(); ++i) {
+			relay.addReceiver(roster.get(i));
+		}
+		return relay;
+	}
+}
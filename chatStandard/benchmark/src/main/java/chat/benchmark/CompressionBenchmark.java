@@ -0,0 +1,113 @@
+package chat.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import chat.compression.TextCompressor;
+
+/**
+ * Coût de la compression des messages du chat par TextCompressor, pour chaque corpus de
+ * Corpora. Le gain en volume est affiché par main(), sans JMH :
+ *    java -cp target/benchmarks.jar chat.benchmark.CompressionBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	private static final int CORPUS_SIZE = 1000;
+
+	@Param({"chat", "prose", "log", "stacktrace"})
+	public String corpus;
+
+	private List<String> texts;
+	private byte[][] compressed;
+	private int next;
+
+	@Setup
+	public void setup() {
+		texts = Corpora.create(corpus, CORPUS_SIZE);
+		compressed = new byte[CORPUS_SIZE][];
+		for (int i = 0; i < CORPUS_SIZE; ++i) {
+			compressed[i] = TextCompressor.compress(texts.get(i));
+		}
+	}
+
+	/** Compression faite par l'expéditeur (ou par le manager pour les anciens clients). */
+	@Benchmark
+	public byte[] compress() {
+		next = (next + 1) % CORPUS_SIZE;
+		return TextCompressor.compress(texts.get(next));
+	}
+
+	/** Décompression faite par le destinataire. */
+	@Benchmark
+	public String decompress() throws IOException {
+		next = (next + 1) % CORPUS_SIZE;
+		byte[] data = compressed[next];
+		return data != null ? TextCompressor.decompress(data) : texts.get(next);
+	}
+
+	/**
+	 * Affiche, pour chaque corpus, le volume des contenus envoyés sans compression, avec
+	 * Deflate seul et avec TextCompressor (seuil et dictionnaire partagé).
+	 */
+	public static void main(String[] args) {
+		System.out.println(String.format("%-12s %12s %12s %12s %8s", "corpus", "plain", "deflate", "compressor", "saved"));
+		for (int k = 0; k < Corpora.KINDS.length; ++k) {
+			List<String> texts = Corpora.create(Corpora.KINDS[k], CORPUS_SIZE);
+			long plain = 0;
+			long deflate = 0;
+			long compressor = 0;
+			for (int i = 0; i < texts.size(); ++i) {
+				String text = texts.get(i);
+				int size = TextCompressor.sizeOf(text);
+				plain += size;
+				deflate += Math.min(size, deflate(text));
+				byte[] data = TextCompressor.compress(text);
+				compressor += data != null ? data.length : size;
+			}
+			System.out.println(String.format("%-12s %12d %12d %12d %7.1f%%", Corpora.KINDS[k], plain, deflate,
+					compressor, 100.0 * (plain - compressor) / plain));
+		}
+	}
+
+	// Taille compressée par Deflate sans dictionnaire ni seuil
+	private static int deflate(String text) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			deflater.setInput(text.getBytes("UTF-8"));
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			return out.size();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		finally {
+			deflater.end();
+		}
+	}
+}
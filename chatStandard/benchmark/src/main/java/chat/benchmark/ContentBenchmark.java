@@ -0,0 +1,104 @@
+package chat.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jade.content.ContentManager;
+import jade.content.abs.AbsAggregate;
+import jade.content.abs.AbsContentElement;
+import jade.content.abs.AbsPredicate;
+import jade.content.abs.AbsTerm;
+import jade.content.lang.sl.SLCodec;
+import jade.content.onto.BasicOntology;
+import jade.core.AID;
+import jade.domain.FIPANames;
+import jade.lang.acl.ACLMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import chat.ontology.BinaryChatCodec;
+import chat.ontology.ChatOntology;
+import chat.ontology.Joined;
+
+/**
+ * Encodage et décodage des notifications de présence par le ContentManager, pour
+ * chaque langage supporté par le ChatManagerAgent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentBenchmark {
+
+	@Param({"1", "10", "100", "1000", "10000"})
+	public int rosterSize;
+
+	@Param({FIPANames.ContentLanguage.FIPA_SL, BinaryChatCodec.NAME})
+	public String language;
+
+	private ContentManager cm;
+	private Joined joined;
+	private AID leaving;
+	private ACLMessage filled;
+	private ACLMessage out;
+
+	@Setup
+	public void setup() throws Exception {
+		cm = new ContentManager();
+		cm.registerLanguage(new SLCodec());
+		cm.registerLanguage(new BinaryChatCodec());
+		cm.registerOntology(ChatOntology.getInstance());
+
+		List<AID> who = Rosters.create(rosterSize);
+		joined = new Joined();
+		joined.setWho(who);
+		leaving = who.get(0);
+
+		filled = createMessage();
+		cm.fillContent(filled, joined);
+		out = createMessage();
+	}
+
+	private ACLMessage createMessage() {
+		ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+		msg.setLanguage(language);
+		msg.setOntology(ChatOntology.ONTOLOGY_NAME);
+		return msg;
+	}
+
+	/** Notification Joined envoyée par le manager. */
+	@Benchmark
+	public ACLMessage fillJoined() throws Exception {
+		cm.fillContent(out, joined);
+		return out;
+	}
+
+	/** Lecture d'une notification par le ParticipantsManager du client. */
+	@Benchmark
+	public AbsContentElement extractJoined() throws Exception {
+		return cm.extractAbsContent(filled);
+	}
+
+	/** Construction directe du prédicat Left sous forme abstraite, comme dans deregister(). */
+	@Benchmark
+	public ACLMessage fillLeftAbsPredicate() throws Exception {
+		AbsPredicate p = new AbsPredicate(ChatOntology.LEFT);
+		AbsAggregate agg = new AbsAggregate(BasicOntology.SEQUENCE);
+		agg.add((AbsTerm) BasicOntology.getInstance().fromObject(leaving));
+		p.set(ChatOntology.LEFT_WHO, agg);
+		cm.fillContent(out, p);
+		return out;
+	}
+}
@@ -0,0 +1,111 @@
+package chat.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Création de corpus de messages réalistes pour les benchmarks de compression : messages
+ * courts du chat, longs messages en français et en anglais, extraits de journaux et traces
+ * d'exception collés dans le chat. Les corpus sont générés à partir d'une graine fixe afin
+ * que les mesures soient reproductibles.
+ */
+final class Corpora {
+
+	static final String[] KINDS = {"chat", "prose", "log", "stacktrace"};
+
+	private static final String[] CHAT = {
+			"salut tout le monde", "quelqu'un a vu le dernier build ?", "je regarde ça après manger",
+			"ok merci", "hello, is the server down again?", "yes it works for me now",
+			"tu peux relancer le manager stp", "lol", "on se retrouve à 14h pour la démo ?",
+			"the phone keeps disconnecting on 3G", "c'est corrigé dans la dernière version",
+			"bonne soirée !", "any idea why the roster is empty?", "je redémarre mon conteneur" };
+
+	private static final String[] WORDS_FR = {
+			"le", "la", "les", "des", "une", "que", "qui", "dans", "pour", "pas", "sur", "est",
+			"avec", "sont", "mais", "plus", "tout", "nous", "vous", "cette", "comme", "fait",
+			"serveur", "message", "agent", "conteneur", "téléphone", "connexion", "réseau",
+			"problème", "version", "aujourd'hui", "toujours", "encore", "parce", "beaucoup" };
+
+	private static final String[] WORDS_EN = {
+			"the", "and", "that", "this", "with", "from", "have", "you", "for", "are", "was",
+			"not", "but", "what", "when", "which", "about", "would", "there", "their", "server",
+			"message", "agent", "container", "phone", "connection", "network", "problem",
+			"version", "today", "because", "really", "something", "should", "people" };
+
+	private static final String[] LEVELS = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+
+	private static final String[] LOGGERS = {
+			"jade.core.messaging.MessagingService", "jade.imtp.leap.JICP.BIFEDispatcher",
+			"chat.manager.ChatManagerAgent", "org.apache.http.impl.conn.PoolingHttpClientConnectionManager",
+			"com.example.sync.SyncService" };
+
+	private static final String[] EVENTS = {
+			"Connection refused, retrying in 5000 ms", "Message delivered to manager@192.168.1.10:1099/JADE",
+			"Unable to reach back-end, timeout exceeded", "Subscription accepted for agent bob",
+			"GET /api/v1/rooms/general HTTP/1.1 200 OK", "Dropping output connection" };
+
+	private Corpora() {
+	}
+
+	static List<String> create(String kind, int count) {
+		Random random = new Random(42);
+		List<String> corpus = new ArrayList<String>(count);
+		for (int i = 0; i < count; ++i) {
+			if (kind.equals("chat")) {
+				corpus.add(CHAT[random.nextInt(CHAT.length)]);
+			}
+			else if (kind.equals("prose")) {
+				corpus.add(prose(random, random.nextBoolean() ? WORDS_FR : WORDS_EN, 300 + random.nextInt(1200)));
+			}
+			else if (kind.equals("log")) {
+				corpus.add(log(random, 10 + random.nextInt(30)));
+			}
+			else if (kind.equals("stacktrace")) {
+				corpus.add(stackTrace(random, 15 + random.nextInt(30)));
+			}
+			else {
+				throw new IllegalArgumentException("Unknown corpus " + kind);
+			}
+		}
+		return corpus;
+	}
+
+	private static String prose(Random random, String[] words, int length) {
+		StringBuilder sb = new StringBuilder(length + 16);
+		boolean capitalize = true;
+		while (sb.length() < length) {
+			String w = words[random.nextInt(words.length)];
+			sb.append(capitalize ? Character.toUpperCase(w.charAt(0)) + w.substring(1) : w);
+			capitalize = random.nextInt(12) == 0;
+			sb.append(capitalize ? ". " : " ");
+		}
+		return sb.toString();
+	}
+
+	private static String log(Random random, int lines) {
+		StringBuilder sb = new StringBuilder();
+		int seconds = random.nextInt(3600);
+		for (int i = 0; i < lines; ++i) {
+			seconds += random.nextInt(3);
+			sb.append(String.format("2024-03-%02d %02d:%02d:%02d,%03d %-5s [%s] %s - %s%n",
+					1 + random.nextInt(28), seconds / 3600 % 24, seconds / 60 % 60, seconds % 60,
+					random.nextInt(1000), LEVELS[random.nextInt(LEVELS.length)], "main",
+					LOGGERS[random.nextInt(LOGGERS.length)], EVENTS[random.nextInt(EVENTS.length)]));
+		}
+		return sb.toString();
+	}
+
+	private static String stackTrace(Random random, int frames) {
+		StringBuilder sb = new StringBuilder("Exception in thread \"main\" java.lang.IllegalStateException: ");
+		sb.append(EVENTS[random.nextInt(EVENTS.length)]).append('\n');
+		for (int i = 0; i < frames; ++i) {
+			String logger = LOGGERS[random.nextInt(LOGGERS.length)];
+			String simpleName = logger.substring(logger.lastIndexOf('.') + 1);
+			sb.append("\tat ").append(logger).append(".handle").append(random.nextInt(20))
+					.append('(').append(simpleName).append(".java:").append(20 + random.nextInt(900)).append(")\n");
+		}
+		sb.append("Caused by: java.io.IOException: Connection reset\n\tat java.lang.Thread.run(Thread.java:748)\n");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,25 @@
+package chat.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jade.core.AID;
+
+/**
+ * Création de listes de participants réalistes pour les benchmarks.
+ */
+final class Rosters {
+
+	private Rosters() {
+	}
+
+	static List<AID> create(int size) {
+		List<AID> who = new ArrayList<AID>(size);
+		for (int i = 0; i < size; ++i) {
+			AID id = new AID("user" + i + "@192.168.1.10:1099/JADE", AID.ISGUID);
+			id.addAddresses("http://192.168.1.10:7778/acc");
+			who.add(id);
+		}
+		return who;
+	}
+}
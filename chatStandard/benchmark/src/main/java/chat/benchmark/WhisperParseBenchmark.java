@@ -0,0 +1,63 @@
+package chat.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import chat.client.WhisperCommand;
+
+/**
+ * Analyse de la ligne "/pseudo texte" d'un message privé : l'ancienne analyse par split,
+ * qui était refaite par l'interface, le WisperSpeaker et le WisperListener, et l'analyse
+ * unique de WhisperCommand.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WhisperParseBenchmark {
+
+	@Param({"16", "256", "4096"})
+	public int textLength;
+
+	private String content;
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder("/bob ");
+		while (sb.length() < textLength + 5) {
+			sb.append("lorem ipsum ");
+		}
+		content = sb.substring(0, textLength + 5);
+	}
+
+	/** Extraction du texte, telle qu'elle était faite par le WisperListener. */
+	@Benchmark
+	public String parseText() {
+		return content.substring(content.split("/")[1].split(" ")[0].length() + 2);
+	}
+
+	/** Extraction du destinataire, telle qu'elle était faite par AWTChatGui et ChatActivity. */
+	@Benchmark
+	public String parseReceiver() {
+		return content.split("/")[1].split(" ")[0];
+	}
+
+	/** Analyse en une passe du destinataire et du texte, faite une seule fois par l'interface. */
+	@Benchmark
+	public WhisperCommand parseCommand() {
+		return WhisperCommand.parse(content);
+	}
+}
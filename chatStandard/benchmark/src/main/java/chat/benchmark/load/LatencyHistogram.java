@@ -0,0 +1,72 @@
+package chat.benchmark.load;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogramme de latences à buckets logarithmiques (16 sous-buckets par puissance de 2,
+ * soit une précision d'environ 6%). L'enregistrement est sans verrou ni allocation afin
+ * de pouvoir être appelé par des milliers d'agents en parallèle.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+	void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts.incrementAndGet(index(micros));
+	}
+
+	private static int index(long v) {
+		if (v < SUB_BUCKETS) {
+			return (int) v;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(v) - SUB_BUCKET_BITS;
+		int sub = (int) (v >>> exp) - SUB_BUCKETS;
+		return SUB_BUCKETS + exp * SUB_BUCKETS + sub;
+	}
+
+	// Valeur haute (en µs) du bucket donné
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exp = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << exp) - 1;
+	}
+
+	long count() {
+		long total = 0;
+		for (int i = 0; i < counts.length(); ++i) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Renvoie la latence (en µs) en dessous de laquelle se trouve la fraction q des mesures.
+	 */
+	long percentile(double q) {
+		long total = count();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(q * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length(); ++i) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(counts.length() - 1);
+	}
+
+	void reset() {
+		for (int i = 0; i < counts.length(); ++i) {
+			counts.set(i, 0);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package chat.benchmark.load;
+
+import chat.client.ChatGui;
+
+/**
+ * Interface sans affichage utilisée par les clients du générateur de charge. Elle mesure
+ * le délai de remise des messages, qui portent leur date d'envoi, et retient la taille
+ * de la dernière liste de participants reçue.
+ */
+class LoadChatGui implements ChatGui {
+	// Préfixe des messages générés : MARK + System.nanoTime() + MARK + texte
+	static final char MARK = '~';
+
+	private final String name;
+	private final LatencyHistogram latencies;
+	private volatile int rosterSize;
+
+	LoadChatGui(String name, LatencyHistogram latencies) {
+		this.name = name;
+		this.latencies = latencies;
+	}
+
+	int getRosterSize() {
+		return rosterSize;
+	}
+
+	static String stamp(String text) {
+		return MARK + Long.toString(System.nanoTime()) + MARK + text;
+	}
+
+	public void notifyParticipantsChanged(String[] names) {
+		rosterSize = names.length;
+	}
+
+	public void notifySpoken(String speaker, String sentence) {
+		// L'écho local des messages envoyés n'est pas une remise
+		if (!name.equals(speaker)) {
+			record(sentence);
+		}
+	}
+
+	public void notifyWisper(String speaker, String sentence) {
+		if (!name.equals(speaker)) {
+			record(sentence);
+		}
+	}
+
+	public void notifySearchResults(String[] lines, boolean more) {
+	}
+
+	private void record(String sentence) {
+		long now = System.nanoTime();
+		if (sentence == null || sentence.length() < 3 || sentence.charAt(0) != MARK) {
+			return;
+		}
+		int end = sentence.indexOf(MARK, 1);
+		if (end > 1) {
+			try {
+				latencies.record(now - Long.parseLong(sentence.substring(1, end)));
+			}
+			catch (NumberFormatException e) {
+				// Message ne provenant pas du générateur
+			}
+		}
+	}
+
+	public void dispose() {
+	}
+}
@@ -0,0 +1,177 @@
+package chat.benchmark.load;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.util.leap.Properties;
+import jade.wrapper.ContainerController;
+
+import chat.client.agent.ChatClientAgent;
+
+/**
+ * Générateur de charge sans interface graphique. Il démarre un conteneur principal avec
+ * le ChatManagerAgent, puis fait grossir le salon par paliers de clients ChatClientAgent
+ * munis d'une interface sans affichage. A chaque palier il mesure le temps de convergence
+ * des listes de participants, puis fait parler les clients pendant une durée donnée et
+ * affiche le débit et les percentiles du délai de remise des messages.
+ *
+ * Arguments (de la forme cle=valeur) :
+ * - clients : taille finale du salon (1000) ;
+ * - step : nombre de clients ajoutés à chaque palier (250) ;
+ * - joinRate : clients démarrés par seconde (200) ;
+ * - talkRate : messages envoyés par seconde sur l'ensemble du salon (50) ;
+ * - whisperRatio : proportion de messages privés parmi les messages envoyés (0.1) ;
+ * - duration : durée de la phase de discussion de chaque palier, en secondes (10) ;
+ * - port : port du conteneur principal (1099) ;
+ * - managerArgs : arguments du ChatManagerAgent, séparés par des virgules.
+ */
+public class LoadGenerator {
+
+	private static final long CONVERGENCE_TIMEOUT = 120000;
+
+	private final Properties config;
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final List<ChatClientAgent> agents = new ArrayList<ChatClientAgent>();
+	private final List<LoadChatGui> guis = new ArrayList<LoadChatGui>();
+	private final Random random = new Random(42);
+	private ContainerController container;
+
+	LoadGenerator(Properties config) {
+		this.config = config;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Properties config = new Properties();
+		for (int i = 0; i < args.length; ++i) {
+			int sep = args[i].indexOf('=');
+			if (sep > 0) {
+				config.setProperty(args[i].substring(0, sep), args[i].substring(sep + 1));
+			}
+		}
+		// Les traces de JADE fausseraient les mesures
+		LogManager.getLogManager().getLogger("").setLevel(Level.WARNING);
+		new LoadGenerator(config).run();
+		System.exit(0);
+	}
+
+	private int getInt(String key, int defaultValue) {
+		return Integer.parseInt(config.getProperty(key, String.valueOf(defaultValue)));
+	}
+
+	private double getDouble(String key, double defaultValue) {
+		return Double.parseDouble(config.getProperty(key, String.valueOf(defaultValue)));
+	}
+
+	void run() throws Exception {
+		int clients = getInt("clients", 1000);
+		int step = getInt("step", 250);
+
+		Runtime rt = Runtime.instance();
+		ProfileImpl p = new ProfileImpl();
+		p.setParameter(Profile.MAIN_PORT, String.valueOf(getInt("port", 1099)));
+		p.setParameter(Profile.GUI, "false");
+		container = rt.createMainContainer(p);
+
+		String managerArgs = config.getProperty("managerArgs", "");
+		Object[] margs = managerArgs.length() > 0 ? managerArgs.split(",") : null;
+		container.createNewAgent("manager", "chat.manager.ChatManagerAgent", margs).start();
+
+		System.out.println(String.format("%8s %14s %10s %12s %10s %10s %10s",
+				"room", "convergence", "sent/s", "delivered/s", "p50(us)", "p99(us)", "p999(us)"));
+		while (agents.size() < clients) {
+			int target = Math.min(clients, agents.size() + step);
+			long convergence = grow(target);
+			talk(convergence);
+		}
+		rt.shutDown();
+	}
+
+	/**
+	 * Démarre des clients jusqu'à atteindre la taille donnée et renvoie le temps (en ms)
+	 * écoulé avant que chaque client voie tous les autres, ou -1 en cas d'expiration.
+	 */
+	private long grow(int target) throws Exception {
+		long interval = 1000000000L / Math.max(1, getInt("joinRate", 200));
+		long start = System.nanoTime();
+		long next = start;
+		while (agents.size() < target) {
+			String name = "client" + agents.size();
+			LoadChatGui gui = new LoadChatGui(name, latencies);
+			ChatClientAgent agent = new ChatClientAgent();
+			agent.setArguments(new Object[] { gui });
+			container.acceptNewAgent(name, agent).start();
+			agents.add(agent);
+			guis.add(gui);
+			next += interval;
+			sleepUntil(next);
+		}
+		long deadline = System.currentTimeMillis() + CONVERGENCE_TIMEOUT;
+		while (!converged(target - 1)) {
+			if (System.currentTimeMillis() > deadline) {
+				return -1;
+			}
+			Thread.sleep(5);
+		}
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	private boolean converged(int expected) {
+		for (int i = 0; i < guis.size(); ++i) {
+			if (guis.get(i).getRosterSize() != expected) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Phase de discussion : des clients tirés au hasard parlent au salon ou à un autre
+	 * client au rythme demandé.
+	 */
+	private void talk(long convergence) throws Exception {
+		double talkRate = getDouble("talkRate", 50);
+		double whisperRatio = getDouble("whisperRatio", 0.1);
+		long duration = getInt("duration", 10) * 1000000000L;
+		long interval = (long) (1000000000L / Math.max(0.001, talkRate));
+
+		latencies.reset();
+		int sent = 0;
+		long start = System.nanoTime();
+		long next = start;
+		while (next - start < duration) {
+			ChatClientAgent speaker = agents.get(random.nextInt(agents.size()));
+			if (agents.size() > 1 && random.nextDouble() < whisperRatio) {
+				String target;
+				do {
+					target = agents.get(random.nextInt(agents.size())).getLocalName();
+				} while (target.equals(speaker.getLocalName()));
+				speaker.handleWisper(LoadChatGui.stamp("whisper"), target);
+			}
+			else {
+				speaker.handleSpoken(LoadChatGui.stamp("hello"));
+			}
+			sent++;
+			next += interval;
+			sleepUntil(next);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		// Laisse le temps aux derniers messages d'arriver
+		Thread.sleep(1000);
+		System.out.println(String.format("%8d %12dms %10.1f %12.1f %10d %10d %10d",
+				agents.size(), convergence, sent / seconds, latencies.count() / seconds,
+				latencies.percentile(0.50), latencies.percentile(0.99), latencies.percentile(0.999)));
+	}
+
+	private static void sleepUntil(long deadline) throws InterruptedException {
+		long delay = deadline - System.nanoTime();
+		if (delay > 0) {
+			Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+		}
+	}
+}
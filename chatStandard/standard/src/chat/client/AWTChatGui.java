@@ -6,9 +6,16 @@ import java.awt.event.*;
 import chat.client.agent.ChatClientAgent;
 
 public class AWTChatGui extends Frame implements ChatGui {
+    // Nombre de lignes conservées dans la zone de discussion
+    private static final int SCROLLBACK_LINES = 1000;
+    // Commande de recherche dans l'historique du chat, prioritaire sur un message privé
+    // au pseudo "search"
+    private static final String SEARCH_COMMAND = "/search";
+
     private ChatClientAgent myAgent;
     private TextField writeTf;
     private TextArea allTa;
+    private ScrollbackBuffer scrollback;
     private ParticipantsFrame participantsFrame;
 
     public AWTChatGui(ChatClientAgent a) {
@@ -26,12 +33,22 @@ public class AWTChatGui extends Frame implements ChatGui {
                 String s = writeTf.getText();
                 System.out.println("Action Performed. String : " + s);
                 if (s != null && !s.equals("")) {
-                    if(s.charAt(0) == "/".charAt(0)){
-                        System.out.println("Sending wisper to "+ s.split("/")[1].split(" ")[0]);
-                        myAgent.handleWisper(s, s.split("/")[1].split(" ")[0]);
-                        writeTf.setText("");
+                    WhisperCommand wisper = WhisperCommand.parse(s);
+                    boolean sent;
+                    if (s.equals(SEARCH_COMMAND) || s.startsWith(SEARCH_COMMAND + " ")) {
+                        // "/search mots" recherche dans l'historique, "/search" seul affiche
+                        // la page suivante
+                        String terms = s.substring(SEARCH_COMMAND.length()).trim();
+                        sent = terms.length() > 0 ? myAgent.handleSearch(terms, 0, Long.MAX_VALUE)
+                                : myAgent.handleSearchMore();
+                    } else if(wisper != null){
+                        System.out.println("Sending wisper to "+ wisper.getTo());
+                        sent = myAgent.handleWisper(wisper.getText(), wisper.getTo());
                     }else {
-                        myAgent.handleSpoken(s);
+                        sent = myAgent.handleSpoken(s);
+                    }
+                    // Un message non envoyé (débit dépassé) reste dans le champ de saisie
+                    if (sent) {
                         writeTf.setText("");
                     }
                 }
@@ -44,6 +61,7 @@ public class AWTChatGui extends Frame implements ChatGui {
         allTa.setEditable(false);
         allTa.setBackground(Color.white);
         add(allTa, BorderLayout.CENTER);
+        scrollback = new ScrollbackBuffer(allTa, SCROLLBACK_LINES);
 
         b = new Button("Participants");
         b.addActionListener(new ActionListener() {
@@ -73,11 +91,18 @@ public class AWTChatGui extends Frame implements ChatGui {
     }
 
     public void notifySpoken(String speaker, String sentence) {
-        allTa.append(speaker + ": " + sentence + "\n");
+        scrollback.append(speaker + ": " + sentence);
     }
 
     public void notifyWisper(String speaker, String sentence) {
-        allTa.append("[WISPER]" + speaker + ": " + sentence + "\n");
+        scrollback.append("[WISPER]" + speaker + ": " + sentence);
+    }
+
+    public void notifySearchResults(String[] lines, boolean more) {
+        scrollback.append("[SEARCH] " + lines.length + " result(s)" + (more ? ", \"" + SEARCH_COMMAND + "\" for more" : ""));
+        for (int i = 0; i < lines.length; ++i) {
+            scrollback.append("[SEARCH]" + lines[i]);
+        }
     }
 
 
@@ -89,6 +114,7 @@ public class AWTChatGui extends Frame implements ChatGui {
     }
 
     public void dispose() {
+        scrollback.dispose();
         participantsFrame.dispose();
         super.dispose();
     }
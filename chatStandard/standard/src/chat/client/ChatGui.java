@@ -4,5 +4,8 @@ public interface ChatGui {
 	void notifyParticipantsChanged(String[] names);
 	void notifySpoken(String speaker, String sentence);
 	void notifyWisper(String speaker, String sentence);
+	// Résultats d'une recherche dans l'historique, du plus récent au plus ancien ; more
+	// indique qu'une page suivante peut être demandée
+	void notifySearchResults(String[] lines, boolean more);
 	void dispose();
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+package chat.client;
+
+import java.awt.EventQueue;
+import java.awt.TextArea;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Historique borné des lignes affichées dans une TextArea.
+ *
+ * Les lignes sont ajoutées depuis le thread de l'agent dans un tampon circulaire, sans
+ * jamais attendre AWT. Un timer transmet les lignes en attente au thread AWT par lots, au
+ * plus FRAME_RATE fois par seconde. La TextArea peut dépasser la capacité de moitié avant
+ * d'être réécrite avec les dernières lignes, ce qui évite de la réécrire à chaque lot.
+ */
+class ScrollbackBuffer {
+    private static final int FRAME_RATE = 20;
+
+    private final TextArea textArea;
+    private final String[] lines;
+    // Position de la prochaine ligne dans le tampon circulaire et nombre de lignes conservées
+    private int next;
+    private int size;
+    // Lignes ajoutées depuis le dernier lot (au plus la capacité)
+    private int pending;
+    // Lignes actuellement présentes dans la TextArea
+    private int displayed;
+    private boolean flushQueued;
+    private final Timer timer;
+
+    private final Runnable flusher = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    ScrollbackBuffer(TextArea textArea, int capacity) {
+        this.textArea = textArea;
+        this.lines = new String[capacity];
+        timer = new Timer("scrollback", true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            public void run() {
+                synchronized (ScrollbackBuffer.this) {
+                    if (pending == 0 || flushQueued) {
+                        return;
+                    }
+                    flushQueued = true;
+                }
+                EventQueue.invokeLater(flusher);
+            }
+        }, 1000 / FRAME_RATE, 1000 / FRAME_RATE);
+    }
+
+    /**
+     * Ajoute une ligne. Peut être appelée depuis n'importe quel thread.
+     */
+    synchronized void append(String line) {
+        lines[next] = line;
+        next = (next + 1) % lines.length;
+        if (size < lines.length) {
+            size++;
+        }
+        if (pending < lines.length) {
+            pending++;
+        }
+    }
+
+    // Exécuté dans le thread AWT
+    private void flush() {
+        String text;
+        boolean replace;
+        synchronized (this) {
+            flushQueued = false;
+            if (pending == 0) {
+                return;
+            }
+            replace = displayed + pending > lines.length + lines.length / 2;
+            int count = replace ? size : pending;
+            StringBuilder sb = new StringBuilder(count * 32);
+            for (int i = count; i > 0; --i) {
+                sb.append(lines[(next - i + lines.length) % lines.length]).append('\n');
+            }
+            text = sb.toString();
+            displayed = replace ? size : displayed + pending;
+            pending = 0;
+        }
+        if (replace) {
+            textArea.setText(text);
+            textArea.setCaretPosition(text.length());
+        } else {
+            textArea.append(text);
+        }
+    }
+
+    void dispose() {
+        timer.cancel();
+    }
+}
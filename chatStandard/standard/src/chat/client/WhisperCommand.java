@@ -0,0 +1,37 @@
+package chat.client;
+
+/**
+ * Message privé saisi dans l'interface sous la forme "/pseudo texte". La ligne est analysée
+ * une seule fois, ici, avant d'être transmise à l'agent : le texte peut contenir des '/'.
+ */
+public final class WhisperCommand {
+    private final String to;
+    private final String text;
+
+    private WhisperCommand(String to, String text) {
+        this.to = to;
+        this.text = text;
+    }
+
+    /**
+     * Analyse une ligne saisie. Renvoie null si la ligne n'est pas un message privé.
+     */
+    public static WhisperCommand parse(String line) {
+        if (line == null || line.length() < 2 || line.charAt(0) != '/') {
+            return null;
+        }
+        int space = line.indexOf(' ', 1);
+        if (space < 0) {
+            return new WhisperCommand(line.substring(1), "");
+        }
+        return new WhisperCommand(line.substring(1, space), line.substring(space + 1));
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
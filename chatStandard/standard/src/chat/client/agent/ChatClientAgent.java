@@ -10,28 +10,52 @@ import jade.content.onto.BasicOntology;
 import jade.content.onto.Ontology;
 import jade.core.AID;
 import jade.core.Agent;
-import jade.core.behaviours.CyclicBehaviour;
 import jade.core.behaviours.OneShotBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+import jade.domain.DFSubscriber;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
 import jade.util.Logger;
 import jade.util.leap.Iterator;
-import jade.util.leap.Set;
-import jade.util.leap.SortedSetImpl;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import chat.client.ChatGui;
+import chat.compression.TextCompressor;
+import chat.history.HistoryBatch;
+import chat.metrics.Gauge;
+import chat.metrics.Histogram;
+import chat.metrics.Metrics;
+import chat.metrics.MetricsServer;
 /*#MIDP_INCLUDE_BEGIN
 import chat.client.MIDPChatGui;
 #MIDP_INCLUDE_END*/
 //#MIDP_EXCLUDE_BEGIN
 import chat.client.AWTChatGui;
 //#MIDP_EXCLUDE_END
+import chat.ontology.BinaryChatCodec;
 import chat.ontology.ChatOntology;
+import chat.ontology.Throttled;
+import chat.ontology.Whispered;
+import chat.ratelimit.RateLimiter;
+import chat.shard.ShardRing;
 
 /**
  * Le ChatClientAgent est l'agent permettant de rejoindre le chat et envoyer des messages
  * a tous ou des messages privés. Il est le même que celui pour le terminal android, à
  * la différence qu'il utilise une interface graphique différentes pour pouvoir être
  * utilisé sur un ordinateur.
+ *
+ * Les textes longs sont envoyés compressés (voir TextCompressor) au manager s'il a annoncé
+ * les accepter, et en message privé aux participants dont on a reçu l'annonce dans un
+ * message privé.
  */
 
 public class ChatClientAgent extends Agent {
@@ -41,193 +65,730 @@ public class ChatClientAgent extends Agent {
 
     private static final String CHAT_ID = "__chat__";
     private static final String CHAT_MANAGER_NAME = "manager";
+    private static final String HISTORY_ID = "__history__";
+    private static final String OFFSET = "chat-offset";
+    // Paramètre d'une notification contenant la liste complète des participants
+    private static final String SNAPSHOT = "chat-snapshot";
+    private static final String HEARTBEAT_ID = "__heartbeat__";
+    // Paramètre du SUBSCRIBE annonçant l'intervalle de nos battements de coeur
+    private static final String HEARTBEAT = "chat-heartbeat";
+    // Paramètres des messages du chat général numérotés par le manager
+    private static final String SEQ = "chat-seq";
+    private static final String STREAM = "chat-stream";
+    // Paramètre du SUBSCRIBE annonçant que l'on gère les numéros de séquence
+    private static final String SEQUENCED = "chat-sequenced";
+    // Conversation des messages privés confiés au manager pour un participant absent
+    private static final String MAILBOX_ID = "__mailbox__";
+    // Paramètre du SUBSCRIBE annonçant que l'on accepte les messages privés en attente par lot
+    private static final String MAILBOX = "chat-mailbox";
+    // Paramètres des notifications de présence (démarrage du manager et version de la liste
+    // des participants) rappelés dans le SUBSCRIBE pour reprendre la session
+    private static final String SESSION = "chat-session";
+    private static final String ROSTER_VERSION = "chat-roster-version";
+    // Conversation des recherches dans l'historique et paramètres de la requête (période
+    // en ms depuis l'epoch, page suivant un offset) et de la réponse (offset de la page suivante)
+    private static final String SEARCH_ID = "__search__";
+    private static final String FROM_TIME = "chat-from-time";
+    private static final String TO_TIME = "chat-to-time";
+    private static final String BEFORE = "chat-before";
+    private static final String NEXT = "chat-next";
+    // Délai en ms avant de redemander des messages manquants, nombre de demandes avant de
+    // les considérer comme perdus et nombre de messages conservés en attente d'un trou
+    private static final long NACK_TIMEOUT = 2000;
+    private static final int MAX_NACKS = 3;
+    private static final int MAX_PENDING = 1000;
+    // Nombre de messages traités à la suite avant de rendre la main aux autres behaviours
+    private static final int DISPATCH_BURST = 50;
+    // Nombre de messages de l'historique affichés en rejoignant le chat
+    private static final int HISTORY_SIZE = 20;
+    // Débit d'envoi autorisé par destination (le chat général ou le destinataire d'un
+    // message privé) et pour l'ensemble des envois, en messages par seconde et en rafale.
+    // Les limites du chat général correspondent à celles appliquées par défaut par le manager.
+    private static final int SEND_RATE = 5;
+    private static final int SEND_BURST = 20;
+    private static final int TOTAL_SEND_RATE = 10;
+    private static final int TOTAL_SEND_BURST = 40;
 
     private ChatGui gui;
-    private Set participants = new SortedSetImpl();
+    private ParticipantRegistry participants = new ParticipantRegistry();
     private Codec codec = new SLCodec();
+    private Codec binaryCodec = new BinaryChatCodec();
     private Ontology ontology = ChatOntology.getInstance();
     private ACLMessage spokenMsg;
+    private ParticipantsManager participantsManager;
+    // Manager auquel l'agent est inscrit, choisi par hachage cohérent du pseudo
+    private AID manager;
+    private ShardRing ring = new ShardRing();
+    // Offset du premier message reçu en direct : les messages suivants de l'historique
+    // ont déjà été affichés
+    private long firstLiveOffset = -1;
+    // Limitation du débit d'envoi, par destination (CHAT_ID ou AID du destinataire)
+    private RateLimiter<Object> sendLimiter = new RateLimiter<Object>(SEND_RATE, SEND_BURST, TOTAL_SEND_RATE, TOTAL_SEND_BURST);
+    // Instant (System.currentTimeMillis()) avant lequel le manager refusera nos messages
+    private volatile long chatRefusedUntil;
+    // Intervalle en ms des battements de coeur envoyés au manager (0 pour ne pas en envoyer)
+    private long heartbeatInterval;
+    // Vrai si le manager accepte les messages compressés
+    private boolean managerAcceptsCompression;
+    // Participants ayant annoncé accepter les messages privés compressés
+    private Set<AID> compressionPeers = new HashSet<AID>();
+    // Remise dans l'ordre des messages du chat général et détection des messages manquants
+    private ChatSequencer sequencer = new ChatSequencer(MAX_PENDING, NACK_TIMEOUT, MAX_NACKS);
+    // Session auprès du manager et dernière version reçue de la liste des participants
+    private String session;
+    private long rosterVersion = -1;
+    // Dernière recherche envoyée et offset de sa page suivante (-1 s'il n'y en a pas)
+    private ACLMessage lastSearch;
+    private volatile long searchNext = -1;
+
+    private Metrics metrics;
+    private AtomicLong presenceReceived;
+    private AtomicLong chatReceived;
+    private AtomicLong wisperReceived;
+    private AtomicLong historyReceived;
+    private AtomicLong unexpectedReceived;
+    private AtomicLong throttled;
+    private AtomicLong refusedByManager;
+    private AtomicLong compressedSent;
+    private AtomicLong compressionSavedBytes;
+    private AtomicLong retransmitRequests;
+    private Histogram guiNotifyTime;
 
     protected void setup() {
+        initMetrics();
 
         // Définition du langage et de l'ontology
         ContentManager cm = getContentManager();
         cm.registerLanguage(codec);
+        cm.registerLanguage(binaryCodec);
         cm.registerOntology(ontology);
         cm.setValidationMode(false);
 
-        // Ajout des behaviours de départ
-        addBehaviour(new ParticipantsManager(this));
-        addBehaviour(new ChatListener(this));
-        addBehaviour(new WisperListener(this));
-
-        // Initialisation du message utilisé pour chatter
+        // Initialisation du message utilisé pour chatter. Il n'est adressé qu'au ChatManager
+        // qui le relaie à tous les participants ; le destinataire est fixé lors de l'inscription.
         spokenMsg = new ACLMessage(ACLMessage.INFORM);
         spokenMsg.setConversationId(CHAT_ID);
 
-        // Activation de l'interface graphique
-        //#MIDP_EXCLUDE_BEGIN
-        gui = new AWTChatGui(this);
-        //#MIDP_EXCLUDE_END
+        // Ajout des behaviours de départ. Les messages reçus sont confiés, selon leur
+        // conversation, au traitement correspondant par un unique behaviour.
+        participantsManager = new ParticipantsManager();
+        MessageDispatcher dispatcher = new MessageDispatcher(this, DISPATCH_BURST);
+        dispatcher.register("C-" + getLocalName(), participantsManager);
+        dispatcher.register(CHAT_ID, new ChatListener());
+        dispatcher.register(getLocalName(), new WisperListener());
+        dispatcher.register(HISTORY_ID, new HistoryListener());
+        dispatcher.register(MAILBOX_ID, new MailboxListener());
+        dispatcher.register(SEARCH_ID, new SearchListener());
+        addBehaviour(dispatcher);
+        addBehaviour(new ManagerLocator(this));
+        addBehaviour(new GapChecker(this, NACK_TIMEOUT / 4));
+        // Battements de coeur permettant au manager de retirer l'agent s'il ne répond plus
+        heartbeatInterval = Long.parseLong(getStringArgument("heartbeat", "10000").trim());
+        if (heartbeatInterval > 0) {
+            addBehaviour(new HeartbeatSender(this, heartbeatInterval));
+        }
+
+        // Activation de l'interface graphique. Une interface peut être fournie en argument,
+        // par exemple une interface sans affichage pour les tests de charge.
+        Object[] args = getArguments();
+        if (args != null && args.length > 0 && args[0] instanceof ChatGui) {
+            gui = (ChatGui) args[0];
+        } else {
+            //#MIDP_EXCLUDE_BEGIN
+            gui = new AWTChatGui(this);
+            //#MIDP_EXCLUDE_END
+
+		    /*#MIDP_INCLUDE_BEGIN
+            gui = new MIDPChatGui(this);
+		    #MIDP_INCLUDE_END*/
+        }
+    }
 
-		/*#MIDP_INCLUDE_BEGIN
-        gui = new MIDPChatGui(this);
-		#MIDP_INCLUDE_END*/
+    /**
+     * Métriques de l'agent, publiées par JMX et, si l'argument metricsPort=PORT est
+     * donné, servies en texte sur ce port local.
+     */
+    private void initMetrics() {
+        metrics = new Metrics("chat_client", "ChatClientAgent", getLocalName());
+        presenceReceived = metrics.counter("presence_received_total", "Presence notifications received from the manager");
+        chatReceived = metrics.counter("chat_received_total", "Public chat messages received");
+        wisperReceived = metrics.counter("wisper_received_total", "Private messages received");
+        historyReceived = metrics.counter("history_received_total", "History batches received");
+        unexpectedReceived = metrics.counter("unexpected_received_total", "Unexpected messages received");
+        throttled = metrics.counter("throttled_total", "Messages not sent because of the send rate limit");
+        refusedByManager = metrics.counter("refused_total", "Chat messages refused by the manager because of its rate limit");
+        compressedSent = metrics.counter("compressed_sent_total", "Messages sent with compressed content");
+        compressionSavedBytes = metrics.counter("compression_saved_bytes_total", "Content bytes saved by compressing sent messages");
+        retransmitRequests = metrics.counter("retransmit_requests_total", "Retransmissions of missed chat messages requested from the manager");
+        metrics.gauge("chat_lost", "Public chat messages missed and no longer available", new Gauge() {
+            public long getValue() {
+                return sequencer.getLost();
+            }
+        });
+        metrics.gauge("chat_duplicates", "Public chat messages received twice", new Gauge() {
+            public long getValue() {
+                return sequencer.getDuplicates();
+            }
+        });
+        guiNotifyTime = metrics.histogram("gui_notify_micros", "Time spent notifying the GUI, in microseconds");
+        metrics.register();
+        String port = getStringArgument("metricsPort", null);
+        if (port != null) {
+            MetricsServer.start(Integer.parseInt(port.trim()));
+        }
+    }
+
+    /**
+     * Lit un argument de la forme cle=valeur passé à l'agent.
+     */
+    private String getStringArgument(String key, String defaultValue) {
+        Object[] args = getArguments();
+        if (args != null) {
+            for (int i = 0; i < args.length; ++i) {
+                String arg = String.valueOf(args[i]);
+                if (arg.startsWith(key + "=")) {
+                    return arg.substring(key.length() + 1);
+                }
+            }
+        }
+        return defaultValue;
     }
 
     protected void takeDown() {
         if (gui != null) {
             gui.dispose();
         }
+        metrics.unregister();
     }
 
     // Notifie les changements de la liste des participants
     private void notifyParticipantsChanged() {
+        long start = System.nanoTime();
         gui.notifyParticipantsChanged(getParticipantLocalNames());
+        guiNotifyTime.recordSince(start);
     }
 
     // Notifie l'arrivé/l'envoi d'un message sur le chat général
     private void notifySpoken(String speaker, String sentence) {
+        long start = System.nanoTime();
         gui.notifySpoken(speaker, sentence);
+        guiNotifyTime.recordSince(start);
     }
 
     // Notifie l'arrivé/l'envoi d'un message privé
     private void notifyWisper(String speaker, String sentence) {
+        long start = System.nanoTime();
         gui.notifyWisper(speaker, sentence);
+        guiNotifyTime.recordSince(start);
     }
 
     /**
-     * Cyclic behavior permettant de s'enregistrer comme participant au chat
+     * Traitement permettant de s'enregistrer comme participant au chat
      * et permet de garder la liste des partcicipants à jour en traitant les informations
-     * reçues de l'agent ChatManager (sur le "serveur")
+     * reçues de l'agent ChatManager (sur le "serveur"). L'inscription est faite dès que le
+     * ManagerLocator a choisi le manager.
      */
-    class ParticipantsManager extends CyclicBehaviour {
+    class ParticipantsManager implements MessageDispatcher.Handler {
         private static final long serialVersionUID = -4845730529175649756L;
-        private MessageTemplate template;
+        private Codec subscriptionLanguage;
+        // Nombre d'inscriptions envoyées, rappelé dans les battements de coeur
+        private int subscriptionCount;
+        // Vrai lorsque les derniers messages du chat général ont été demandés au premier
+        // manager
+        private boolean historyRequested;
 
-        ParticipantsManager(Agent a) {
-            super(a);
+        /**
+         * Inscription comme participant au chat auprès d'un ChatManager (sur le "serveur")
+         * en proposant d'abord le codec binaire. L'éventuelle inscription auprès de
+         * l'ancien manager est annulée.
+         */
+        void switchManager(AID newManager) {
+            if (manager != null) {
+                ACLMessage cancel = createMessage(ACLMessage.CANCEL, subscriptionLanguage);
+                send(cancel);
+                // Le nouveau manager envoie la liste complète des participants
+                participants.clear();
+                session = null;
+                rosterVersion = -1;
+            }
+            manager = newManager;
+            managerAcceptsCompression = false;
+            spokenMsg.clearAllReceiver();
+            spokenMsg.addReceiver(manager);
+            subscribe(binaryCodec);
+        }
+
+        /**
+         * Demande au manager les derniers messages du chat général, une fois inscrit : le
+         * manager ne répond qu'aux participants présents. Les messages reçus depuis
+         * l'inscription ne sont pas affichés deux fois (voir HistoryListener).
+         */
+        private void requestHistory() {
+            historyRequested = true;
+            ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+            request.setConversationId(HISTORY_ID);
+            request.setContent("last " + HISTORY_SIZE);
+            request.addReceiver(manager);
+            send(request);
         }
 
-        public void onStart() {
-            // Inscription comme participant au chat auprès du ChatManager (sur le "serveur")
-            // Création du message de subscribe
-            ACLMessage subscription = new ACLMessage(ACLMessage.SUBSCRIBE);
-            subscription.setLanguage(codec.getName());
-            subscription.setOntology(ontology.getName());
-            String convId = "C-" + myAgent.getLocalName();
-            subscription.setConversationId(convId);
-            subscription.addReceiver(new AID(CHAT_MANAGER_NAME, AID.ISLOCALNAME));
-            myAgent.send(subscription);
+        // Création et envoi du message de subscribe dans le langage donné
+        private void subscribe(Codec language) {
+            subscriptionLanguage = language;
+            subscriptionCount++;
+            ACLMessage subscription = createMessage(ACLMessage.SUBSCRIBE, language);
+            if (heartbeatInterval > 0) {
+                subscription.addUserDefinedParameter(HEARTBEAT, String.valueOf(heartbeatInterval));
+            }
+            subscription.addUserDefinedParameter(TextCompressor.ACCEPT, TextCompressor.SCHEME);
+            subscription.addUserDefinedParameter(SEQUENCED, "true");
+            subscription.addUserDefinedParameter(MAILBOX, "true");
+            if (session != null) {
+                // Reprise de session : le manager n'envoie que les changements de la liste
+                // et les messages du chat général manqués
+                subscription.addUserDefinedParameter(SESSION, session);
+                subscription.addUserDefinedParameter(ROSTER_VERSION, String.valueOf(rosterVersion));
+                if (sequencer.getStream() != null) {
+                    subscription.addUserDefinedParameter(SEQ, String.valueOf(sequencer.getLast()));
+                    subscription.addUserDefinedParameter(STREAM, sequencer.getStream());
+                }
+            }
+            send(subscription);
+        }
 
-            // Initialise le modèle de message utilisé pour recevoir les notifications du ChatManager
-            template = MessageTemplate.MatchConversationId(convId);
+        /**
+         * Nouvelle inscription auprès du même manager, qui nous a désinscrit (nous ne
+         * suivions plus ou notre bail a expiré) : il renverra les changements depuis la
+         * dernière version reçue, ou la liste complète s'il ne la connait plus. La liste
+         * affichée est conservée jusque là.
+         */
+        void resubscribe() {
+            subscribe(subscriptionLanguage);
         }
 
-        public void action() {
+        private ACLMessage createMessage(int performative, Codec language) {
+            ACLMessage msg = new ACLMessage(performative);
+            msg.setLanguage(language.getName());
+            msg.setOntology(ontology.getName());
+            msg.setConversationId("C-" + getLocalName());
+            msg.addReceiver(manager);
+            return msg;
+        }
+
+        public void handle(ACLMessage msg) {
             // Reception des information envoyée par le ChatManagerAgent sur l'arrivée ou le
             // départ de clients sur le chat
-            ACLMessage msg = myAgent.receive(template);
-            if (msg != null) {
-                if (msg.getPerformative() == ACLMessage.INFORM) {
-                    try {
-                        AbsPredicate p = (AbsPredicate) myAgent.getContentManager().extractAbsContent(msg);
-                        if (p.getTypeName().equals(ChatOntology.JOINED)) {
-                            // Notifie l'interface graphique de l'arrivée d'un client
-                            AbsAggregate agg = (AbsAggregate) p.getAbsTerm(ChatOntology.JOINED_WHO);
-                            if (agg != null) {
-                                Iterator it = agg.iterator();
-                                while (it.hasNext()) {
-                                    AbsConcept c = (AbsConcept) it.next();
-                                    participants.add(BasicOntology.getInstance().toObject(c));
+            if (!msg.getSender().equals(manager)) {
+                // Notification tardive d'un manager auquel on n'est plus inscrit
+                return;
+            }
+            if (msg.getPerformative() == ACLMessage.INFORM) {
+                presenceReceived.incrementAndGet();
+                try {
+                    AbsPredicate p = (AbsPredicate) getContentManager().extractAbsContent(msg);
+                    if (msg.getUserDefinedParameter(SNAPSHOT) != null) {
+                        // La liste reçue remplace celle que l'on connaissait
+                        participants.clear();
+                        managerAcceptsCompression = TextCompressor.accepts(msg);
+                        if (!historyRequested) {
+                            requestHistory();
+                        }
+                    }
+                    if (p.getTypeName().equals(ChatOntology.JOINED)) {
+                        // Notifie l'interface graphique de l'arrivée d'un client
+                        AbsAggregate agg = (AbsAggregate) p.getAbsTerm(ChatOntology.JOINED_WHO);
+                        if (agg != null) {
+                            Iterator it = agg.iterator();
+                            while (it.hasNext()) {
+                                AbsConcept c = (AbsConcept) it.next();
+                                AID id = (AID) BasicOntology.getInstance().toObject(c);
+                                // Les nouveaux arrivants reçoivent la liste complète, qui nous inclut
+                                if (!id.equals(getAID())) {
+                                    participants.add(id);
                                 }
                             }
-                            notifyParticipantsChanged();
                         }
-                        if (p.getTypeName().equals(ChatOntology.LEFT)) {
-                            // Notifie l'interface graphique du départ d'un client
-                            AbsAggregate agg = (AbsAggregate) p.getAbsTerm(ChatOntology.JOINED_WHO);
-                            if (agg != null) {
-                                Iterator it = agg.iterator();
-                                while (it.hasNext()) {
-                                    AbsConcept c = (AbsConcept) it.next();
-                                    participants.remove(BasicOntology.getInstance().toObject(c));
-                                }
+                        notifyParticipantsChanged();
+                    }
+                    if (p.getTypeName().equals(ChatOntology.LEFT)) {
+                        // Notifie l'interface graphique du départ d'un client
+                        AbsAggregate agg = (AbsAggregate) p.getAbsTerm(ChatOntology.JOINED_WHO);
+                        if (agg != null) {
+                            Iterator it = agg.iterator();
+                            while (it.hasNext()) {
+                                AbsConcept c = (AbsConcept) it.next();
+                                AID id = (AID) BasicOntology.getInstance().toObject(c);
+                                participants.remove(id);
+                                sendLimiter.forget(id);
+                                compressionPeers.remove(id);
                             }
-                            notifyParticipantsChanged();
                         }
-                    } catch (Exception e) {
-                        Logger.println(e.toString());
-                        e.printStackTrace();
+                        notifyParticipantsChanged();
                     }
-                } else {
-                    handleUnexpected(msg);
+                    String version = msg.getUserDefinedParameter(ROSTER_VERSION);
+                    if (version != null) {
+                        session = msg.getUserDefinedParameter(SESSION);
+                        rosterVersion = Long.parseLong(version);
+                    }
+                } catch (Exception e) {
+                    Logger.println(e.toString());
+                    e.printStackTrace();
                 }
+            } else if (msg.getPerformative() == ACLMessage.REFUSE && subscriptionLanguage == binaryCodec) {
+                // Le ChatManager ne connait pas le codec binaire : on se réinscrit en SL
+                subscribe(codec);
+            } else if (msg.getPerformative() == ACLMessage.FAILURE) {
+                // Le manager nous a désinscrit car nous ne suivions plus
+                resubscribe();
             } else {
-                block();
+                handleUnexpected(msg);
             }
         }
     }
 
     /**
-     * Cyclic behavior permettant d'écouter et recevoir les messages envoyés
-     * sur la conversation générale.
+     * Behaviour suivant, via le DF, les ChatManagerAgent disponibles. Le manager de l'agent
+     * est choisi par hachage cohérent du pseudo et change lorsqu'un manager est ajouté ou
+     * retiré. Sans manager enregistré, on utilise le manager historique "manager".
      */
-    class ChatListener extends CyclicBehaviour {
-        private static final long serialVersionUID = 741233963737842521L;
+    class ManagerLocator extends DFSubscriber {
+        private static final long serialVersionUID = 3320937459125603713L;
+        private boolean initialized = false;
 
-        // Initialisation du modèle de message à recevoir
-        private MessageTemplate template = MessageTemplate.MatchConversationId(CHAT_ID);
+        ManagerLocator(Agent a) {
+            super(a, createTemplate());
+        }
 
-        ChatListener(Agent a) {
-            super(a);
+        public void onRegister(DFAgentDescription dfd) {
+            ring.add(dfd.getName());
+            if (initialized) {
+                updateManager();
+            }
         }
 
-        public void action() {
+        public void onDeregister(DFAgentDescription dfd) {
+            ring.remove(dfd.getName());
+            if (initialized) {
+                updateManager();
+            }
+        }
+
+        public void afterFirstNotification(DFAgentDescription[] dfds) {
+            initialized = true;
+            updateManager();
+        }
+
+        private void updateManager() {
+            AID target = ring.getShard(myAgent.getLocalName());
+            if (target == null) {
+                target = new AID(CHAT_MANAGER_NAME, AID.ISLOCALNAME);
+            }
+            if (!target.equals(manager)) {
+                participantsManager.switchManager(target);
+            }
+        }
+    }
+
+    /**
+     * Ticker behaviour envoyant un battement de coeur au manager. Si le manager répond que
+     * nous ne sommes plus inscrits (bail expiré), on se réinscrit ; les réponses aux
+     * battements envoyés avant la dernière inscription sont ignorées. Le battement rappelle
+     * le dernier message numéroté reçu : le manager répond avec son dernier numéro si nous
+     * avons manqué les derniers messages.
+     */
+    class HeartbeatSender extends TickerBehaviour {
+        private static final long serialVersionUID = 5301967263471182453L;
+        private MessageTemplate template = MessageTemplate.MatchConversationId(HEARTBEAT_ID);
+
+        HeartbeatSender(Agent a, long period) {
+            super(a, period);
+        }
+
+        protected void onTick() {
+            boolean resubscribed = false;
+            ACLMessage reply = myAgent.receive(template);
+            while (reply != null) {
+                if (!resubscribed && reply.getPerformative() == ACLMessage.FAILURE && reply.getSender().equals(manager)
+                        && String.valueOf(participantsManager.subscriptionCount).equals(reply.getInReplyTo())) {
+                    participantsManager.resubscribe();
+                    resubscribed = true;
+                } else if (reply.getPerformative() == ACLMessage.INFORM && reply.getUserDefinedParameter(SEQ) != null) {
+                    // Nous avons manqué les derniers messages du chat général
+                    try {
+                        sequencer.hint(reply.getUserDefinedParameter(STREAM), Long.parseLong(reply.getUserDefinedParameter(SEQ)));
+                        requestMissing();
+                    } catch (NumberFormatException e) {
+                        handleUnexpected(reply);
+                    }
+                }
+                reply = myAgent.receive(template);
+            }
+            // Le manager peut traiter un battement avant l'inscription qui le précède : on
+            // attend le prochain tour pour ne pas recevoir un FAILURE injustifié
+            if (manager != null && !resubscribed) {
+                ACLMessage heartbeat = new ACLMessage(ACLMessage.INFORM);
+                heartbeat.setConversationId(HEARTBEAT_ID);
+                heartbeat.addReceiver(manager);
+                heartbeat.setReplyWith(String.valueOf(participantsManager.subscriptionCount));
+                if (sequencer.getStream() != null) {
+                    heartbeat.addUserDefinedParameter(SEQ, String.valueOf(sequencer.getLast()));
+                    heartbeat.addUserDefinedParameter(STREAM, sequencer.getStream());
+                }
+                myAgent.send(heartbeat);
+            }
+        }
+    }
+
+    private static DFAgentDescription createTemplate() {
+        DFAgentDescription template = new DFAgentDescription();
+        ServiceDescription sd = new ServiceDescription();
+        sd.setType(ShardRing.SERVICE_TYPE);
+        template.addServices(sd);
+        return template;
+    }
+
+    /**
+     * Traitement des messages envoyés sur la conversation générale.
+     */
+    class ChatListener implements MessageDispatcher.Handler {
+        private static final long serialVersionUID = 741233963737842521L;
+
+        public void handle(ACLMessage msg) {
             // Récéption du message
-            ACLMessage msg = myAgent.receive(template);
-            if (msg != null) {
-                if (msg.getPerformative() == ACLMessage.INFORM) {
-                    // Notifie que quelqu'un à envoyé un message sur le chat
-                    notifySpoken(msg.getSender().getLocalName(), msg.getContent());
+            if (msg.getPerformative() == ACLMessage.INFORM) {
+                chatReceived.incrementAndGet();
+                String seq = msg.getUserDefinedParameter(SEQ);
+                String stream = msg.getUserDefinedParameter(STREAM);
+                if (seq != null && stream != null) {
+                    // Message numéroté : remis dans l'ordre, les doublons sont ignorés
+                    try {
+                        deliver(sequencer.received(stream, Long.parseLong(seq), msg));
+                    } catch (NumberFormatException e) {
+                        handleUnexpected(msg);
+                    }
+                    requestMissing();
                 } else {
+                    deliver(msg);
+                }
+            } else if (msg.getPerformative() == ACLMessage.FAILURE && msg.getUserDefinedParameter(STREAM) != null) {
+                // Les messages redemandés ne sont plus disponibles avant le numéro indiqué
+                try {
+                    deliver(sequencer.unavailable(msg.getUserDefinedParameter(STREAM), Long.parseLong(msg.getContent().trim())));
+                } catch (NumberFormatException e) {
+                    handleUnexpected(msg);
+                }
+            } else if (msg.getPerformative() == ACLMessage.REFUSE) {
+                // Message refusé par le manager faute de débit : on attend le délai indiqué
+                refusedByManager.incrementAndGet();
+                try {
+                    Throttled t = (Throttled) getContentManager().extractContent(msg);
+                    chatRefusedUntil = System.currentTimeMillis() + t.getRetryAfter();
+                    logger.log(Logger.WARNING, "Chat message refused (" + t.getScope()
+                            + " rate limit), retry after " + t.getRetryAfter() + " ms");
+                } catch (Exception e) {
                     handleUnexpected(msg);
                 }
             } else {
-                block();
+                handleUnexpected(msg);
             }
         }
     }
 
+    private void deliver(List<ACLMessage> msgs) {
+        for (int i = 0; i < msgs.size(); ++i) {
+            deliver(msgs.get(i));
+        }
+    }
+
+    // Affiche un message du chat général ; nos propres messages, renvoyés par le manager
+    // pour compléter la suite numérotée, ont déjà été affichés à l'envoi
+    private void deliver(ACLMessage msg) {
+        String offset = msg.getUserDefinedParameter(OFFSET);
+        if (firstLiveOffset < 0 && offset != null) {
+            firstLiveOffset = Long.parseLong(offset);
+        }
+        if (msg.getSender().equals(getAID())) {
+            return;
+        }
+        // Notifie que quelqu'un à envoyé un message sur le chat
+        try {
+            notifySpoken(msg.getSender().getLocalName(), TextCompressor.getText(msg));
+        } catch (IOException e) {
+            handleUnexpected(msg);
+        }
+    }
+
     /**
-     * Cyclic Behaviour permettant d'écouter et de recevoir les messages privés qui sont envoyés
-     * à l'agent possèdant ce comportement.
+     * Redemande au manager les messages du chat général manquants, si nécessaire.
      */
-    class WisperListener extends CyclicBehaviour {
-        private static final long serialVersionUID = 141233954622842564L;
-        private String conversationId;
+    private void requestMissing() {
+        long[] missing = sequencer.getMissing(System.currentTimeMillis());
+        if (missing != null && manager != null) {
+            retransmitRequests.incrementAndGet();
+            ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+            request.setConversationId(CHAT_ID);
+            request.setContent(missing[0] + " " + missing[1]);
+            request.addUserDefinedParameter(STREAM, sequencer.getStream());
+            request.addReceiver(manager);
+            send(request);
+        }
+    }
 
-        private MessageTemplate wisperTemplate;
+    /**
+     * Ticker behaviour redemandant les messages du chat général toujours manquants et
+     * abandonnant ceux redemandés sans succès, afin d'afficher les messages suivants.
+     */
+    class GapChecker extends TickerBehaviour {
+        private static final long serialVersionUID = -7310526418872014575L;
 
-        WisperListener(Agent a) {
-            super(a);
-            // Initialisation du modèle de messasge à recevoir
-            this.conversationId = a.getLocalName();
-            this.wisperTemplate = MessageTemplate.MatchConversationId(conversationId);
+        GapChecker(Agent a, long period) {
+            super(a, period);
         }
-        public void action() {
-            // Récéption du message
-            ACLMessage msg = myAgent.receive(wisperTemplate);
-            if (msg != null) {
-                if (msg.getPerformative() == ACLMessage.INFORM) {
-                    // On notifie l'interface qu'un message privé à été reçu
-                    notifyWisper(msg.getSender().getLocalName(), msg.getContent().substring(msg.getContent().split("/")[1].split(" ")[0].length()+2));
-                } else {
+
+        protected void onTick() {
+            deliver(sequencer.expire(System.currentTimeMillis()));
+            requestMissing();
+        }
+    }
+
+    /**
+     * Traitement recevant, en un seul lot à l'inscription, les messages privés reçus par
+     * le manager pendant notre absence, ainsi que les refus des messages confiés au manager
+     * pour un participant absent.
+     */
+    class MailboxListener implements MessageDispatcher.Handler, HistoryBatch.Handler {
+        private static final long serialVersionUID = 6058214773902146389L;
+
+        public void handle(ACLMessage msg) {
+            if (msg.getPerformative() == ACLMessage.INFORM && msg.hasByteSequenceContent()) {
+                HistoryBatch.parse(msg.getByteSequenceContent(), this);
+            } else if (msg.getPerformative() == ACLMessage.FAILURE) {
+                logger.log(Logger.WARNING, "Private message to " + msg.getContent()
+                        + " not kept by the manager: mailbox full or unknown participant");
+            } else if (msg.getPerformative() == ACLMessage.REFUSE) {
+                // Dépôt refusé faute de débit, comme un message du chat général
+                try {
+                    Throttled t = (Throttled) getContentManager().extractContent(msg);
+                    logger.log(Logger.WARNING, "Private message not kept by the manager ("
+                            + t.getScope() + " rate limit), retry after " + t.getRetryAfter() + " ms");
+                } catch (Exception e) {
                     handleUnexpected(msg);
                 }
             } else {
-                block();
+                handleUnexpected(msg);
+            }
+        }
+
+        public void onMessage(long offset, long time, String sender, String text) {
+            wisperReceived.incrementAndGet();
+            notifyWisper(new AID(sender, AID.ISGUID).getLocalName(), text);
+        }
+    }
+
+    /**
+     * Traitement recevant les lots de l'historique du chat général envoyés par le
+     * ChatManager et les affichant comme des messages du chat.
+     */
+    class HistoryListener implements MessageDispatcher.Handler, HistoryBatch.Handler {
+        private static final long serialVersionUID = -2951770384125593127L;
+
+        public void handle(ACLMessage msg) {
+            if (msg.getPerformative() == ACLMessage.INFORM) {
+                historyReceived.incrementAndGet();
+                HistoryBatch.parse(msg.getByteSequenceContent(), this);
+            } else if (msg.getPerformative() != ACLMessage.FAILURE) {
+                // Un FAILURE, ignoré, indique que le manager ne conserve pas d'historique
+                handleUnexpected(msg);
+            }
+        }
+
+        public void onMessage(long offset, long time, String sender, String text) {
+            if (firstLiveOffset < 0 || offset < firstLiveOffset) {
+                notifySpoken(new AID(sender, AID.ISGUID).getLocalName(), text);
+            }
+        }
+    }
+
+    /**
+     * Traitement recevant les résultats des recherches dans l'historique, du plus
+     * récent au plus ancien, et les transmettant à l'interface graphique.
+     */
+    class SearchListener implements MessageDispatcher.Handler, HistoryBatch.Handler {
+        private static final long serialVersionUID = -7305114290683349217L;
+
+        private List<String> lines = new ArrayList<String>();
+        private DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+
+        public void handle(ACLMessage msg) {
+            lines.clear();
+            if (msg.getPerformative() == ACLMessage.INFORM && msg.hasByteSequenceContent()) {
+                HistoryBatch.parseHits(msg.getByteSequenceContent(), this);
+                String next = msg.getUserDefinedParameter(NEXT);
+                searchNext = next != null ? Long.parseLong(next) : -1;
+            } else {
+                // Recherche vide, historique non indexé par le manager ou trop de recherches
+                // en attente
+                logger.log(Logger.WARNING, "Search failed: " + ACLMessage.getPerformative(msg.getPerformative())
+                        + (msg.getContent() != null ? " " + msg.getContent() : ""));
+                searchNext = -1;
             }
+            gui.notifySearchResults(lines.toArray(new String[lines.size()]), searchNext >= 0);
+        }
+
+        public void onMessage(long offset, long time, String sender, String text) {
+            lines.add("[" + dateFormat.format(new Date(time)) + "] "
+                    + new AID(sender, AID.ISGUID).getLocalName() + ": " + text);
+        }
+    }
+
+    /**
+     * Traitement des messages privés qui sont envoyés à l'agent, sur la conversation
+     * portant son pseudo.
+     */
+    class WisperListener implements MessageDispatcher.Handler {
+        private static final long serialVersionUID = 141233954622842564L;
+
+        public void handle(ACLMessage msg) {
+            if (msg.getPerformative() == ACLMessage.INFORM) {
+                wisperReceived.incrementAndGet();
+                if (TextCompressor.accepts(msg)) {
+                    compressionPeers.add(msg.getSender());
+                }
+                // On notifie l'interface qu'un message privé à été reçu
+                String text = getWisperText(msg);
+                if (text != null) {
+                    notifyWisper(msg.getSender().getLocalName(), text);
+                }
+            } else {
+                handleUnexpected(msg);
+            }
+        }
+    }
+
+    /**
+     * Extrait le texte d'un message privé. Les anciens clients envoient la ligne
+     * "/pseudo texte" brute, sans langage ; un texte compressé est envoyé sans langage.
+     */
+    private String getWisperText(ACLMessage msg) {
+        if (TextCompressor.isCompressed(msg)) {
+            try {
+                return TextCompressor.decompress(msg.getByteSequenceContent());
+            } catch (IOException e) {
+                handleUnexpected(msg);
+                return null;
+            }
+        }
+        if (msg.getLanguage() == null) {
+            String content = msg.getContent();
+            int space = content != null ? content.indexOf(' ') : -1;
+            return space >= 0 ? content.substring(space + 1) : "";
+        }
+        try {
+            Whispered w = (Whispered) getContentManager().extractContent(msg);
+            return w.getWhat() != null ? w.getWhat() : "";
+        } catch (Exception e) {
+            handleUnexpected(msg);
+            return null;
         }
     }
 
@@ -245,13 +806,15 @@ public class ChatClientAgent extends Agent {
         }
 
         public void action() {
-            // Met a jour la liste des agents qui doivent recevoir le message
-            spokenMsg.clearAllReceiver();
-            Iterator it = participants.iterator();
-            while (it.hasNext()) {
-                spokenMsg.addReceiver((AID) it.next());
+            // Un seul destinataire (le ChatManager) quel que soit le nombre de participants
+            if (managerAcceptsCompression) {
+                if (TextCompressor.setText(spokenMsg, sentence)) {
+                    compressed(sentence, spokenMsg);
+                }
+            } else {
+                spokenMsg.setContent(sentence);
+                spokenMsg.removeUserDefinedParameter(TextCompressor.ENCODING);
             }
-            spokenMsg.setContent(sentence);
             // Notifie l'interface graphique qu'un message est envoyé sur le chat
             notifySpoken(myAgent.getLocalName(), sentence);
             // Envoie le message aux agents destinataires.
@@ -268,22 +831,45 @@ public class ChatClientAgent extends Agent {
         private String sentence;
         private String convId;
         private AID receiver;
+        private String to;
 
-        private WisperSpeaker(Agent thisAgent, AID receiver, String sentence, String conversationId) {
+        // sentence est le texte du message, sans le préfixe "/pseudo". Sans receiver, le
+        // destinataire to est absent et le message est confié à son manager.
+        private WisperSpeaker(Agent thisAgent, AID receiver, String to, String sentence, String conversationId) {
             super(thisAgent);
             this.sentence = sentence;
             this.convId = conversationId;
             this.receiver = receiver;
+            this.to = to;
         }
 
         public void action() {
             // Créaation du message, ajout du contenu et du destinataire
             ACLMessage wisper = new ACLMessage(ACLMessage.INFORM);
             wisper.setConversationId(convId);
-            wisper.addReceiver(receiver);
-            wisper.setContent(sentence);
+            wisper.addReceiver(receiver != null ? receiver : getManagerOf(to));
+            wisper.setOntology(ontology.getName());
+            wisper.addUserDefinedParameter(TextCompressor.ACCEPT, TextCompressor.SCHEME);
+            byte[] bytes = compressionPeers.contains(receiver) ? TextCompressor.compress(sentence) : null;
+            if (bytes != null) {
+                wisper.setByteSequenceContent(bytes);
+                wisper.addUserDefinedParameter(TextCompressor.ENCODING, TextCompressor.SCHEME);
+                compressed(sentence, wisper);
+            } else {
+                // Le message est encodé en SL, compris par tous les clients quel que soit leur codec
+                wisper.setLanguage(codec.getName());
+                Whispered w = new Whispered();
+                w.setTo(to);
+                w.setWhat(sentence);
+                try {
+                    getContentManager().fillContent(wisper, w);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
             // On notifie l'interface graphique qu'un message privé à été envoyé
-            notifyWisper(myAgent.getLocalName(), sentence.substring(sentence.split("/")[1].split(" ")[0].length()+2));
+            notifyWisper(myAgent.getLocalName(), sentence);
             // On envoie le message
             send(wisper);
         }
@@ -295,27 +881,124 @@ public class ChatClientAgent extends Agent {
  */
 
     /**
-     * Envoi de message sur le chat général
+     * Envoi de message sur le chat général. Renvoie false si le message n'est pas envoyé
+     * car le débit autorisé est dépassé.
      */
-    public void handleSpoken(String s) {
+    public boolean handleSpoken(String s) {
+        if (System.currentTimeMillis() < chatRefusedUntil || !acquireSend(CHAT_ID)) {
+            throttled.incrementAndGet();
+            return false;
+        }
         // Ajout d'un ChatSpeaker Behaviour pour envoyer le message s
         addBehaviour(new ChatSpeaker(this, s));
+        return true;
     }
 
     /**
-     * Envoi d'un message privé à un des agents connectés.
+     * Envoi d'un message privé à un participant. s est le texte du message, name le pseudo
+     * du destinataire. Si le destinataire n'est pas connecté, le message est confié à son
+     * manager qui le lui remettra à sa prochaine inscription. Renvoie false si le message
+     * n'est pas envoyé car le débit autorisé est dépassé.
      */
-    public void handleWisper(String s, String name){
-        // On parcours l'ensemble des agents connectés
-        Iterator it = participants.iterator();
-        while (it.hasNext()) {
-            AID id = (AID) it.next();
-            // Si on trouve l'agent spécifié par le message, on ajoute un WisperSpeaker Behaviour
-            // pour lui envoyer le message privé
-            if(id.getLocalName().equals(name)){
-                addBehaviour(new WisperSpeaker(this,id, s, id.getLocalName()));
+    public boolean handleWisper(String s, String name){
+        // Si on trouve l'agent spécifié par le message, on ajoute un WisperSpeaker Behaviour
+        // pour lui envoyer le message privé
+        AID id = participants.get(name);
+        if (id == null) {
+            // Tous les dépôts partagent une limite, les pseudos absents étant en nombre illimité
+            if (!acquireSend(MAILBOX_ID)) {
+                throttled.incrementAndGet();
+                return false;
             }
+            addBehaviour(new WisperSpeaker(this, null, name, s, MAILBOX_ID));
+            return true;
+        }
+        if (!acquireSend(id)) {
+            throttled.incrementAndGet();
+            return false;
         }
+        addBehaviour(new WisperSpeaker(this,id, id.getLocalName(), s, id.getLocalName()));
+        return true;
+    }
+
+    /**
+     * Recherche dans l'historique du chat général les messages contenant tous les mots de
+     * terms, envoyés entre fromTime et toTime (en ms depuis l'epoch) ; les résultats sont
+     * transmis à ChatGui.notifySearchResults(). Renvoie false si l'agent n'est inscrit
+     * auprès d'aucun manager.
+     */
+    public boolean handleSearch(final String terms, final long fromTime, final long toTime) {
+        if (manager == null) {
+            return false;
+        }
+        addBehaviour(new OneShotBehaviour(this) {
+            private static final long serialVersionUID = 4309812267345190152L;
+
+            public void action() {
+                ACLMessage query = new ACLMessage(ACLMessage.QUERY_REF);
+                query.setConversationId(SEARCH_ID);
+                query.setContent(terms);
+                query.addUserDefinedParameter(FROM_TIME, String.valueOf(fromTime));
+                query.addUserDefinedParameter(TO_TIME, String.valueOf(toTime));
+                lastSearch = query;
+                sendSearch(query);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Demande la page suivante des résultats de la dernière recherche. Renvoie false s'il
+     * n'y en a pas.
+     */
+    public boolean handleSearchMore() {
+        if (searchNext < 0) {
+            return false;
+        }
+        addBehaviour(new OneShotBehaviour(this) {
+            private static final long serialVersionUID = -2871733457306251208L;
+
+            public void action() {
+                if (lastSearch == null || searchNext < 0) {
+                    return;
+                }
+                ACLMessage query = (ACLMessage) lastSearch.clone();
+                query.removeUserDefinedParameter(BEFORE);
+                query.addUserDefinedParameter(BEFORE, String.valueOf(searchNext));
+                searchNext = -1;
+                sendSearch(query);
+            }
+        });
+        return true;
+    }
+
+    // Envoie une recherche au manager auprès duquel l'agent est inscrit
+    private void sendSearch(ACLMessage query) {
+        if (manager == null) {
+            return;
+        }
+        query.clearAllReceiver();
+        query.addReceiver(manager);
+        send(query);
+    }
+
+    /**
+     * Manager auquel s'inscrit le participant de ce pseudo, choisi comme le fait le
+     * ManagerLocator de ce participant.
+     */
+    private AID getManagerOf(String name) {
+        AID target = ring.getShard(name);
+        return target != null ? target : new AID(CHAT_MANAGER_NAME, AID.ISLOCALNAME);
+    }
+
+    // Comptabilise l'envoi d'un texte compressé
+    private void compressed(String text, ACLMessage msg) {
+        compressedSent.incrementAndGet();
+        compressionSavedBytes.addAndGet(TextCompressor.sizeOf(text) - msg.getByteSequenceContent().length);
+    }
+
+    private boolean acquireSend(Object destination) {
+        return sendLimiter.tryAcquire(destination, System.nanoTime()) == RateLimiter.ALLOWED;
     }
 
     /**
@@ -323,34 +1006,21 @@ public class ChatClientAgent extends Agent {
      */
 
     public String[] getParticipantLocalNames() {
-        String[] pp = new String[participants.size()];
-        Iterator it = participants.iterator();
-        int i = 0;
-        while (it.hasNext()) {
-            AID id = (AID) it.next();
-            pp[i++] = id.getLocalName();
-        }
-        return pp;
+        return participants.getLocalNames();
     }
 
     /**
      * Récupère la liste des pseudo@adresseIp des participants connectés au chat
      */
     public String[] getParticipantNames() {
-        String[] pp = new String[participants.size()];
-        Iterator it = participants.iterator();
-        int i = 0;
-        while (it.hasNext()) {
-            AID id = (AID) it.next();
-            pp[i++] = id.getName();
-        }
-        return pp;
+        return participants.getNames();
     }
 
     /**
      * Gestion des messages non pris en charge.
      */
     private void handleUnexpected(ACLMessage msg) {
+        unexpectedReceived.incrementAndGet();
         if (logger.isLoggable(Logger.WARNING)) {
             logger.log(Logger.WARNING, "Unexpected message received from "
                     + msg.getSender().getName());
@@ -0,0 +1,68 @@
+package chat.client.agent;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+/**
+ * Cyclic behaviour recevant les messages de l'agent et les confiant au traitement
+ * enregistré pour leur conversation. Chaque message n'est examiné qu'une fois, par une
+ * recherche dans une table, au lieu d'être comparé au modèle de chaque behaviour, et un
+ * seul behaviour est réveillé à chaque arrivée.
+ *
+ * Les messages en attente sont traités par lots d'au plus burst messages avant de rendre
+ * la main aux autres behaviours. Les messages d'une conversation sans traitement (par
+ * exemple les notifications du DF) restent dans la file pour les behaviours qui les
+ * attendent.
+ */
+public class MessageDispatcher extends CyclicBehaviour {
+    private static final long serialVersionUID = 3391270858119526452L;
+
+    /**
+     * Traitement des messages d'une conversation, appelé dans le thread de l'agent.
+     */
+    public interface Handler extends Serializable {
+        void handle(ACLMessage msg);
+    }
+
+    private final Map<String, Handler> handlers = new HashMap<String, Handler>();
+    private final int burst;
+    private final MessageTemplate template = new MessageTemplate(new MessageTemplate.MatchExpression() {
+        private static final long serialVersionUID = -6095207151840915734L;
+
+        public boolean match(ACLMessage msg) {
+            String id = msg.getConversationId();
+            return id != null && handlers.containsKey(id);
+        }
+    });
+
+    public MessageDispatcher(Agent a, int burst) {
+        super(a);
+        this.burst = Math.max(1, burst);
+    }
+
+    /**
+     * Enregistre le traitement des messages de cette conversation, remplaçant le précédent.
+     */
+    public void register(String conversationId, Handler handler) {
+        handlers.put(conversationId, handler);
+    }
+
+    public void action() {
+        int n = 0;
+        ACLMessage msg;
+        while (n < burst && (msg = myAgent.receive(template)) != null) {
+            handlers.get(msg.getConversationId()).handle(msg);
+            n++;
+        }
+        // Un lot complet laisse d'autres messages en attente : on sera rappelé sans attendre
+        if (n == 0) {
+            block();
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package chat.manager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import chat.history.HistoryBatch;
+
+/**
+ * Journal des messages du chat général, en ajout seul, découpé en segments projetés
+ * en mémoire. Chaque message reçoit un offset croissant ; un index par segment donne
+ * la position de chaque message afin de relire rapidement à partir d'un offset.
+ *
+ * Un seul thread écrit (celui de l'agent) et l'écriture, séquentielle, n'alloue aucun
+ * objet. Les lectures peuvent être faites en parallèle depuis d'autres threads : elles
+ * ne voient que les messages publiés par le compteur volatil du segment.
+ *
+ * Au plus maxSegments segments sont conservés. Lorsqu'un segment est plein, un thread
+ * dédié l'écrit sur disque puis ferme et supprime les segments les plus anciens en trop,
+ * sans bloquer l'écriture ; leur projection en mémoire est libérée par le ramasse-miettes
+ * une fois les lectures en cours terminées.
+ */
+class ChatHistoryLog {
+	private static final String DATA_SUFFIX = ".log";
+	private static final String INDEX_SUFFIX = ".idx";
+	// Taille d'un message vide : chaque entrée d'index (4 octets) correspond à au moins
+	// un enregistrement de cette taille
+	private static final int MIN_RECORD_SIZE = HistoryBatch.RECORD_HEADER_SIZE;
+
+	private final File dir;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+	private volatile Segment active;
+	// Ecriture sur disque des segments pleins et suppression des plus anciens
+	private final ExecutorService flusher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "history-flush");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	ChatHistoryLog(File dir, int segmentSize, int maxSegments) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		// Le segment actif et le précédent, en cours d'écriture sur disque, sont toujours gardés
+		this.maxSegments = Math.max(2, maxSegments);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		// Reprise des segments existants, dans l'ordre des offsets
+		File[] files = dir.listFiles();
+		Arrays.sort(files);
+		for (int i = 0; i < files.length; ++i) {
+			String name = files[i].getName();
+			if (name.endsWith(DATA_SUFFIX)) {
+				long base = Long.parseLong(name.substring(0, name.length() - DATA_SUFFIX.length()));
+				Segment s = new Segment(base);
+				s.recover();
+				segments.add(s);
+			}
+		}
+		if (segments.isEmpty()) {
+			segments.add(new Segment(0));
+		}
+		active = segments.get(segments.size() - 1);
+		retire();
+	}
+
+	/**
+	 * Offset du plus ancien message conservé.
+	 */
+	long getFirstOffset() {
+		return segments.get(0).base;
+	}
+
+	/**
+	 * Offset qui sera attribué au prochain message.
+	 */
+	long getNextOffset() {
+		return active.base + active.count;
+	}
+
+	/**
+	 * Ajoute un message au journal et renvoie son offset.
+	 */
+	long append(String sender, String text, long time) throws IOException {
+		int senderLength = Math.min(utf8Length(sender), 0xFFFF);
+		int textLength = utf8Length(text);
+		int maxText = segmentSize - HistoryBatch.RECORD_HEADER_SIZE - senderLength;
+		if (textLength > maxText) {
+			// Un message ne peut pas dépasser un segment : on le tronque
+			textLength = maxText;
+		}
+		int length = HistoryBatch.RECORD_HEADER_SIZE + senderLength + textLength;
+		if (active.position + length > segmentSize) {
+			final Segment full = active;
+			active = new Segment(active.base + active.count);
+			segments.add(active);
+			flusher.execute(new Runnable() {
+				public void run() {
+					full.data.force();
+					retire();
+				}
+			});
+		}
+		MappedByteBuffer data = active.data;
+		int pos = active.position;
+		data.putLong(pos + 4, time);
+		data.putShort(pos + 12, (short) senderLength);
+		int end = pos + HistoryBatch.RECORD_HEADER_SIZE;
+		end = putUtf8(data, end, sender, senderLength);
+		end = putUtf8(data, end, text, textLength);
+		// La longueur est écrite en dernier : un enregistrement incomplet est ignoré à la reprise
+		data.putInt(pos, end - pos);
+		active.index.putInt(active.count * 4, pos);
+		active.position = end;
+		long offset = active.base + active.count;
+		active.count++;
+		return offset;
+	}
+
+	/**
+	 * Renvoie un lot contenant au plus maxRecords messages à partir de l'offset donné,
+	 * dans la limite de maxBytes octets, ou null s'il n'y a aucun message à cet offset :
+	 * pas encore écrit, ou antérieur à getFirstOffset() car son segment a été supprimé.
+	 * L'appelant qui veut les messages encore conservés part de getFirstOffset(), qui peut
+	 * augmenter entre deux lectures. Le lot ne traverse pas de limite de segment. Cette
+	 * méthode peut être appelée par un autre thread que celui qui écrit.
+	 */
+	byte[] read(long from, int maxRecords, int maxBytes) {
+		// L'itérateur parcourt une copie de la liste, que la suppression d'un segment ne
+		// modifie pas
+		Segment s = null;
+		Iterator<Segment> it = segments.iterator();
+		while (it.hasNext()) {
+			Segment candidate = it.next();
+			if (candidate.base > from) {
+				break;
+			}
+			s = candidate;
+		}
+		if (s == null) {
+			return null;
+		}
+		int available = s.count;
+		int first = (int) (from - s.base);
+		if (first >= available) {
+			return null;
+		}
+		ByteBuffer index = s.index.duplicate();
+		ByteBuffer data = s.data.duplicate();
+		int start = index.getInt(first * 4);
+		int n = 0;
+		int end = start;
+		while (first + n < available && n < maxRecords) {
+			int length = data.getInt(end);
+			if (n > 0 && end + length - start > maxBytes) {
+				break;
+			}
+			end += length;
+			n++;
+		}
+		byte[] batch = new byte[HistoryBatch.BATCH_HEADER_SIZE + end - start];
+		ByteBuffer out = ByteBuffer.wrap(batch);
+		out.putLong(from);
+		out.putInt(n);
+		data.position(start);
+		data.get(batch, HistoryBatch.BATCH_HEADER_SIZE, end - start);
+		return batch;
+	}
+
+	void close() {
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (int i = 0; i < segments.size(); ++i) {
+			segments.get(i).close();
+		}
+	}
+
+	// Ferme et supprime les segments les plus anciens au-delà de maxSegments
+	private void retire() {
+		while (segments.size() > maxSegments) {
+			Segment oldest = segments.remove(0);
+			oldest.close();
+			oldest.delete();
+		}
+	}
+
+	private static int utf8Length(String s) {
+		int n = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				n += 1;
+			}
+			else if (c < 0x800) {
+				n += 2;
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				n += 4;
+				i++;
+			}
+			else {
+				n += 3;
+			}
+		}
+		return n;
+	}
+
+	// Encodage UTF-8 direct dans le segment, sans allocation, limité à max octets
+	private static int putUtf8(MappedByteBuffer data, int pos, String s, int max) {
+		int limit = pos + max;
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				if (pos + 1 > limit) {
+					break;
+				}
+				data.put(pos++, (byte) c);
+			}
+			else if (c < 0x800) {
+				if (pos + 2 > limit) {
+					break;
+				}
+				data.put(pos++, (byte) (0xC0 | (c >> 6)));
+				data.put(pos++, (byte) (0x80 | (c & 0x3F)));
+			}
+			else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				if (pos + 4 > limit) {
+					break;
+				}
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				data.put(pos++, (byte) (0xF0 | (cp >> 18)));
+				data.put(pos++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+				data.put(pos++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+				data.put(pos++, (byte) (0x80 | (cp & 0x3F)));
+			}
+			else {
+				if (pos + 3 > limit) {
+					break;
+				}
+				data.put(pos++, (byte) (0xE0 | (c >> 12)));
+				data.put(pos++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+				data.put(pos++, (byte) (0x80 | (c & 0x3F)));
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Segment du journal : un fichier de données et un fichier d'index projetés en mémoire.
+	 */
+	private class Segment {
+		final long base;
+		final RandomAccessFile dataFile;
+		final RandomAccessFile indexFile;
+		final MappedByteBuffer data;
+		final MappedByteBuffer index;
+		int position;
+		volatile int count;
+
+		Segment(long base) throws IOException {
+			this.base = base;
+			String name = String.format("%020d", base);
+			dataFile = new RandomAccessFile(new File(dir, name + DATA_SUFFIX), "rw");
+			indexFile = new RandomAccessFile(new File(dir, name + INDEX_SUFFIX), "rw");
+			data = dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (segmentSize / MIN_RECORD_SIZE + 1) * 4);
+		}
+
+		// Reconstruit la position d'écriture et l'index à partir des enregistrements complets
+		void recover() {
+			int pos = 0;
+			int n = 0;
+			while (pos + HistoryBatch.RECORD_HEADER_SIZE <= segmentSize) {
+				int length = data.getInt(pos);
+				if (length < HistoryBatch.RECORD_HEADER_SIZE || pos + length > segmentSize) {
+					break;
+				}
+				index.putInt(n * 4, pos);
+				pos += length;
+				n++;
+			}
+			position = pos;
+			count = n;
+		}
+
+		void close() {
+			try {
+				data.force();
+				dataFile.close();
+				indexFile.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		void delete() {
+			String name = String.format("%020d", base);
+			new File(dir, name + DATA_SUFFIX).delete();
+			new File(dir, name + INDEX_SUFFIX).delete();
+		}
+	}
+}
@@ -2,6 +2,9 @@ package chat.manager;
 
 import jade.core.Agent;
 import jade.core.AID;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.ThreadedBehaviourFactory;
+import jade.core.behaviours.TickerBehaviour;
 
 import jade.lang.acl.ACLMessage;
 import jade.lang.acl.MessageTemplate;
@@ -15,6 +18,11 @@ import jade.content.abs.*;
 import jade.proto.SubscriptionResponder;
 import jade.proto.SubscriptionResponder.SubscriptionManager;
 import jade.proto.SubscriptionResponder.Subscription;
+import jade.domain.DFService;
+import jade.domain.DFSubscriber;
+import jade.domain.FIPAException;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
 import jade.domain.FIPAAgentManagement.RefuseException;
 import jade.domain.FIPAAgentManagement.NotUnderstoodException;
 import jade.domain.FIPAAgentManagement.FailureException;
@@ -24,40 +32,308 @@ import jade.domain.introspection.Event;
 import jade.domain.introspection.DeadAgent;
 import jade.domain.introspection.AMSSubscriber;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import chat.compression.TextCompressor;
+import chat.metrics.Gauge;
+import chat.metrics.Histogram;
+import chat.metrics.Metrics;
+import chat.metrics.MetricsServer;
 import chat.ontology.*;
+import chat.ratelimit.RateLimiter;
+import chat.shard.ShardRing;
 
 /**
  * Cet agent permet de conserver la liste des agents connectés au chat
  * et informe de l'arrivé ou du départ d'agent au sein du chat.
+ *
+ * Plusieurs ChatManagerAgent peuvent être démarrés, éventuellement dans des conteneurs
+ * différents : chacun s'enregistre auprès du DF, les clients choisissent leur manager par
+ * hachage cohérent de leur pseudo et les managers s'échangent les arrivées et départs de
+ * leurs inscrits afin que chaque client voie l'ensemble du salon.
+ *
+ * Arguments optionnels (de la forme cle=valeur) :
+ * - presenceWindow : durée en ms pendant laquelle les arrivées et départs sont regroupés
+ *   avant d'être notifiés (0 pour notifier immédiatement, 200 par défaut) ;
+ * - presenceBatchSize : nombre d'évènements en attente déclenchant l'envoi anticipé
+ *   du lot (500 par défaut) ;
+ * - historyDir : répertoire de l'historique du chat général, chaque manager utilisant
+ *   un sous-répertoire à son nom ("history" par défaut, vide pour ne pas conserver
+ *   d'historique) ;
+ * - historySegmentSize : taille en octets d'un segment de l'historique (16 Mo par défaut) ;
+ * - historySize : taille en octets de l'historique conservé, les segments les plus anciens
+ *   étant supprimés au-delà (256 Mo par défaut, au moins deux segments) ;
+ * - metricsPort : port local sur lequel les métriques sont servies en texte (aucun par
+ *   défaut). Les métriques sont toujours disponibles par JMX ;
+ * - dispatchThreads : nombre de threads envoyant les notifications et les messages
+ *   relayés (nombre de processeurs, au plus 4, par défaut) ;
+ * - maxOutstanding : nombre d'envois en attente au-delà duquel un participant est
+ *   considéré comme trop lent (1000 par défaut, 0 pour ne pas surveiller l'attente) ;
+ * - maxFailures : nombre d'échecs de livraison signalés par l'AMS au-delà duquel un
+ *   participant est considéré comme trop lent (5 par défaut, 0 pour les ignorer) ;
+ * - slowConsumerPolicy : "degrade" pour ne plus envoyer à un participant trop lent que
+ *   la liste des participants, périodiquement, jusqu'à ce qu'il ait rattrapé son retard,
+ *   ou "evict" pour le désinscrire ("degrade" par défaut) ;
+ * - snapshotInterval : période en ms d'envoi de la liste aux participants ralentis
+ *   (5000 par défaut) ;
+ * - chatRate, chatBurst : débit moyen (messages par seconde) et rafale autorisés à chaque
+ *   participant sur le chat général (5 et 20 par défaut, 0 pour ne pas limiter) ;
+ * - roomRate, roomBurst : débit moyen et rafale autorisés pour l'ensemble des messages
+ *   relayés par ce manager, y compris ceux transmis par les autres managers (1000 et 2000
+ *   par défaut, 0 pour ne pas limiter) ;
+ * - leaseMisses : nombre de battements de coeur manqués après lequel un participant est
+ *   retiré du salon (3 par défaut, 0 pour ne jamais retirer un participant silencieux) ;
+ * - leaseTick : précision en ms de l'expiration des baux (1000 par défaut) ;
+ * - rosterDir : répertoire où sont sauvegardées les inscriptions, chaque manager utilisant
+ *   un sous-répertoire à son nom ("roster" par défaut, vide pour ne pas les sauvegarder).
+ *   Au redémarrage, le manager reprend ses participants sans qu'ils aient à se réinscrire ;
+ * - rosterCheckpoint : nombre d'inscriptions et désinscriptions journalisées entre deux
+ *   snapshots de la liste (1000 par défaut) ;
+ * - retransmitWindow : nombre de messages du chat général conservés pour les demandes de
+ *   retransmission (1000 par défaut) ;
+ * - mailboxDir : répertoire des messages privés en attente de participants absents, chaque
+ *   manager utilisant un sous-répertoire à son nom ("mailbox" par défaut, vide pour les
+ *   garder uniquement en mémoire) ;
+ * - mailboxSize : nombre de messages privés gardés pour un même participant (100 par
+ *   défaut) ;
+ * - mailboxMemory : taille en octets des messages privés en attente gardés en mémoire,
+ *   au-delà de laquelle ils sont écrits sur disque (4 Mo par défaut) ;
+ * - mailboxes : nombre de participants absents pour lesquels des messages privés sont
+ *   gardés (10000 par défaut) ;
+ * - mailboxDisk : taille en octets des messages privés en attente écrits sur disque
+ *   (256 Mo par défaut) ;
+ * - rosterVersions : nombre de modifications de la liste des participants conservées pour
+ *   les reprises de session (1000 par défaut) ;
+ * - searchIndexMemory : taille estimée en octets au-delà de laquelle l'index de recherche
+ *   abandonne les messages les plus anciens (16 Mo par défaut, 0 pour ne pas indexer
+ *   l'historique) ;
+ * - standbys : noms des ChatStandbyAgent autorisés à répliquer la liste des inscrits,
+ *   séparés par des points-virgules (aucun par défaut).
+ *
+ * Les messages du chat général sont relayés compressés (voir TextCompressor) aux participants
+ * ayant annoncé dans leur SUBSCRIBE savoir les décompresser, et en texte aux autres. Le
+ * manager annonce qu'il accepte les messages compressés dans la liste complète des
+ * participants envoyée à un nouvel inscrit.
+ *
+ * Chaque message du chat général relayé porte un numéro de séquence (paramètre "chat-seq")
+ * propre à ce manager et à son démarrage (paramètre "chat-stream"). Un client qui annonce
+ * dans son SUBSCRIBE gérer ces numéros (paramètre "chat-sequenced") reçoit aussi ses
+ * propres messages, ce qui lui donne une suite sans trou, et peut redemander (REQUEST sur
+ * la conversation "__chat__", contenu "premier dernier") les messages manquants encore
+ * présents dans la fenêtre de retransmission ; pour ceux qui n'y sont plus, il reçoit un
+ * FAILURE contenant le premier numéro disponible. Ses battements de coeur rappellent le
+ * dernier numéro reçu : s'il a manqué les derniers messages, le manager lui répond avec
+ * le dernier numéro envoyé.
+ *
+ * Un client peut confier au manager du destinataire (INFORM sur la conversation
+ * "__mailbox__" contenant un prédicat Whispered) un message privé pour un participant
+ * absent. Le manager le garde (voir WhisperMailbox) et remet tous les messages en attente
+ * lors de l'inscription du destinataire : en un seul lot (INFORM au contenu binaire au
+ * format de chat.history.HistoryBatch) si son SUBSCRIBE l'annonce (paramètre
+ * "chat-mailbox"), sinon comme autant de messages privés de leurs expéditeurs. Si le
+ * destinataire est présent, le message lui est transmis directement ; si sa boîte est
+ * pleine, si les limites mailboxes et mailboxDisk sont atteintes ou si le manager n'a jamais
+ * vu ce pseudo, l'expéditeur reçoit un FAILURE contenant le pseudo du destinataire. Les
+ * dépôts comptent dans la limite de débit du chat général (chatRate, chatBurst).
+ *
+ * Chaque notification de présence porte l'identifiant du démarrage du manager (paramètre
+ * "chat-session") et la version de la liste des participants qu'elle établit (paramètre
+ * "chat-roster-version"). Un client qui se réinscrit, par exemple après un changement de
+ * réseau, peut rappeler ces deux paramètres dans son SUBSCRIBE : si la version est encore
+ * connue (voir RosterLog), il ne reçoit que les participants arrivés (Joined) ou partis
+ * (Left) depuis, au lieu de la liste complète, ainsi que les messages du chat général
+ * encore dans la fenêtre de retransmission suivant le numéro indiqué par "chat-seq" et
+ * "chat-stream". Sinon, il reçoit la liste complète comme un nouvel inscrit.
+ *
+ * Les messages de l'historique sont indexés par mot (voir HistoryIndex) par un thread qui
+ * relit le journal, en dehors du relais. Un client peut y chercher (QUERY_REF sur la
+ * conversation "__search__" contenant les mots recherchés) les messages contenant tous
+ * les mots, éventuellement sur une période (paramètres "chat-from-time" et "chat-to-time",
+ * dates en ms). Il reçoit un INFORM au contenu binaire (voir chat.history.HistoryBatch)
+ * contenant au plus "chat-limit" (20 par défaut) messages, du plus récent au plus ancien,
+ * et, s'il en reste, le paramètre "chat-next" à rappeler dans "chat-before" pour obtenir la
+ * page suivante. Sans index, ou si trop de recherches sont en attente, il reçoit un FAILURE.
+ * Un agent qui n'est pas dans le salon reçoit un REFUSE.
+ *
+ * Un message dépassant les limites de débit n'est pas relayé : son expéditeur reçoit un
+ * REFUSE contenant un prédicat Throttled. Les limites s'appliquent aussi aux messages
+ * transmis par les autres managers, dont l'auteur reçoit alors le REFUSE.
+ *
+ * Un client peut annoncer dans son SUBSCRIBE (paramètre "chat-heartbeat") l'intervalle en
+ * ms de ses battements de coeur, de petits INFORM sur la conversation "__heartbeat__".
+ * Tout message reçu du participant renouvelle son bail ; sans nouvelles pendant
+ * intervalle * leaseMisses ms, il est retiré comme s'il s'était désinscrit, au plus
+ * leaseTick ms plus tard. Cela permet de retirer les clients dont le conteneur (par exemple
+ * le back-end d'un téléphone) est toujours présent alors que l'agent ne répond plus.
+ *
+ * Un ChatStandbyAgent nommé par l'argument standbys peut demander (REQUEST sur la
+ * conversation "__replica__") à recevoir la liste des inscrits, puis chacune de ses
+ * modifications avant que le nouvel inscrit ne soit notifié ; les autres reçoivent un
+ * REFUSE. A la disparition du manager, le standby le recrée sous le même nom avec cette
+ * liste (voir ChatStandbyAgent). Un manager arrêté normalement le signale à ses standbys
+ * (CANCEL), qui ne le recréent pas : seule une disparition sans arrêt, par exemple la
+ * perte de son conteneur, donne lieu à une reprise. Dans ce cas l'enregistrement du
+ * manager auprès du DF est conservé et les clients restent sur le même manager.
  */
 public class ChatManagerAgent extends Agent implements SubscriptionManager {
 
-	private Map<AID, Subscription> participants = new HashMap<AID, Subscription>();
+	private static final String CHAT_ID = "__chat__";
+	private static final String SHARD_ID = "__shard__";
+	// Paramètres d'un message du chat général transmis par un autre manager, dont il est
+	// l'expéditeur : nom de ce manager et nom complet de l'auteur du message
+	private static final String RELAYED = "chat-relayed";
+	private static final String SPEAKER = "chat-speaker";
+	// Paramètre donnant l'offset d'un message du chat général dans l'historique de ce manager
+	private static final String OFFSET = "chat-offset";
+	// Paramètre marquant une notification contenant la liste complète des participants,
+	// qui remplace celle connue du client
+	private static final String SNAPSHOT = "chat-snapshot";
+	private static final String HEARTBEAT_ID = "__heartbeat__";
+	// Paramètre du SUBSCRIBE donnant l'intervalle des battements de coeur du client
+	private static final String HEARTBEAT = "chat-heartbeat";
+	static final String REPLICA_ID = "__replica__";
+	// Paramètres des messages du chat général numérotés
+	private static final String SEQ = "chat-seq";
+	private static final String STREAM = "chat-stream";
+	// Paramètre du SUBSCRIBE d'un client gérant les numéros de séquence
+	private static final String SEQUENCED = "chat-sequenced";
+	// Paramètres des notifications de présence donnant le démarrage du manager et la version
+	// de la liste des participants, que le client rappelle dans son SUBSCRIBE pour reprendre
+	// sa session
+	private static final String SESSION = "chat-session";
+	private static final String ROSTER_VERSION = "chat-roster-version";
+	// Paramètres du SUBSCRIBE conservés par RosterStore : ceux relus lorsqu'une inscription
+	// est reprise après un redémarrage ou par un standby
+	static final String[] SAVED_PARAMETERS = {
+		TextCompressor.ACCEPT, HEARTBEAT, SEQUENCED, MailboxServer.MAILBOX
+	};
+	// Destinataire d'un message non livré, dans le contenu d'un FAILURE envoyé par l'AMS
+	private static final String AGENT_NOT_FOUND = "Agent not found";
+	private static final Pattern MTS_ERROR = Pattern.compile(
+			"MTS-error\\s*\\(\\s*agent-identifier\\s+:name\\s+(\"(?:[^\"\\\\]|\\\\.)*\"|[^\\s)]+)");
+
+	// Participants inscrits auprès de ce manager. La liste n'est modifiée que par le thread
+	// de l'agent mais peut être lue par d'autres (métriques).
+	private Map<AID, Subscription> participants = new ConcurrentHashMap<AID, Subscription>();
+	// Participants inscrits auprès des autres managers, associés à leur manager
+	private Map<AID, AID> remoteParticipants = new HashMap<AID, AID>();
+	private Set<AID> peers = new HashSet<AID>();
 	private Codec codec = new SLCodec();
+	private Codec binaryCodec = new BinaryChatCodec();
 	private Ontology ontology = ChatOntology.getInstance();
 	private AMSSubscriber aMSSubscriber;
+	private SubscriptionResponder responder;
+	private RosterStore roster;
+	// Agents de secours recevant les modifications de la liste des inscrits
+	private ReplicaServer replicaServer;
+	private PresenceBatcher presenceBatcher;
+	// Versions de la liste des participants, accédées uniquement par le thread de l'agent
+	private RosterLog rosterLog;
+	private ChatHistoryLog history;
+	// Index de recherche de l'historique, tenu à jour par un thread dédié
+	private HistoryReplayer replayer;
+	private HistoryIndexer indexer;
+	private MailboxServer mailboxServer;
+	// Threads dédiés à la relecture de l'historique et à l'envoi des notifications
+	private ThreadedBehaviourFactory workerThreads = new ThreadedBehaviourFactory();
+	private NotificationDispatcher dispatcher;
+	// Traitement des participants trop lents, accédés uniquement par le thread de l'agent
+	private boolean evictSlowConsumers;
+	private int maxFailures;
+	private Map<AID, Integer> failures = new HashMap<AID, Integer>();
+	// Participants ralentis, associés à vrai s'ils ont déjà reçu un snapshot
+	private Map<AID, Boolean> degraded = new LinkedHashMap<AID, Boolean>();
+	private RateLimiter<AID> chatLimiter;
+	// Participants acceptant les messages compressés, accédés uniquement par le thread de l'agent
+	private Set<AID> compressionAccepted = new HashSet<AID>();
+	// Numérotation du chat général : identifiant du flux, propre à ce démarrage, et fenêtre
+	// de retransmission, accédés uniquement par le thread de l'agent
+	private String stream;
+	private RetransmitWindow retransmitWindow;
+	// Participants gérant les numéros de séquence, qui reçoivent aussi leurs propres messages
+	private Set<AID> sequenced = new HashSet<AID>();
+	// Messages privés en attente de participants absents
+	private WhisperMailbox mailbox;
+	// Baux des participants envoyant des battements de coeur, accédés uniquement par le
+	// thread de l'agent
+	private LeaseWheel<AID> leases;
+	private int leaseMisses;
+
+	private Metrics metrics;
+	private AtomicLong subscriptions;
+	private AtomicLong cancellations;
+	private AtomicLong refusals;
+	private AtomicLong notifications;
+	private AtomicLong relayedMessages;
+	private AtomicLong deadAgents;
+	private AtomicLong historyRequests;
+	private AtomicLong deliveryFailures;
+	private AtomicLong degradations;
+	private AtomicLong evictions;
+	private AtomicLong throttledBySender;
+	private AtomicLong throttledByRoom;
+	private AtomicLong forgedRelays;
+	private AtomicLong heartbeats;
+	private AtomicLong leaseExpirations;
+	private AtomicLong restoredParticipants;
+	private AtomicLong replicaUpdates;
+	private AtomicLong compressedRelays;
+	private AtomicLong compressionSavedBytes;
+	private AtomicLong retransmitRequests;
+	private AtomicLong retransmitted;
+	private AtomicLong retransmitMisses;
+	private AtomicLong mailboxStored;
+	private AtomicLong mailboxForwarded;
+	private AtomicLong mailboxDelivered;
+	private AtomicLong mailboxRefused;
+	private AtomicLong resumedSessions;
+	private AtomicLong resumeFailures;
+	private AtomicLong searchRequests;
+	private AtomicLong searchRefusals;
+	private AtomicLong indexedMessages;
+	private Histogram relayFanOut;
+	private Histogram notificationFanOut;
+	private Histogram registerTime;
+	private Histogram deregisterTime;
 
 	protected void setup() {
+		initMetrics();
+
         // Enregistrement du langage et du codec pour accepter les inscriptions au
         // chat par les autres agents.
+		// Le langage est choisi par le client dans son SUBSCRIBE : SL pour les anciens clients,
+		// le codec binaire pour ceux qui le supportent.
 		getContentManager().registerLanguage(codec);
+		getContentManager().registerLanguage(binaryCodec);
 		getContentManager().registerOntology(ontology);
 
-		// On crée le modèle de message à recevoir pour l'inscription
+		// On crée le modèle de message à recevoir pour l'inscription et la désinscription.
+		// Le langage est vérifié dans register() afin de pouvoir refuser ceux qui ne sont pas supportés.
 		MessageTemplate sTemplate = MessageTemplate.and(
-				MessageTemplate.MatchPerformative(ACLMessage.SUBSCRIBE),
-				MessageTemplate.and(
-						MessageTemplate.MatchLanguage(codec.getName()),
-						MessageTemplate.MatchOntology(ontology.getName())));
+				MessageTemplate.or(
+						MessageTemplate.MatchPerformative(ACLMessage.SUBSCRIBE),
+						MessageTemplate.MatchPerformative(ACLMessage.CANCEL)),
+				MessageTemplate.MatchOntology(ontology.getName()));
 
 		// On affecte le comportement de réponse a une inscription
-		addBehaviour(new SubscriptionResponder(this, sTemplate, this));
+		responder = new SubscriptionResponder(this, sTemplate, this);
+		addBehaviour(responder);
 
         // On s'enregistre auprès de l'AMS pour détecter quand un agent client est soudainement déconnecté
 		aMSSubscriber = new AMSSubscriber() {
@@ -65,7 +341,11 @@ public class ChatManagerAgent extends Agent implements SubscriptionManager {
 				handlersTable.put(IntrospectionOntology.DEADAGENT, new EventHandler() {
 					public void handle(Event ev) {
 						DeadAgent da = (DeadAgent)ev;
+						deadAgents.incrementAndGet();
 						AID id = da.getAgent();
+						dispatcher.setSuspended(id, false);
+						dispatcher.forget(id);
+						failures.remove(id);
                         // Si un agent est déconnecté, on notifie tous les autres agents.
 						if (participants.containsKey(id)) {
 							try {
@@ -75,91 +355,1363 @@ public class ChatManagerAgent extends Agent implements SubscriptionManager {
 								e.printStackTrace();
 							}
 						}
+						// Si un autre manager disparait, ses inscrits quittent le salon
+						if (peers.remove(id)) {
+							peerLeft(id);
+						}
+						replicaServer.forget(id);
 					}
 				});
 			}
 		};
 		addBehaviour(aMSSubscriber);
+
+		// Les envois volumineux sont faits hors du thread de l'agent
+		int dispatchThreads = (int) getLongArgument("dispatchThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+		dispatcher = new NotificationDispatcher(this, (int) getLongArgument("maxOutstanding", 1000));
+		dispatcher.start(workerThreads, dispatchThreads);
+
+		// Détection des participants trop lents : envois en attente et échecs de livraison
+		maxFailures = (int) getLongArgument("maxFailures", 5);
+		evictSlowConsumers = getStringArgument("slowConsumerPolicy", "degrade").equals("evict");
+		addBehaviour(new DeliveryFailureListener(this));
+		addBehaviour(new SnapshotSender(this, getLongArgument("snapshotInterval", 5000)));
+
+		// Historique du chat général, relu par un thread dédié pour ne pas retarder le relais
+		String historyDir = getStringArgument("historyDir", "history");
+		if (historyDir.length() > 0) {
+			try {
+				int segmentSize = (int) getLongArgument("historySegmentSize", 16 * 1024 * 1024);
+				long historySize = getLongArgument("historySize", 256L * 1024 * 1024);
+				history = new ChatHistoryLog(new File(historyDir, getLocalName()), segmentSize,
+						(int) Math.min(Integer.MAX_VALUE, historySize / segmentSize));
+				replayer = new HistoryReplayer(history);
+				addBehaviour(workerThreads.wrap(replayer));
+				// Index de recherche, alimenté en relisant l'historique hors du thread de l'agent
+				long indexMemory = getLongArgument("searchIndexMemory", 16 * 1024 * 1024);
+				if (indexMemory > 0) {
+					indexer = new HistoryIndexer(history, indexMemory, indexedMessages);
+					addBehaviour(workerThreads.wrap(indexer));
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				history = null;
+			}
+		}
+
+		// Les demandes d'historique sont toujours consommées, un FAILURE répondant à celles
+		// reçues sans historique
+		addBehaviour(new HistoryServer(this, history, replayer, historyRequests));
+		addBehaviour(new SearchServer(this, indexer, searchRequests, searchRefusals));
+
+		// On relaie les messages du chat général envoyés au manager vers tous les participants,
+		// dans la limite du débit autorisé
+		chatLimiter = new RateLimiter<AID>(getLongArgument("chatRate", 5), (int) getLongArgument("chatBurst", 20),
+				getLongArgument("roomRate", 1000), (int) getLongArgument("roomBurst", 2000));
+		addBehaviour(new ChatRelay(this));
+		stream = Long.toString(System.currentTimeMillis(), 36);
+		retransmitWindow = new RetransmitWindow((int) getLongArgument("retransmitWindow", 1000));
+		addBehaviour(new RetransmitServer(this));
+
+		// Messages privés en attente de participants absents
+		String mailboxDir = getStringArgument("mailboxDir", "mailbox");
+		mailbox = new WhisperMailbox(mailboxDir.length() > 0 ? new File(mailboxDir, getLocalName()) : null,
+				(int) getLongArgument("mailboxes", 10000), (int) getLongArgument("mailboxSize", 100),
+				getLongArgument("mailboxMemory", 4 * 1024 * 1024), getLongArgument("mailboxDisk", 256 * 1024 * 1024));
+		try {
+			mailbox.load();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		mailboxServer = new MailboxServer(this, mailbox, dispatcher, chatLimiter, codec, ontology,
+				mailboxStored, mailboxForwarded, mailboxDelivered, mailboxRefused);
+		addBehaviour(mailboxServer);
+
+		// Baux des participants envoyant des battements de coeur
+		leaseMisses = (int) getLongArgument("leaseMisses", 3);
+		long leaseTick = getLongArgument("leaseTick", 1000);
+		leases = new LeaseWheel<AID>(leaseTick, 512, System.currentTimeMillis());
+		addBehaviour(new HeartbeatServer(this));
+		if (leaseMisses > 0) {
+			addBehaviour(new LeaseExpirer(this, leaseTick));
+		}
+
+		// Regroupement des notifications d'arrivée et de départ. Avec une fenêtre nulle,
+		// chaque évènement est notifié immédiatement.
+		long presenceWindow = getLongArgument("presenceWindow", 200);
+		rosterLog = new RosterLog((int) getLongArgument("rosterVersions", 1000));
+		if (presenceWindow > 0) {
+			presenceBatcher = new PresenceBatcher(this, presenceWindow, (int) getLongArgument("presenceBatchSize", 500));
+			addBehaviour(presenceBatcher);
+		}
+		else {
+			presenceBatcher = new PresenceBatcher(this, Long.MAX_VALUE, 1);
+		}
+
+		replicaServer = new ReplicaServer(this, participants, getStandbys(), replicaUpdates);
+
+		// Reprise des inscriptions transmises par un standby ou sauvegardées avant un redémarrage
+		List<ACLMessage> saved = getHandoff();
+		String rosterDir = getStringArgument("rosterDir", "roster");
+		if (rosterDir.length() > 0) {
+			try {
+				roster = new RosterStore(new File(rosterDir, getLocalName()), (int) getLongArgument("rosterCheckpoint", 1000));
+				// La liste du standby, à jour, remplace celle éventuellement sauvegardée ici
+				if (saved != null) {
+					roster.reset(saved);
+				}
+				else {
+					saved = roster.load();
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				roster = null;
+			}
+		}
+		if (saved != null) {
+			restoreParticipants(saved);
+		}
+		addBehaviour(replicaServer);
+
+		// Enregistrement auprès du DF et découverte des autres managers
+		DFAgentDescription dfd = new DFAgentDescription();
+		dfd.setName(getAID());
+		ServiceDescription sd = new ServiceDescription();
+		sd.setType(ShardRing.SERVICE_TYPE);
+		sd.setName(getLocalName());
+		dfd.addServices(sd);
+		// Un manager repris par un standby retrouve l'enregistrement laissé par son prédécesseur
+		try {
+			if (getHandoff() != null) {
+				DFService.modify(this, dfd);
+			}
+			else {
+				DFService.register(this, dfd);
+			}
+		}
+		catch (FIPAException fe) {
+			try {
+				DFService.register(this, dfd);
+			}
+			catch (FIPAException e) {
+				e.printStackTrace();
+			}
+		}
+		addBehaviour(new ShardListener(this));
+		addBehaviour(new PeerSubscriber(this));
+	}
+
+	private void initMetrics() {
+		metrics = new Metrics("chat_manager", "ChatManagerAgent", getLocalName());
+		subscriptions = metrics.counter("subscriptions_total", "Subscriptions accepted");
+		cancellations = metrics.counter("cancellations_total", "Subscriptions cancelled or removed");
+		refusals = metrics.counter("refusals_total", "Subscriptions refused");
+		notifications = metrics.counter("notifications_total", "Presence notifications sent to subscribers");
+		relayedMessages = metrics.counter("relayed_total", "Public chat messages relayed");
+		deadAgents = metrics.counter("dead_agents_total", "DEADAGENT events received from the AMS");
+		historyRequests = metrics.counter("history_requests_total", "History replay requests");
+		deliveryFailures = metrics.counter("delivery_failures_total", "Delivery failures to participants reported by the AMS");
+		degradations = metrics.counter("slow_consumers_degraded_total", "Slow participants degraded to roster snapshots");
+		evictions = metrics.counter("slow_consumers_evicted_total", "Slow participants evicted");
+		throttledBySender = metrics.counter("throttled_sender_total", "Chat messages refused by the per-participant rate limit");
+		throttledByRoom = metrics.counter("throttled_room_total", "Chat messages refused by the room rate limit");
+		forgedRelays = metrics.counter("forged_relays_total", "Chat messages carrying relay parameters not sent by a peer manager");
+		heartbeats = metrics.counter("heartbeats_total", "Heartbeats received from participants");
+		leaseExpirations = metrics.counter("lease_expirations_total", "Participants removed after missing their heartbeats");
+		restoredParticipants = metrics.counter("restored_participants_total", "Participants restored from the saved roster or a standby at startup");
+		replicaUpdates = metrics.counter("replica_updates_total", "Roster updates sent to standby managers");
+		compressedRelays = metrics.counter("compressed_relayed_total", "Chat messages relayed compressed to at least one participant");
+		compressionSavedBytes = metrics.counter("compression_saved_bytes_total", "Content bytes saved by relaying compressed chat messages");
+		retransmitRequests = metrics.counter("retransmit_requests_total", "Retransmission requests received from participants");
+		retransmitted = metrics.counter("retransmitted_total", "Chat messages retransmitted to participants");
+		retransmitMisses = metrics.counter("retransmit_misses_total", "Retransmission requests for messages no longer in the window");
+		mailboxStored = metrics.counter("mailbox_stored_total", "Private messages kept for absent participants");
+		mailboxForwarded = metrics.counter("mailbox_forwarded_total", "Private messages left for participants who were present");
+		mailboxDelivered = metrics.counter("mailbox_delivered_total", "Kept private messages delivered on subscription");
+		mailboxRefused = metrics.counter("mailbox_refused_total", "Private messages refused: full mailbox, no room or unknown recipient");
+		resumedSessions = metrics.counter("sessions_resumed_total", "Subscriptions resumed with a roster delta instead of a full roster");
+		resumeFailures = metrics.counter("session_resume_failures_total", "Session resumptions answered with a full roster");
+		searchRequests = metrics.counter("search_requests_total", "History search requests");
+		searchRefusals = metrics.counter("search_refused_total", "History search requests refused or failed");
+		indexedMessages = metrics.counter("indexed_total", "Chat messages added to the search index");
+		relayFanOut = metrics.histogram("relay_fan_out", "Receivers per relayed chat message");
+		notificationFanOut = metrics.histogram("notification_fan_out", "Subscribers per presence notification");
+		registerTime = metrics.histogram("register_micros", "Time spent in register, in microseconds");
+		deregisterTime = metrics.histogram("deregister_micros", "Time spent in deregister, in microseconds");
+		metrics.gauge("participants", "Participants subscribed to this manager", new Gauge() {
+			public long getValue() {
+				return participants.size();
+			}
+		});
+		metrics.gauge("remote_participants", "Participants subscribed to other managers", new Gauge() {
+			public long getValue() {
+				return remoteParticipants.size();
+			}
+		});
+		metrics.gauge("mailboxes", "Absent participants with private messages waiting", new Gauge() {
+			public long getValue() {
+				return mailbox.size();
+			}
+		});
+		metrics.gauge("mailbox_memory_bytes", "Size of the waiting private messages kept in memory", new Gauge() {
+			public long getValue() {
+				return mailbox.getMemoryBytes();
+			}
+		});
+		metrics.gauge("mailbox_disk_bytes", "Size of the waiting private messages written to disk", new Gauge() {
+			public long getValue() {
+				return mailbox.getDiskBytes();
+			}
+		});
+		metrics.gauge("search_index_bytes", "Estimated size of the search index", new Gauge() {
+			public long getValue() {
+				return indexer != null ? indexer.getMemoryBytes() : 0;
+			}
+		});
+		metrics.gauge("search_index_lag", "Chat messages in the history not yet indexed", new Gauge() {
+			public long getValue() {
+				return indexer != null ? history.getNextOffset() - indexer.getNextOffset() : 0;
+			}
+		});
+		metrics.gauge("standbys", "Standby managers receiving the roster", new Gauge() {
+			public long getValue() {
+				return replicaServer != null ? replicaServer.getStandbyCount() : 0;
+			}
+		});
+		metrics.gauge("degraded_participants", "Slow participants receiving only roster snapshots", new Gauge() {
+			public long getValue() {
+				return degraded.size();
+			}
+		});
+		metrics.register();
+		long port = getLongArgument("metricsPort", 0);
+		if (port > 0) {
+			MetricsServer.start((int) port);
+		}
+	}
+
+	/**
+	 * Lit un argument numérique de la forme cle=valeur passé à l'agent.
+	 */
+	private long getLongArgument(String key, long defaultValue) {
+		String value = getStringArgument(key, null);
+		if (value != null) {
+			try {
+				return Long.parseLong(value.trim());
+			}
+			catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Renvoie les standbys autorisés par l'argument standbys, dont les noms sont séparés par
+	 * des points-virgules (les virgules séparent déjà les arguments sur la ligne de commande
+	 * de JADE). Un nom sans '@' est un nom local.
+	 */
+	private Set<AID> getStandbys() {
+		Set<AID> standbys = new HashSet<AID>();
+		String[] names = getStringArgument("standbys", "").split(";");
+		for (int i = 0; i < names.length; ++i) {
+			String name = names[i].trim();
+			if (name.length() > 0) {
+				standbys.add(new AID(name, name.indexOf('@') >= 0 ? AID.ISGUID : AID.ISLOCALNAME));
+			}
+		}
+		return standbys;
+	}
+
+	/**
+	 * Renvoie la liste des inscriptions passée en argument par un ChatStandbyAgent qui
+	 * reprend ce manager, ou null.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<ACLMessage> getHandoff() {
+		Object[] args = getArguments();
+		if (args != null) {
+			for (int i = 0; i < args.length; ++i) {
+				if (args[i] instanceof List) {
+					return (List<ACLMessage>) args[i];
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Lit un argument de la forme cle=valeur passé à l'agent.
+	 */
+	private String getStringArgument(String key, String defaultValue) {
+		Object[] args = getArguments();
+		if (args != null) {
+			for (int i = 0; i < args.length; ++i) {
+				String arg = String.valueOf(args[i]);
+				if (arg.startsWith(key + "=")) {
+					return arg.substring(key.length() + 1);
+				}
+			}
+		}
+		return defaultValue;
 	}
 
 	protected void takeDown() {
 		send(aMSSubscriber.getCancel());
+		// Arrêt normal : les standbys ne nous remplacent pas
+		replicaServer.release();
+		try {
+			DFService.deregister(this);
+		}
+		catch (FIPAException fe) {
+			fe.printStackTrace();
+		}
+		workerThreads.interrupt();
+		if (history != null) {
+			history.close();
+		}
+		if (roster != null) {
+			roster.close();
+		}
+		try {
+			mailbox.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		metrics.unregister();
 	}
 
+	/**
+	 * Cyclic behaviour relayant les messages du chat général. Le client n'envoie qu'un
+	 * seul message au manager, qui se charge de la diffusion à partir de sa propre liste
+	 * de participants : le coût d'envoi côté client ne dépend plus de la taille du salon.
+	 * Les messages des inscrits locaux sont aussi transmis aux autres managers, qui les
+	 * relaient à leurs propres inscrits. Le manager est l'expéditeur du message transmis,
+	 * l'auteur étant donné par le paramètre "chat-speaker" ; ces paramètres ne sont
+	 * acceptés que des managers connus par le DF.
+	 */
+	class ChatRelay extends CyclicBehaviour {
+		private MessageTemplate template = MessageTemplate.and(
+				MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+				MessageTemplate.MatchConversationId(CHAT_ID));
 
+		ChatRelay(Agent a) {
+			super(a);
+		}
 
-	public boolean register(Subscription s) throws RefuseException, NotUnderstoodException { 
-		try {
-			AID newId = s.getMessage().getSender();
-			// Notifie les participants de l'arrivée d'un nouvel agent.
-			if (!participants.isEmpty()) {
-				// Message pour le nouvel arrivant
-				ACLMessage notif1 = s.getMessage().createReply();
-				notif1.setPerformative(ACLMessage.INFORM);
-
-				// Message pour les "anciens" participants
-				ACLMessage notif2 = (ACLMessage) notif1.clone();
-				notif2.clearAllReceiver();
-				Joined joined = new Joined();
-				List<AID> who = new ArrayList<AID>(1);
-				who.add(newId);
-				joined.setWho(who);
-				getContentManager().fillContent(notif2, joined);
-
-				who.clear();
+		public void action() {
+			ACLMessage msg = myAgent.receive(template);
+			if (msg != null) {
+				boolean relayed = false;
+				if (msg.getUserDefinedParameter(RELAYED) != null) {
+					String speaker = msg.getUserDefinedParameter(SPEAKER);
+					if (peers.contains(msg.getSender()) && speaker != null) {
+						// L'auteur redevient l'expéditeur pour que les clients affichent le bon pseudo
+						relayed = true;
+						msg.setSender(new AID(speaker, AID.ISGUID));
+					}
+					else {
+						// Seuls les autres managers peuvent transmettre le message d'un autre agent
+						forgedRelays.incrementAndGet();
+						return;
+					}
+					msg.removeUserDefinedParameter(RELAYED);
+					msg.removeUserDefinedParameter(SPEAKER);
+				}
+				AID sender = msg.getSender();
+				// Seuls les participants inscrits peuvent parler sur le chat général
+				if (!relayed && !participants.containsKey(sender)) {
+					return;
+				}
+				// Un message, même refusé, montre que le participant est toujours là
+				if (!relayed) {
+					leases.renew(sender, System.currentTimeMillis());
+				}
+				// Les messages transmis par les autres managers sont aussi limités, par auteur et
+				// pour le salon : la limite du salon porte sur l'ensemble des messages relayés
+				long now = System.nanoTime();
+				int limit = chatLimiter.tryAcquire(sender, now);
+				if (limit != RateLimiter.ALLOWED) {
+					refuseThrottled(msg, limit, chatLimiter.getWaitMillis(sender, limit, now));
+					return;
+				}
+				String text;
+				try {
+					text = TextCompressor.getText(msg);
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+					return;
+				}
+				if (history != null && text != null) {
+					try {
+						long offset = history.append(sender.getName(), text, System.currentTimeMillis());
+						msg.addUserDefinedParameter(OFFSET, String.valueOf(offset));
+					}
+					catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				// L'expéditeur d'origine est conservé pour que les clients affichent le bon pseudo
+				msg.clearAllReceiver();
+				if (!relayed) {
+					if (!peers.isEmpty()) {
+						// Le manager est l'expéditeur du message transmis : les autres managers
+						// n'acceptent ces paramètres que de lui
+						ACLMessage toPeers = (ACLMessage) msg.clone();
+						toPeers.setSender(getAID());
+						toPeers.addUserDefinedParameter(RELAYED, getLocalName());
+						toPeers.addUserDefinedParameter(SPEAKER, sender.getName());
+						Iterator<AID> itp = peers.iterator();
+						while (itp.hasNext()) {
+							toPeers.addReceiver(itp.next());
+						}
+						send(toPeers);
+					}
+				}
+				long seq = retransmitWindow.getLast() + 1;
+				msg.addUserDefinedParameter(SEQ, String.valueOf(seq));
+				msg.addUserDefinedParameter(STREAM, stream);
+				// Les participants acceptant la compression reçoivent le texte compressé ;
+				// l'expéditeur ne reçoit son message que s'il gère les numéros de séquence
+				List<AID> receivers = new ArrayList<AID>(participants.size());
+				List<AID> compressedReceivers = new ArrayList<AID>(compressionAccepted.size());
 				Iterator<AID> it = participants.keySet().iterator();
 				while (it.hasNext()) {
-					AID oldId = it.next();
-					
-					// On notifie les anciens participants
-					Subscription oldS = (Subscription) participants.get(oldId);
-					oldS.notify(notif2);
-					
-					who.add(oldId);
+					AID id = it.next();
+					if (!id.equals(sender) || sequenced.contains(id)) {
+						(compressionAccepted.contains(id) ? compressedReceivers : receivers).add(id);
+					}
+				}
+				relayedMessages.incrementAndGet();
+				relayFanOut.record(receivers.size() + compressedReceivers.size() + (relayed ? 0 : peers.size()));
+				// Les messages ne sont plus modifiés une fois confiés au dispatcher
+				ACLMessage compressed = null;
+				if (TextCompressor.isCompressed(msg)) {
+					compressed = msg;
+					msg = (ACLMessage) msg.clone();
+					msg.setContent(text);
+					msg.removeUserDefinedParameter(TextCompressor.ENCODING);
+				}
+				else if (!compressedReceivers.isEmpty()) {
+					byte[] bytes = TextCompressor.compress(text);
+					if (bytes != null) {
+						compressed = (ACLMessage) msg.clone();
+						compressed.setByteSequenceContent(bytes);
+						compressed.addUserDefinedParameter(TextCompressor.ENCODING, TextCompressor.SCHEME);
+					}
+				}
+				if (compressed != null && !compressedReceivers.isEmpty()) {
+					compressedRelays.incrementAndGet();
+					compressionSavedBytes.addAndGet((long) compressedReceivers.size()
+							* (TextCompressor.sizeOf(text) - compressed.getByteSequenceContent().length));
+					dispatcher.relay(compressed, compressedReceivers);
+				}
+				else {
+					receivers.addAll(compressedReceivers);
 				}
+				if (!receivers.isEmpty()) {
+					dispatcher.relay(msg, receivers);
+				}
+				retransmitWindow.add(seq, msg);
+				checkLaggards();
+			}
+			else {
+				block();
+			}
+		}
+	}
 
-				// On notifie le nouveau participant
-				getContentManager().fillContent(notif1, joined);
-				s.notify(notif1);
+	private static long parseSeq(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Cyclic behaviour servant les demandes de retransmission (REQUEST sur la conversation
+	 * du chat général, contenu "premier dernier") à partir de la fenêtre de retransmission.
+	 * Les messages sont renvoyés tels qu'ils ont été relayés, après un éventuel FAILURE
+	 * donnant le premier numéro encore disponible.
+	 */
+	class RetransmitServer extends CyclicBehaviour {
+		private MessageTemplate template = MessageTemplate.and(
+				MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
+				MessageTemplate.MatchConversationId(CHAT_ID));
+
+		RetransmitServer(Agent a) {
+			super(a);
+		}
+
+		public void action() {
+			ACLMessage msg = myAgent.receive(template);
+			if (msg != null) {
+				AID sender = msg.getSender();
+				if (!participants.containsKey(sender)) {
+					return;
+				}
+				retransmitRequests.incrementAndGet();
+				long from = -1;
+				long to = -1;
+				String content = msg.getContent();
+				int space = content != null ? content.indexOf(' ') : -1;
+				if (space > 0) {
+					from = parseSeq(content.substring(0, space));
+					to = parseSeq(content.substring(space + 1));
+				}
+				if (from < 1 || to < from) {
+					return;
+				}
+				List<AID> receiver = Collections.singletonList(sender);
+				long first = retransmitWindow.getFirst();
+				// Demande concernant un démarrage précédent ou des messages sortis de la fenêtre
+				if (!stream.equals(msg.getUserDefinedParameter(STREAM)) || from < first) {
+					retransmitMisses.incrementAndGet();
+					ACLMessage reply = msg.createReply();
+					reply.setPerformative(ACLMessage.FAILURE);
+					reply.setContent(String.valueOf(first));
+					reply.addUserDefinedParameter(STREAM, stream);
+					dispatcher.relay(reply, receiver);
+					if (!stream.equals(msg.getUserDefinedParameter(STREAM))) {
+						return;
+					}
+					from = first;
+				}
+				to = Math.min(to, retransmitWindow.getLast());
+				for (long seq = from; seq <= to; ++seq) {
+					dispatcher.relay(retransmitWindow.get(seq), receiver);
+					retransmitted.incrementAndGet();
+				}
+				checkLaggards();
 			}
-			
-			// Ajoute le nouvel inscrit dans la liste des participants
-			participants.put(newId, s);
-			return false;
+			else {
+				block();
+			}
+		}
+	}
+
+	/**
+	 * Répond à un message refusé faute de débit par un REFUSE en SL, compris par tous les
+	 * clients, contenant la limite dépassée et le délai avant de pouvoir parler à nouveau.
+	 */
+	void refuseThrottled(ACLMessage msg, int limit, long retryAfter) {
+		if (limit == RateLimiter.ROOM) {
+			throttledByRoom.incrementAndGet();
+		}
+		else {
+			throttledBySender.incrementAndGet();
+		}
+		ACLMessage reply = msg.createReply();
+		reply.setPerformative(ACLMessage.REFUSE);
+		reply.setLanguage(codec.getName());
+		reply.setOntology(ontology.getName());
+		Throttled t = new Throttled();
+		t.setScope(limit == RateLimiter.ROOM ? ChatVocabulary.THROTTLED_ROOM : ChatVocabulary.THROTTLED_SENDER);
+		t.setRetryAfter(retryAfter);
+		try {
+			getContentManager().fillContent(reply, t);
 		}
 		catch (Exception e) {
 			e.printStackTrace();
-			throw new RefuseException("Subscription error");
-		}		
+			return;
+		}
+		// Envoyé comme les autres messages, pour qu'un expéditeur qui ne lit plus rien
+		// soit détecté comme trop lent
+		dispatcher.relay(reply, Collections.singletonList(msg.getSender()));
+		checkLaggards();
+	}
+
+	/**
+	 * Behaviour suivant, via le DF, l'arrivée et le départ des autres managers.
+	 */
+	class PeerSubscriber extends DFSubscriber {
+
+		PeerSubscriber(Agent a) {
+			super(a, createTemplate());
+		}
+
+		public void onRegister(DFAgentDescription dfd) {
+			AID peer = dfd.getName();
+			if (!peer.equals(getAID()) && peers.add(peer)) {
+				// Le nouveau manager reçoit la liste de nos inscrits
+				if (!participants.isEmpty()) {
+					try {
+						Joined joined = new Joined();
+						joined.setWho(new ArrayList<AID>(participants.keySet()));
+						ACLMessage msg = createShardMessage();
+						msg.addReceiver(peer);
+						getContentManager().fillContent(msg, joined);
+						send(msg);
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+
+		public void onDeregister(DFAgentDescription dfd) {
+			AID peer = dfd.getName();
+			if (peers.remove(peer)) {
+				peerLeft(peer);
+			}
+		}
+	}
+
+	private static DFAgentDescription createTemplate() {
+		DFAgentDescription template = new DFAgentDescription();
+		ServiceDescription sd = new ServiceDescription();
+		sd.setType(ShardRing.SERVICE_TYPE);
+		template.addServices(sd);
+		return template;
+	}
+
+	/**
+	 * Cyclic behaviour recevant les arrivées et départs des inscrits des autres managers.
+	 */
+	class ShardListener extends CyclicBehaviour {
+		private MessageTemplate template = MessageTemplate.and(
+				MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+				MessageTemplate.MatchConversationId(SHARD_ID));
+
+		ShardListener(Agent a) {
+			super(a);
+		}
+
+		public void action() {
+			ACLMessage msg = myAgent.receive(template);
+			if (msg != null) {
+				AID peer = msg.getSender();
+				try {
+					AbsPredicate p = (AbsPredicate) getContentManager().extractAbsContent(msg);
+					boolean isJoined = p.getTypeName().equals(ChatOntology.JOINED);
+					AbsAggregate agg = (AbsAggregate) p.getAbsTerm(isJoined ? ChatOntology.JOINED_WHO : ChatOntology.LEFT_WHO);
+					if (agg != null) {
+						jade.util.leap.Iterator it = agg.iterator();
+						while (it.hasNext()) {
+							AID id = (AID) BasicOntology.getInstance().toObject((AbsObject) it.next());
+							if (isJoined) {
+								boolean wasPresent = isPresent(id);
+								remoteParticipants.put(id, peer);
+								mailboxServer.seen(id);
+								if (!wasPresent) {
+									presenceBatcher.remoteJoined(id);
+								}
+							}
+							// Un départ n'est pris en compte que s'il vient du manager actuel du participant
+							else if (peer.equals(remoteParticipants.get(id))) {
+								remoteParticipants.remove(id);
+								if (!isPresent(id)) {
+									presenceBatcher.remoteLeft(id);
+									chatLimiter.forget(id);
+								}
+							}
+						}
+					}
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			else {
+				block();
+			}
+		}
+	}
+
+	// Retire du salon les inscrits d'un manager qui a disparu
+	private void peerLeft(AID peer) {
+		Iterator<Map.Entry<AID, AID>> it = remoteParticipants.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<AID, AID> e = it.next();
+			if (e.getValue().equals(peer)) {
+				it.remove();
+				if (!participants.containsKey(e.getKey())) {
+					presenceBatcher.remoteLeft(e.getKey());
+					chatLimiter.forget(e.getKey());
+				}
+			}
+		}
+	}
+
+	boolean isPresent(AID id) {
+		return participants.containsKey(id) || remoteParticipants.containsKey(id);
+	}
+
+	private ACLMessage createShardMessage() {
+		ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+		msg.setConversationId(SHARD_ID);
+		msg.setLanguage(binaryCodec.getName());
+		msg.setOntology(ontology.getName());
+		return msg;
+	}
+
+	/**
+	 * Behaviour regroupant les arrivées et départs survenus pendant une fenêtre de temps.
+	 * Les participants déjà informés reçoivent un seul Joined et un seul Left contenant
+	 * tous les AID concernés ; les nouveaux arrivants reçoivent la liste complète, ou
+	 * seulement les changements depuis leur version s'ils reprennent leur session.
+	 * Chaque lot notifié donne une nouvelle version de la liste (voir RosterLog).
+	 * Les évènements concernant les inscrits locaux sont transmis de la même façon aux
+	 * autres managers.
+	 */
+	class PresenceBatcher extends TickerBehaviour {
+		private final int batchSize;
+		// Evènements à notifier aux inscrits locaux
+		private Set<AID> pendingJoined = new LinkedHashSet<AID>();
+		private Set<AID> pendingLeft = new LinkedHashSet<AID>();
+		// Evènements des inscrits locaux à transmettre aux autres managers
+		private Set<AID> shardJoined = new LinkedHashSet<AID>();
+		private Set<AID> shardLeft = new LinkedHashSet<AID>();
+		// Inscrits n'ayant pas encore reçu la liste des participants
+		private Map<AID, Subscription> newcomers = new LinkedHashMap<AID, Subscription>();
+		// Nouveaux inscrits reprenant leur session, associés à la dernière version reçue
+		private Map<AID, Long> resumed = new HashMap<AID, Long>();
+
+		PresenceBatcher(Agent a, long window, int batchSize) {
+			super(a, window);
+			this.batchSize = batchSize;
+		}
+
+		/**
+		 * @param resumeFrom version de la liste connue du participant reprenant sa session,
+		 * ou -1 pour lui envoyer la liste complète
+		 */
+		void joined(AID id, Subscription s, boolean announce, long resumeFrom) {
+			// Le nouvel inscrit est mis à part avant tout envoi : il ne reçoit pas sa propre
+			// arrivée dans un delta avant la liste complète
+			newcomers.put(id, s);
+			if (announce) {
+				addJoined(id);
+			}
+			if (resumeFrom >= 0) {
+				resumed.put(id, resumeFrom);
+			}
+			else {
+				resumed.remove(id);
+			}
+			if (!shardLeft.remove(id)) {
+				shardJoined.add(id);
+			}
+			checkSize();
+		}
+
+		void left(AID id, boolean announce) {
+			newcomers.remove(id);
+			resumed.remove(id);
+			if (announce) {
+				addLeft(id);
+			}
+			if (!shardJoined.remove(id)) {
+				shardLeft.add(id);
+			}
+			checkSize();
+		}
+
+		void remoteJoined(AID id) {
+			addJoined(id);
+			checkSize();
+		}
+
+		void remoteLeft(AID id) {
+			addLeft(id);
+			checkSize();
+		}
+
+		private void addJoined(AID id) {
+			// Un participant qui revient avant la notification de son départ n'a
+			// jamais quitté le salon pour les autres
+			if (!pendingLeft.remove(id)) {
+				pendingJoined.add(id);
+			}
+		}
+
+		private void addLeft(AID id) {
+			// Une arrivée suivie d'un départ dans la même fenêtre ne produit aucune notification
+			if (!pendingJoined.remove(id)) {
+				pendingLeft.add(id);
+			}
+		}
+
+		private void checkSize() {
+			if (pendingJoined.size() + pendingLeft.size() + newcomers.size()
+					+ shardJoined.size() + shardLeft.size() >= batchSize) {
+				flush();
+			}
+		}
+
+		protected void onTick() {
+			flush();
+		}
+
+		void flush() {
+			try {
+				if (!pendingJoined.isEmpty() || !pendingLeft.isEmpty()) {
+					List<AID> changed = new ArrayList<AID>(pendingJoined);
+					changed.addAll(pendingLeft);
+					rosterLog.add(changed);
+					// Delta pour les participants déjà informés
+					List<Subscription> established = new ArrayList<Subscription>(participants.size());
+					Iterator<Map.Entry<AID, Subscription>> it = participants.entrySet().iterator();
+					while (it.hasNext()) {
+						Map.Entry<AID, Subscription> e = it.next();
+						if (!newcomers.containsKey(e.getKey())) {
+							established.add(e.getValue());
+						}
+					}
+					if (!pendingJoined.isEmpty()) {
+						Joined joined = new Joined();
+						joined.setWho(new ArrayList<AID>(pendingJoined));
+						notifySubscribers(established, (AbsContentElement) ontology.fromObject(joined), false);
+					}
+					if (!pendingLeft.isEmpty()) {
+						Left left = new Left();
+						left.setWho(new ArrayList<AID>(pendingLeft));
+						notifySubscribers(established, (AbsContentElement) ontology.fromObject(left), false);
+					}
+				}
+
+				// Liste complète pour les nouveaux arrivants, et changements depuis leur
+				// version pour ceux qui reprennent leur session. Chaque client ignore son propre
+				// AID : la liste, qui le contient, n'est jamais vide et lui donne la version.
+				if (!newcomers.isEmpty()) {
+					List<Subscription> fresh = new ArrayList<Subscription>(newcomers.size());
+					Iterator<Map.Entry<AID, Subscription>> it = newcomers.entrySet().iterator();
+					while (it.hasNext()) {
+						Map.Entry<AID, Subscription> e = it.next();
+						Long from = resumed.get(e.getKey());
+						if (from != null && rosterLog.covers(from.longValue())) {
+							sendDelta(e.getKey(), e.getValue(), from.longValue());
+						}
+						else {
+							fresh.add(e.getValue());
+						}
+					}
+					if (!fresh.isEmpty()) {
+						Set<AID> all = new LinkedHashSet<AID>(participants.keySet());
+						all.addAll(remoteParticipants.keySet());
+						Joined joined = new Joined();
+						joined.setWho(new ArrayList<AID>(all));
+						notifySubscribers(fresh, (AbsContentElement) ontology.fromObject(joined), true);
+					}
+				}
+
+				// Delta des inscrits locaux pour les autres managers
+				if (!peers.isEmpty()) {
+					if (!shardJoined.isEmpty()) {
+						Joined joined = new Joined();
+						joined.setWho(new ArrayList<AID>(shardJoined));
+						sendToPeers(joined);
+					}
+					if (!shardLeft.isEmpty()) {
+						Left left = new Left();
+						left.setWho(new ArrayList<AID>(shardLeft));
+						sendToPeers(left);
+					}
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+			pendingJoined.clear();
+			pendingLeft.clear();
+			shardJoined.clear();
+			shardLeft.clear();
+			newcomers.clear();
+			resumed.clear();
+		}
+
+		// Envoie au participant reprenant sa session les participants arrivés ou partis
+		// depuis sa version
+		private void sendDelta(AID id, Subscription s, long from) throws Exception {
+			List<AID> joinedIds = new ArrayList<AID>();
+			List<AID> leftIds = new ArrayList<AID>();
+			joinedIds.add(id);
+			Iterator<AID> it = rosterLog.changedSince(from).iterator();
+			while (it.hasNext()) {
+				AID changed = it.next();
+				if (changed.equals(id)) {
+					continue;
+				}
+				if (isPresent(changed)) {
+					joinedIds.add(changed);
+				}
+				else {
+					leftIds.add(changed);
+				}
+			}
+			List<Subscription> target = Collections.singletonList(s);
+			if (!leftIds.isEmpty()) {
+				Left left = new Left();
+				left.setWho(leftIds);
+				notifySubscribers(target, (AbsContentElement) ontology.fromObject(left), false);
+			}
+			Joined joined = new Joined();
+			joined.setWho(joinedIds);
+			notifySubscribers(target, (AbsContentElement) ontology.fromObject(joined), false);
+		}
+
+		private void sendToPeers(jade.content.Predicate p) throws Exception {
+			ACLMessage msg = createShardMessage();
+			Iterator<AID> it = peers.iterator();
+			while (it.hasNext()) {
+				msg.addReceiver(it.next());
+			}
+			getContentManager().fillContent(msg, p);
+			send(msg);
+		}
+	}
+
+	public boolean register(Subscription s) throws RefuseException, NotUnderstoodException {
+		long start = System.nanoTime();
+		String language = s.getMessage().getLanguage();
+		if (language == null || getContentManager().lookupLanguage(language) == null) {
+			refusals.incrementAndGet();
+			throw new RefuseException("Unsupported language " + language);
+		}
+		// Une inscription doit pouvoir être sauvegardée et transmise aux standbys
+		if (!RosterStore.isStorable(s.getMessage())) {
+			refusals.incrementAndGet();
+			throw new RefuseException("Subscription too large");
+		}
+		AID newId = s.getMessage().getSender();
+		// Une nouvelle inscription repart sans retard, y compris après une éviction
+		dispatcher.setSuspended(newId, false);
+		// Bail des clients annonçant leurs battements de coeur
+		long heartbeat = getHeartbeat(s.getMessage());
+		if (heartbeat > 0 && leaseMisses > 0) {
+			leases.add(newId, heartbeat * leaseMisses, System.currentTimeMillis());
+		}
+		else {
+			leases.remove(newId);
+		}
+		// Un participant venant d'un autre manager est déjà connu des autres participants
+		boolean wasPresent = isPresent(newId);
+		// Ajoute le nouvel inscrit dans la liste des participants
+		participants.put(newId, s);
+		setCompressionAccepted(newId, s.getMessage());
+		setSequenced(newId, s.getMessage());
+		saveRoster(s, true);
+		// Notifie les participants de l'arrivée d'un nouvel agent. Un participant reprenant
+		// sa session ne reçoit que les changements et les messages manqués.
+		long resumeFrom = getResumeVersion(s.getMessage());
+		presenceBatcher.joined(newId, s, !wasPresent, resumeFrom);
+		if (resumeFrom >= 0) {
+			replayMissed(newId, s.getMessage());
+		}
+		mailboxServer.seen(newId);
+		mailboxServer.deliver(s.getMessage());
+		subscriptions.incrementAndGet();
+		registerTime.recordSince(start);
+		return false;
 	}
 
 	public boolean deregister(Subscription s) throws FailureException {
+		long start = System.nanoTime();
 		AID oldId = s.getMessage().getSender();
 		// Désinscrit un participant
 		if (participants.remove(oldId) != null) {
+			dispatcher.forget(oldId);
+			chatLimiter.forget(oldId);
+			leases.remove(oldId);
+			compressionAccepted.remove(oldId);
+			sequenced.remove(oldId);
+			saveRoster(s, false);
+			failures.remove(oldId);
+			degraded.remove(oldId);
 			// Notifie les autres participants du départ
-			if (!participants.isEmpty()) {
-				try {
-					ACLMessage notif = s.getMessage().createReply();
-					notif.setPerformative(ACLMessage.INFORM);
-					notif.clearAllReceiver();
-					AbsPredicate p = new AbsPredicate(ChatOntology.LEFT);
-					AbsAggregate agg = new AbsAggregate(BasicOntology.SEQUENCE);
-					agg.add((AbsTerm) BasicOntology.getInstance().fromObject(oldId));
-					p.set(ChatOntology.LEFT_WHO, agg);
-					getContentManager().fillContent(notif, p);
-
-					Iterator it = participants.values().iterator();
-					while (it.hasNext()) {
-						Subscription s1 = (Subscription) it.next();
-						s1.notify(notif);
+			presenceBatcher.left(oldId, !isPresent(oldId));
+			cancellations.incrementAndGet();
+			deregisterTime.recordSince(start);
+		}
+		return false;
+	}
+
+	/**
+	 * Reconstruit les inscriptions sauvegardées. Les autres participants les connaissent
+	 * déjà : aucune notification n'est envoyée. Les inscrits disparus pendant l'arrêt du
+	 * manager sont retirés au premier échec de livraison ou à l'expiration de leur bail.
+	 */
+	private void restoreParticipants(List<ACLMessage> saved) {
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < saved.size(); ++i) {
+			ACLMessage msg = saved.get(i);
+			Subscription s = responder.createSubscription(msg);
+			participants.put(msg.getSender(), s);
+			mailboxServer.seen(msg.getSender());
+			setCompressionAccepted(msg.getSender(), msg);
+			setSequenced(msg.getSender(), msg);
+			long heartbeat = getHeartbeat(msg);
+			if (heartbeat > 0 && leaseMisses > 0) {
+				leases.add(msg.getSender(), heartbeat * leaseMisses, now);
+			}
+		}
+		restoredParticipants.addAndGet(saved.size());
+	}
+
+	/**
+	 * Sauvegarde une inscription ou une désinscription et la transmet aux standbys. La
+	 * modification leur est envoyée avant les notifications qu'elle entraîne.
+	 */
+	private void saveRoster(Subscription s, boolean added) {
+		if (roster != null) {
+			try {
+				if (added) {
+					roster.added(s.getMessage());
+				}
+				else {
+					roster.removed(s.getMessage().getSender());
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		replicaServer.update(s.getMessage(), added);
+	}
+
+	private void setCompressionAccepted(AID id, ACLMessage subscription) {
+		if (TextCompressor.accepts(subscription)) {
+			compressionAccepted.add(id);
+		}
+		else {
+			compressionAccepted.remove(id);
+		}
+	}
+
+	private void setSequenced(AID id, ACLMessage subscription) {
+		if (subscription.getUserDefinedParameter(SEQUENCED) != null) {
+			sequenced.add(id);
+		}
+		else {
+			sequenced.remove(id);
+		}
+	}
+
+	/**
+	 * Renvoie la version de la liste des participants à partir de laquelle reprend la
+	 * session indiquée dans le SUBSCRIBE, ou -1 si le client doit recevoir la liste complète.
+	 */
+	private long getResumeVersion(ACLMessage subscription) {
+		String version = subscription.getUserDefinedParameter(ROSTER_VERSION);
+		if (version == null) {
+			return -1;
+		}
+		long from = parseSeq(version);
+		if (from >= 0 && stream.equals(subscription.getUserDefinedParameter(SESSION)) && rosterLog.covers(from)) {
+			resumedSessions.incrementAndGet();
+			return from;
+		}
+		resumeFailures.incrementAndGet();
+		return -1;
+	}
+
+	// Renvoie au participant reprenant sa session les messages du chat général qui suivent
+	// le dernier numéro reçu, tant qu'ils sont dans la fenêtre de retransmission. Pour les
+	// plus anciens, le client recevra un FAILURE s'il les redemande.
+	private void replayMissed(AID id, ACLMessage subscription) {
+		String seq = subscription.getUserDefinedParameter(SEQ);
+		if (seq == null || !sequenced.contains(id) || !stream.equals(subscription.getUserDefinedParameter(STREAM))) {
+			return;
+		}
+		List<AID> receiver = Collections.singletonList(id);
+		long to = retransmitWindow.getLast();
+		for (long i = Math.max(parseSeq(seq) + 1, retransmitWindow.getFirst()); i <= to; ++i) {
+			dispatcher.relay(retransmitWindow.get(i), receiver);
+			retransmitted.incrementAndGet();
+		}
+	}
+
+	private static long getHeartbeat(ACLMessage subscription) {
+		String value = subscription.getUserDefinedParameter(HEARTBEAT);
+		if (value != null) {
+			try {
+				return Long.parseLong(value.trim());
+			}
+			catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Cyclic behaviour recevant les battements de coeur des participants. Un battement
+	 * d'un agent qui n'est pas (ou plus) inscrit reçoit un FAILURE : le client sait ainsi
+	 * qu'il doit se réinscrire, par exemple après l'expiration de son bail.
+	 */
+	class HeartbeatServer extends CyclicBehaviour {
+		private MessageTemplate template = MessageTemplate.and(
+				MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+				MessageTemplate.MatchConversationId(HEARTBEAT_ID));
+
+		HeartbeatServer(Agent a) {
+			super(a);
+		}
+
+		public void action() {
+			ACLMessage msg = myAgent.receive(template);
+			if (msg != null) {
+				heartbeats.incrementAndGet();
+				AID sender = msg.getSender();
+				if (participants.containsKey(sender)) {
+					leases.renew(sender, System.currentTimeMillis());
+					// Le participant a manqué les derniers messages du chat général : on lui
+					// indique le dernier numéro, après les messages qui lui ont été envoyés
+					String seq = msg.getUserDefinedParameter(SEQ);
+					if (seq != null && stream.equals(msg.getUserDefinedParameter(STREAM))
+							&& parseSeq(seq) < retransmitWindow.getLast()) {
+						ACLMessage reply = msg.createReply();
+						reply.addUserDefinedParameter(SEQ, String.valueOf(retransmitWindow.getLast()));
+						reply.addUserDefinedParameter(STREAM, stream);
+						dispatcher.relay(reply, Collections.singletonList(sender));
+					}
+				}
+				else {
+					ACLMessage reply = msg.createReply();
+					reply.setPerformative(ACLMessage.FAILURE);
+					reply.setContent("not subscribed");
+					dispatcher.relay(reply, Collections.singletonList(sender));
+				}
+			}
+			else {
+				block();
+			}
+		}
+	}
+
+	/**
+	 * Behaviour retirant du salon les participants dont le bail a expiré.
+	 */
+	class LeaseExpirer extends TickerBehaviour {
+
+		LeaseExpirer(Agent a, long period) {
+			super(a, period);
+		}
+
+		protected void onTick() {
+			List<AID> expired = leases.expire(System.currentTimeMillis());
+			for (int i = 0; i < expired.size(); ++i) {
+				Subscription s = participants.get(expired.get(i));
+				if (s != null) {
+					leaseExpirations.incrementAndGet();
+					s.close();
+					try {
+						deregister(s);
+					}
+					catch (FailureException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Notifie un ensemble d'abonnés, en encodant le contenu une fois par langage.
+	 * Une liste complète des participants (snapshot) est aussi envoyée aux participants
+	 * ralentis.
+	 */
+	private void notifySubscribers(Collection<Subscription> targets, AbsContentElement content, boolean snapshot) throws Exception {
+		Map<String, ACLMessage> notifs = new HashMap<String, ACLMessage>(2);
+		Iterator<Subscription> it = targets.iterator();
+		while (it.hasNext()) {
+			ACLMessage notif = getNotification(notifs, it.next(), content);
+			if (snapshot) {
+				notif.addUserDefinedParameter(SNAPSHOT, "true");
+				notif.addUserDefinedParameter(TextCompressor.ACCEPT, TextCompressor.SCHEME);
+			}
+		}
+		// Les réponses à chaque abonné sont construites et envoyées par le dispatcher
+		dispatcher.notify(targets, notifs, snapshot);
+		notifications.addAndGet(targets.size());
+		notificationFanOut.record(targets.size());
+		checkLaggards();
+	}
+
+	/**
+	 * Renvoie la notification destinée à un abonné dans le langage choisi lors de son
+	 * inscription. Le contenu n'est encodé qu'une fois par langage.
+	 */
+	private ACLMessage getNotification(Map<String, ACLMessage> notifs, Subscription s, AbsContentElement content) throws Exception {
+		String language = s.getMessage().getLanguage();
+		ACLMessage notif = notifs.get(language);
+		if (notif == null) {
+			notif = new ACLMessage(ACLMessage.INFORM);
+			notif.setLanguage(language);
+			notif.setOntology(ontology.getName());
+			notif.addUserDefinedParameter(SESSION, stream);
+			notif.addUserDefinedParameter(ROSTER_VERSION, String.valueOf(rosterLog.getVersion()));
+			getContentManager().fillContent(notif, content);
+			notifs.put(language, notif);
+		}
+		return notif;
+	}
+
+	// Traite les participants dont les envois en attente ont dépassé maxOutstanding
+	private void checkLaggards() {
+		List<AID> laggards = dispatcher.takeLaggards();
+		for (int i = 0; i < laggards.size(); ++i) {
+			slowConsumer(laggards.get(i));
+		}
+	}
+
+	/**
+	 * Ecarte un participant trop lent : ses envois en attente sont abandonnés, puis il est
+	 * soit désinscrit (les autres reçoivent un Left et lui un FAILURE), soit limité à la
+	 * liste des participants envoyée par le SnapshotSender.
+	 */
+	private void slowConsumer(AID id) {
+		Subscription s = participants.get(id);
+		if (s == null || degraded.containsKey(id)) {
+			return;
+		}
+		dispatcher.setSuspended(id, true);
+		failures.remove(id);
+		if (evictSlowConsumers) {
+			evictions.incrementAndGet();
+			ACLMessage failure = new ACLMessage(ACLMessage.FAILURE);
+			failure.setLanguage(s.getMessage().getLanguage());
+			failure.setOntology(ontology.getName());
+			failure.setContent("slow consumer");
+			Map<String, ACLMessage> notifs = new HashMap<String, ACLMessage>(1);
+			notifs.put(failure.getLanguage(), failure);
+			dispatcher.notify(Collections.singletonList(s), notifs, true);
+			s.close();
+			try {
+				deregister(s);
+			}
+			catch (FailureException e) {
+				e.printStackTrace();
+			}
+		}
+		else {
+			degradations.incrementAndGet();
+			degraded.put(id, Boolean.FALSE);
+		}
+	}
+
+	/**
+	 * Cyclic behaviour comptant les échecs de livraison aux participants, signalés par
+	 * l'AMS dans des FAILURE dont le contenu désigne le destinataire (MTS-error).
+	 */
+	class DeliveryFailureListener extends CyclicBehaviour {
+		private MessageTemplate template;
+
+		DeliveryFailureListener(Agent a) {
+			super(a);
+		}
+
+		public void onStart() {
+			template = MessageTemplate.and(
+					MessageTemplate.and(
+							MessageTemplate.MatchPerformative(ACLMessage.FAILURE),
+							MessageTemplate.MatchSender(getAMS())),
+					MessageTemplate.not(MessageTemplate.or(
+							MessageTemplate.MatchConversationId(AMSSubscriber.AMS_SUBSCRIPTION),
+							MessageTemplate.MatchConversationId(AMSSubscriber.PLATFORM_EVENTS))));
+		}
+
+		public void action() {
+			ACLMessage msg = myAgent.receive(template);
+			if (msg != null) {
+				AID id = getFailedReceiver(msg.getContent());
+				if (id != null && participants.containsKey(id)) {
+					deliveryFailures.incrementAndGet();
+					if (msg.getContent().indexOf(AGENT_NOT_FOUND) >= 0) {
+						// L'agent n'existe plus, par exemple un inscrit restauré qui a disparu
+						// pendant l'arrêt du manager : il est retiré comme après un DEADAGENT
+						Subscription s = participants.get(id);
+						s.close();
+						try {
+							deregister(s);
+						}
+						catch (FailureException e) {
+							e.printStackTrace();
+						}
+						return;
+					}
+					Integer count = failures.get(id);
+					count = count == null ? 1 : count + 1;
+					failures.put(id, count);
+					if (maxFailures > 0 && count >= maxFailures) {
+						slowConsumer(id);
 					}
 				}
+			}
+			else {
+				block();
+			}
+		}
+	}
+
+	private static AID getFailedReceiver(String content) {
+		if (content == null) {
+			return null;
+		}
+		Matcher m = MTS_ERROR.matcher(content);
+		if (!m.find()) {
+			return null;
+		}
+		String name = m.group(1);
+		if (name.startsWith("\"")) {
+			name = name.substring(1, name.length() - 1).replace("\\\"", "\"");
+		}
+		return new AID(name, AID.ISGUID);
+	}
+
+	/**
+	 * Behaviour envoyant périodiquement la liste complète des participants aux participants
+	 * ralentis dont les envois en attente ont été traités. Un participant qui n'a subi aucun
+	 * échec de livraison depuis le snapshot précédent reçoit de nouveau tous les messages.
+	 */
+	class SnapshotSender extends TickerBehaviour {
+
+		SnapshotSender(Agent a, long period) {
+			super(a, period);
+		}
+
+		protected void onTick() {
+			if (degraded.isEmpty()) {
+				return;
+			}
+			List<Subscription> targets = new ArrayList<Subscription>();
+			Iterator<Map.Entry<AID, Boolean>> it = degraded.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<AID, Boolean> e = it.next();
+				AID id = e.getKey();
+				if (dispatcher.getOutstanding(id) > 0) {
+					// Le snapshot précédent n'est pas encore parti
+					continue;
+				}
+				targets.add(participants.get(id));
+				if (failures.remove(id) == null && e.getValue().booleanValue()) {
+					it.remove();
+					dispatcher.setSuspended(id, false);
+				}
+				else {
+					e.setValue(Boolean.TRUE);
+				}
+			}
+			if (!targets.isEmpty()) {
+				try {
+					Set<AID> all = new LinkedHashSet<AID>(participants.keySet());
+					all.addAll(remoteParticipants.keySet());
+					Joined joined = new Joined();
+					joined.setWho(new ArrayList<AID>(all));
+					notifySubscribers(targets, (AbsContentElement) ontology.fromObject(joined), true);
+				}
 				catch (Exception e) {
 					e.printStackTrace();
 				}
 			}
 		}
-		return false;
 	}
 }
@@ -0,0 +1,283 @@
+package chat.manager;
+
+import jade.core.Agent;
+import jade.core.AID;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.TickerBehaviour;
+
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import jade.domain.introspection.IntrospectionOntology;
+import jade.domain.introspection.Event;
+import jade.domain.introspection.DeadAgent;
+import jade.domain.introspection.AMSSubscriber;
+
+import jade.util.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import chat.metrics.Gauge;
+import chat.metrics.Histogram;
+import chat.metrics.Metrics;
+import chat.metrics.MetricsServer;
+
+/**
+ * Agent de secours d'un ChatManagerAgent, éventuellement démarré dans un autre conteneur.
+ *
+ * Le standby reçoit du manager la liste de ses inscrits puis chacune de ses modifications.
+ * Lorsque l'AMS signale la disparition du manager (DEADAGENT), le standby crée dans son
+ * propre conteneur un nouveau ChatManagerAgent portant le même nom, auquel il transmet
+ * cette liste : les clients, qui s'adressent au manager par son nom, continuent de recevoir
+ * leurs notifications sans se réinscrire. Le standby se rattache ensuite au nouveau manager
+ * et peut donc assurer plusieurs reprises successives.
+ *
+ * Le manager n'accepte que les standbys nommés par son argument standbys. Lorsqu'il est
+ * arrêté normalement, il envoie un CANCEL à ses standbys, qui ne le recréent pas et
+ * attendent qu'il soit redémarré pour s'y rattacher.
+ *
+ * Arguments optionnels (de la forme cle=valeur) :
+ * - primary : nom local du manager surveillé ("manager" par défaut) ;
+ * - replicaRetry : période en ms des demandes de réplication tant que le manager n'a pas
+ *   répondu (1000 par défaut) ;
+ * - metricsPort : voir ChatManagerAgent.
+ * Les autres arguments sont transmis au manager créé lors d'une reprise, en y ajoutant
+ * standbys=<nom du standby> s'ils ne nomment aucun standby.
+ */
+public class ChatStandbyAgent extends Agent {
+
+	private Logger logger = Logger.getMyLogger(this.getClass().getName());
+	private AID primary;
+	// Inscriptions du manager, indexées par nom du participant
+	private Map<String, ACLMessage> replica = new LinkedHashMap<String, ACLMessage>();
+	// Vrai lorsque le manager a envoyé la liste complète de ses inscrits
+	private boolean attached;
+	// Vrai lorsque le manager a signalé son arrêt normal
+	private boolean released;
+	private MessageTemplate releaseTemplate;
+	private AMSSubscriber aMSSubscriber;
+
+	private Metrics metrics;
+	private AtomicLong replicaUpdates;
+	private AtomicLong takeovers;
+	private Histogram takeoverTime;
+
+	protected void setup() {
+		primary = new AID(getStringArgument("primary", "manager"), AID.ISLOCALNAME);
+		releaseTemplate = MessageTemplate.and(
+				MessageTemplate.MatchConversationId(ChatManagerAgent.REPLICA_ID),
+				MessageTemplate.and(
+						MessageTemplate.MatchPerformative(ACLMessage.CANCEL),
+						MessageTemplate.MatchSender(primary)));
+
+		metrics = new Metrics("chat_standby", "ChatStandbyAgent", getLocalName());
+		replicaUpdates = metrics.counter("replica_updates_total", "Roster updates received from the manager");
+		takeovers = metrics.counter("takeovers_total", "Managers recreated after their disappearance");
+		takeoverTime = metrics.histogram("takeover_micros", "Time spent recreating the manager, in microseconds");
+		metrics.gauge("replicated_participants", "Participants in the replicated roster", new Gauge() {
+			public long getValue() {
+				return replica.size();
+			}
+		});
+		metrics.register();
+		long port = getLongArgument("metricsPort", 0);
+		if (port > 0) {
+			MetricsServer.start((int) port);
+		}
+
+		// Détection de la disparition du manager, comme pour les participants
+		aMSSubscriber = new AMSSubscriber() {
+			// La signature brute est imposée par AMSSubscriber
+			@SuppressWarnings({"rawtypes", "unchecked"})
+			protected void installHandlers(Map handlersTable) {
+				Map<String, EventHandler> handlers = handlersTable;
+				handlers.put(IntrospectionOntology.DEADAGENT, new EventHandler() {
+					public void handle(Event ev) {
+						DeadAgent da = (DeadAgent) ev;
+						if (da.getAgent().equals(primary)) {
+							// Le CANCEL du manager peut encore être dans la file
+							if (receive(releaseTemplate) != null) {
+								release();
+							}
+							if (!released) {
+								takeOver();
+							}
+						}
+					}
+				});
+			}
+		};
+		addBehaviour(aMSSubscriber);
+
+		addBehaviour(new ReplicaListener(this));
+		ReplicaRequester requester = new ReplicaRequester(this, getLongArgument("replicaRetry", 1000));
+		addBehaviour(requester);
+		requester.onTick();
+	}
+
+	protected void takeDown() {
+		send(aMSSubscriber.getCancel());
+		ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+		cancel.setConversationId(ChatManagerAgent.REPLICA_ID);
+		cancel.addReceiver(primary);
+		send(cancel);
+		metrics.unregister();
+	}
+
+	/**
+	 * Le manager s'est arrêté normalement : il ne sera pas recréé, et ses prochains démarrages
+	 * seront suivis.
+	 */
+	private void release() {
+		released = true;
+		attached = false;
+	}
+
+	/**
+	 * Recrée le manager disparu avec les inscriptions répliquées.
+	 */
+	private void takeOver() {
+		long start = System.nanoTime();
+		attached = false;
+		Object[] args = getArguments();
+		List<Object> managerArgs = new ArrayList<Object>();
+		if (args != null) {
+			for (int i = 0; i < args.length; ++i) {
+				if (!String.valueOf(args[i]).startsWith("primary=")) {
+					managerArgs.add(args[i]);
+				}
+			}
+		}
+		// Sans cela le nouveau manager refuserait de nous rattacher
+		if (getStringArgument("standbys", null) == null) {
+			managerArgs.add("standbys=" + getLocalName());
+		}
+		managerArgs.add(new ArrayList<ACLMessage>(replica.values()));
+		try {
+			getContainerController().createNewAgent(primary.getLocalName(), ChatManagerAgent.class.getName(),
+					managerArgs.toArray()).start();
+			takeovers.incrementAndGet();
+			takeoverTime.recordSince(start);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Ticker behaviour demandant au manager de nous transmettre ses inscrits, jusqu'à ce
+	 * qu'il ait répondu. Les demandes envoyées pendant son absence échouent simplement.
+	 */
+	class ReplicaRequester extends TickerBehaviour {
+
+		ReplicaRequester(Agent a, long period) {
+			super(a, period);
+		}
+
+		protected void onTick() {
+			if (!attached) {
+				ACLMessage request = new ACLMessage(ACLMessage.REQUEST);
+				request.setConversationId(ChatManagerAgent.REPLICA_ID);
+				request.addReceiver(primary);
+				send(request);
+			}
+		}
+	}
+
+	/**
+	 * Cyclic behaviour recevant la liste des inscrits (AGREE) puis ses modifications
+	 * (INFORM), l'arrêt normal du manager (CANCEL), ainsi que les refus et échecs des
+	 * demandes de réplication.
+	 */
+	class ReplicaListener extends CyclicBehaviour {
+		private MessageTemplate template = MessageTemplate.MatchConversationId(ChatManagerAgent.REPLICA_ID);
+		// Vrai lorsque le refus du manager a déjà été signalé
+		private boolean refused;
+
+		ReplicaListener(Agent a) {
+			super(a);
+		}
+
+		public void action() {
+			ACLMessage msg = myAgent.receive(template);
+			if (msg != null) {
+				int performative = msg.getPerformative();
+				if (msg.getSender().equals(primary) && performative == ACLMessage.CANCEL) {
+					release();
+					return;
+				}
+				if (msg.getSender().equals(primary) && performative == ACLMessage.REFUSE && !refused) {
+					// Les demandes continuent, au cas où le manager serait redémarré avec
+					// le bon argument standbys
+					logger.log(Logger.WARNING, "Replication refused by " + primary.getLocalName()
+							+ ": " + getLocalName() + " is missing from its standbys argument");
+					refused = true;
+					return;
+				}
+				if (!msg.getSender().equals(primary) || msg.getByteSequenceContent() == null
+						|| (performative != ACLMessage.AGREE && performative != ACLMessage.INFORM)) {
+					// FAILURE de l'AMS lorsque le manager n'est pas (encore) démarré
+					return;
+				}
+				if (performative == ACLMessage.AGREE) {
+					replica.clear();
+					attached = true;
+					released = false;
+					refused = false;
+				}
+				else if (!attached) {
+					return;
+				}
+				try {
+					RosterStore.replay(new DataInputStream(new ByteArrayInputStream(msg.getByteSequenceContent())), replica);
+					replicaUpdates.incrementAndGet();
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			else {
+				block();
+			}
+		}
+	}
+
+	/**
+	 * Lit un argument numérique de la forme cle=valeur passé à l'agent.
+	 */
+	private long getLongArgument(String key, long defaultValue) {
+		String value = getStringArgument(key, null);
+		if (value != null) {
+			try {
+				return Long.parseLong(value.trim());
+			}
+			catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * Lit un argument de la forme cle=valeur passé à l'agent.
+	 */
+	private String getStringArgument(String key, String defaultValue) {
+		Object[] args = getArguments();
+		if (args != null) {
+			for (int i = 0; i < args.length; ++i) {
+				String arg = String.valueOf(args[i]);
+				if (arg.startsWith(key + "=")) {
+					return arg.substring(key.length() + 1);
+				}
+			}
+		}
+		return defaultValue;
+	}
+}
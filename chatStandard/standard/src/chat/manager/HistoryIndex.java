@@ -0,0 +1,252 @@
+package chat.manager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+/**
+ * Index inversé des messages du chat général : à chaque mot est associée la liste des
+ * offsets (dans l'historique) des messages qui le contiennent.
+ *
+ * L'index est découpé en blocs de BLOCK_MESSAGES offsets consécutifs. Dans un bloc, la
+ * liste d'un mot est codée par différences successives en entiers de longueur variable
+ * (un octet pour des messages proches), et la date de chaque message est conservée afin
+ * de filtrer les résultats par période. Lorsque la taille estimée de l'index dépasse
+ * memoryBudget octets, les blocs les plus anciens sont abandonnés : les recherches ne
+ * portent alors que sur les messages récents (voir getFirstOffset()).
+ *
+ * L'index n'est pas synchronisé : il est alimenté et interrogé par un même thread.
+ */
+class HistoryIndex {
+	static final int BLOCK_MESSAGES = 4096;
+	// Les mots plus courts ne sont pas indexés, les plus longs sont tronqués
+	static final int MIN_TERM_LENGTH = 2;
+	static final int MAX_TERM_LENGTH = 32;
+	// Taille estimée d'une entrée de la table des mots, hors caractères et liste
+	private static final int TERM_OVERHEAD = 96;
+
+	private final long memoryBudget;
+	// Blocs du plus ancien au plus récent
+	private final LinkedList<Block> blocks = new LinkedList<Block>();
+	private long memoryBytes;
+	private long terms;
+
+	private static class Block {
+		final long base;
+		final long[] times = new long[BLOCK_MESSAGES];
+		// Nombre d'offsets couverts, à partir de base
+		int count;
+		long minTime = Long.MAX_VALUE;
+		long maxTime = Long.MIN_VALUE;
+		final Map<String, Posting> postings = new HashMap<String, Posting>();
+		long bytes = 8L * BLOCK_MESSAGES;
+
+		Block(long base) {
+			this.base = base;
+		}
+	}
+
+	// Liste des positions (offset - base du bloc) des messages contenant un mot
+	private static class Posting {
+		byte[] data = new byte[4];
+		int size;
+		int last = -1;
+		int count;
+	}
+
+	HistoryIndex(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Indexe un message. Les offsets doivent être croissants.
+	 */
+	void add(long offset, long time, String text) {
+		Block block = blocks.isEmpty() ? null : blocks.getLast();
+		if (block == null || offset - block.base >= BLOCK_MESSAGES || offset < block.base + block.count) {
+			block = new Block(offset);
+			blocks.add(block);
+			memoryBytes += block.bytes;
+		}
+		int local = (int) (offset - block.base);
+		block.times[local] = time;
+		block.count = local + 1;
+		block.minTime = Math.min(block.minTime, time);
+		block.maxTime = Math.max(block.maxTime, time);
+		List<String> words = tokenize(text);
+		for (int i = 0; i < words.size(); ++i) {
+			String word = words.get(i);
+			Posting p = block.postings.get(word);
+			if (p == null) {
+				p = new Posting();
+				block.postings.put(word, p);
+				long bytes = TERM_OVERHEAD + 2 * word.length() + p.data.length;
+				block.bytes += bytes;
+				memoryBytes += bytes;
+				terms++;
+			}
+			if (p.last != local) {
+				int before = p.data.length;
+				append(p, local - p.last);
+				p.last = local;
+				p.count++;
+				block.bytes += p.data.length - before;
+				memoryBytes += p.data.length - before;
+			}
+		}
+		while (memoryBytes > memoryBudget && blocks.size() > 1) {
+			Block oldest = blocks.removeFirst();
+			memoryBytes -= oldest.bytes;
+			terms -= oldest.postings.size();
+		}
+	}
+
+	/**
+	 * Renvoie, du plus récent au plus ancien, au plus limit offsets de messages contenant
+	 * tous les mots, datés entre fromTime et toTime inclus et antérieurs à l'offset before.
+	 */
+	long[] search(List<String> words, long fromTime, long toTime, long before, int limit) {
+		long[] hits = new long[limit];
+		int n = 0;
+		if (words.isEmpty()) {
+			return new long[0];
+		}
+		ListIterator<Block> it = blocks.listIterator(blocks.size());
+		while (it.hasPrevious() && n < limit) {
+			Block block = it.previous();
+			if (block.base >= before || block.count == 0 || block.maxTime < fromTime || block.minTime > toTime) {
+				continue;
+			}
+			int[] matches = null;
+			for (int i = 0; i < words.size(); ++i) {
+				Posting p = block.postings.get(words.get(i));
+				if (p == null) {
+					matches = null;
+					break;
+				}
+				int[] positions = decode(p);
+				matches = matches == null ? positions : intersect(matches, positions);
+				if (matches.length == 0) {
+					break;
+				}
+			}
+			if (matches == null) {
+				continue;
+			}
+			for (int i = matches.length - 1; i >= 0 && n < limit; --i) {
+				long offset = block.base + matches[i];
+				long time = block.times[matches[i]];
+				if (offset < before && time >= fromTime && time <= toTime) {
+					hits[n++] = offset;
+				}
+			}
+		}
+		long[] result = new long[n];
+		System.arraycopy(hits, 0, result, 0, n);
+		return result;
+	}
+
+	/**
+	 * Offset du plus ancien message encore indexé, ou -1 si l'index est vide.
+	 */
+	long getFirstOffset() {
+		return blocks.isEmpty() ? -1 : blocks.getFirst().base;
+	}
+
+	long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	/**
+	 * Nombre de listes, un même mot ayant une liste par bloc.
+	 */
+	long getTermCount() {
+		return terms;
+	}
+
+	/**
+	 * Découpe un texte en mots indexables : suites de lettres et de chiffres, en
+	 * minuscules, chaque mot n'apparaissant qu'une fois.
+	 */
+	static List<String> tokenize(String text) {
+		List<String> words = new ArrayList<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); ++i) {
+			boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (letter && start < 0) {
+				start = i;
+			}
+			else if (!letter && start >= 0) {
+				if (i - start >= MIN_TERM_LENGTH) {
+					String word = text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase();
+					if (!words.contains(word)) {
+						words.add(word);
+					}
+				}
+				start = -1;
+			}
+		}
+		return words;
+	}
+
+	// Ajoute un entier positif codé sur 7 bits par octet, le bit de poids fort indiquant
+	// qu'un octet suit
+	private static void append(Posting p, int value) {
+		if (p.size + 5 > p.data.length) {
+			byte[] data = new byte[Math.max(p.data.length * 2, p.size + 5)];
+			System.arraycopy(p.data, 0, data, 0, p.size);
+			p.data = data;
+		}
+		while (value >= 0x80) {
+			p.data[p.size++] = (byte) (value | 0x80);
+			value >>>= 7;
+		}
+		p.data[p.size++] = (byte) value;
+	}
+
+	private static int[] decode(Posting p) {
+		int[] positions = new int[p.count];
+		int pos = 0;
+		int last = -1;
+		for (int i = 0; i < p.count; ++i) {
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = p.data[pos++];
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			}
+			while (b < 0);
+			last += value;
+			positions[i] = last;
+		}
+		return positions;
+	}
+
+	private static int[] intersect(int[] a, int[] b) {
+		int[] result = new int[Math.min(a.length, b.length)];
+		int i = 0;
+		int j = 0;
+		int n = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				i++;
+			}
+			else if (a[i] > b[j]) {
+				j++;
+			}
+			else {
+				result[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		int[] trimmed = new int[n];
+		System.arraycopy(result, 0, trimmed, 0, n);
+		return trimmed;
+	}
+}
@@ -0,0 +1,174 @@
+package chat.manager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+
+import chat.history.HistoryBatch;
+
+/**
+ * Behaviour exécuté dans son propre thread, indexant les messages ajoutés à l'historique
+ * (voir HistoryIndex) puis servant les recherches en attente. L'historique sert de file :
+ * le relais n'attend jamais l'index, qui rattrape son retard toutes les INDEX_INTERVAL ms
+ * ou à l'arrivée d'une recherche. Au démarrage, l'historique conservé est réindexé.
+ *
+ * La réponse à une recherche donne l'offset de la page suivante et celui du plus ancien
+ * message indexé.
+ */
+class HistoryIndexer extends CyclicBehaviour implements HistoryBatch.Handler {
+	private static final String NEXT = "chat-next";
+	private static final String INDEXED_FROM = "chat-indexed-from";
+	// Recherches en attente au-delà desquelles les suivantes sont refusées
+	private static final int MAX_PENDING_SEARCHES = 100;
+	// Période en ms à laquelle l'index rattrape l'historique
+	private static final long INDEX_INTERVAL = 200;
+
+	private final ChatHistoryLog history;
+	private final AtomicLong indexed;
+	private BlockingQueue<Search> queue = new LinkedBlockingQueue<Search>(MAX_PENDING_SEARCHES);
+	private HistoryIndex index;
+	// Prochain offset à indexer et taille de l'index, lus par les métriques
+	private volatile long next;
+	private volatile long memoryBytes;
+
+	HistoryIndexer(ChatHistoryLog history, long memoryBudget, AtomicLong indexed) {
+		this.history = history;
+		this.indexed = indexed;
+		index = new HistoryIndex(memoryBudget);
+	}
+
+	/**
+	 * Renvoie false si trop de recherches sont en attente.
+	 */
+	boolean add(Search s) {
+		return queue.offer(s);
+	}
+
+	/**
+	 * Offset du prochain message de l'historique à indexer.
+	 */
+	long getNextOffset() {
+		return next;
+	}
+
+	/**
+	 * Taille estimée de l'index lors du dernier rattrapage.
+	 */
+	long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	public void action() {
+		Search s;
+		try {
+			s = queue.poll(INDEX_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			return;
+		}
+		catchUp();
+		if (s != null) {
+			serve(s);
+		}
+	}
+
+	private void catchUp() {
+		long end = history.getNextOffset();
+		while (true) {
+			// Au démarrage, ou si l'index a pris du retard, les messages suivants peuvent
+			// avoir été supprimés de l'historique
+			next = Math.max(next, history.getFirstOffset());
+			if (next >= end) {
+				break;
+			}
+			byte[] batch = history.read(next, HistoryReplayer.BATCH_RECORDS, HistoryReplayer.BATCH_BYTES);
+			if (batch == null) {
+				if (next < history.getFirstOffset()) {
+					continue;
+				}
+				break;
+			}
+			HistoryBatch.parse(batch, this);
+			next = HistoryBatch.getLong(batch, 0) + HistoryBatch.getInt(batch, 8);
+		}
+		memoryBytes = index.getMemoryBytes();
+	}
+
+	public void onMessage(long offset, long time, String sender, String text) {
+		index.add(offset, time, text);
+		indexed.incrementAndGet();
+	}
+
+	private void serve(Search s) {
+		// Un résultat de plus indique s'il reste une page
+		long[] hits = index.search(s.words, s.fromTime, s.toTime, s.before, s.limit + 1);
+		// Les messages des segments supprimés de l'historique ne sont plus renvoyés
+		long first = history.getFirstOffset();
+		int n = 0;
+		while (n < Math.min(hits.length, s.limit) && hits[n] >= first) {
+			n++;
+		}
+		List<byte[]> records = new ArrayList<byte[]>(n);
+		for (int i = 0; i < n; ++i) {
+			byte[] record = history.read(hits[i], 1, Integer.MAX_VALUE);
+			if (record == null) {
+				// Segment supprimé depuis getFirstOffset() : les résultats suivants, plus
+				// anciens, ne sont plus conservés non plus
+				break;
+			}
+			records.add(record);
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(records.size());
+			for (int i = 0; i < records.size(); ++i) {
+				byte[] record = records.get(i);
+				out.writeLong(hits[i]);
+				out.write(record, HistoryBatch.BATCH_HEADER_SIZE, record.length - HistoryBatch.BATCH_HEADER_SIZE);
+			}
+			out.flush();
+			ACLMessage reply = s.reply;
+			reply.setPerformative(ACLMessage.INFORM);
+			reply.setByteSequenceContent(bytes.toByteArray());
+			if (records.size() == n && hits.length > n && n > 0 && hits[n] >= first) {
+				reply.addUserDefinedParameter(NEXT, String.valueOf(hits[n - 1]));
+			}
+			reply.addUserDefinedParameter(INDEXED_FROM, String.valueOf(Math.max(first, index.getFirstOffset())));
+			myAgent.send(reply);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Recherche dans l'historique demandée par un client.
+	 */
+	static class Search {
+		final ACLMessage reply;
+		final List<String> words;
+		final long fromTime;
+		final long toTime;
+		final long before;
+		final int limit;
+
+		Search(ACLMessage reply, List<String> words, long fromTime, long toTime, long before, int limit) {
+			this.reply = reply;
+			this.words = words;
+			this.fromTime = fromTime;
+			this.toTime = toTime;
+			this.before = before;
+			this.limit = limit;
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package chat.manager;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+
+import chat.history.HistoryBatch;
+
+/**
+ * Behaviour exécuté dans son propre thread, envoyant les messages de l'historique par
+ * lots dans des INFORM au contenu binaire (voir chat.history.HistoryBatch). Les messages
+ * dont le segment a été supprimé sont sautés : la relecture reprend au premier message
+ * conservé.
+ */
+class HistoryReplayer extends CyclicBehaviour {
+	// Taille maximale d'un lot de l'historique
+	static final int BATCH_RECORDS = 500;
+	static final int BATCH_BYTES = 64 * 1024;
+	// Relectures en attente au-delà desquelles les suivantes sont refusées
+	private static final int MAX_PENDING_REPLAYS = 100;
+
+	private final ChatHistoryLog history;
+	private BlockingQueue<Replay> queue = new LinkedBlockingQueue<Replay>(MAX_PENDING_REPLAYS);
+
+	HistoryReplayer(ChatHistoryLog history) {
+		this.history = history;
+	}
+
+	/**
+	 * Demande l'envoi des messages de from (inclus) à end (exclu), dans des copies de reply.
+	 * Renvoie false si trop de relectures sont en attente.
+	 */
+	boolean add(ACLMessage reply, long from, long end) {
+		return queue.offer(new Replay(reply, from, end));
+	}
+
+	public void action() {
+		Replay r;
+		try {
+			r = queue.take();
+		}
+		catch (InterruptedException e) {
+			return;
+		}
+		while (true) {
+			// Les segments les plus anciens peuvent être supprimés pendant la relecture
+			r.from = Math.max(r.from, history.getFirstOffset());
+			if (r.from >= r.end) {
+				break;
+			}
+			byte[] batch = history.read(r.from, (int) Math.min(BATCH_RECORDS, r.end - r.from), BATCH_BYTES);
+			if (batch == null) {
+				// Segment supprimé entre getFirstOffset() et read() : on reprend plus loin
+				if (r.from < history.getFirstOffset()) {
+					continue;
+				}
+				break;
+			}
+			ACLMessage msg = (ACLMessage) r.reply.clone();
+			msg.setPerformative(ACLMessage.INFORM);
+			msg.setByteSequenceContent(batch);
+			myAgent.send(msg);
+			r.from += HistoryBatch.getInt(batch, 8);
+		}
+	}
+
+	/**
+	 * Relecture d'une partie de l'historique pour un client.
+	 */
+	private static class Replay {
+		final ACLMessage reply;
+		long from;
+		final long end;
+
+		Replay(ACLMessage reply, long from, long end) {
+			this.reply = reply;
+			this.from = from;
+			this.end = end;
+		}
+	}
+}
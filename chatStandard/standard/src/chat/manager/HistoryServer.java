@@ -0,0 +1,87 @@
+package chat.manager;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+/**
+ * Cyclic behaviour recevant les demandes d'historique : "last N" pour les N derniers
+ * messages ou "since OFFSET" pour tous les messages à partir d'un offset. La fin de la
+ * relecture est fixée à la réception de la demande ; la relecture elle-même est faite
+ * par le HistoryReplayer. Un manager sans historique, ou dont trop de relectures sont en
+ * attente, répond par un FAILURE. Seuls les participants présents dans le salon peuvent
+ * relire l'historique : les autres reçoivent un REFUSE.
+ */
+class HistoryServer extends CyclicBehaviour {
+	private static final String HISTORY_ID = "__history__";
+
+	private final ChatManagerAgent manager;
+	private final ChatHistoryLog history;
+	private final HistoryReplayer replayer;
+	private final AtomicLong requests;
+	private MessageTemplate template = MessageTemplate.and(
+			MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
+			MessageTemplate.MatchConversationId(HISTORY_ID));
+
+	/**
+	 * @param history historique du manager, ou null s'il n'en conserve pas
+	 */
+	HistoryServer(ChatManagerAgent a, ChatHistoryLog history, HistoryReplayer replayer, AtomicLong requests) {
+		super(a);
+		this.manager = a;
+		this.history = history;
+		this.replayer = replayer;
+		this.requests = requests;
+	}
+
+	public void action() {
+		ACLMessage msg = myAgent.receive(template);
+		if (msg != null) {
+			requests.incrementAndGet();
+			if (!manager.isPresent(msg.getSender())) {
+				ACLMessage reply = msg.createReply();
+				reply.setPerformative(ACLMessage.REFUSE);
+				reply.setContent("not a participant");
+				myAgent.send(reply);
+				return;
+			}
+			if (history == null) {
+				ACLMessage reply = msg.createReply();
+				reply.setPerformative(ACLMessage.FAILURE);
+				reply.setContent("no history");
+				myAgent.send(reply);
+				return;
+			}
+			long end = history.getNextOffset();
+			String[] request = String.valueOf(msg.getContent()).trim().split("\\s+");
+			try {
+				long from;
+				if (request.length == 2 && request[0].equals("last")) {
+					from = Math.max(0, end - Long.parseLong(request[1]));
+				}
+				else if (request.length == 2 && request[0].equals("since")) {
+					from = Long.parseLong(request[1]);
+				}
+				else {
+					throw new NumberFormatException();
+				}
+				if (!replayer.add(msg.createReply(), from, end)) {
+					ACLMessage reply = msg.createReply();
+					reply.setPerformative(ACLMessage.FAILURE);
+					reply.setContent("busy");
+					myAgent.send(reply);
+				}
+			}
+			catch (NumberFormatException e) {
+				ACLMessage reply = msg.createReply();
+				reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+				myAgent.send(reply);
+			}
+		}
+		else {
+			block();
+		}
+	}
+}
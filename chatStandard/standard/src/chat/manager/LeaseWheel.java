@@ -0,0 +1,123 @@
+package chat.manager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Roue temporelle (timer wheel) des baux des participants.
+ *
+ * Chaque bail est rangé dans la case correspondant à son échéance. Un renouvellement ne fait
+ * que repousser l'échéance, sans déplacer le bail : celui-ci est replacé dans la bonne case
+ * lorsque sa case d'origine est traitée. Renouveler un bail coûte donc O(1), et chaque tour
+ * ne traite que les baux de la case courante.
+ *
+ * Un bail expire au plus une durée de case après son échéance. La roue n'est pas
+ * synchronisée : elle est utilisée par le thread de l'agent.
+ */
+class LeaseWheel<K> {
+	private final long tick;
+	private final List<List<Lease<K>>> slots;
+	private final Map<K, Lease<K>> leases = new HashMap<K, Lease<K>>();
+	// Dernière case traitée, en nombre de cases depuis l'origine des temps
+	private long current;
+
+	/**
+	 * @param tick durée d'une case, en ms
+	 * @param slotCount nombre de cases ; les échéances au-delà d'un tour de roue sont
+	 * simplement replacées à chaque passage
+	 */
+	LeaseWheel(long tick, int slotCount, long now) {
+		this.tick = Math.max(1, tick);
+		slots = new ArrayList<List<Lease<K>>>(slotCount);
+		for (int i = 0; i < slotCount; ++i) {
+			slots.add(new ArrayList<Lease<K>>());
+		}
+		current = now / this.tick;
+	}
+
+	/**
+	 * Crée ou remplace le bail d'une clé.
+	 *
+	 * @param duration durée du bail en ms, renouvelée par chaque appel à renew()
+	 */
+	void add(K key, long duration, long now) {
+		Lease<K> lease = new Lease<K>(key, duration, now + duration);
+		leases.put(key, lease);
+		schedule(lease);
+	}
+
+	/**
+	 * Renouvelle le bail d'une clé, si elle en a un.
+	 */
+	void renew(K key, long now) {
+		Lease<K> lease = leases.get(key);
+		if (lease != null) {
+			lease.deadline = now + lease.duration;
+		}
+	}
+
+	void remove(K key) {
+		leases.remove(key);
+	}
+
+	int size() {
+		return leases.size();
+	}
+
+	/**
+	 * Traite les cases écoulées depuis l'appel précédent et renvoie les clés dont le bail a
+	 * expiré. Ces baux sont retirés de la roue.
+	 */
+	List<K> expire(long now) {
+		List<K> expired = new ArrayList<K>();
+		long last = now / tick;
+		// Au-delà d'un tour de roue, chaque case n'a besoin d'être traitée qu'une fois
+		long first = Math.max(current + 1, last - slots.size() + 1);
+		for (long t = first; t <= last; ++t) {
+			current = t;
+			List<Lease<K>> slot = slots.get((int) (t % slots.size()));
+			if (slot.isEmpty()) {
+				continue;
+			}
+			List<Lease<K>> due = new ArrayList<Lease<K>>(slot);
+			slot.clear();
+			for (int i = 0; i < due.size(); ++i) {
+				Lease<K> lease = due.get(i);
+				if (leases.get(lease.key) != lease) {
+					// Bail retiré ou remplacé depuis
+					continue;
+				}
+				if (lease.deadline <= now) {
+					leases.remove(lease.key);
+					expired.add(lease.key);
+				}
+				else {
+					schedule(lease);
+				}
+			}
+		}
+		current = Math.max(current, last);
+		return expired;
+	}
+
+	private void schedule(Lease<K> lease) {
+		// Première case commençant après l'échéance ; une échéance déjà passée est traitée
+		// au prochain appel à expire()
+		long t = Math.max((lease.deadline + tick - 1) / tick, current + 1);
+		slots.get((int) (t % slots.size())).add(lease);
+	}
+
+	private static class Lease<K> {
+		final K key;
+		final long duration;
+		long deadline;
+
+		Lease(K key, long duration, long deadline) {
+			this.key = key;
+			this.duration = duration;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package chat.manager;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jade.content.lang.Codec;
+import jade.content.onto.Ontology;
+import jade.core.AID;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+import chat.history.HistoryBatch;
+import chat.ontology.Whispered;
+import chat.ratelimit.RateLimiter;
+
+/**
+ * Cyclic behaviour recevant les messages privés confiés par les participants pour un
+ * destinataire absent (voir WhisperMailbox), et les remettant à son inscription.
+ *
+ * Les dépôts sont limités comme les messages du chat général (même RateLimiter) et ne
+ * sont acceptés que pour un pseudo déjà vu par le manager : un participant inscrit ici ou
+ * auprès d'un autre manager depuis le démarrage (les KNOWN_NAMES derniers au plus), ou
+ * ayant déjà une boîte.
+ */
+class MailboxServer extends CyclicBehaviour {
+	private static final String MAILBOX_ID = "__mailbox__";
+	// Paramètre du SUBSCRIBE d'un client acceptant les messages privés en attente par lot
+	static final String MAILBOX = "chat-mailbox";
+	// Nombre de pseudos retenus, les plus anciens étant oubliés
+	private static final int KNOWN_NAMES = 100000;
+
+	private final ChatManagerAgent manager;
+	private final WhisperMailbox mailbox;
+	private final NotificationDispatcher dispatcher;
+	private final RateLimiter<AID> limiter;
+	private final Codec codec;
+	private final Ontology ontology;
+	private final AtomicLong stored;
+	private final AtomicLong forwarded;
+	private final AtomicLong delivered;
+	private final AtomicLong refused;
+	// Pseudos vus par le manager, du plus ancien au plus récent
+	private final Map<String, Boolean> known = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > KNOWN_NAMES;
+		}
+	};
+	private MessageTemplate template = MessageTemplate.and(
+			MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+			MessageTemplate.MatchConversationId(MAILBOX_ID));
+
+	MailboxServer(ChatManagerAgent a, WhisperMailbox mailbox, NotificationDispatcher dispatcher, RateLimiter<AID> limiter,
+			Codec codec, Ontology ontology, AtomicLong stored, AtomicLong forwarded, AtomicLong delivered, AtomicLong refused) {
+		super(a);
+		this.manager = a;
+		this.mailbox = mailbox;
+		this.dispatcher = dispatcher;
+		this.limiter = limiter;
+		this.codec = codec;
+		this.ontology = ontology;
+		this.stored = stored;
+		this.forwarded = forwarded;
+		this.delivered = delivered;
+		this.refused = refused;
+	}
+
+	public void action() {
+		ACLMessage msg = myAgent.receive(template);
+		if (msg != null) {
+			AID sender = msg.getSender();
+			if (!manager.isPresent(sender)) {
+				return;
+			}
+			long now = System.nanoTime();
+			int limit = limiter.tryAcquire(sender, now);
+			if (limit != RateLimiter.ALLOWED) {
+				manager.refuseThrottled(msg, limit, limiter.getWaitMillis(sender, limit, now));
+				return;
+			}
+			Whispered w = null;
+			try {
+				w = (Whispered) myAgent.getContentManager().extractContent(msg);
+			}
+			catch (Exception e) {
+				// Traité ci-dessous
+			}
+			if (w == null || w.getTo() == null) {
+				ACLMessage reply = msg.createReply();
+				reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+				myAgent.send(reply);
+				return;
+			}
+			AID recipient = new AID(w.getTo(), AID.ISLOCALNAME);
+			if (manager.isPresent(recipient)) {
+				// Le destinataire est revenu entre-temps : le message lui est transmis
+				ACLMessage whisper = (ACLMessage) msg.clone();
+				whisper.setConversationId(w.getTo());
+				dispatcher.relay(whisper, Collections.singletonList(recipient));
+				forwarded.incrementAndGet();
+				return;
+			}
+			int result = WhisperMailbox.NO_ROOM;
+			// Aucune boîte n'est ouverte pour un pseudo inconnu
+			if (known.containsKey(w.getTo()) || mailbox.contains(w.getTo())) {
+				try {
+					result = mailbox.add(w.getTo(), System.currentTimeMillis(), sender.getName(),
+							w.getWhat() != null ? w.getWhat() : "");
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (result == WhisperMailbox.STORED) {
+				stored.incrementAndGet();
+			}
+			else {
+				refused.incrementAndGet();
+				ACLMessage reply = msg.createReply();
+				reply.setPerformative(ACLMessage.FAILURE);
+				reply.setContent(w.getTo());
+				myAgent.send(reply);
+			}
+		}
+		else {
+			block();
+		}
+	}
+
+	/**
+	 * Retient le pseudo d'un participant inscrit auprès de ce manager ou d'un autre, pour
+	 * qui des messages peuvent ensuite être gardés.
+	 */
+	void seen(AID id) {
+		known.put(id.getLocalName(), Boolean.TRUE);
+	}
+
+	/**
+	 * Remet à un nouvel inscrit les messages privés reçus pendant son absence : en un seul
+	 * lot s'il l'accepte, sinon comme autant de messages privés de leurs expéditeurs.
+	 */
+	void deliver(ACLMessage subscription) {
+		final AID id = subscription.getSender();
+		byte[] batch;
+		try {
+			batch = mailbox.drain(id.getLocalName());
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		if (batch == null) {
+			return;
+		}
+		delivered.addAndGet(HistoryBatch.getInt(batch, 8));
+		final List<AID> receiver = Collections.singletonList(id);
+		if (subscription.getUserDefinedParameter(MAILBOX) != null) {
+			ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+			msg.setSender(myAgent.getAID());
+			msg.setConversationId(MAILBOX_ID);
+			msg.setByteSequenceContent(batch);
+			dispatcher.relay(msg, receiver);
+		}
+		else {
+			HistoryBatch.parse(batch, new HistoryBatch.Handler() {
+				public void onMessage(long offset, long time, String sender, String text) {
+					ACLMessage whisper = new ACLMessage(ACLMessage.INFORM);
+					whisper.setSender(new AID(sender, AID.ISGUID));
+					whisper.setConversationId(id.getLocalName());
+					whisper.setLanguage(codec.getName());
+					whisper.setOntology(ontology.getName());
+					Whispered w = new Whispered();
+					w.setTo(id.getLocalName());
+					w.setWhat(text);
+					try {
+						myAgent.getContentManager().fillContent(whisper, w);
+						dispatcher.relay(whisper, receiver);
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,295 @@
+package chat.manager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.core.behaviours.ThreadedBehaviourFactory;
+import jade.lang.acl.ACLMessage;
+import jade.util.leap.Properties;
+import jade.proto.SubscriptionResponder.Subscription;
+
+/**
+ * Envoi des notifications et des messages relayés par un ensemble de behaviours
+ * exécutés chacun dans son propre thread, afin que le thread de l'agent reste disponible
+ * pour les inscriptions et les évènements de l'AMS pendant les diffusions importantes.
+ *
+ * Chaque destinataire a sa propre file d'envois, servie par un seul thread à la fois :
+ * les messages qui lui sont destinés lui parviennent dans l'ordre où ils ont été soumis,
+ * par exemple un Joined avant le Left correspondant. Les threads prennent les files à
+ * tour de rôle et passent à la suivante après SLICE ns d'envois, si bien qu'un
+ * destinataire lent ne retarde les autres que d'un envoi par tour.
+ *
+ * Le nombre d'envois en attente est donc celui de la file du destinataire. Une nouvelle
+ * inscription après forget() a une nouvelle file : les envois encore en attente pour
+ * l'ancienne ne touchent pas son compteur. Un destinataire dépassant maxOutstanding est
+ * signalé comme retardataire (voir takeLaggards()) ; les destinataires suspendus ne
+ * reçoivent plus rien, y compris ce qui était déjà en attente.
+ */
+class NotificationDispatcher {
+	// Durée en ns des envois faits pour un destinataire avant de passer au suivant
+	private static final long SLICE = 1000000;
+
+	private final Agent agent;
+	private final int maxOutstanding;
+	// Files des destinataires, créées par le thread de l'agent
+	private final Map<AID, Outbox> outboxes = new ConcurrentHashMap<AID, Outbox>();
+	// Files ayant des envois en attente, prises à tour de rôle par les threads d'envoi
+	private final BlockingQueue<Outbox> ready = new LinkedBlockingQueue<Outbox>();
+	private final Set<AID> suspended = Collections.newSetFromMap(new ConcurrentHashMap<AID, Boolean>());
+	// Destinataires ayant dépassé maxOutstanding, accédés uniquement par le thread de l'agent
+	private List<AID> laggards = new ArrayList<AID>();
+
+	/**
+	 * @param maxOutstanding nombre d'envois en attente au-delà duquel un destinataire est
+	 * signalé comme retardataire (0 pour ne jamais le signaler)
+	 */
+	NotificationDispatcher(Agent agent, int maxOutstanding) {
+		this.agent = agent;
+		this.maxOutstanding = maxOutstanding;
+	}
+
+	/**
+	 * Ajoute à l'agent les behaviours d'envoi, chacun dans son propre thread.
+	 */
+	void start(ThreadedBehaviourFactory factory, int threads) {
+		for (int i = Math.max(1, threads); i > 0; --i) {
+			agent.addBehaviour(factory.wrap(new Sender()));
+		}
+	}
+
+	/**
+	 * Envoie à chaque abonné la notification correspondant au langage de son inscription.
+	 * Les notifications, déjà encodées, sont indexées par langage. Les abonnés suspendus
+	 * sont ignorés sauf si force est vrai.
+	 */
+	void notify(Collection<Subscription> targets, Map<String, ACLMessage> notifs, boolean force) {
+		Iterator<Subscription> it = targets.iterator();
+		while (it.hasNext()) {
+			ACLMessage subscription = it.next().getMessage();
+			AID id = subscription.getSender();
+			if (force || !suspended.contains(id)) {
+				submit(id, new Notification(subscription, notifs, force));
+			}
+		}
+	}
+
+	/**
+	 * Envoie un message à une liste de destinataires, en conservant son expéditeur.
+	 * Les destinataires suspendus sont ignorés.
+	 */
+	void relay(ACLMessage msg, Collection<AID> receivers) {
+		Relay relay = null;
+		Iterator<AID> it = receivers.iterator();
+		while (it.hasNext()) {
+			AID id = it.next();
+			if (!suspended.contains(id)) {
+				if (relay == null) {
+					relay = new Relay(msg);
+				}
+				submit(id, relay);
+			}
+		}
+	}
+
+	// Appelée par le thread de l'agent
+	private void submit(AID id, Task task) {
+		Outbox box = outboxes.get(id);
+		if (box == null) {
+			box = new Outbox(id);
+			outboxes.put(id, box);
+		}
+		if (box.count.incrementAndGet() == maxOutstanding + 1 && maxOutstanding > 0) {
+			laggards.add(id);
+		}
+		box.tasks.add(task);
+		if (box.scheduled.compareAndSet(false, true)) {
+			ready.add(box);
+		}
+	}
+
+	/**
+	 * Fait les envois en attente de la prochaine file prête, pendant au plus SLICE ns,
+	 * puis la remet en fin de liste s'il lui en reste. Appelée par les threads d'envoi.
+	 */
+	void serveNext() throws InterruptedException {
+		Outbox box = ready.take();
+		long end = System.nanoTime() + SLICE;
+		Task task;
+		while ((task = box.tasks.poll()) != null) {
+			try {
+				if (task.isForced() || !suspended.contains(box.id)) {
+					send(task.getMessage(box.id));
+				}
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			box.count.decrementAndGet();
+			if (System.nanoTime() - end >= 0) {
+				break;
+			}
+		}
+		box.scheduled.set(false);
+		// Un envoi soumis après le dernier poll() n'a pas remis la file dans la liste
+		if (!box.tasks.isEmpty() && box.scheduled.compareAndSet(false, true)) {
+			ready.add(box);
+		}
+	}
+
+	// Appelée par les threads d'envoi
+	void send(ACLMessage msg) {
+		agent.send(msg);
+	}
+
+	/**
+	 * Nombre d'envois en attente pour ce destinataire.
+	 */
+	int getOutstanding(AID id) {
+		Outbox box = outboxes.get(id);
+		return box != null ? box.count.get() : 0;
+	}
+
+	/**
+	 * Renvoie les destinataires ayant dépassé maxOutstanding depuis le dernier appel.
+	 * Un destinataire n'est signalé à nouveau qu'après être redescendu sous le seuil.
+	 */
+	List<AID> takeLaggards() {
+		if (laggards.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<AID> l = laggards;
+		laggards = new ArrayList<AID>();
+		return l;
+	}
+
+	/**
+	 * Suspend ou reprend les envois vers un destinataire.
+	 */
+	void setSuspended(AID id, boolean suspend) {
+		if (suspend) {
+			suspended.add(id);
+		}
+		else {
+			suspended.remove(id);
+		}
+	}
+
+	boolean isSuspended(AID id) {
+		return suspended.contains(id);
+	}
+
+	/**
+	 * Oublie un destinataire qui a quitté le chat. Ses envois encore en attente restent
+	 * dans l'ancienne file.
+	 */
+	void forget(AID id) {
+		suspended.remove(id);
+		outboxes.remove(id);
+	}
+
+	/**
+	 * File des envois en attente pour un destinataire.
+	 */
+	private static class Outbox {
+		final AID id;
+		final Queue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+		final AtomicInteger count = new AtomicInteger();
+		// Vrai tant que la file est dans la liste des files prêtes ou servie par un thread
+		final AtomicBoolean scheduled = new AtomicBoolean();
+
+		Outbox(AID id) {
+			this.id = id;
+		}
+	}
+
+	private interface Task {
+		boolean isForced();
+
+		ACLMessage getMessage(AID receiver);
+	}
+
+	private static class Notification implements Task {
+		private final ACLMessage subscription;
+		private final Map<String, ACLMessage> notifs;
+		private final boolean force;
+
+		Notification(ACLMessage subscription, Map<String, ACLMessage> notifs, boolean force) {
+			this.subscription = subscription;
+			this.notifs = notifs;
+			this.force = force;
+		}
+
+		public boolean isForced() {
+			return force;
+		}
+
+		public ACLMessage getMessage(AID receiver) {
+			ACLMessage notif = notifs.get(subscription.getLanguage());
+			// Même réponse que celle construite par Subscription.notify()
+			ACLMessage reply = subscription.createReply();
+			reply.setPerformative(notif.getPerformative());
+			reply.setLanguage(notif.getLanguage());
+			reply.setOntology(notif.getOntology());
+			if (notif.hasByteSequenceContent()) {
+				reply.setByteSequenceContent(notif.getByteSequenceContent());
+			}
+			else {
+				reply.setContent(notif.getContent());
+			}
+			Properties params = notif.getAllUserDefinedParameters();
+			if (!params.isEmpty()) {
+				reply.setAllUserDefinedParameters((Properties) params.clone());
+			}
+			return reply;
+		}
+	}
+
+	private static class Relay implements Task {
+		private final ACLMessage msg;
+
+		Relay(ACLMessage msg) {
+			this.msg = msg;
+		}
+
+		public boolean isForced() {
+			return false;
+		}
+
+		public ACLMessage getMessage(AID receiver) {
+			ACLMessage copy = (ACLMessage) msg.clone();
+			copy.clearAllReceiver();
+			copy.addReceiver(receiver);
+			return copy;
+		}
+	}
+
+	/**
+	 * Behaviour d'envoi, exécuté dans un thread dédié.
+	 */
+	private class Sender extends CyclicBehaviour {
+
+		public void action() {
+			try {
+				serveNext();
+			}
+			catch (InterruptedException e) {
+				// Arrêt de l'agent
+			}
+		}
+	}
+}
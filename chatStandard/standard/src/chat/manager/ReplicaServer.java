@@ -0,0 +1,153 @@
+package chat.manager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jade.core.AID;
+import jade.core.Agent;
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+import jade.proto.SubscriptionResponder.Subscription;
+
+/**
+ * Cyclic behaviour attachant (REQUEST) ou détachant (CANCEL) un ChatStandbyAgent. Un
+ * standby attaché reçoit en réponse (AGREE) la liste complète des inscrits, puis leurs
+ * modifications dans des INFORM (voir update()). Seuls les standbys configurés sont
+ * attachés, les autres reçoivent un REFUSE : la liste des inscrits n'est transmise qu'à
+ * eux, et eux seuls peuvent recréer le manager.
+ *
+ * Lors d'un arrêt normal du manager, les standbys attachés reçoivent un CANCEL (voir
+ * release()) et ne le recréent pas.
+ *
+ * Les standbys ne sont accédés que par le thread de l'agent, sauf leur nombre, lu par les
+ * métriques.
+ */
+class ReplicaServer extends CyclicBehaviour {
+	private final Map<AID, Subscription> participants;
+	private final AtomicLong updates;
+	// Standbys autorisés à s'attacher
+	private final Set<AID> allowed;
+	private Set<AID> standbys = new LinkedHashSet<AID>();
+	private MessageTemplate template = MessageTemplate.and(
+			MessageTemplate.MatchConversationId(ChatManagerAgent.REPLICA_ID),
+			MessageTemplate.or(
+					MessageTemplate.MatchPerformative(ACLMessage.REQUEST),
+					MessageTemplate.MatchPerformative(ACLMessage.CANCEL)));
+
+	/**
+	 * @param participants inscrits du manager, envoyés à chaque standby attaché
+	 * @param allowed standbys autorisés à s'attacher
+	 */
+	ReplicaServer(Agent a, Map<AID, Subscription> participants, Set<AID> allowed, AtomicLong updates) {
+		super(a);
+		this.participants = participants;
+		this.allowed = allowed;
+		this.updates = updates;
+	}
+
+	public void action() {
+		ACLMessage msg = myAgent.receive(template);
+		if (msg != null) {
+			AID standby = msg.getSender();
+			if (msg.getPerformative() == ACLMessage.CANCEL) {
+				standbys.remove(standby);
+				return;
+			}
+			if (!allowed.contains(standby)) {
+				ACLMessage reply = msg.createReply();
+				reply.setPerformative(ACLMessage.REFUSE);
+				reply.setContent("Unknown standby");
+				myAgent.send(reply);
+				return;
+			}
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				Iterator<Subscription> it = participants.values().iterator();
+				while (it.hasNext()) {
+					RosterStore.writeAdded(out, it.next().getMessage());
+				}
+				out.flush();
+				ACLMessage reply = msg.createReply();
+				reply.setPerformative(ACLMessage.AGREE);
+				reply.setByteSequenceContent(bytes.toByteArray());
+				myAgent.send(reply);
+				standbys.add(standby);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		else {
+			block();
+		}
+	}
+
+	/**
+	 * Transmet une inscription ou une désinscription aux standbys attachés.
+	 */
+	void update(ACLMessage subscription, boolean added) {
+		if (standbys.isEmpty()) {
+			return;
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			if (added) {
+				RosterStore.writeAdded(out, subscription);
+			}
+			else {
+				RosterStore.writeRemoved(out, subscription.getSender());
+			}
+			out.flush();
+			ACLMessage update = new ACLMessage(ACLMessage.INFORM);
+			update.setConversationId(ChatManagerAgent.REPLICA_ID);
+			Iterator<AID> it = standbys.iterator();
+			while (it.hasNext()) {
+				update.addReceiver(it.next());
+			}
+			update.setByteSequenceContent(bytes.toByteArray());
+			myAgent.send(update);
+			updates.incrementAndGet();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Signale aux standbys attachés l'arrêt normal du manager, afin qu'ils ne le recréent
+	 * pas, et les détache.
+	 */
+	void release() {
+		if (standbys.isEmpty()) {
+			return;
+		}
+		ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+		cancel.setConversationId(ChatManagerAgent.REPLICA_ID);
+		Iterator<AID> it = standbys.iterator();
+		while (it.hasNext()) {
+			cancel.addReceiver(it.next());
+		}
+		myAgent.send(cancel);
+		standbys.clear();
+	}
+
+	/**
+	 * Détache un standby disparu.
+	 */
+	void forget(AID id) {
+		standbys.remove(id);
+	}
+
+	int getStandbyCount() {
+		return standbys.size();
+	}
+}
@@ -0,0 +1,53 @@
+package chat.manager;
+
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Fenêtre des derniers messages du chat général relayés par le manager, indexés par leur
+ * numéro de séquence, à partir de laquelle sont servies les demandes de retransmission
+ * des clients. Les messages sont conservés dans un tableau circulaire : le plus ancien
+ * est remplacé lorsque la fenêtre est pleine.
+ *
+ * La fenêtre n'est pas synchronisée : elle est utilisée par le thread de l'agent.
+ */
+class RetransmitWindow {
+	private final ACLMessage[] messages;
+	// Numéro du dernier message ajouté, 0 si aucun
+	private long last;
+
+	RetransmitWindow(int capacity) {
+		messages = new ACLMessage[Math.max(0, capacity)];
+	}
+
+	/**
+	 * Ajoute le message portant le numéro suivant le dernier ajouté. Le message ne doit
+	 * plus être modifié.
+	 */
+	void add(long seq, ACLMessage msg) {
+		last = seq;
+		if (messages.length > 0) {
+			messages[(int) (seq % messages.length)] = msg;
+		}
+	}
+
+	/**
+	 * Numéro du plus ancien message encore disponible (getLast() + 1 si la fenêtre est vide).
+	 */
+	long getFirst() {
+		return Math.max(1, last - messages.length + 1);
+	}
+
+	long getLast() {
+		return last;
+	}
+
+	/**
+	 * Renvoie le message portant ce numéro, ou null s'il n'est plus (ou pas) dans la fenêtre.
+	 */
+	ACLMessage get(long seq) {
+		if (seq < getFirst() || seq > last) {
+			return null;
+		}
+		return messages[(int) (seq % messages.length)];
+	}
+}
@@ -0,0 +1,70 @@
+package chat.manager;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import jade.core.AID;
+
+/**
+ * Versions successives de la liste des participants vue par les inscrits d'un manager.
+ * Chaque lot d'arrivées et de départs notifié incrémente la version ; les capacity derniers
+ * lots sont conservés afin qu'un client reprenant sa session à partir d'une version connue
+ * ne reçoive que les participants modifiés depuis, au lieu de la liste complète.
+ *
+ * La classe n'est pas synchronisée : elle est utilisée par le thread de l'agent.
+ */
+class RosterLog {
+	private final int capacity;
+	// Participants arrivés ou partis dans chaque lot, du plus ancien au plus récent
+	private final LinkedList<List<AID>> changes = new LinkedList<List<AID>>();
+	private long version;
+
+	RosterLog(int capacity) {
+		this.capacity = Math.max(0, capacity);
+	}
+
+	/**
+	 * Enregistre un lot d'arrivées et de départs et renvoie la nouvelle version.
+	 */
+	long add(List<AID> changed) {
+		version++;
+		if (capacity > 0) {
+			changes.addLast(changed);
+			if (changes.size() > capacity) {
+				changes.removeFirst();
+			}
+		}
+		return version;
+	}
+
+	long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Indique si les changements survenus depuis cette version sont encore connus.
+	 */
+	boolean covers(long from) {
+		return from >= version - changes.size() && from <= version;
+	}
+
+	/**
+	 * Renvoie les participants arrivés ou partis depuis cette version, que covers() doit
+	 * accepter.
+	 */
+	Set<AID> changedSince(long from) {
+		Set<AID> changed = new LinkedHashSet<AID>();
+		int skip = changes.size() - (int) (version - from);
+		Iterator<List<AID>> it = changes.iterator();
+		for (int i = 0; it.hasNext(); ++i) {
+			List<AID> batch = it.next();
+			if (i >= skip) {
+				changed.addAll(batch);
+			}
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,325 @@
+package chat.manager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+
+/**
+ * Sauvegarde sur disque des inscriptions d'un manager, afin qu'il reprenne ses participants
+ * après un redémarrage sans que ceux-ci aient à se réinscrire.
+ *
+ * Le répertoire contient un snapshot complet ("roster.snap") et un journal des inscriptions
+ * et désinscriptions survenues depuis ("roster.journal"). Toutes les checkpointInterval
+ * entrées du journal, un nouveau snapshot est écrit dans un fichier temporaire puis renommé,
+ * et le journal est vidé. Au chargement, le journal est rejoué sur le snapshot ; une entrée
+ * tronquée en fin de journal (arrêt brutal) est ignorée.
+ *
+ * Pour chaque inscription sont conservés les champs du SUBSCRIBE utilisés pour construire
+ * les notifications (expéditeur, conversation, reply-with, langage, ontologie et protocole)
+ * et les paramètres relus à la reprise (ChatManagerAgent.SAVED_PARAMETERS). Les autres
+ * paramètres ne sont pas conservés. Une inscription dont un champ dépasse MAX_FIELD_LENGTH
+ * caractères ou dont l'expéditeur a plus de MAX_ADDRESSES adresses ne peut pas être
+ * sauvegardée (voir isStorable()) : le manager la refuse.
+ * La classe n'est pas synchronisée : elle est utilisée par le thread de l'agent.
+ */
+class RosterStore {
+	private static final int SNAPSHOT_MAGIC = 0x524f5331;
+	private static final byte ADDED = 1;
+	private static final byte REMOVED = 2;
+	// Limites garantissant qu'une entrée s'écrit entièrement (writeUTF est limité à 65535
+	// octets et le nombre d'adresses est écrit sur un octet)
+	static final int MAX_FIELD_LENGTH = 1024;
+	static final int MAX_ADDRESSES = 16;
+
+	private final File snapshotFile;
+	private final File journalFile;
+	private final int checkpointInterval;
+	// Inscriptions courantes, indexées par nom de l'expéditeur
+	private final Map<String, ACLMessage> subscriptions = new LinkedHashMap<String, ACLMessage>();
+	private DataOutputStream journal;
+	private int journalEntries;
+
+	RosterStore(File dir, int checkpointInterval) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		snapshotFile = new File(dir, "roster.snap");
+		journalFile = new File(dir, "roster.journal");
+		this.checkpointInterval = Math.max(1, checkpointInterval);
+	}
+
+	/**
+	 * Relit le snapshot et le journal, puis écrit un nouveau snapshot. Renvoie les SUBSCRIBE
+	 * des inscriptions sauvegardées, à partir desquels les Subscription sont reconstruites.
+	 */
+	List<ACLMessage> load() throws IOException {
+		subscriptions.clear();
+		if (snapshotFile.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+			try {
+				if (in.readInt() != SNAPSHOT_MAGIC) {
+					throw new IOException("Invalid roster snapshot " + snapshotFile);
+				}
+				int count = in.readInt();
+				for (int i = 0; i < count; ++i) {
+					ACLMessage msg = readSubscription(in);
+					subscriptions.put(msg.getSender().getName(), msg);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		if (journalFile.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+			try {
+				replay(in, subscriptions);
+			}
+			finally {
+				in.close();
+			}
+		}
+		// Fichiers écrits avant les limites de isStorable()
+		Iterator<ACLMessage> it = subscriptions.values().iterator();
+		while (it.hasNext()) {
+			if (!isStorable(it.next())) {
+				it.remove();
+			}
+		}
+		checkpoint();
+		return new ArrayList<ACLMessage>(subscriptions.values());
+	}
+
+	/**
+	 * Remplace les inscriptions sauvegardées, par exemple par celles transmises par un
+	 * ChatStandbyAgent lors d'une reprise, et écrit un nouveau snapshot.
+	 */
+	void reset(List<ACLMessage> saved) throws IOException {
+		subscriptions.clear();
+		for (int i = 0; i < saved.size(); ++i) {
+			ACLMessage msg = saved.get(i);
+			if (isStorable(msg)) {
+				subscriptions.put(msg.getSender().getName(), msg);
+			}
+		}
+		checkpoint();
+	}
+
+	void added(ACLMessage subscription) throws IOException {
+		checkStorable(subscription);
+		subscriptions.put(subscription.getSender().getName(), subscription);
+		writeAdded(getJournal(), subscription);
+		journalWritten();
+	}
+
+	void removed(AID id) throws IOException {
+		if (subscriptions.remove(id.getName()) != null) {
+			writeRemoved(getJournal(), id);
+			journalWritten();
+		}
+	}
+
+	private DataOutputStream getJournal() throws IOException {
+		if (journal == null) {
+			journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+		}
+		return journal;
+	}
+
+	private void journalWritten() throws IOException {
+		journal.flush();
+		if (++journalEntries >= checkpointInterval) {
+			checkpoint();
+		}
+	}
+
+	/**
+	 * Ecrit un snapshot des inscriptions courantes et vide le journal.
+	 */
+	void checkpoint() throws IOException {
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(subscriptions.size());
+			Iterator<ACLMessage> it = subscriptions.values().iterator();
+			while (it.hasNext()) {
+				writeSubscription(out, it.next());
+			}
+			out.flush();
+			fos.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		if (!tmp.renameTo(snapshotFile)) {
+			throw new IOException("Cannot replace " + snapshotFile);
+		}
+		// Un arrêt avant la troncature rejoue le journal sur le nouveau snapshot, ce qui
+		// ne change rien : les entrées sont idempotentes
+		if (journal != null) {
+			journal.close();
+		}
+		journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, false)));
+		journalEntries = 0;
+	}
+
+	void close() {
+		try {
+			checkpoint();
+			journal.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Entrées du journal, utilisées aussi pour la réplication vers un ChatStandbyAgent
+	 */
+
+	static void writeAdded(DataOutputStream out, ACLMessage subscription) throws IOException {
+		checkStorable(subscription);
+		out.writeByte(ADDED);
+		writeSubscription(out, subscription);
+	}
+
+	static void writeRemoved(DataOutputStream out, AID id) throws IOException {
+		out.writeByte(REMOVED);
+		out.writeUTF(id.getName());
+	}
+
+	/**
+	 * Applique les entrées lues jusqu'à la fin du flux. Une entrée tronquée en fin de flux
+	 * est ignorée.
+	 */
+	static void replay(DataInputStream in, Map<String, ACLMessage> subscriptions) throws IOException {
+		try {
+			while (true) {
+				byte op = in.readByte();
+				if (op == ADDED) {
+					ACLMessage msg = readSubscription(in);
+					subscriptions.put(msg.getSender().getName(), msg);
+				}
+				else if (op == REMOVED) {
+					subscriptions.remove(in.readUTF());
+				}
+				else {
+					break;
+				}
+			}
+		}
+		catch (EOFException e) {
+			// Fin du flux, éventuellement sur une entrée tronquée
+		}
+	}
+
+	/**
+	 * Indique si une inscription respecte MAX_FIELD_LENGTH et MAX_ADDRESSES.
+	 */
+	static boolean isStorable(ACLMessage msg) {
+		AID sender = msg.getSender();
+		String[] addresses = sender.getAddressesArray();
+		if (addresses.length > MAX_ADDRESSES || !fits(sender.getName())) {
+			return false;
+		}
+		for (int i = 0; i < addresses.length; ++i) {
+			if (!fits(addresses[i])) {
+				return false;
+			}
+		}
+		if (!fits(msg.getConversationId()) || !fits(msg.getReplyWith()) || !fits(msg.getLanguage())
+				|| !fits(msg.getOntology()) || !fits(msg.getProtocol())) {
+			return false;
+		}
+		for (int i = 0; i < ChatManagerAgent.SAVED_PARAMETERS.length; ++i) {
+			if (!fits(msg.getUserDefinedParameter(ChatManagerAgent.SAVED_PARAMETERS[i]))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean fits(String s) {
+		return s == null || s.length() <= MAX_FIELD_LENGTH;
+	}
+
+	// Appelée avant d'écrire quoi que ce soit, afin de ne jamais laisser d'entrée incomplète
+	// au milieu du journal
+	private static void checkStorable(ACLMessage msg) throws IOException {
+		if (!isStorable(msg)) {
+			throw new IOException("Subscription of " + msg.getSender().getName() + " too large to save");
+		}
+	}
+
+	private static void writeSubscription(DataOutputStream out, ACLMessage msg) throws IOException {
+		AID sender = msg.getSender();
+		out.writeUTF(sender.getName());
+		String[] addresses = sender.getAddressesArray();
+		out.writeByte(addresses.length);
+		for (int i = 0; i < addresses.length; ++i) {
+			out.writeUTF(addresses[i]);
+		}
+		writeString(out, msg.getConversationId());
+		writeString(out, msg.getReplyWith());
+		writeString(out, msg.getLanguage());
+		writeString(out, msg.getOntology());
+		writeString(out, msg.getProtocol());
+		List<String> params = new ArrayList<String>(ChatManagerAgent.SAVED_PARAMETERS.length);
+		for (int i = 0; i < ChatManagerAgent.SAVED_PARAMETERS.length; ++i) {
+			if (msg.getUserDefinedParameter(ChatManagerAgent.SAVED_PARAMETERS[i]) != null) {
+				params.add(ChatManagerAgent.SAVED_PARAMETERS[i]);
+			}
+		}
+		out.writeByte(params.size());
+		for (int i = 0; i < params.size(); ++i) {
+			out.writeUTF(params.get(i));
+			out.writeUTF(msg.getUserDefinedParameter(params.get(i)));
+		}
+	}
+
+	private static ACLMessage readSubscription(DataInputStream in) throws IOException {
+		ACLMessage msg = new ACLMessage(ACLMessage.SUBSCRIBE);
+		AID sender = new AID(in.readUTF(), AID.ISGUID);
+		int addresses = in.readUnsignedByte();
+		for (int i = 0; i < addresses; ++i) {
+			sender.addAddresses(in.readUTF());
+		}
+		msg.setSender(sender);
+		msg.setConversationId(readString(in));
+		msg.setReplyWith(readString(in));
+		msg.setLanguage(readString(in));
+		msg.setOntology(readString(in));
+		msg.setProtocol(readString(in));
+		int params = in.readUnsignedByte();
+		for (int i = 0; i < params; ++i) {
+			msg.addUserDefinedParameter(in.readUTF(), in.readUTF());
+		}
+		return msg;
+	}
+
+	// Les champs absents sont écrits comme des chaînes vides
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeUTF(s != null ? s : "");
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		String s = in.readUTF();
+		return s.length() > 0 ? s : null;
+	}
+}
@@ -0,0 +1,92 @@
+package chat.manager;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jade.core.behaviours.CyclicBehaviour;
+import jade.lang.acl.ACLMessage;
+import jade.lang.acl.MessageTemplate;
+
+/**
+ * Cyclic behaviour recevant les recherches (QUERY_REF sur la conversation "__search__")
+ * et les confiant au HistoryIndexer. Sans index, ou si trop de recherches sont en
+ * attente, le client reçoit un FAILURE. Seuls les participants présents dans le salon
+ * peuvent chercher dans l'historique : les autres reçoivent un REFUSE.
+ */
+class SearchServer extends CyclicBehaviour {
+	private static final String SEARCH_ID = "__search__";
+	// Paramètres d'une recherche : période (dates en ms), offset avant lequel chercher (page
+	// suivante) et nombre de résultats
+	private static final String FROM_TIME = "chat-from-time";
+	private static final String TO_TIME = "chat-to-time";
+	private static final String BEFORE = "chat-before";
+	private static final String LIMIT = "chat-limit";
+	private static final int SEARCH_PAGE = 20;
+	private static final int MAX_SEARCH_PAGE = 100;
+
+	private final ChatManagerAgent manager;
+	private final HistoryIndexer indexer;
+	private final AtomicLong requests;
+	private final AtomicLong refusals;
+	private MessageTemplate template = MessageTemplate.and(
+			MessageTemplate.MatchPerformative(ACLMessage.QUERY_REF),
+			MessageTemplate.MatchConversationId(SEARCH_ID));
+
+	/**
+	 * @param indexer index de l'historique, ou null si le manager n'indexe pas
+	 */
+	SearchServer(ChatManagerAgent a, HistoryIndexer indexer, AtomicLong requests, AtomicLong refusals) {
+		super(a);
+		this.manager = a;
+		this.indexer = indexer;
+		this.requests = requests;
+		this.refusals = refusals;
+	}
+
+	public void action() {
+		ACLMessage msg = myAgent.receive(template);
+		if (msg != null) {
+			requests.incrementAndGet();
+			ACLMessage reply = msg.createReply();
+			if (!manager.isPresent(msg.getSender())) {
+				refusals.incrementAndGet();
+				reply.setPerformative(ACLMessage.REFUSE);
+				reply.setContent("not a participant");
+				myAgent.send(reply);
+				return;
+			}
+			List<String> words = HistoryIndex.tokenize(String.valueOf(msg.getContent()));
+			if (words.isEmpty()) {
+				reply.setPerformative(ACLMessage.NOT_UNDERSTOOD);
+				myAgent.send(reply);
+				return;
+			}
+			long limit = getLongParameter(msg, LIMIT, SEARCH_PAGE);
+			HistoryIndexer.Search search = new HistoryIndexer.Search(reply, words,
+					getLongParameter(msg, FROM_TIME, Long.MIN_VALUE), getLongParameter(msg, TO_TIME, Long.MAX_VALUE),
+					getLongParameter(msg, BEFORE, Long.MAX_VALUE), (int) Math.max(1, Math.min(limit, MAX_SEARCH_PAGE)));
+			if (indexer == null || !indexer.add(search)) {
+				refusals.incrementAndGet();
+				reply.setPerformative(ACLMessage.FAILURE);
+				reply.setContent(indexer == null ? "no index" : "busy");
+				myAgent.send(reply);
+			}
+		}
+		else {
+			block();
+		}
+	}
+
+	private static long getLongParameter(ACLMessage msg, String name, long defaultValue) {
+		String value = msg.getUserDefinedParameter(name);
+		if (value != null) {
+			try {
+				return Long.parseLong(value.trim());
+			}
+			catch (NumberFormatException e) {
+				e.printStackTrace();
+			}
+		}
+		return defaultValue;
+	}
+}
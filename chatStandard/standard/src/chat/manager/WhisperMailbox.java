@@ -0,0 +1,325 @@
+package chat.manager;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import chat.history.HistoryBatch;
+
+/**
+ * Boîtes aux lettres des messages privés adressés à des participants absents, indexées par
+ * pseudo. Le contenu d'une boîte est remis en un seul lot, au format des lots de
+ * l'historique (voir chat.history.HistoryBatch), lors de la prochaine inscription du
+ * destinataire.
+ *
+ * Chaque boîte contient au plus maxMessages messages. Les messages sont gardés en mémoire
+ * tant que leur taille totale ne dépasse pas memoryBudget octets ; au-delà, la boîte la plus
+ * volumineuse est écrite dans un fichier à son nom, auquel sont ensuite ajoutés directement
+ * les messages suivants du même destinataire jusqu'à leur remise. A l'arrêt, toutes les
+ * boîtes sont écrites sur disque et sont retrouvées au démarrage suivant ; un enregistrement
+ * tronqué en fin de fichier (arrêt brutal) est supprimé. Sans répertoire, les messages
+ * dépassant le budget sont refusés.
+ *
+ * Le nombre de boîtes est limité à maxBoxes et la taille des boîtes écrites sur disque à
+ * diskBudget octets : au-delà, les messages sont refusés. Seules les boîtes encore en
+ * mémoire à l'arrêt peuvent faire dépasser ce budget.
+ *
+ * La classe n'est pas synchronisée : elle est utilisée par le thread de l'agent.
+ */
+class WhisperMailbox {
+	static final int STORED = 0;
+	// La boîte du destinataire est pleine
+	static final int FULL = 1;
+	// Le nombre de boîtes ou le budget mémoire et disque est atteint
+	static final int NO_ROOM = 2;
+
+	private static final String SUFFIX = ".mbx";
+
+	private final File dir;
+	private final int maxBoxes;
+	private final int maxMessages;
+	private final long memoryBudget;
+	private final long diskBudget;
+	private final Map<String, Box> boxes = new HashMap<String, Box>();
+	// Taille des messages gardés en mémoire et de ceux écrits sur disque
+	private long memoryBytes;
+	private long diskBytes;
+
+	private static class Box {
+		// Messages en mémoire, au format des enregistrements de l'historique
+		final List<byte[]> records = new ArrayList<byte[]>();
+		long bytes;
+		// Nombre de messages, en mémoire ou sur disque
+		int count;
+		// Vrai si les messages sont dans le fichier du destinataire
+		boolean spilled;
+	}
+
+	/**
+	 * @param dir répertoire des boîtes écrites sur disque, ou null pour les garder en mémoire
+	 */
+	WhisperMailbox(File dir, int maxBoxes, int maxMessages, long memoryBudget, long diskBudget) {
+		this.dir = dir;
+		this.maxBoxes = maxBoxes;
+		this.maxMessages = maxMessages;
+		this.memoryBudget = memoryBudget;
+		this.diskBudget = diskBudget;
+	}
+
+	/**
+	 * Retrouve les boîtes écrites sur disque avant un redémarrage.
+	 */
+	void load() throws IOException {
+		if (dir == null) {
+			return;
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		File[] files = dir.listFiles();
+		for (int i = 0; i < files.length; ++i) {
+			String name = files[i].getName();
+			if (name.endsWith(SUFFIX)) {
+				Box box = new Box();
+				box.count = recover(files[i]);
+				box.spilled = true;
+				if (box.count > 0) {
+					diskBytes += files[i].length();
+					boxes.put(URLDecoder.decode(name.substring(0, name.length() - SUFFIX.length()), "UTF-8"), box);
+				}
+				else {
+					files[i].delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Ajoute un message dans la boîte du destinataire. Renvoie STORED, ou FULL et NO_ROOM si
+	 * le message est refusé.
+	 */
+	int add(String recipient, long time, String sender, String text) throws IOException {
+		Box box = boxes.get(recipient);
+		if (box != null && box.count >= maxMessages) {
+			return FULL;
+		}
+		if (box == null && boxes.size() >= maxBoxes) {
+			return NO_ROOM;
+		}
+		byte[] record = encode(time, sender, text);
+		if (dir == null && memoryBytes + record.length > memoryBudget) {
+			return NO_ROOM;
+		}
+		if (box != null && box.spilled) {
+			if (diskBytes + record.length > diskBudget) {
+				return NO_ROOM;
+			}
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(fileOf(recipient), true));
+			try {
+				out.write(record);
+			}
+			finally {
+				out.close();
+			}
+			diskBytes += record.length;
+			box.count++;
+			return STORED;
+		}
+		if (box == null) {
+			box = new Box();
+			boxes.put(recipient, box);
+		}
+		box.records.add(record);
+		box.bytes += record.length;
+		memoryBytes += record.length;
+		box.count++;
+		while (memoryBytes > memoryBudget) {
+			if (!spillLargest()) {
+				// Plus de place sur disque : le message est retiré de sa boîte
+				box.records.remove(box.records.size() - 1);
+				box.bytes -= record.length;
+				memoryBytes -= record.length;
+				if (--box.count == 0) {
+					boxes.remove(recipient);
+				}
+				return NO_ROOM;
+			}
+		}
+		return STORED;
+	}
+
+	/**
+	 * Vide la boîte du destinataire. Renvoie le lot des messages, dans l'ordre de leur
+	 * dépôt, ou null si la boîte est vide.
+	 */
+	byte[] drain(String recipient) throws IOException {
+		Box box = boxes.remove(recipient);
+		if (box == null) {
+			return null;
+		}
+		byte[] batch;
+		if (box.spilled) {
+			File file = fileOf(recipient);
+			int length = (int) file.length();
+			batch = new byte[HistoryBatch.BATCH_HEADER_SIZE + length];
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				in.readFully(batch, HistoryBatch.BATCH_HEADER_SIZE, length);
+			}
+			finally {
+				in.close();
+			}
+			file.delete();
+			diskBytes -= length;
+		}
+		else {
+			batch = new byte[HistoryBatch.BATCH_HEADER_SIZE + (int) box.bytes];
+			int pos = HistoryBatch.BATCH_HEADER_SIZE;
+			for (int i = 0; i < box.records.size(); ++i) {
+				byte[] record = box.records.get(i);
+				System.arraycopy(record, 0, batch, pos, record.length);
+				pos += record.length;
+			}
+			memoryBytes -= box.bytes;
+		}
+		// Les offsets n'ont pas de sens pour les messages privés : le lot commence à 0
+		putInt(batch, 8, box.count);
+		return batch;
+	}
+
+	/**
+	 * Nombre de destinataires ayant des messages en attente.
+	 */
+	int size() {
+		return boxes.size();
+	}
+
+	boolean contains(String recipient) {
+		return boxes.containsKey(recipient);
+	}
+
+	long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	long getDiskBytes() {
+		return diskBytes;
+	}
+
+	/**
+	 * Ecrit sur disque les boîtes gardées en mémoire.
+	 */
+	void close() throws IOException {
+		if (dir != null) {
+			Iterator<Map.Entry<String, Box>> it = boxes.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Box> e = it.next();
+				if (!e.getValue().spilled) {
+					spill(e.getKey(), e.getValue());
+				}
+			}
+		}
+	}
+
+	// Ecrit sur disque la boîte la plus volumineuse gardée en mémoire, si le budget disque
+	// le permet
+	private boolean spillLargest() throws IOException {
+		String largest = null;
+		Box largestBox = null;
+		Iterator<Map.Entry<String, Box>> it = boxes.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Box> e = it.next();
+			if (largestBox == null || e.getValue().bytes > largestBox.bytes) {
+				largest = e.getKey();
+				largestBox = e.getValue();
+			}
+		}
+		if (diskBytes + largestBox.bytes > diskBudget) {
+			return false;
+		}
+		spill(largest, largestBox);
+		return true;
+	}
+
+	private void spill(String recipient, Box box) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(fileOf(recipient), true));
+		try {
+			for (int i = 0; i < box.records.size(); ++i) {
+				out.write(box.records.get(i));
+			}
+		}
+		finally {
+			out.close();
+		}
+		memoryBytes -= box.bytes;
+		diskBytes += box.bytes;
+		box.records.clear();
+		box.bytes = 0;
+		box.spilled = true;
+	}
+
+	private File fileOf(String recipient) throws UnsupportedEncodingException {
+		return new File(dir, URLEncoder.encode(recipient, "UTF-8") + SUFFIX);
+	}
+
+	// Compte les enregistrements complets d'un fichier et supprime un éventuel enregistrement
+	// tronqué à la fin
+	private static int recover(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long length = raf.length();
+			long pos = 0;
+			int count = 0;
+			while (pos + HistoryBatch.RECORD_HEADER_SIZE <= length) {
+				raf.seek(pos);
+				int recordLength = raf.readInt();
+				if (recordLength < HistoryBatch.RECORD_HEADER_SIZE || pos + recordLength > length) {
+					break;
+				}
+				pos += recordLength;
+				count++;
+			}
+			if (pos < length) {
+				raf.setLength(pos);
+			}
+			return count;
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	private static byte[] encode(long time, String sender, String text) throws UnsupportedEncodingException {
+		byte[] senderBytes = sender.getBytes("UTF-8");
+		byte[] textBytes = text.getBytes("UTF-8");
+		byte[] record = new byte[HistoryBatch.RECORD_HEADER_SIZE + senderBytes.length + textBytes.length];
+		putInt(record, 0, record.length);
+		putInt(record, 4, (int) (time >>> 32));
+		putInt(record, 8, (int) time);
+		record[12] = (byte) (senderBytes.length >>> 8);
+		record[13] = (byte) senderBytes.length;
+		System.arraycopy(senderBytes, 0, record, HistoryBatch.RECORD_HEADER_SIZE, senderBytes.length);
+		System.arraycopy(textBytes, 0, record, HistoryBatch.RECORD_HEADER_SIZE + senderBytes.length, textBytes.length);
+		return record;
+	}
+
+	private static void putInt(byte[] b, int pos, int value) {
+		b[pos] = (byte) (value >>> 24);
+		b[pos + 1] = (byte) (value >>> 16);
+		b[pos + 2] = (byte) (value >>> 8);
+		b[pos + 3] = (byte) value;
+	}
+}
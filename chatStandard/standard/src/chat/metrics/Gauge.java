@@ -0,0 +1,8 @@
+package chat.metrics;
+
+/**
+ * Valeur instantanée lue au moment de l'export des métriques.
+ */
+public interface Gauge {
+	long getValue();
+}
@@ -0,0 +1,90 @@
+package chat.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogramme à buckets logarithmiques (16 sous-buckets par puissance de 2, soit une
+ * précision d'environ 6%). L'enregistrement est sans verrou ni allocation et peut rester
+ * actif en production ; la lecture des percentiles parcourt les buckets.
+ */
+public class Histogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private volatile long max;
+
+	public void record(long value) {
+		value = Math.max(0, value);
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		// Le maximum peut manquer une mesure concurrente, ce qui est sans importance ici
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	/**
+	 * Enregistre la durée écoulée depuis start (obtenu par System.nanoTime()), en µs.
+	 */
+	public void recordSince(long start) {
+		record((System.nanoTime() - start) / 1000);
+	}
+
+	private static int index(long v) {
+		if (v < SUB_BUCKETS) {
+			return (int) v;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(v) - SUB_BUCKET_BITS;
+		int sub = (int) (v >>> exp) - SUB_BUCKETS;
+		return SUB_BUCKETS + exp * SUB_BUCKETS + sub;
+	}
+
+	// Valeur haute du bucket donné
+	private static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exp = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << exp) - 1;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Renvoie la valeur en dessous de laquelle se trouve la fraction q des mesures.
+	 */
+	public long getPercentile(double q) {
+		long total = 0;
+		for (int i = 0; i < counts.length(); ++i) {
+			total += counts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(q * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length(); ++i) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max);
+			}
+		}
+		return max;
+	}
+}
@@ -0,0 +1,232 @@
+package chat.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/**
+ * Ensemble des métriques d'un agent : compteurs, jauges et histogrammes.
+ *
+ * Une fois enregistrées, les métriques sont visibles par JMX (domaine "chat", un MBean par
+ * agent) et dans l'export texte (format Prometheus) servi par le MetricsServer, chaque
+ * agent étant distingué par le label agent.
+ */
+public class Metrics {
+	private static final List<Metrics> registered = new CopyOnWriteArrayList<Metrics>();
+
+	private final String prefix;
+	private final String type;
+	private final String agent;
+	private final Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+	private final Map<String, String> helps = new LinkedHashMap<String, String>();
+	private ObjectName objectName;
+
+	/**
+	 * @param prefix préfixe des noms de métriques dans l'export texte (par exemple chat_manager)
+	 * @param type type du MBean
+	 * @param agent nom de l'agent
+	 */
+	public Metrics(String prefix, String type, String agent) {
+		this.prefix = prefix;
+		this.type = type;
+		this.agent = agent;
+	}
+
+	public AtomicLong counter(String name, String help) {
+		AtomicLong c = new AtomicLong();
+		add(name, help, c);
+		return c;
+	}
+
+	public Histogram histogram(String name, String help) {
+		Histogram h = new Histogram();
+		add(name, help, h);
+		return h;
+	}
+
+	public void gauge(String name, String help, Gauge g) {
+		add(name, help, g);
+	}
+
+	private synchronized void add(String name, String help, Object metric) {
+		metrics.put(name, metric);
+		helps.put(name, help);
+	}
+
+	/**
+	 * Publie les métriques par JMX et dans l'export texte.
+	 */
+	public void register() {
+		try {
+			objectName = new ObjectName("chat:type=" + type + ",name=" + ObjectName.quote(agent));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), objectName);
+		}
+		catch (Exception e) {
+			// Les métriques restent disponibles dans l'export texte
+			e.printStackTrace();
+			objectName = null;
+		}
+		registered.add(this);
+	}
+
+	public void unregister() {
+		registered.remove(this);
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Export texte, au format Prometheus, des métriques de tous les agents enregistrés.
+	 * Les histogrammes sont exportés comme des summary.
+	 */
+	public static String export() {
+		// Les échantillons sont regroupés par famille, les agents de même type partageant leurs noms
+		Map<String, StringBuilder> families = new LinkedHashMap<String, StringBuilder>();
+		for (Metrics m : registered) {
+			m.export(families);
+		}
+		StringBuilder out = new StringBuilder();
+		for (StringBuilder family : families.values()) {
+			out.append(family);
+		}
+		return out.toString();
+	}
+
+	private synchronized void export(Map<String, StringBuilder> families) {
+		String label = "agent=\"" + agent.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+		for (Map.Entry<String, Object> e : metrics.entrySet()) {
+			String name = prefix + "_" + e.getKey();
+			Object metric = e.getValue();
+			StringBuilder family = families.get(name);
+			if (family == null) {
+				family = new StringBuilder();
+				family.append("# HELP ").append(name).append(' ').append(helps.get(e.getKey())).append('\n');
+				family.append("# TYPE ").append(name).append(' ').append(
+						metric instanceof AtomicLong ? "counter" : metric instanceof Histogram ? "summary" : "gauge").append('\n');
+				families.put(name, family);
+			}
+			if (metric instanceof Histogram) {
+				Histogram h = (Histogram) metric;
+				appendSample(family, name, "{" + label + ",quantile=\"0.5\"}", h.getPercentile(0.5));
+				appendSample(family, name, "{" + label + ",quantile=\"0.99\"}", h.getPercentile(0.99));
+				appendSample(family, name, "{" + label + ",quantile=\"1\"}", h.getMax());
+				appendSample(family, name + "_sum", "{" + label + "}", h.getSum());
+				appendSample(family, name + "_count", "{" + label + "}", h.getCount());
+			}
+			else {
+				appendSample(family, name, "{" + label + "}", value(metric));
+			}
+		}
+	}
+
+	private static void appendSample(StringBuilder out, String name, String labels, long value) {
+		out.append(name).append(labels).append(' ').append(value).append('\n');
+	}
+
+	private static long value(Object metric) {
+		return metric instanceof AtomicLong ? ((AtomicLong) metric).get() : ((Gauge) metric).getValue();
+	}
+
+	/**
+	 * MBean exposant chaque compteur et jauge comme un attribut ; un histogramme donne les
+	 * attributs nom.count, nom.sum, nom.p50, nom.p99 et nom.max.
+	 */
+	private class MetricsMBean implements DynamicMBean {
+
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			synchronized (Metrics.this) {
+				Object metric = metrics.get(attribute);
+				if (metric != null && !(metric instanceof Histogram)) {
+					return Long.valueOf(value(metric));
+				}
+				int dot = attribute.lastIndexOf('.');
+				if (dot > 0 && (metric = metrics.get(attribute.substring(0, dot))) instanceof Histogram) {
+					Histogram h = (Histogram) metric;
+					String stat = attribute.substring(dot + 1);
+					if (stat.equals("count")) {
+						return Long.valueOf(h.getCount());
+					}
+					if (stat.equals("sum")) {
+						return Long.valueOf(h.getSum());
+					}
+					if (stat.equals("p50")) {
+						return Long.valueOf(h.getPercentile(0.5));
+					}
+					if (stat.equals("p99")) {
+						return Long.valueOf(h.getPercentile(0.99));
+					}
+					if (stat.equals("max")) {
+						return Long.valueOf(h.getMax());
+					}
+				}
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList();
+			for (int i = 0; i < attributes.length; ++i) {
+				try {
+					list.add(new Attribute(attributes[i], getAttribute(attributes[i])));
+				}
+				catch (AttributeNotFoundException e) {
+					// Attribut ignoré, comme le prévoit DynamicMBean
+				}
+			}
+			return list;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(actionName);
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			synchronized (Metrics.this) {
+				for (Map.Entry<String, Object> e : metrics.entrySet()) {
+					String help = helps.get(e.getKey());
+					if (e.getValue() instanceof Histogram) {
+						String[] stats = { "count", "sum", "p50", "p99", "max" };
+						for (int i = 0; i < stats.length; ++i) {
+							attributes.add(new MBeanAttributeInfo(e.getKey() + "." + stats[i], "java.lang.Long",
+									help + " (" + stats[i] + ")", true, false, false));
+						}
+					}
+					else {
+						attributes.add(new MBeanAttributeInfo(e.getKey(), "java.lang.Long", help, true, false, false));
+					}
+				}
+			}
+			return new MBeanInfo(Metrics.class.getName(), "Metrics of agent " + agent,
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[0], null);
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package chat.metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Point d'accès HTTP minimal, lié à l'interface locale, renvoyant l'export texte des
+ * métriques de tous les agents de la JVM quelle que soit l'URL demandée. Un seul serveur
+ * est démarré par port, même si plusieurs agents le demandent.
+ */
+public class MetricsServer implements Runnable {
+	private static final Map<Integer, MetricsServer> servers = new HashMap<Integer, MetricsServer>();
+
+	private final ServerSocket socket;
+
+	private MetricsServer(int port) throws IOException {
+		socket = new ServerSocket(port, 16, InetAddress.getByName("127.0.0.1"));
+	}
+
+	/**
+	 * Démarre, si ce n'est déjà fait, le serveur sur le port donné.
+	 */
+	public static synchronized void start(int port) {
+		if (servers.containsKey(port)) {
+			return;
+		}
+		try {
+			MetricsServer server = new MetricsServer(port);
+			Thread t = new Thread(server, "metrics-" + port);
+			t.setDaemon(true);
+			t.start();
+			servers.put(port, server);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void run() {
+		while (!socket.isClosed()) {
+			Socket s = null;
+			try {
+				s = socket.accept();
+				s.setSoTimeout(5000);
+				// On lit la requête jusqu'à la ligne vide sans l'interpréter
+				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+				String line;
+				while ((line = in.readLine()) != null && line.length() > 0) {
+				}
+				byte[] body = Metrics.export().getBytes("UTF-8");
+				OutputStream out = s.getOutputStream();
+				out.write(("HTTP/1.0 200 OK\r\n"
+						+ "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+						+ "Content-Length: " + body.length + "\r\n"
+						+ "Connection: close\r\n\r\n").getBytes("ISO-8859-1"));
+				out.write(body);
+				out.flush();
+			}
+			catch (IOException e) {
+				// Client déconnecté ou trop lent : on passe au suivant
+			}
+			finally {
+				if (s != null) {
+					try {
+						s.close();
+					}
+					catch (IOException e) {
+					}
+				}
+			}
+		}
+	}
+}
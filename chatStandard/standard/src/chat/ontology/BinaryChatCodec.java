@@ -0,0 +1,293 @@
+package chat.ontology;
+
+import java.io.UnsupportedEncodingException;
+
+import jade.content.abs.AbsAggregate;
+import jade.content.abs.AbsConcept;
+import jade.content.abs.AbsContentElement;
+import jade.content.abs.AbsObject;
+import jade.content.abs.AbsPredicate;
+import jade.content.abs.AbsPrimitive;
+import jade.content.lang.ByteArrayCodec;
+import jade.content.onto.BasicOntology;
+import jade.content.onto.Ontology;
+import jade.util.leap.Iterator;
+
+/**
+ * Codec binaire compact pour l'ontologie du chat. Il ne sait encoder que les prédicats
+ * Joined, Left, Spoken et Whispered, mais évite la génération et l'analyse du texte SL.
+ *
+ * Format : un octet de version, un octet identifiant le prédicat, puis
+ * - pour Joined/Left : le nombre d'AID suivi, pour chacun, du nom et de la liste des adresses ;
+ * - pour Spoken : la phrase ;
+ * - pour Whispered : le pseudo du destinataire puis la phrase.
+ * Les entiers sont codés en varint et les chaînes en UTF-8 précédées de leur longueur.
+ */
+public class BinaryChatCodec extends ByteArrayCodec {
+	private static final long serialVersionUID = 4731021635280374311L;
+
+	public static final String NAME = "chat-binary";
+
+	private static final byte VERSION = 1;
+	private static final byte TAG_JOINED = 1;
+	private static final byte TAG_LEFT = 2;
+	private static final byte TAG_SPOKEN = 3;
+	private static final byte TAG_WHISPERED = 4;
+
+	public BinaryChatCodec() {
+		super(NAME);
+	}
+
+	public byte[] encode(AbsContentElement content) throws CodecException {
+		return encode(null, content);
+	}
+
+	public byte[] encode(Ontology ontology, AbsContentElement content) throws CodecException {
+		if (!(content instanceof AbsPredicate)) {
+			throw new CodecException("Unsupported content " + content);
+		}
+		AbsPredicate p = (AbsPredicate) content;
+		String type = p.getTypeName();
+		Writer w = new Writer();
+		w.writeByte(VERSION);
+		if (ChatVocabulary.JOINED.equals(type)) {
+			w.writeByte(TAG_JOINED);
+			writeAIDs(w, (AbsAggregate) p.getAbsTerm(ChatVocabulary.JOINED_WHO));
+		}
+		else if (ChatVocabulary.LEFT.equals(type)) {
+			w.writeByte(TAG_LEFT);
+			writeAIDs(w, (AbsAggregate) p.getAbsTerm(ChatVocabulary.LEFT_WHO));
+		}
+		else if (ChatVocabulary.SPOKEN.equals(type)) {
+			w.writeByte(TAG_SPOKEN);
+			AbsPrimitive what = (AbsPrimitive) p.getAbsTerm(ChatVocabulary.SPOKEN_WHAT);
+			w.writeString(what != null ? what.getString() : null);
+		}
+		else if (ChatVocabulary.WHISPERED.equals(type)) {
+			w.writeByte(TAG_WHISPERED);
+			AbsPrimitive to = (AbsPrimitive) p.getAbsTerm(ChatVocabulary.WHISPERED_TO);
+			AbsPrimitive what = (AbsPrimitive) p.getAbsTerm(ChatVocabulary.WHISPERED_WHAT);
+			w.writeString(to != null ? to.getString() : null);
+			w.writeString(what != null ? what.getString() : null);
+		}
+		else {
+			throw new CodecException("Unsupported predicate " + type);
+		}
+		return w.toByteArray();
+	}
+
+	public AbsContentElement decode(byte[] content) throws CodecException {
+		return decode(null, content);
+	}
+
+	public AbsContentElement decode(Ontology ontology, byte[] content) throws CodecException {
+		if (content == null) {
+			throw new CodecException("No content");
+		}
+		try {
+			Reader r = new Reader(content);
+			if (r.readByte() != VERSION) {
+				throw new CodecException("Unsupported version");
+			}
+			byte tag = r.readByte();
+			AbsPredicate p;
+			switch (tag) {
+			case TAG_JOINED:
+				p = new AbsPredicate(ChatVocabulary.JOINED);
+				p.set(ChatVocabulary.JOINED_WHO, readAIDs(r));
+				break;
+			case TAG_LEFT:
+				p = new AbsPredicate(ChatVocabulary.LEFT);
+				p.set(ChatVocabulary.LEFT_WHO, readAIDs(r));
+				break;
+			case TAG_SPOKEN:
+				p = new AbsPredicate(ChatVocabulary.SPOKEN);
+				String what = r.readString();
+				if (what != null) {
+					p.set(ChatVocabulary.SPOKEN_WHAT, what);
+				}
+				break;
+			case TAG_WHISPERED:
+				p = new AbsPredicate(ChatVocabulary.WHISPERED);
+				String to = r.readString();
+				if (to != null) {
+					p.set(ChatVocabulary.WHISPERED_TO, to);
+				}
+				String said = r.readString();
+				if (said != null) {
+					p.set(ChatVocabulary.WHISPERED_WHAT, said);
+				}
+				break;
+			default:
+				throw new CodecException("Unknown tag " + tag);
+			}
+			return p;
+		}
+		catch (IndexOutOfBoundsException e) {
+			// Contenu tronqué, ou longueur incohérente ayant échappé aux vérifications
+			throw new CodecException("Truncated content", e);
+		}
+	}
+
+	private static void writeAIDs(Writer w, AbsAggregate agg) throws CodecException {
+		if (agg == null) {
+			w.writeVarInt(0);
+			return;
+		}
+		w.writeVarInt(agg.size());
+		Iterator it = agg.iterator();
+		while (it.hasNext()) {
+			AbsObject o = (AbsObject) it.next();
+			if (!(o instanceof AbsConcept) || !BasicOntology.AID.equals(o.getTypeName())) {
+				throw new CodecException("Unsupported term " + o);
+			}
+			AbsConcept aid = (AbsConcept) o;
+			AbsPrimitive name = (AbsPrimitive) aid.getAbsTerm(BasicOntology.AID_NAME);
+			w.writeString(name != null ? name.getString() : null);
+			AbsAggregate addresses = (AbsAggregate) aid.getAbsTerm(BasicOntology.AID_ADDRESSES);
+			int n = addresses != null ? addresses.size() : 0;
+			w.writeVarInt(n);
+			for (int i = 0; i < n; ++i) {
+				w.writeString(((AbsPrimitive) addresses.get(i)).getString());
+			}
+		}
+	}
+
+	private static AbsAggregate readAIDs(Reader r) throws CodecException {
+		AbsAggregate agg = new AbsAggregate(BasicOntology.SEQUENCE);
+		int size = r.readCount();
+		for (int i = 0; i < size; ++i) {
+			AbsConcept aid = new AbsConcept(BasicOntology.AID);
+			String name = r.readString();
+			if (name != null) {
+				aid.set(BasicOntology.AID_NAME, name);
+			}
+			int n = r.readCount();
+			if (n > 0) {
+				AbsAggregate addresses = new AbsAggregate(BasicOntology.SEQUENCE);
+				for (int j = 0; j < n; ++j) {
+					addresses.add(AbsPrimitive.wrap(r.readString()));
+				}
+				aid.set(BasicOntology.AID_ADDRESSES, addresses);
+			}
+			agg.add(aid);
+		}
+		return agg;
+	}
+
+	/**
+	 * Tampon d'écriture extensible, plus léger qu'un ByteArrayOutputStream synchronisé.
+	 */
+	private static class Writer {
+		private byte[] buf = new byte[64];
+		private int pos;
+
+		private void ensure(int n) {
+			if (pos + n > buf.length) {
+				byte[] b = new byte[Math.max(buf.length << 1, pos + n)];
+				System.arraycopy(buf, 0, b, 0, pos);
+				buf = b;
+			}
+		}
+
+		void writeByte(int b) {
+			ensure(1);
+			buf[pos++] = (byte) b;
+		}
+
+		void writeVarInt(int v) {
+			ensure(5);
+			while ((v & ~0x7F) != 0) {
+				buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[pos++] = (byte) v;
+		}
+
+		// Une longueur 0 code null, sinon la longueur + 1 précède les octets UTF-8
+		void writeString(String s) throws CodecException {
+			if (s == null) {
+				writeVarInt(0);
+				return;
+			}
+			byte[] b = utf8(s);
+			writeVarInt(b.length + 1);
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, pos, b.length);
+			pos += b.length;
+		}
+
+		byte[] toByteArray() {
+			byte[] b = new byte[pos];
+			System.arraycopy(buf, 0, b, 0, pos);
+			return b;
+		}
+	}
+
+	private static class Reader {
+		private final byte[] buf;
+		private int pos;
+
+		Reader(byte[] buf) {
+			this.buf = buf;
+		}
+
+		byte readByte() {
+			return buf[pos++];
+		}
+
+		int readVarInt() throws CodecException {
+			int v = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				byte b = buf[pos++];
+				v |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new CodecException("Malformed varint");
+		}
+
+		// Nombre d'éléments, chacun occupant au moins un octet : un nombre négatif ou
+		// supérieur aux octets restants ne peut venir que d'un contenu invalide
+		int readCount() throws CodecException {
+			int n = readVarInt();
+			if (n < 0 || n > buf.length - pos) {
+				throw new CodecException("Invalid count " + n);
+			}
+			return n;
+		}
+
+		String readString() throws CodecException {
+			int len = readVarInt();
+			if (len == 0) {
+				return null;
+			}
+			len--;
+			if (len < 0) {
+				// Longueur codée négative (ou +1 débordant)
+				throw new CodecException("Invalid string length");
+			}
+			if (len > buf.length - pos) {
+				throw new CodecException("Truncated content");
+			}
+			try {
+				String s = new String(buf, pos, len, "UTF-8");
+				pos += len;
+				return s;
+			}
+			catch (UnsupportedEncodingException e) {
+				throw new CodecException("UTF-8 not supported", e);
+			}
+		}
+	}
+
+	private static byte[] utf8(String s) throws CodecException {
+		try {
+			return s.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new CodecException("UTF-8 not supported", e);
+		}
+	}
+}
@@ -22,6 +22,8 @@ public class ChatOntology extends Ontology implements ChatVocabulary {
 			add(new PredicateSchema(JOINED), Joined.class);
 			add(new PredicateSchema(LEFT), Left.class);
 			add(new PredicateSchema(SPOKEN), Spoken.class);
+			add(new PredicateSchema(WHISPERED), Whispered.class);
+			add(new PredicateSchema(THROTTLED), Throttled.class);
 
 			PredicateSchema ps = (PredicateSchema) getSchema(JOINED);
 			ps.add(JOINED_WHO, (ConceptSchema) getSchema(BasicOntology.AID), 1, ObjectSchema.UNLIMITED);
@@ -31,6 +33,14 @@ public class ChatOntology extends Ontology implements ChatVocabulary {
 
 			ps = (PredicateSchema) getSchema(SPOKEN);
 			ps.add(SPOKEN_WHAT, (PrimitiveSchema) getSchema(BasicOntology.STRING));
+
+			ps = (PredicateSchema) getSchema(WHISPERED);
+			ps.add(WHISPERED_TO, (PrimitiveSchema) getSchema(BasicOntology.STRING));
+			ps.add(WHISPERED_WHAT, (PrimitiveSchema) getSchema(BasicOntology.STRING));
+
+			ps = (PredicateSchema) getSchema(THROTTLED);
+			ps.add(THROTTLED_SCOPE, (PrimitiveSchema) getSchema(BasicOntology.STRING));
+			ps.add(THROTTLED_RETRY_AFTER, (PrimitiveSchema) getSchema(BasicOntology.INTEGER));
 		} catch (OntologyException oe) {
 			oe.printStackTrace();
 		}
@@ -40,4 +40,14 @@ public interface ChatVocabulary {
 
   public static final String SPOKEN = "spoken";
   public static final String SPOKEN_WHAT = "what";
+
+  public static final String WHISPERED = "whispered";
+  public static final String WHISPERED_TO = "to";
+  public static final String WHISPERED_WHAT = "what";
+
+  public static final String THROTTLED = "throttled";
+  public static final String THROTTLED_SCOPE = "scope";
+  public static final String THROTTLED_RETRY_AFTER = "retry-after";
+  public static final String THROTTLED_SENDER = "sender";
+  public static final String THROTTLED_ROOM = "room";
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+package chat.ontology;
+
+import jade.content.Predicate;
+
+/**
+ * Prédicat d'un REFUSE envoyé par le manager à un participant dont le message a été
+ * refusé faute de débit : la limite dépassée ("sender" pour celle du participant, "room"
+ * pour celle du salon) et le délai en ms avant de pouvoir parler à nouveau.
+ */
+
+public class Throttled implements Predicate {
+
+	private String _scope;
+	private long _retryAfter;
+
+	public void setScope(String scope) {
+		_scope = scope;
+	}
+
+	public String getScope() {
+		return _scope;
+	}
+
+	public void setRetryAfter(long retryAfter) {
+		_retryAfter = retryAfter;
+	}
+
+	public long getRetryAfter() {
+		return _retryAfter;
+	}
+
+}
@@ -0,0 +1,31 @@
+package chat.ontology;
+
+import jade.content.Predicate;
+
+/**
+ * Prédicat d'un message privé : le pseudo du destinataire et le texte, sans le préfixe
+ * "/pseudo" saisi par l'utilisateur.
+ */
+
+public class Whispered implements Predicate {
+
+	private String _to;
+	private String _what;
+
+	public void setTo(String to) {
+		_to = to;
+	}
+
+	public String getTo() {
+		return _to;
+	}
+
+	public void setWhat(String what) {
+		_what = what;
+	}
+
+	public String getWhat() {
+		return _what;
+	}
+
+}
@@ -0,0 +1,86 @@
+package chat.ratelimit;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limitation de débit par émetteur (un seau à jetons par clé) et pour l'ensemble du salon
+ * (un seau commun). Un évènement refusé par le seau commun ne consomme pas de jeton de
+ * son émetteur.
+ */
+public class RateLimiter<K> {
+	public static final int ALLOWED = 0;
+	// Débit de l'émetteur dépassé
+	public static final int SENDER = 1;
+	// Débit du salon dépassé
+	public static final int ROOM = 2;
+
+	private final double rate;
+	private final int burst;
+	private final TokenBucket room;
+	private final Map<K, TokenBucket> buckets = new HashMap<K, TokenBucket>();
+
+	/**
+	 * @param rate débit moyen autorisé par émetteur, en évènements par seconde (0 pour ne
+	 * pas limiter les émetteurs)
+	 * @param burst rafale autorisée par émetteur
+	 * @param roomRate débit moyen autorisé pour l'ensemble des émetteurs (0 pour ne pas le
+	 * limiter)
+	 * @param roomBurst rafale autorisée pour l'ensemble des émetteurs
+	 */
+	public RateLimiter(double rate, int burst, double roomRate, int roomBurst) {
+		this.rate = rate;
+		this.burst = burst;
+		this.room = roomRate > 0 ? new TokenBucket(roomRate, roomBurst) : null;
+	}
+
+	/**
+	 * Renvoie ALLOWED si l'évènement est autorisé, sinon SENDER ou ROOM selon la limite
+	 * dépassée.
+	 *
+	 * @param now instant courant, obtenu par System.nanoTime()
+	 */
+	public synchronized int tryAcquire(K key, long now) {
+		TokenBucket bucket = getBucket(key);
+		if (bucket != null && !bucket.tryAcquire(now)) {
+			return SENDER;
+		}
+		if (room != null && !room.tryAcquire(now)) {
+			if (bucket != null) {
+				bucket.release();
+			}
+			return ROOM;
+		}
+		return ALLOWED;
+	}
+
+	/**
+	 * Délai en ms avant que la limite donnée par tryAcquire() soit levée.
+	 */
+	public synchronized long getWaitMillis(K key, int limit, long now) {
+		if (limit == ROOM) {
+			return room.getWaitMillis(now);
+		}
+		TokenBucket bucket = getBucket(key);
+		return bucket != null ? bucket.getWaitMillis(now) : 0;
+	}
+
+	/**
+	 * Oublie le seau d'un émetteur, par exemple lorsqu'il quitte le chat.
+	 */
+	public synchronized void forget(K key) {
+		buckets.remove(key);
+	}
+
+	private TokenBucket getBucket(K key) {
+		if (rate <= 0) {
+			return null;
+		}
+		TokenBucket bucket = buckets.get(key);
+		if (bucket == null) {
+			bucket = new TokenBucket(rate, burst);
+			buckets.put(key, bucket);
+		}
+		return bucket;
+	}
+}
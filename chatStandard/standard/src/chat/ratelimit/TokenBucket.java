@@ -0,0 +1,58 @@
+package chat.ratelimit;
+
+/**
+ * Seau à jetons : autorise en moyenne rate évènements par seconde, par rafales d'au plus
+ * burst évènements. Les jetons sont recalculés à chaque appel, sans thread ni timer.
+ */
+public class TokenBucket {
+	private final double tokensPerNano;
+	private final double burst;
+	private double tokens;
+	private long last;
+
+	public TokenBucket(double rate, int burst) {
+		this.tokensPerNano = rate / 1e9;
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.last = System.nanoTime();
+	}
+
+	/**
+	 * Prend un jeton s'il y en a un de disponible.
+	 *
+	 * @param now instant courant, obtenu par System.nanoTime()
+	 */
+	public synchronized boolean tryAcquire(long now) {
+		refill(now);
+		if (tokens >= 1) {
+			tokens -= 1;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Rend un jeton pris par tryAcquire() pour un évènement finalement refusé.
+	 */
+	public synchronized void release() {
+		tokens = Math.min(burst, tokens + 1);
+	}
+
+	/**
+	 * Délai en ms avant qu'un jeton soit disponible.
+	 */
+	public synchronized long getWaitMillis(long now) {
+		refill(now);
+		if (tokens >= 1) {
+			return 0;
+		}
+		return (long) Math.ceil((1 - tokens) / tokensPerNano / 1e6);
+	}
+
+	private void refill(long now) {
+		if (now > last) {
+			tokens = Math.min(burst, tokens + (now - last) * tokensPerNano);
+			last = now;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package chat.client.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import jade.lang.acl.ACLMessage;
+
+public class ChatSequencerTest {
+    private static final long NACK_TIMEOUT = 1000;
+
+    private static ACLMessage message(long seq) {
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.setContent(String.valueOf(seq));
+        return msg;
+    }
+
+    private static List<String> contents(List<ACLMessage> messages) {
+        List<String> contents = new ArrayList<String>();
+        for (int i = 0; i < messages.size(); ++i) {
+            contents.add(messages.get(i).getContent());
+        }
+        return contents;
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < values.length; ++i) {
+            list.add(values[i]);
+        }
+        return list;
+    }
+
+    @Test
+    public void messagesInOrderAreDeliveredAtOnce() {
+        ChatSequencer sequencer = new ChatSequencer(100, NACK_TIMEOUT, 3);
+        assertEquals(list("5"), contents(sequencer.received("s1", 5, message(5))));
+        assertEquals(list("6"), contents(sequencer.received("s1", 6, message(6))));
+        assertEquals(6, sequencer.getLast());
+        assertNull(sequencer.getMissing(0));
+    }
+
+    @Test
+    public void gapIsRequestedThenFilledByTheRetransmission() {
+        ChatSequencer sequencer = new ChatSequencer(100, NACK_TIMEOUT, 3);
+        sequencer.received("s1", 1, message(1));
+        assertTrue(sequencer.received("s1", 4, message(4)).isEmpty());
+        assertTrue(sequencer.received("s1", 5, message(5)).isEmpty());
+        assertArrayEquals(new long[] {2, 3}, sequencer.getMissing(0));
+        // Demande en cours : pas de nouvelle demande avant nackTimeout
+        assertNull(sequencer.getMissing(NACK_TIMEOUT / 2));
+
+        assertEquals(list("2"), contents(sequencer.received("s1", 2, message(2))));
+        assertEquals(list("3", "4", "5"), contents(sequencer.received("s1", 3, message(3))));
+        assertEquals(5, sequencer.getLast());
+        assertEquals(0, sequencer.getLost());
+    }
+
+    @Test
+    public void duplicatesAreIgnored() {
+        ChatSequencer sequencer = new ChatSequencer(100, NACK_TIMEOUT, 3);
+        sequencer.received("s1", 1, message(1));
+        sequencer.received("s1", 3, message(3));
+        assertTrue(sequencer.received("s1", 1, message(1)).isEmpty());
+        assertTrue(sequencer.received("s1", 3, message(3)).isEmpty());
+        assertEquals(2, sequencer.getDuplicates());
+    }
+
+    @Test
+    public void newStreamRestartsTheNumbering() {
+        ChatSequencer sequencer = new ChatSequencer(100, NACK_TIMEOUT, 3);
+        sequencer.received("s1", 10, message(10));
+        sequencer.received("s1", 12, message(12));
+        assertEquals(list("1"), contents(sequencer.received("s2", 1, message(1))));
+        assertEquals("s2", sequencer.getStream());
+        assertNull(sequencer.getMissing(0));
+    }
+
+    @Test
+    public void tooManyPendingMessagesSkipTheGap() {
+        ChatSequencer sequencer = new ChatSequencer(2, NACK_TIMEOUT, 3);
+        sequencer.received("s1", 1, message(1));
+        sequencer.received("s1", 3, message(3));
+        sequencer.received("s1", 4, message(4));
+        assertEquals(list("3", "4", "5"), contents(sequencer.received("s1", 5, message(5))));
+        assertEquals(1, sequencer.getLost());
+    }
+
+    @Test
+    public void unavailableMessagesAreLost() {
+        ChatSequencer sequencer = new ChatSequencer(100, NACK_TIMEOUT, 3);
+        sequencer.received("s1", 1, message(1));
+        sequencer.received("s1", 5, message(5));
+        assertEquals(list("5"), contents(sequencer.unavailable("s1", 5)));
+        assertEquals(3, sequencer.getLost());
+        // Réponse concernant un autre flux : ignorée
+        assertTrue(sequencer.unavailable("s0", 10).isEmpty());
+        assertEquals(5, sequencer.getLast());
+    }
+
+    @Test
+    public void unansweredRequestsExpireAfterMaxNacks() {
+        ChatSequencer sequencer = new ChatSequencer(100, NACK_TIMEOUT, 2);
+        sequencer.received("s1", 1, message(1));
+        sequencer.received("s1", 3, message(3));
+        assertArrayEquals(new long[] {2, 2}, sequencer.getMissing(0));
+        assertArrayEquals(new long[] {2, 2}, sequencer.getMissing(NACK_TIMEOUT));
+        assertNull(sequencer.getMissing(2 * NACK_TIMEOUT));
+        assertTrue(sequencer.expire(NACK_TIMEOUT + 1).isEmpty());
+        assertEquals(list("3"), contents(sequencer.expire(2 * NACK_TIMEOUT)));
+        assertEquals(1, sequencer.getLost());
+    }
+
+    @Test
+    public void hintRevealsLostLastMessages() {
+        ChatSequencer sequencer = new ChatSequencer(100, NACK_TIMEOUT, 3);
+        sequencer.received("s1", 1, message(1));
+        sequencer.hint("s1", 3);
+        assertArrayEquals(new long[] {2, 3}, sequencer.getMissing(0));
+        sequencer.received("s1", 2, message(2));
+        sequencer.received("s1", 3, message(3));
+        assertNull(sequencer.getMissing(2 * NACK_TIMEOUT));
+    }
+}
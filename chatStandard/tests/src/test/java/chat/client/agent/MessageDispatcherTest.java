@@ -0,0 +1,103 @@
+package chat.client.agent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import jade.core.Agent;
+import jade.lang.acl.ACLMessage;
+
+public class MessageDispatcherTest {
+    private Agent agent;
+    private MessageDispatcher dispatcher;
+    private List<String> chat;
+    private List<String> history;
+
+    // Agent hors plateforme : les messages sont déposés directement dans sa file
+    private void post(String conversationId, String content) {
+        ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+        msg.setConversationId(conversationId);
+        msg.setContent(content);
+        agent.postMessage(msg);
+    }
+
+    private static MessageDispatcher.Handler recorder(final List<String> received) {
+        return new MessageDispatcher.Handler() {
+            private static final long serialVersionUID = 1L;
+
+            public void handle(ACLMessage msg) {
+                received.add(msg.getContent());
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        agent = new Agent();
+        dispatcher = new MessageDispatcher(agent, 3);
+        chat = new ArrayList<String>();
+        history = new ArrayList<String>();
+        dispatcher.register("chat", recorder(chat));
+        dispatcher.register("history", recorder(history));
+    }
+
+    @Test
+    public void messagesGoToTheHandlerOfTheirConversationInOrder() {
+        post("chat", "1");
+        post("history", "a");
+        post("chat", "2");
+        dispatcher.action();
+        assertEquals(2, chat.size());
+        assertEquals("1", chat.get(0));
+        assertEquals("2", chat.get(1));
+        assertEquals(1, history.size());
+        assertEquals("a", history.get(0));
+    }
+
+    @Test
+    public void messagesWithoutHandlerStayInTheQueue() {
+        post("df", "subscription");
+        post(null, "sans conversation");
+        post("chat", "1");
+        dispatcher.action();
+        assertEquals(1, chat.size());
+        assertEquals(2, agent.getCurQueueSize());
+        assertEquals("subscription", agent.receive().getContent());
+        assertEquals("sans conversation", agent.receive().getContent());
+        assertNull(agent.receive());
+    }
+
+    @Test
+    public void aBurstLeavesTheRestForTheNextRun() {
+        for (int i = 0; i < 7; ++i) {
+            post("chat", String.valueOf(i));
+        }
+        dispatcher.action();
+        assertEquals(3, chat.size());
+        // Des messages restent : le behaviour n'est pas bloqué
+        assertTrue(dispatcher.isRunnable());
+        dispatcher.action();
+        dispatcher.action();
+        assertEquals(7, chat.size());
+        assertEquals("6", chat.get(6));
+        dispatcher.action();
+        assertFalse(dispatcher.isRunnable());
+    }
+
+    @Test
+    public void registeringAgainReplacesTheHandler() {
+        List<String> other = new ArrayList<String>();
+        dispatcher.register("chat", recorder(other));
+        post("chat", "1");
+        dispatcher.action();
+        assertTrue(chat.isEmpty());
+        assertEquals(1, other.size());
+    }
+}
@@ -0,0 +1,76 @@
+package chat.client.agent;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import jade.core.AID;
+
+public class ParticipantRegistryTest {
+    private static final AID ALICE = new AID("alice@localhost:1099/JADE", AID.ISGUID);
+    private static final AID BOB = new AID("bob@localhost:1099/JADE", AID.ISGUID);
+    private static final AID CAROL = new AID("carol@localhost:1099/JADE", AID.ISGUID);
+    // Même pseudo que BOB, sur une autre plateforme
+    private static final AID OTHER_BOB = new AID("bob@remote:1099/JADE", AID.ISGUID);
+
+    @Test
+    public void namesAreSortedAndLookedUpByNickname() {
+        ParticipantRegistry registry = new ParticipantRegistry();
+        registry.add(CAROL);
+        registry.add(ALICE);
+        registry.add(BOB);
+        assertEquals(3, registry.size());
+        assertArrayEquals(new String[] { "alice", "bob", "carol" }, registry.getLocalNames());
+        assertArrayEquals(new String[] { ALICE.getName(), BOB.getName(), CAROL.getName() }, registry.getNames());
+        assertSame(BOB, registry.get("bob"));
+        assertNull(registry.get("dave"));
+    }
+
+    @Test
+    public void arraysAreOnlyRebuiltAfterAChange() {
+        ParticipantRegistry registry = new ParticipantRegistry();
+        registry.add(ALICE);
+        String[] names = registry.getLocalNames();
+        assertSame(names, registry.getLocalNames());
+        // Une nouvelle arrivée du même participant ne change rien
+        registry.add(ALICE);
+        assertSame(names, registry.getLocalNames());
+        registry.add(BOB);
+        String[] changed = registry.getLocalNames();
+        assertNotSame(names, changed);
+        assertArrayEquals(new String[] { "alice" }, names);
+        assertArrayEquals(new String[] { "alice", "bob" }, changed);
+    }
+
+    @Test
+    public void aNicknameTakenByAnotherAgentIsNotRemovedByTheOldOne() {
+        ParticipantRegistry registry = new ParticipantRegistry();
+        registry.add(BOB);
+        registry.add(OTHER_BOB);
+        assertEquals(1, registry.size());
+        assertSame(OTHER_BOB, registry.get("bob"));
+        // Départ tardif de l'ancien bob
+        registry.remove(BOB);
+        assertSame(OTHER_BOB, registry.get("bob"));
+        assertArrayEquals(new String[] { OTHER_BOB.getName() }, registry.getNames());
+        registry.remove(OTHER_BOB);
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.getLocalNames().length);
+    }
+
+    @Test
+    public void clearEmptiesTheList() {
+        ParticipantRegistry registry = new ParticipantRegistry();
+        registry.add(ALICE);
+        registry.add(BOB);
+        registry.getNames();
+        registry.clear();
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.getNames().length);
+        assertNull(registry.get("alice"));
+    }
+}
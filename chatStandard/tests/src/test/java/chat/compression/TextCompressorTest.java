@@ -0,0 +1,116 @@
+package chat.compression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import jade.lang.acl.ACLMessage;
+
+public class TextCompressorTest {
+
+	private static String repeat(String s, int n) {
+		StringBuilder sb = new StringBuilder(s.length() * n);
+		for (int i = 0; i < n; ++i) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	// Compression sans dictionnaire
+	private static byte[] deflate(byte[] input) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		deflater.setInput(input);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished()) {
+			out.write(buffer, 0, deflater.deflate(buffer));
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void longTextRoundTrips() throws IOException {
+		String text = repeat("Bonjour à tous, voici un long message du chat général. ", 20);
+		byte[] compressed = TextCompressor.compress(text);
+		assertNotNull(compressed);
+		assertTrue(compressed.length < TextCompressor.sizeOf(text));
+		assertEquals(text, TextCompressor.decompress(compressed));
+	}
+
+	@Test
+	public void shortOrIncompressibleTextIsLeftAsIs() {
+		assertNull(TextCompressor.compress(null));
+		assertNull(TextCompressor.compress("bonjour"));
+		// Le seuil porte sur la taille en UTF-8, pas sur le nombre de caractères
+		assertNull(TextCompressor.compress(repeat("x", TextCompressor.THRESHOLD - 1)));
+		assertNotNull(TextCompressor.compress(repeat("é", TextCompressor.THRESHOLD / 2)));
+	}
+
+	@Test
+	public void messageTextRoundTrips() throws IOException {
+		ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+		String text = repeat("salut ", 100);
+		assertTrue(TextCompressor.setText(msg, text));
+		assertTrue(TextCompressor.isCompressed(msg));
+		assertEquals(text, TextCompressor.getText(msg));
+
+		// Un texte court remplace le contenu compressé
+		assertFalse(TextCompressor.setText(msg, "court"));
+		assertFalse(TextCompressor.isCompressed(msg));
+		assertEquals("court", TextCompressor.getText(msg));
+	}
+
+	@Test
+	public void acceptedSchemesAreParsed() {
+		ACLMessage msg = new ACLMessage(ACLMessage.SUBSCRIBE);
+		assertFalse(TextCompressor.accepts(msg));
+		msg.addUserDefinedParameter(TextCompressor.ACCEPT, "gzip, " + TextCompressor.SCHEME);
+		assertTrue(TextCompressor.accepts(msg));
+		msg.addUserDefinedParameter(TextCompressor.ACCEPT, TextCompressor.SCHEME + "x");
+		assertFalse(TextCompressor.accepts(msg));
+	}
+
+	@Test
+	public void textLargerThanTheLimitIsRefused() {
+		// Quelques Ko se décompressant en plus de 1 Mo
+		byte[] bomb = new byte[2 * 1024 * 1024];
+		Arrays.fill(bomb, (byte) 'a');
+		try {
+			TextCompressor.decompress(deflate(bomb));
+			fail("expected IOException");
+		}
+		catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("too large"));
+		}
+	}
+
+	@Test
+	public void invalidDataIsRefused() {
+		byte[] compressed = TextCompressor.compress(repeat("salut ", 100));
+		byte[][] invalid = {
+			{1, 2, 3, 4, 5},
+			Arrays.copyOf(compressed, compressed.length / 2),
+		};
+		for (int i = 0; i < invalid.length; ++i) {
+			try {
+				TextCompressor.decompress(invalid[i]);
+				fail("expected IOException for case " + i);
+			}
+			catch (IOException e) {
+				// Attendu
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package chat.history;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HistoryBatchTest {
+
+	/**
+	 * Messages reçus d'un lot, sous la forme "offset time sender: text".
+	 */
+	private static class Collector implements HistoryBatch.Handler {
+		final List<String> messages = new ArrayList<String>();
+
+		public void onMessage(long offset, long time, String sender, String text) {
+			messages.add(offset + " " + time + " " + sender + ": " + text);
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, long time, String sender, String text) throws IOException {
+		byte[] senderBytes = sender.getBytes("UTF-8");
+		byte[] textBytes = text.getBytes("UTF-8");
+		out.writeInt(HistoryBatch.RECORD_HEADER_SIZE + senderBytes.length + textBytes.length);
+		out.writeLong(time);
+		out.writeShort(senderBytes.length);
+		out.write(senderBytes);
+		out.write(textBytes);
+	}
+
+	@Test
+	public void parseNumbersMessagesFromTheBatchOffset() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(1L << 33);
+		out.writeInt(3);
+		writeRecord(out, 1000, "alice@host:1099/JADE", "bonjour");
+		writeRecord(out, -1, "bob", "Café ☕");
+		writeRecord(out, Long.MAX_VALUE, "", "");
+		out.flush();
+
+		Collector c = new Collector();
+		HistoryBatch.parse(bytes.toByteArray(), c);
+		assertEquals(3, c.messages.size());
+		assertEquals((1L << 33) + " 1000 alice@host:1099/JADE: bonjour", c.messages.get(0));
+		assertEquals(((1L << 33) + 1) + " -1 bob: Café ☕", c.messages.get(1));
+		assertEquals(((1L << 33) + 2) + " " + Long.MAX_VALUE + " : ", c.messages.get(2));
+	}
+
+	@Test
+	public void parseStopsAtTheEndOfATruncatedBatch() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(0);
+		// Le lot annonce plus de messages qu'il n'en contient
+		out.writeInt(5);
+		writeRecord(out, 1, "a", "un");
+		out.writeInt(42);
+		out.flush();
+
+		Collector c = new Collector();
+		HistoryBatch.parse(bytes.toByteArray(), c);
+		assertEquals(1, c.messages.size());
+		assertEquals("0 1 a: un", c.messages.get(0));
+	}
+
+	@Test
+	public void parseHitsUsesTheOffsetOfEachRecord() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(2);
+		out.writeLong(907);
+		writeRecord(out, 20, "carol", "foo bar");
+		out.writeLong(12);
+		writeRecord(out, 10, "dave", "bar foo");
+		out.flush();
+
+		Collector c = new Collector();
+		HistoryBatch.parseHits(bytes.toByteArray(), c);
+		assertEquals(2, c.messages.size());
+		assertEquals("907 20 carol: foo bar", c.messages.get(0));
+		assertEquals("12 10 dave: bar foo", c.messages.get(1));
+	}
+
+	@Test
+	public void readsBigEndianIntegers() {
+		byte[] b = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFE, 0, 0, 0, 1};
+		assertEquals(-2, HistoryBatch.getInt(b, 0));
+		assertEquals(1, HistoryBatch.getInt(b, 4));
+		assertEquals(0xFFFFFFFE00000001L, HistoryBatch.getLong(b, 0));
+	}
+}
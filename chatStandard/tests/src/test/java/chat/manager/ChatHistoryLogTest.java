@@ -0,0 +1,120 @@
+package chat.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import chat.history.HistoryBatch;
+
+public class ChatHistoryLogTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static List<String> parse(byte[] batch) {
+		final List<String> messages = new ArrayList<String>();
+		HistoryBatch.parse(batch, new HistoryBatch.Handler() {
+			public void onMessage(long offset, long time, String sender, String text) {
+				messages.add(offset + " " + time + " " + sender + ": " + text);
+			}
+		});
+		return messages;
+	}
+
+	@Test
+	public void readReturnsAppendedMessagesAsABatch() throws IOException {
+		ChatHistoryLog log = new ChatHistoryLog(tmp.getRoot(), 64 * 1024, 4);
+		try {
+			assertEquals(0, log.append("alice", "bonjour", 100));
+			assertEquals(1, log.append("bob", "Café", 200));
+			assertEquals(2, log.append("alice", "", 300));
+			assertEquals(3, log.getNextOffset());
+
+			List<String> all = parse(log.read(0, 10, Integer.MAX_VALUE));
+			assertEquals(3, all.size());
+			assertEquals("0 100 alice: bonjour", all.get(0));
+			assertEquals("1 200 bob: Café", all.get(1));
+			assertEquals("2 300 alice: ", all.get(2));
+
+			List<String> one = parse(log.read(1, 1, Integer.MAX_VALUE));
+			assertEquals(1, one.size());
+			assertEquals("1 200 bob: Café", one.get(0));
+			assertNull(log.read(3, 10, Integer.MAX_VALUE));
+		}
+		finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void readReturnsAtLeastOneRecordBeyondMaxBytes() throws IOException {
+		ChatHistoryLog log = new ChatHistoryLog(tmp.getRoot(), 64 * 1024, 4);
+		try {
+			for (int i = 0; i < 10; ++i) {
+				log.append("alice", "message " + i, i);
+			}
+			byte[] batch = log.read(0, 10, 1);
+			assertEquals(1, HistoryBatch.getInt(batch, 8));
+			assertEquals(1, parse(batch).size());
+		}
+		finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void retiredOffsetsAreNotReadAnyMore() throws IOException, InterruptedException {
+		File dir = tmp.getRoot();
+		// Environ 10 messages par segment
+		ChatHistoryLog log = new ChatHistoryLog(dir, 256, 2);
+		try {
+			for (int i = 0; i < 100; ++i) {
+				log.append("alice", "message numero " + i, i);
+			}
+			// Les segments pleins sont supprimés par un thread dédié
+			long deadline = System.currentTimeMillis() + 5000;
+			while (dir.list().length > 4 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue(dir.list().length <= 4);
+			long first = log.getFirstOffset();
+			assertTrue(first > 0);
+			assertNull(log.read(0, 1, Integer.MAX_VALUE));
+			assertNull(log.read(first - 1, 1, Integer.MAX_VALUE));
+			List<String> batch = parse(log.read(first, 1, Integer.MAX_VALUE));
+			assertEquals(first + " " + first + " alice: message numero " + first, batch.get(0));
+		}
+		finally {
+			log.close();
+		}
+	}
+
+	@Test
+	public void reopenedLogKeepsItsOffsets() throws IOException {
+		File dir = tmp.getRoot();
+		ChatHistoryLog log = new ChatHistoryLog(dir, 256, 8);
+		for (int i = 0; i < 25; ++i) {
+			log.append("bob", "message " + i, i);
+		}
+		log.close();
+
+		log = new ChatHistoryLog(dir, 256, 8);
+		try {
+			assertEquals(25, log.getNextOffset());
+			assertEquals(25, log.append("bob", "encore", 25));
+			assertEquals("24 24 bob: message 24", parse(log.read(24, 1, Integer.MAX_VALUE)).get(0));
+			assertEquals("25 25 bob: encore", parse(log.read(25, 1, Integer.MAX_VALUE)).get(0));
+		}
+		finally {
+			log.close();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package chat.manager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class HistoryIndexTest {
+
+	@Test
+	public void tokenizeLowercasesAndRemovesDuplicates() {
+		assertEquals(Arrays.asList("bonjour", "café", "42"), HistoryIndex.tokenize("Bonjour, CAFÉ! a 42 bonjour"));
+		String longWord = "abcdefghijklmnopqrstuvwxyzabcdefghijkl";
+		assertEquals(Arrays.asList(longWord.substring(0, HistoryIndex.MAX_TERM_LENGTH)), HistoryIndex.tokenize(longWord));
+		assertTrue(HistoryIndex.tokenize("a . ,").isEmpty());
+	}
+
+	@Test
+	public void searchReturnsMessagesWithAllWordsNewestFirst() {
+		HistoryIndex index = new HistoryIndex(16 * 1024 * 1024);
+		index.add(0, 100, "foo bar");
+		index.add(1, 200, "foo");
+		index.add(2, 300, "bar foo baz");
+		index.add(3, 400, "bar");
+		assertArrayEquals(new long[] {2, 0}, index.search(HistoryIndex.tokenize("Foo BAR"), Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 10));
+		assertArrayEquals(new long[] {2, 1, 0}, index.search(HistoryIndex.tokenize("foo"), Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 10));
+		assertEquals(0, index.search(HistoryIndex.tokenize("absent"), Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 10).length);
+		assertEquals(0, index.search(HistoryIndex.tokenize(""), Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 10).length);
+	}
+
+	@Test
+	public void searchFiltersByTimeAndPages() {
+		HistoryIndex index = new HistoryIndex(16 * 1024 * 1024);
+		for (int i = 0; i < 10000; ++i) {
+			index.add(i, 1000 + i, i % 2 == 0 ? "pair message" : "impair message");
+		}
+		long[] page = index.search(HistoryIndex.tokenize("pair"), Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 3);
+		assertArrayEquals(new long[] {9998, 9996, 9994}, page);
+		// Page suivante, avant le dernier résultat, à travers les blocs
+		page = index.search(HistoryIndex.tokenize("pair"), Long.MIN_VALUE, Long.MAX_VALUE, 8194, 3);
+		assertArrayEquals(new long[] {8192, 8190, 8188}, page);
+		page = index.search(HistoryIndex.tokenize("impair message"), 1000 + 10, 1000 + 14, Long.MAX_VALUE, 10);
+		assertArrayEquals(new long[] {13, 11}, page);
+	}
+
+	@Test
+	public void oldestBlocksAreDroppedBeyondTheBudget() {
+		HistoryIndex index = new HistoryIndex(200 * 1024);
+		for (int i = 0; i < 5 * HistoryIndex.BLOCK_MESSAGES; ++i) {
+			index.add(i, i, "mot" + (i % 500) + " commun");
+		}
+		assertTrue(index.getMemoryBytes() <= 200 * 1024);
+		long first = index.getFirstOffset();
+		assertTrue(first > 0);
+		assertEquals(0, first % HistoryIndex.BLOCK_MESSAGES);
+		long[] hits = index.search(HistoryIndex.tokenize("commun"), Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 5 * HistoryIndex.BLOCK_MESSAGES);
+		assertEquals(5 * HistoryIndex.BLOCK_MESSAGES - first, hits.length);
+	}
+
+	@Test
+	public void emptyIndex() {
+		HistoryIndex index = new HistoryIndex(1024);
+		assertEquals(-1, index.getFirstOffset());
+		assertEquals(0, index.search(HistoryIndex.tokenize("foo"), Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, 10).length);
+	}
+}
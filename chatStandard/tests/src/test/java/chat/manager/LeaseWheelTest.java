@@ -0,0 +1,71 @@
+package chat.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LeaseWheelTest {
+
+	@Test
+	public void leaseExpiresWithinOneTickOfItsDeadline() {
+		LeaseWheel<String> wheel = new LeaseWheel<String>(100, 8, 0);
+		wheel.add("alice", 1000, 0);
+		assertTrue(wheel.expire(900).isEmpty());
+		assertTrue(wheel.expire(999).isEmpty());
+		assertEquals(Arrays.asList("alice"), wheel.expire(1100));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void renewPushesTheDeadline() {
+		LeaseWheel<String> wheel = new LeaseWheel<String>(100, 8, 0);
+		wheel.add("alice", 1000, 0);
+		wheel.add("bob", 1000, 0);
+		wheel.renew("alice", 800);
+		assertEquals(Arrays.asList("bob"), wheel.expire(1100));
+		assertTrue(wheel.expire(1700).isEmpty());
+		assertEquals(Arrays.asList("alice"), wheel.expire(1900));
+	}
+
+	@Test
+	public void removedOrReplacedLeasesDoNotExpire() {
+		LeaseWheel<String> wheel = new LeaseWheel<String>(100, 8, 0);
+		wheel.add("alice", 500, 0);
+		wheel.add("bob", 500, 0);
+		wheel.remove("alice");
+		// Le nouveau bail remplace l'ancien, qui reste dans sa case
+		wheel.add("bob", 2000, 100);
+		assertTrue(wheel.expire(1000).isEmpty());
+		assertEquals(Arrays.asList("bob"), wheel.expire(2200));
+		// Renouveler une clé sans bail n'en crée pas
+		wheel.renew("carol", 2200);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void deadlinesBeyondOneTurnAreKept() {
+		// Un tour de roue dure 400 ms
+		LeaseWheel<String> wheel = new LeaseWheel<String>(100, 4, 0);
+		wheel.add("alice", 1000, 0);
+		for (long now = 100; now < 1000; now += 100) {
+			assertTrue(wheel.expire(now).isEmpty());
+		}
+		assertEquals(Arrays.asList("alice"), wheel.expire(1100));
+	}
+
+	@Test
+	public void longPauseExpiresEveryDueLease() {
+		LeaseWheel<String> wheel = new LeaseWheel<String>(100, 4, 0);
+		wheel.add("alice", 300, 0);
+		wheel.add("bob", 700, 0);
+		wheel.add("carol", 5000, 0);
+		List<String> expired = wheel.expire(3000);
+		assertEquals(2, expired.size());
+		assertTrue(expired.contains("alice") && expired.contains("bob"));
+		assertEquals(1, wheel.size());
+	}
+}
@@ -0,0 +1,159 @@
+package chat.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NotificationDispatcherTest {
+	private static final AID SLOW = new AID("slow@localhost:1099/JADE", AID.ISGUID);
+	private static final AID ALICE = new AID("alice@localhost:1099/JADE", AID.ISGUID);
+	private static final AID BOB = new AID("bob@localhost:1099/JADE", AID.ISGUID);
+	private static final int MAX_OUTSTANDING = 50;
+
+	// Les envois vers SLOW restent bloqués jusqu'à ce que release soit ouvert
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final Map<AID, List<String>> received = new ConcurrentHashMap<AID, List<String>>();
+	private NotificationDispatcher dispatcher;
+	private List<Thread> threads = new ArrayList<Thread>();
+
+	@Before
+	public void setUp() {
+		dispatcher = new NotificationDispatcher(null, MAX_OUTSTANDING) {
+			void send(ACLMessage msg) {
+				AID receiver = (AID) msg.getAllReceiver().next();
+				if (receiver.equals(SLOW)) {
+					try {
+						release.await();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				received.get(receiver).add(msg.getContent());
+			}
+		};
+		for (AID id : Arrays.asList(SLOW, ALICE, BOB)) {
+			received.put(id, Collections.synchronizedList(new ArrayList<String>()));
+		}
+		// Deux threads d'envoi, comme le manager avec dispatchThreads=2
+		for (int i = 0; i < 2; ++i) {
+			Thread t = new Thread() {
+				public void run() {
+					try {
+						while (true) {
+							dispatcher.serveNext();
+						}
+					}
+					catch (InterruptedException e) {
+						// Fin du test
+					}
+				}
+			};
+			t.start();
+			threads.add(t);
+		}
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		release.countDown();
+		for (Thread t : threads) {
+			t.interrupt();
+			t.join();
+		}
+	}
+
+	@Test
+	public void onlyTheSlowReceiverFallsBehind() throws InterruptedException {
+		List<AID> laggards = new ArrayList<AID>();
+		for (int i = 0; i < 200; ++i) {
+			dispatcher.relay(chat(i), Arrays.asList(SLOW, ALICE, BOB));
+			laggards.addAll(dispatcher.takeLaggards());
+			if (i % 10 == 9) {
+				waitUntilSent(ALICE);
+				waitUntilSent(BOB);
+			}
+		}
+		assertEquals(Arrays.asList(SLOW), laggards);
+		assertEquals(200, dispatcher.getOutstanding(SLOW));
+		for (AID id : Arrays.asList(ALICE, BOB)) {
+			assertEquals(0, dispatcher.getOutstanding(id));
+			assertEquals(200, received.get(id).size());
+			for (int i = 0; i < 200; ++i) {
+				assertEquals(String.valueOf(i), received.get(id).get(i));
+			}
+		}
+
+		// Suspendu, le retardataire n'a plus que l'envoi en cours
+		dispatcher.setSuspended(SLOW, true);
+		release.countDown();
+		waitUntilSent(SLOW);
+		assertEquals(Arrays.asList("0"), received.get(SLOW));
+		assertTrue(dispatcher.takeLaggards().isEmpty());
+	}
+
+	@Test
+	public void newSubscriptionDoesNotInheritTheOldBacklog() throws InterruptedException {
+		for (int i = 0; i < 5; ++i) {
+			dispatcher.relay(chat(i), Arrays.asList(SLOW));
+		}
+		assertEquals(5, dispatcher.getOutstanding(SLOW));
+		dispatcher.forget(SLOW);
+		assertEquals(0, dispatcher.getOutstanding(SLOW));
+		dispatcher.relay(chat(5), Arrays.asList(SLOW));
+		assertEquals(1, dispatcher.getOutstanding(SLOW));
+		// Les envois de l'ancienne inscription partent toujours
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (received.get(SLOW).size() < 6 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		assertEquals(6, received.get(SLOW).size());
+		assertEquals(0, dispatcher.getOutstanding(SLOW));
+	}
+
+	@Test
+	public void suspendedReceiversAreSkipped() throws InterruptedException {
+		dispatcher.setSuspended(BOB, true);
+		dispatcher.relay(chat(0), Arrays.asList(ALICE, BOB));
+		dispatcher.setSuspended(BOB, false);
+		dispatcher.relay(chat(1), Arrays.asList(ALICE, BOB));
+		waitUntilSent(ALICE);
+		waitUntilSent(BOB);
+		assertEquals(Arrays.asList("0", "1"), received.get(ALICE));
+		assertEquals(Arrays.asList("1"), received.get(BOB));
+	}
+
+	private static ACLMessage chat(int i) {
+		ACLMessage msg = new ACLMessage(ACLMessage.INFORM);
+		msg.setSender(ALICE);
+		msg.setContent(String.valueOf(i));
+		return msg;
+	}
+
+	private void waitUntilSent(AID id) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (dispatcher.getOutstanding(id) > 0) {
+			if (System.currentTimeMillis() > deadline) {
+				fail(dispatcher.getOutstanding(id) + " sends still outstanding for " + id.getName());
+			}
+			Thread.sleep(1);
+		}
+	}
+}
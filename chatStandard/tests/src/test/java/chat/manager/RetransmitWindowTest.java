@@ -0,0 +1,47 @@
+package chat.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import jade.lang.acl.ACLMessage;
+
+public class RetransmitWindowTest {
+
+	@Test
+	public void emptyWindow() {
+		RetransmitWindow window = new RetransmitWindow(4);
+		assertEquals(0, window.getLast());
+		assertEquals(1, window.getFirst());
+		assertNull(window.get(1));
+	}
+
+	@Test
+	public void oldestMessagesAreReplaced() {
+		RetransmitWindow window = new RetransmitWindow(4);
+		ACLMessage[] messages = new ACLMessage[11];
+		for (int seq = 1; seq <= 10; ++seq) {
+			messages[seq] = new ACLMessage(ACLMessage.INFORM);
+			window.add(seq, messages[seq]);
+		}
+		assertEquals(10, window.getLast());
+		assertEquals(7, window.getFirst());
+		assertNull(window.get(6));
+		for (int seq = 7; seq <= 10; ++seq) {
+			assertSame(messages[seq], window.get(seq));
+		}
+		assertNull(window.get(11));
+	}
+
+	@Test
+	public void zeroCapacityKeepsOnlyTheLastNumber() {
+		RetransmitWindow window = new RetransmitWindow(0);
+		window.add(1, new ACLMessage(ACLMessage.INFORM));
+		window.add(2, new ACLMessage(ACLMessage.INFORM));
+		assertEquals(2, window.getLast());
+		assertEquals(3, window.getFirst());
+		assertNull(window.get(2));
+	}
+}
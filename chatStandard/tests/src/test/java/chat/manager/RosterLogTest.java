@@ -0,0 +1,65 @@
+package chat.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import jade.core.AID;
+
+public class RosterLogTest {
+
+	private static AID aid(String name) {
+		return new AID(name + "@host:1099/JADE", AID.ISGUID);
+	}
+
+	private static List<AID> batch(String... names) {
+		List<AID> batch = new ArrayList<AID>();
+		for (int i = 0; i < names.length; ++i) {
+			batch.add(aid(names[i]));
+		}
+		return batch;
+	}
+
+	@Test
+	public void changesSinceAKnownVersion() {
+		RosterLog log = new RosterLog(10);
+		assertEquals(0, log.getVersion());
+		assertEquals(1, log.add(batch("alice", "bob")));
+		assertEquals(2, log.add(batch("carol")));
+		assertEquals(3, log.add(batch("alice", "dave")));
+
+		assertTrue(log.covers(0));
+		assertEquals(batch("alice", "bob", "carol", "dave"), new ArrayList<AID>(log.changedSince(0)));
+		assertEquals(batch("carol", "alice", "dave"), new ArrayList<AID>(log.changedSince(1)));
+		assertTrue(log.covers(3));
+		assertTrue(log.changedSince(3).isEmpty());
+		// Version inconnue de ce manager
+		assertFalse(log.covers(4));
+	}
+
+	@Test
+	public void onlyTheLastCapacityBatchesAreKept() {
+		RosterLog log = new RosterLog(2);
+		log.add(batch("alice"));
+		log.add(batch("bob"));
+		log.add(batch("carol"));
+		assertFalse(log.covers(0));
+		assertTrue(log.covers(1));
+		assertEquals(Arrays.asList(aid("bob"), aid("carol")), new ArrayList<AID>(log.changedSince(1)));
+	}
+
+	@Test
+	public void zeroCapacityOnlyCoversTheCurrentVersion() {
+		RosterLog log = new RosterLog(0);
+		log.add(batch("alice"));
+		assertFalse(log.covers(0));
+		assertTrue(log.covers(1));
+		assertTrue(log.changedSince(1).isEmpty());
+	}
+}
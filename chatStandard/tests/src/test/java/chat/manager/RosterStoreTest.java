@@ -0,0 +1,210 @@
+package chat.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import jade.core.AID;
+import jade.lang.acl.ACLMessage;
+
+public class RosterStoreTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static ACLMessage subscription(String name) {
+		ACLMessage msg = new ACLMessage(ACLMessage.SUBSCRIBE);
+		AID sender = new AID(name + "@host:1099/JADE", AID.ISGUID);
+		sender.addAddresses("http://host:7778/acc");
+		msg.setSender(sender);
+		msg.setConversationId("C-" + name);
+		msg.setReplyWith("R-" + name);
+		msg.setLanguage("fipa-sl");
+		msg.setOntology("chat-ontology");
+		msg.addUserDefinedParameter("chat-heartbeat", "5000");
+		return msg;
+	}
+
+	private static List<String> names(List<ACLMessage> subscriptions) {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < subscriptions.size(); ++i) {
+			names.add(subscriptions.get(i).getSender().getLocalName());
+		}
+		return names;
+	}
+
+	@Test
+	public void subscriptionFieldsSurviveARestart() throws IOException {
+		File dir = tmp.getRoot();
+		RosterStore store = new RosterStore(dir, 1000);
+		store.load();
+		store.added(subscription("alice"));
+		store.close();
+
+		List<ACLMessage> saved = new RosterStore(dir, 1000).load();
+		assertEquals(1, saved.size());
+		ACLMessage msg = saved.get(0);
+		assertEquals(ACLMessage.SUBSCRIBE, msg.getPerformative());
+		assertEquals("alice@host:1099/JADE", msg.getSender().getName());
+		assertEquals("http://host:7778/acc", msg.getSender().getAddressesArray()[0]);
+		assertEquals("C-alice", msg.getConversationId());
+		assertEquals("R-alice", msg.getReplyWith());
+		assertEquals("fipa-sl", msg.getLanguage());
+		assertEquals("chat-ontology", msg.getOntology());
+		assertNull(msg.getProtocol());
+		assertEquals("5000", msg.getUserDefinedParameter("chat-heartbeat"));
+	}
+
+	@Test
+	public void onlyTheSavedParametersAreKept() throws IOException {
+		File dir = tmp.getRoot();
+		RosterStore store = new RosterStore(dir, 1000);
+		store.load();
+		ACLMessage msg = subscription("alice");
+		msg.addUserDefinedParameter("chat-sequenced", "true");
+		// Plus de paramètres que ce qu'un octet peut compter
+		for (int i = 0; i < 300; ++i) {
+			msg.addUserDefinedParameter("x-" + i, "value");
+		}
+		store.added(msg);
+		store.close();
+
+		List<ACLMessage> saved = new RosterStore(dir, 1000).load();
+		assertEquals(1, saved.size());
+		assertEquals(2, saved.get(0).getAllUserDefinedParameters().size());
+		assertEquals("5000", saved.get(0).getUserDefinedParameter("chat-heartbeat"));
+		assertEquals("true", saved.get(0).getUserDefinedParameter("chat-sequenced"));
+	}
+
+	@Test
+	public void oversizedSubscriptionIsRefusedAndLeavesTheJournalIntact() throws IOException {
+		ACLMessage longField = subscription("bob");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i <= RosterStore.MAX_FIELD_LENGTH; ++i) {
+			sb.append('x');
+		}
+		longField.setConversationId(sb.toString());
+		ACLMessage manyAddresses = subscription("carol");
+		for (int i = 0; i < RosterStore.MAX_ADDRESSES; ++i) {
+			manyAddresses.getSender().addAddresses("http://host" + i + ":7778/acc");
+		}
+		assertTrue(RosterStore.isStorable(subscription("alice")));
+		assertFalse(RosterStore.isStorable(longField));
+		assertFalse(RosterStore.isStorable(manyAddresses));
+
+		File dir = tmp.getRoot();
+		RosterStore store = new RosterStore(dir, 1000);
+		store.load();
+		store.added(subscription("alice"));
+		for (ACLMessage msg : new ACLMessage[] { longField, manyAddresses }) {
+			try {
+				store.added(msg);
+				fail("Oversized subscription saved");
+			}
+			catch (IOException e) {
+				// Attendu
+			}
+		}
+		store.added(subscription("dave"));
+		store.close();
+		assertEquals(Arrays.asList("alice", "dave"), names(new RosterStore(dir, 1000).load()));
+	}
+
+	@Test
+	public void journalIsReplayedOnTheSnapshot() throws IOException {
+		File dir = tmp.getRoot();
+		RosterStore store = new RosterStore(dir, 3);
+		store.load();
+		store.added(subscription("alice"));
+		store.added(subscription("bob"));
+		// Snapshot au troisième changement, les suivants restent dans le journal
+		store.added(subscription("carol"));
+		store.removed(new AID("alice@host:1099/JADE", AID.ISGUID));
+		store.added(subscription("dave"));
+		// Pas de close() : arrêt brutal
+
+		List<ACLMessage> saved = new RosterStore(dir, 3).load();
+		List<String> expected = new ArrayList<String>();
+		expected.add("bob");
+		expected.add("carol");
+		expected.add("dave");
+		assertEquals(expected, names(saved));
+	}
+
+	@Test
+	public void truncatedJournalEntryIsIgnored() throws IOException {
+		File dir = tmp.getRoot();
+		RosterStore store = new RosterStore(dir, 1000);
+		store.load();
+		store.added(subscription("alice"));
+		store.added(subscription("bob"));
+
+		File journal = new File(dir, "roster.journal");
+		RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		List<ACLMessage> saved = new RosterStore(dir, 1000).load();
+		assertEquals(1, saved.size());
+		assertEquals("alice", saved.get(0).getSender().getLocalName());
+	}
+
+	@Test
+	public void resetReplacesTheSavedRoster() throws IOException {
+		File dir = tmp.getRoot();
+		RosterStore store = new RosterStore(dir, 1000);
+		store.load();
+		store.added(subscription("alice"));
+		List<ACLMessage> handoff = new ArrayList<ACLMessage>();
+		handoff.add(subscription("bob"));
+		store.reset(handoff);
+		store.close();
+
+		List<ACLMessage> saved = new RosterStore(dir, 1000).load();
+		assertEquals(1, saved.size());
+		assertEquals("bob", saved.get(0).getSender().getLocalName());
+	}
+
+	@Test(expected = IOException.class)
+	public void invalidSnapshotIsRejected() throws IOException {
+		File dir = tmp.getRoot();
+		FileOutputStream out = new FileOutputStream(new File(dir, "roster.snap"));
+		out.write(new byte[] {0, 0, 0, 0, 0, 0, 0, 0});
+		out.close();
+		new RosterStore(dir, 1000).load();
+	}
+
+	@Test
+	public void replicationEntriesMatchTheJournal() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		RosterStore.writeAdded(out, subscription("alice"));
+		RosterStore.writeAdded(out, subscription("bob"));
+		RosterStore.writeRemoved(out, new AID("alice@host:1099/JADE", AID.ISGUID));
+		out.flush();
+
+		Map<String, ACLMessage> replica = new HashMap<String, ACLMessage>();
+		RosterStore.replay(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), replica);
+		assertEquals(1, replica.size());
+		assertEquals("C-bob", replica.get("bob@host:1099/JADE").getConversationId());
+	}
+}
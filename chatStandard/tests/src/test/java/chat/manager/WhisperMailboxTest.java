@@ -0,0 +1,183 @@
+package chat.manager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import chat.history.HistoryBatch;
+
+public class WhisperMailboxTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static List<String> parse(byte[] batch) {
+		final List<String> messages = new ArrayList<String>();
+		HistoryBatch.parse(batch, new HistoryBatch.Handler() {
+			public void onMessage(long offset, long time, String sender, String text) {
+				messages.add(time + " " + sender + ": " + text);
+			}
+		});
+		return messages;
+	}
+
+	@Test
+	public void drainReturnsMessagesInOrderAndEmptiesTheBox() throws IOException {
+		WhisperMailbox mailbox = new WhisperMailbox(null, 1000, 10, 1024 * 1024, 1024 * 1024);
+		assertEquals(WhisperMailbox.STORED, mailbox.add("bob", 1, "alice", "salut"));
+		assertEquals(WhisperMailbox.STORED, mailbox.add("bob", 2, "carol", "Ça va ?"));
+		assertEquals(WhisperMailbox.STORED, mailbox.add("dave", 3, "alice", "coucou"));
+		assertEquals(2, mailbox.size());
+
+		byte[] batch = mailbox.drain("bob");
+		assertEquals(0, HistoryBatch.getLong(batch, 0));
+		assertEquals(2, HistoryBatch.getInt(batch, 8));
+		List<String> messages = parse(batch);
+		assertEquals("1 alice: salut", messages.get(0));
+		assertEquals("2 carol: Ça va ?", messages.get(1));
+		assertNull(mailbox.drain("bob"));
+		assertEquals(1, mailbox.size());
+	}
+
+	@Test
+	public void fullBoxAndMemoryBudgetRefuseMessages() throws IOException {
+		WhisperMailbox mailbox = new WhisperMailbox(null, 1000, 2, 100, 1024 * 1024);
+		assertEquals(WhisperMailbox.STORED, mailbox.add("bob", 1, "alice", "un"));
+		assertEquals(WhisperMailbox.STORED, mailbox.add("bob", 2, "alice", "deux"));
+		assertEquals(WhisperMailbox.FULL, mailbox.add("bob", 3, "alice", "trois"));
+		// Sans répertoire, les messages dépassant le budget sont refusés
+		assertEquals(WhisperMailbox.NO_ROOM, mailbox.add("carol", 4, "alice", new String(new char[100])));
+		assertTrue(mailbox.getMemoryBytes() <= 100);
+	}
+
+	@Test
+	public void boxLimitRefusesNewRecipients() throws IOException {
+		WhisperMailbox mailbox = new WhisperMailbox(null, 2, 10, 1024 * 1024, 0);
+		assertEquals(WhisperMailbox.STORED, mailbox.add("bob", 1, "alice", "un"));
+		assertEquals(WhisperMailbox.STORED, mailbox.add("carol", 2, "alice", "deux"));
+		assertEquals(WhisperMailbox.NO_ROOM, mailbox.add("dave", 3, "alice", "trois"));
+		// Les boîtes existantes acceptent toujours des messages
+		assertEquals(WhisperMailbox.STORED, mailbox.add("bob", 4, "alice", "quatre"));
+		assertTrue(mailbox.contains("bob"));
+		assertTrue(!mailbox.contains("dave"));
+		mailbox.drain("carol");
+		assertEquals(WhisperMailbox.STORED, mailbox.add("dave", 5, "alice", "cinq"));
+	}
+
+	@Test
+	public void diskBudgetRefusesMessagesThatCannotBeSpilled() throws IOException {
+		File dir = tmp.getRoot();
+		WhisperMailbox mailbox = new WhisperMailbox(dir, 1000, 100, 200, 300);
+		mailbox.load();
+		int stored = 0;
+		int refused = 0;
+		for (int i = 0; i < 40; ++i) {
+			int result = mailbox.add(i % 2 == 0 ? "bob" : "carol", i, "alice", "message " + i);
+			if (result == WhisperMailbox.STORED) {
+				stored++;
+			}
+			else {
+				assertEquals(WhisperMailbox.NO_ROOM, result);
+				refused++;
+			}
+			assertTrue(mailbox.getMemoryBytes() <= 200);
+			assertTrue(mailbox.getDiskBytes() <= 300);
+		}
+		assertTrue(refused > 0);
+		long onDisk = 0;
+		for (File f : dir.listFiles()) {
+			onDisk += f.length();
+		}
+		assertEquals(onDisk, mailbox.getDiskBytes());
+
+		// Les messages refusés ne sont pas dans les boîtes
+		int count = parse(mailbox.drain("bob")).size() + parse(mailbox.drain("carol")).size();
+		assertEquals(stored, count);
+		assertEquals(0, mailbox.getDiskBytes());
+		assertEquals(0, mailbox.getMemoryBytes());
+	}
+
+	@Test
+	public void messagesBeyondTheMemoryBudgetAreSpilledToDisk() throws IOException {
+		File dir = tmp.getRoot();
+		WhisperMailbox mailbox = new WhisperMailbox(dir, 1000, 100, 200, 1024 * 1024);
+		mailbox.load();
+		for (int i = 0; i < 20; ++i) {
+			assertEquals(WhisperMailbox.STORED, mailbox.add(i % 2 == 0 ? "bob" : "carol", i, "alice", "message " + i));
+		}
+		assertTrue(mailbox.getMemoryBytes() <= 200);
+		assertTrue(dir.list().length > 0);
+
+		List<String> bob = parse(mailbox.drain("bob"));
+		assertEquals(10, bob.size());
+		for (int i = 0; i < 10; ++i) {
+			assertEquals((2 * i) + " alice: message " + (2 * i), bob.get(i));
+		}
+		assertEquals(10, parse(mailbox.drain("carol")).size());
+		assertEquals(0, dir.list().length);
+	}
+
+	@Test
+	public void boxesAreFoundAfterARestart() throws IOException {
+		File dir = tmp.getRoot();
+		WhisperMailbox mailbox = new WhisperMailbox(dir, 1000, 100, 1024 * 1024, 1024 * 1024);
+		mailbox.load();
+		mailbox.add("bob", 1, "alice", "avant l'arrêt");
+		mailbox.add("élodie/1", 2, "alice", "nom à encoder");
+		mailbox.close();
+
+		mailbox = new WhisperMailbox(dir, 1000, 100, 1024 * 1024, 1024 * 1024);
+		mailbox.load();
+		assertEquals(2, mailbox.size());
+		assertEquals(new File(dir, "bob.mbx").length() + new File(dir, "%C3%A9lodie%2F1.mbx").length(), mailbox.getDiskBytes());
+		assertEquals("1 alice: avant l'arrêt", parse(mailbox.drain("bob")).get(0));
+		assertEquals("2 alice: nom à encoder", parse(mailbox.drain("élodie/1")).get(0));
+	}
+
+	@Test
+	public void truncatedRecordIsRemovedOnRecovery() throws IOException {
+		File dir = tmp.getRoot();
+		WhisperMailbox mailbox = new WhisperMailbox(dir, 1000, 100, 1024 * 1024, 1024 * 1024);
+		mailbox.load();
+		mailbox.add("bob", 1, "alice", "complet");
+		mailbox.add("bob", 2, "alice", "tronqué");
+		mailbox.close();
+
+		// Arrêt brutal pendant l'écriture du second message
+		File file = new File(dir, "bob.mbx");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		long complete = HistoryBatch.RECORD_HEADER_SIZE + "alice".length() + "complet".length();
+		raf.setLength(complete + 5);
+		raf.close();
+
+		mailbox = new WhisperMailbox(dir, 1000, 100, 1024 * 1024, 1024 * 1024);
+		mailbox.load();
+		assertEquals(complete, file.length());
+		List<String> messages = parse(mailbox.drain("bob"));
+		assertEquals(1, messages.size());
+		assertEquals("1 alice: complet", messages.get(0));
+	}
+
+	@Test
+	public void emptyRecoveredFileIsDeleted() throws IOException {
+		File dir = tmp.getRoot();
+		File file = new File(dir, "bob.mbx");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(3);
+		raf.close();
+
+		WhisperMailbox mailbox = new WhisperMailbox(dir, 1000, 100, 1024 * 1024, 1024 * 1024);
+		mailbox.load();
+		assertEquals(0, mailbox.size());
+		assertTrue(!file.exists());
+	}
+}
@@ -0,0 +1,85 @@
+package chat.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+	// 16 sous-buckets par puissance de 2
+	private static final double PRECISION = 1.0 / 16;
+
+	private static void assertClose(long expected, long actual) {
+		assertTrue(actual + " is not within " + PRECISION + " of " + expected,
+				Math.abs(actual - expected) <= expected * PRECISION);
+	}
+
+	@Test
+	public void emptyHistogramReportsZero() {
+		Histogram h = new Histogram();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getPercentile(0.5));
+		assertEquals(0, h.getMax());
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		Histogram h = new Histogram();
+		for (int v = 0; v < 16; ++v) {
+			h.record(v);
+		}
+		assertEquals(16, h.getCount());
+		assertEquals(120, h.getSum());
+		assertEquals(7, h.getPercentile(0.5));
+		assertEquals(15, h.getPercentile(1));
+		assertEquals(15, h.getMax());
+	}
+
+	@Test
+	public void percentilesStayWithinTheBucketPrecision() {
+		Histogram h = new Histogram();
+		for (int v = 1; v <= 100000; ++v) {
+			h.record(v);
+		}
+		assertClose(50000, h.getPercentile(0.5));
+		assertClose(99000, h.getPercentile(0.99));
+		assertEquals(100000, h.getPercentile(1));
+		assertEquals(100000, h.getMax());
+		assertEquals(5000050000L, h.getSum());
+
+		// Valeurs très grandes : les derniers buckets restent utilisables
+		Histogram large = new Histogram();
+		large.record(Long.MAX_VALUE / 2);
+		large.record(3L << 40);
+		assertClose(3L << 40, large.getPercentile(0.5));
+		assertEquals(Long.MAX_VALUE / 2, large.getPercentile(1));
+	}
+
+	@Test
+	public void percentileNeverExceedsTheMaximum() {
+		Histogram h = new Histogram();
+		// 1000 tombe dans le bucket [992, 1023]
+		h.record(1000);
+		h.record(1000);
+		assertEquals(1000, h.getPercentile(0.5));
+	}
+
+	@Test
+	public void negativeValuesCountAsZero() {
+		Histogram h = new Histogram();
+		h.record(-5);
+		assertEquals(1, h.getCount());
+		assertEquals(0, h.getSum());
+		assertEquals(0, h.getPercentile(1));
+	}
+
+	@Test
+	public void recordSinceRecordsMicroseconds() throws InterruptedException {
+		Histogram h = new Histogram();
+		long start = System.nanoTime();
+		Thread.sleep(20);
+		h.recordSince(start);
+		assertTrue(h.getMax() >= 20000);
+		assertTrue(h.getMax() < 10000000);
+	}
+}
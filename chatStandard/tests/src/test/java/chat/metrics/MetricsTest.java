@@ -0,0 +1,104 @@
+package chat.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+	private static int occurrences(String s, String part) {
+		int n = 0;
+		for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + 1)) {
+			n++;
+		}
+		return n;
+	}
+
+	@Test
+	public void exportUsesThePrometheusTextFormat() {
+		Metrics metrics = new Metrics("test_export", "TestExport", "a\"b");
+		AtomicLong sent = metrics.counter("sent_total", "Messages sent");
+		metrics.gauge("queued", "Messages waiting", new Gauge() {
+			public long getValue() {
+				return 7;
+			}
+		});
+		Histogram latency = metrics.histogram("latency_micros", "Latency");
+		sent.addAndGet(3);
+		latency.record(10);
+		latency.record(12);
+		metrics.register();
+		try {
+			String out = Metrics.export();
+			assertTrue(out.contains("# HELP test_export_sent_total Messages sent\n"));
+			assertTrue(out.contains("# TYPE test_export_sent_total counter\n"));
+			// Le nom de l'agent est échappé dans le label
+			assertTrue(out.contains("test_export_sent_total{agent=\"a\\\"b\"} 3\n"));
+			assertTrue(out.contains("# TYPE test_export_queued gauge\n"));
+			assertTrue(out.contains("test_export_queued{agent=\"a\\\"b\"} 7\n"));
+			assertTrue(out.contains("# TYPE test_export_latency_micros summary\n"));
+			assertTrue(out.contains("test_export_latency_micros{agent=\"a\\\"b\",quantile=\"0.5\"} 10\n"));
+			assertTrue(out.contains("test_export_latency_micros{agent=\"a\\\"b\",quantile=\"1\"} 12\n"));
+			assertTrue(out.contains("test_export_latency_micros_sum{agent=\"a\\\"b\"} 22\n"));
+			assertTrue(out.contains("test_export_latency_micros_count{agent=\"a\\\"b\"} 2\n"));
+		}
+		finally {
+			metrics.unregister();
+		}
+		assertFalse(Metrics.export().contains("test_export_"));
+	}
+
+	@Test
+	public void agentsOfTheSameTypeShareTheirFamilies() {
+		Metrics first = new Metrics("test_family", "TestFamily", "first");
+		Metrics second = new Metrics("test_family", "TestFamily", "second");
+		first.counter("joins_total", "Joins").set(1);
+		second.counter("joins_total", "Joins").set(2);
+		first.register();
+		second.register();
+		try {
+			String out = Metrics.export();
+			assertEquals(1, occurrences(out, "# HELP test_family_joins_total"));
+			int help = out.indexOf("# HELP test_family_joins_total");
+			int a = out.indexOf("test_family_joins_total{agent=\"first\"} 1\n");
+			int b = out.indexOf("test_family_joins_total{agent=\"second\"} 2\n");
+			assertTrue(help >= 0 && a > help && b > a);
+		}
+		finally {
+			first.unregister();
+			second.unregister();
+		}
+	}
+
+	@Test
+	public void metricsAreReadableByJmx() throws Exception {
+		Metrics metrics = new Metrics("test_jmx", "TestJmx", "agent-jmx");
+		metrics.counter("sent_total", "Messages sent").set(5);
+		Histogram latency = metrics.histogram("latency_micros", "Latency");
+		for (int v = 1; v <= 100; ++v) {
+			latency.record(v);
+		}
+		metrics.register();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("chat:type=TestJmx,name=" + ObjectName.quote("agent-jmx"));
+		try {
+			assertEquals(Long.valueOf(5), server.getAttribute(name, "sent_total"));
+			assertEquals(Long.valueOf(100), server.getAttribute(name, "latency_micros.count"));
+			assertEquals(Long.valueOf(5050), server.getAttribute(name, "latency_micros.sum"));
+			assertEquals(Long.valueOf(100), server.getAttribute(name, "latency_micros.max"));
+			assertEquals(6, server.getMBeanInfo(name).getAttributes().length);
+		}
+		finally {
+			metrics.unregister();
+		}
+		assertFalse(server.isRegistered(name));
+	}
+}
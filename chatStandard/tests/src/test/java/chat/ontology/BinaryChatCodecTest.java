@@ -0,0 +1,165 @@
+package chat.ontology;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import jade.content.abs.AbsAggregate;
+import jade.content.abs.AbsContentElement;
+import jade.content.abs.AbsPredicate;
+import jade.content.abs.AbsTerm;
+import jade.content.lang.Codec.CodecException;
+import jade.content.onto.BasicOntology;
+import jade.core.AID;
+
+public class BinaryChatCodecTest {
+	// Version et prédicats du format binaire
+	private static final byte VERSION = 1;
+	private static final byte JOINED = 1;
+	private static final byte SPOKEN = 3;
+
+	private final BinaryChatCodec codec = new BinaryChatCodec();
+
+	private static AbsPredicate presence(String type, String slot, AID... ids) throws Exception {
+		AbsAggregate agg = new AbsAggregate(BasicOntology.SEQUENCE);
+		for (AID id : ids) {
+			agg.add((AbsTerm) BasicOntology.getInstance().fromObject(id));
+		}
+		AbsPredicate p = new AbsPredicate(type);
+		p.set(slot, agg);
+		return p;
+	}
+
+	private static AID[] aids(AbsPredicate p, String slot) throws Exception {
+		AbsAggregate agg = (AbsAggregate) p.getAbsTerm(slot);
+		AID[] ids = new AID[agg.size()];
+		for (int i = 0; i < ids.length; ++i) {
+			ids[i] = (AID) BasicOntology.getInstance().toObject(agg.get(i));
+		}
+		return ids;
+	}
+
+	private AbsPredicate roundTrip(AbsPredicate p) throws CodecException {
+		return (AbsPredicate) codec.decode(codec.encode(p));
+	}
+
+	private void assertRejected(byte[] content) {
+		try {
+			AbsContentElement decoded = codec.decode(content);
+			fail("Decoded " + decoded + " from " + Arrays.toString(content));
+		}
+		catch (CodecException e) {
+			// Attendu
+		}
+	}
+
+	@Test
+	public void presenceRoundTrip() throws Exception {
+		AID alice = new AID("alice@localhost:1099/JADE", AID.ISGUID);
+		alice.addAddresses("http://localhost:7778/acc");
+		alice.addAddresses("jicp://192.0.2.2:1099");
+		AID bob = new AID("bob@localhost:1099/JADE", AID.ISGUID);
+
+		AbsPredicate joined = roundTrip(presence(ChatVocabulary.JOINED, ChatVocabulary.JOINED_WHO, alice, bob));
+		assertEquals(ChatVocabulary.JOINED, joined.getTypeName());
+		AID[] ids = aids(joined, ChatVocabulary.JOINED_WHO);
+		assertEquals(2, ids.length);
+		assertEquals(alice.getName(), ids[0].getName());
+		assertEquals(Arrays.asList(alice.getAddressesArray()), Arrays.asList(ids[0].getAddressesArray()));
+		assertEquals(bob.getName(), ids[1].getName());
+		assertEquals(0, ids[1].getAddressesArray().length);
+
+		AbsPredicate left = roundTrip(presence(ChatVocabulary.LEFT, ChatVocabulary.LEFT_WHO, bob));
+		assertEquals(ChatVocabulary.LEFT, left.getTypeName());
+		assertEquals(bob.getName(), aids(left, ChatVocabulary.LEFT_WHO)[0].getName());
+
+		AbsPredicate empty = roundTrip(presence(ChatVocabulary.LEFT, ChatVocabulary.LEFT_WHO));
+		assertEquals(0, aids(empty, ChatVocabulary.LEFT_WHO).length);
+	}
+
+	@Test
+	public void messageRoundTrip() throws Exception {
+		AbsPredicate spoken = new AbsPredicate(ChatVocabulary.SPOKEN);
+		spoken.set(ChatVocabulary.SPOKEN_WHAT, "Café 😀, \"ok\"");
+		AbsPredicate decoded = roundTrip(spoken);
+		assertEquals(ChatVocabulary.SPOKEN, decoded.getTypeName());
+		assertEquals("Café 😀, \"ok\"", decoded.getString(ChatVocabulary.SPOKEN_WHAT));
+
+		AbsPredicate whispered = new AbsPredicate(ChatVocabulary.WHISPERED);
+		whispered.set(ChatVocabulary.WHISPERED_TO, "bob");
+		whispered.set(ChatVocabulary.WHISPERED_WHAT, "");
+		decoded = roundTrip(whispered);
+		assertEquals(ChatVocabulary.WHISPERED, decoded.getTypeName());
+		assertEquals("bob", decoded.getString(ChatVocabulary.WHISPERED_TO));
+		assertEquals("", decoded.getString(ChatVocabulary.WHISPERED_WHAT));
+
+		// Les champs absents restent absents, distincts d'une chaîne vide
+		decoded = roundTrip(new AbsPredicate(ChatVocabulary.WHISPERED));
+		assertNull(decoded.getAbsTerm(ChatVocabulary.WHISPERED_TO));
+		assertNull(decoded.getAbsTerm(ChatVocabulary.WHISPERED_WHAT));
+	}
+
+	@Test
+	public void truncatedContentIsRejected() throws Exception {
+		AID alice = new AID("alice@localhost:1099/JADE", AID.ISGUID);
+		alice.addAddresses("http://localhost:7778/acc");
+		AbsPredicate whispered = new AbsPredicate(ChatVocabulary.WHISPERED);
+		whispered.set(ChatVocabulary.WHISPERED_TO, "bob");
+		whispered.set(ChatVocabulary.WHISPERED_WHAT, "à demain");
+		byte[][] encoded = {
+			codec.encode(presence(ChatVocabulary.JOINED, ChatVocabulary.JOINED_WHO, alice)),
+			codec.encode(whispered)
+		};
+		for (byte[] full : encoded) {
+			for (int n = 0; n < full.length; ++n) {
+				assertRejected(Arrays.copyOf(full, n));
+			}
+		}
+		assertRejected(null);
+	}
+
+	@Test
+	public void hostileContentIsRejected() {
+		// Version et prédicat inconnus
+		assertRejected(new byte[] { 2, SPOKEN, 0 });
+		assertRejected(new byte[] { VERSION, 9 });
+		// Varint de plus de 5 octets
+		assertRejected(new byte[] { VERSION, SPOKEN, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1 });
+		// Longueur de chaîne négative (0xF0000000)
+		assertRejected(new byte[] { VERSION, SPOKEN, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x0F, 'a' });
+		// Longueur dépassant le contenu
+		assertRejected(new byte[] { VERSION, SPOKEN, 10, 'a', 'b' });
+		// Nombre d'AID énorme puis négatif
+		assertRejected(new byte[] { VERSION, JOINED, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 });
+		assertRejected(new byte[] { VERSION, JOINED, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F });
+		// Nombre d'adresses énorme
+		assertRejected(new byte[] { VERSION, JOINED, 1, 2, 'a', (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x7F });
+	}
+
+	@Test
+	public void randomContentIsDecodedOrRejected() {
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; ++i) {
+			byte[] content = new byte[random.nextInt(16)];
+			random.nextBytes(content);
+			if (content.length > 0) {
+				content[0] = VERSION;
+			}
+			if (content.length > 1) {
+				content[1] = (byte) (1 + random.nextInt(4));
+			}
+			try {
+				codec.decode(content);
+			}
+			catch (CodecException e) {
+				// Contenu invalide
+			}
+			// Toute autre exception fait échouer le test
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package chat.ratelimit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+	private static final long SECOND = 1000000000L;
+
+	@Test
+	public void eachSenderHasItsOwnBucket() {
+		RateLimiter<String> limiter = new RateLimiter<String>(1, 2, 0, 0);
+		long now = System.nanoTime();
+		assertEquals(RateLimiter.ALLOWED, limiter.tryAcquire("alice", now));
+		assertEquals(RateLimiter.ALLOWED, limiter.tryAcquire("alice", now));
+		assertEquals(RateLimiter.SENDER, limiter.tryAcquire("alice", now));
+		assertEquals(RateLimiter.ALLOWED, limiter.tryAcquire("bob", now));
+		long wait = limiter.getWaitMillis("alice", RateLimiter.SENDER, now);
+		assertTrue("wait " + wait, wait >= 999 && wait <= 1001);
+		assertEquals(RateLimiter.ALLOWED, limiter.tryAcquire("alice", now + 2 * SECOND));
+	}
+
+	@Test
+	public void roomLimitDoesNotConsumeTheSenderToken() {
+		RateLimiter<String> limiter = new RateLimiter<String>(1, 2, 1, 1);
+		long now = System.nanoTime();
+		assertEquals(RateLimiter.ALLOWED, limiter.tryAcquire("alice", now));
+		assertEquals(RateLimiter.ROOM, limiter.tryAcquire("bob", now));
+		assertTrue(limiter.getWaitMillis("bob", RateLimiter.ROOM, now) > 0);
+		// Le jeton de bob lui a été rendu : il peut encore parler deux fois d'affilée
+		long later = now + 2 * SECOND;
+		assertEquals(RateLimiter.ALLOWED, limiter.tryAcquire("bob", later));
+		assertEquals(RateLimiter.ROOM, limiter.tryAcquire("bob", later));
+		assertEquals(0, limiter.getWaitMillis("bob", RateLimiter.SENDER, later));
+	}
+
+	@Test
+	public void zeroRatesDisableTheLimits() {
+		RateLimiter<String> limiter = new RateLimiter<String>(0, 0, 0, 0);
+		long now = System.nanoTime();
+		for (int i = 0; i < 1000; ++i) {
+			assertEquals(RateLimiter.ALLOWED, limiter.tryAcquire("alice", now));
+		}
+		assertEquals(0, limiter.getWaitMillis("alice", RateLimiter.SENDER, now));
+	}
+
+	@Test
+	public void forgottenSenderStartsWithAFullBucket() {
+		RateLimiter<String> limiter = new RateLimiter<String>(1, 1, 0, 0);
+		long now = System.nanoTime();
+		assertEquals(RateLimiter.ALLOWED, limiter.tryAcquire("alice", now));
+		assertEquals(RateLimiter.SENDER, limiter.tryAcquire("alice", now));
+		limiter.forget("alice");
+		assertEquals(RateLimiter.ALLOWED, limiter.tryAcquire("alice", now));
+	}
+}
@@ -0,0 +1,61 @@
+package chat.ratelimit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+	private static final long MILLI = 1000000L;
+
+	@Test
+	public void burstIsAllowedThenRateApplies() {
+		TokenBucket bucket = new TokenBucket(10, 3);
+		long now = System.nanoTime();
+		assertTrue(bucket.tryAcquire(now));
+		assertTrue(bucket.tryAcquire(now));
+		assertTrue(bucket.tryAcquire(now));
+		assertFalse(bucket.tryAcquire(now));
+		long wait = bucket.getWaitMillis(now);
+		assertTrue("wait " + wait, wait >= 99 && wait <= 101);
+		// Un jeton toutes les 100 ms
+		assertFalse(bucket.tryAcquire(now + 50 * MILLI));
+		assertTrue(bucket.tryAcquire(now + 101 * MILLI));
+		assertFalse(bucket.tryAcquire(now + 101 * MILLI));
+	}
+
+	@Test
+	public void tokensNeverExceedTheBurst() {
+		TokenBucket bucket = new TokenBucket(10, 2);
+		long later = System.nanoTime() + 60000 * MILLI;
+		assertTrue(bucket.tryAcquire(later));
+		assertTrue(bucket.tryAcquire(later));
+		assertFalse(bucket.tryAcquire(later));
+		assertEquals(0, new TokenBucket(10, 2).getWaitMillis(later));
+	}
+
+	@Test
+	public void releaseGivesBackAToken() {
+		TokenBucket bucket = new TokenBucket(1, 1);
+		long now = System.nanoTime();
+		assertTrue(bucket.tryAcquire(now));
+		assertFalse(bucket.tryAcquire(now));
+		bucket.release();
+		assertTrue(bucket.tryAcquire(now));
+		// Rendre un jeton ne dépasse pas la rafale
+		bucket.release();
+		bucket.release();
+		assertTrue(bucket.tryAcquire(now));
+		assertFalse(bucket.tryAcquire(now));
+	}
+
+	@Test
+	public void timeGoingBackwardsAddsNoToken() {
+		TokenBucket bucket = new TokenBucket(10, 1);
+		long now = System.nanoTime();
+		assertTrue(bucket.tryAcquire(now));
+		assertFalse(bucket.tryAcquire(now - 1000 * MILLI));
+		assertFalse(bucket.tryAcquire(now));
+	}
+}
@@ -0,0 +1,83 @@
+package chat.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import jade.core.AID;
+
+public class ShardRingTest {
+
+	private static AID manager(String name) {
+		return new AID(name + "@host:1099/JADE", AID.ISGUID);
+	}
+
+	@Test
+	public void emptyRingHasNoShard() {
+		ShardRing ring = new ShardRing();
+		assertTrue(ring.isEmpty());
+		assertNull(ring.getShard("alice"));
+	}
+
+	@Test
+	public void shardDoesNotDependOnTheOrderOfAddition() {
+		ShardRing a = new ShardRing();
+		ShardRing b = new ShardRing();
+		for (int i = 0; i < 4; ++i) {
+			a.add(manager("m" + i));
+			b.add(manager("m" + (3 - i)));
+		}
+		for (int i = 0; i < 1000; ++i) {
+			assertEquals(a.getShard("user" + i), b.getShard("user" + i));
+		}
+	}
+
+	@Test
+	public void nicknamesAreSpreadOverAllManagers() {
+		ShardRing ring = new ShardRing();
+		for (int i = 0; i < 4; ++i) {
+			ring.add(manager("m" + i));
+		}
+		Map<AID, Integer> counts = new HashMap<AID, Integer>();
+		for (int i = 0; i < 4000; ++i) {
+			AID shard = ring.getShard("user" + i);
+			Integer n = counts.get(shard);
+			counts.put(shard, n == null ? 1 : n + 1);
+		}
+		assertEquals(4, counts.size());
+		for (Integer n : counts.values()) {
+			assertTrue("unbalanced ring: " + counts, n > 500 && n < 1500);
+		}
+	}
+
+	@Test
+	public void removingAManagerOnlyMovesItsNicknames() {
+		ShardRing ring = new ShardRing();
+		for (int i = 0; i < 4; ++i) {
+			ring.add(manager("m" + i));
+		}
+		Map<String, AID> before = new HashMap<String, AID>();
+		for (int i = 0; i < 1000; ++i) {
+			before.put("user" + i, ring.getShard("user" + i));
+		}
+		AID removed = manager("m2");
+		ring.remove(removed);
+		for (int i = 0; i < 1000; ++i) {
+			String nickname = "user" + i;
+			AID shard = ring.getShard(nickname);
+			assertTrue(!shard.equals(removed));
+			if (!before.get(nickname).equals(removed)) {
+				assertEquals(before.get(nickname), shard);
+			}
+		}
+		ring.remove(manager("m0"));
+		ring.remove(manager("m1"));
+		ring.remove(manager("m3"));
+		assertTrue(ring.isEmpty());
+	}
+}